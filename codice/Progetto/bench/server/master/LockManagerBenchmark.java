@@ -0,0 +1,175 @@
+package server.master;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Comandi per l'esecuzione:
+ * 		$ cd ~/eclipse-workspace/Progetto
+ * 		$ java -cp bin:bin-bench server.master.LockManagerBenchmark [numThreads] [numPaths] [opsPerThread] [readPercent]
+ *
+ * Benchmark di contesa sul LockManager (nella cartella bench, fuori dai sorgenti del filesystem distribuito).
+ *
+ * Ogni thread simula un client che, su un path scelto a caso, esegue startOperation / endOperation (write lock e unlock
+ * oppure aggiunta ed eliminazione di un reader). Lo stesso carico viene eseguito sia sul LockManager attuale (trie di
+ * lock multi-granularità aggiornati con CAS) sia sulla versione originale (SynchronizedLockManager, con tutti i metodi
+ * synchronized sulla stessa istanza) e vengono stampate le operazioni al secondo di entrambi.
+ *
+ * Non serve che il registry sia attivo.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class LockManagerBenchmark {
+
+	/**
+	 * Operazioni minime necessarie al benchmark, implementate sia dal LockManager attuale che da quello originale.
+	 */
+	private interface Locks {
+		boolean writeLock(String path);
+		boolean writeUnlock(String path);
+		boolean addReader(String path);
+		boolean delReader(String path);
+	}
+
+	/**
+	 * Versione originale del LockManager: HashMap protetta da un unico monitor.
+	 *
+	 * @author gabrielesavoia
+	 *
+	 */
+	private static class SynchronizedLockManager implements Locks {
+
+		private static class CustomLock {
+			private int readers;
+			private boolean writeLock;
+		}
+
+		private HashMap<String, CustomLock> lockMap = new HashMap<String, CustomLock>();
+
+		@Override
+		public synchronized boolean writeLock(String path) {
+			CustomLock lock = lockMap.get(path);
+			if (lock == null) {
+				lock = new CustomLock();
+				lockMap.put(path, lock);
+			}
+			if (lock.writeLock || lock.readers > 0) { return false; }
+			lock.writeLock = true;
+			return true;
+		}
+
+		@Override
+		public synchronized boolean writeUnlock(String path) {
+			CustomLock lock = lockMap.get(path);
+			if (lock == null) { return false; }
+			lock.writeLock = false;
+			deleteIfNotUsed(path, lock);
+			return true;
+		}
+
+		@Override
+		public synchronized boolean addReader(String path) {
+			CustomLock lock = lockMap.get(path);
+			if (lock == null) {
+				lock = new CustomLock();
+				lockMap.put(path, lock);
+			}
+			if (lock.writeLock) { return false; }
+			lock.readers += 1;
+			return true;
+		}
+
+		@Override
+		public synchronized boolean delReader(String path) {
+			CustomLock lock = lockMap.get(path);
+			if (lock == null) { return false; }
+			if (lock.readers > 0) { lock.readers -= 1; }
+			deleteIfNotUsed(path, lock);
+			return true;
+		}
+
+		private void deleteIfNotUsed(String path, CustomLock lock) {
+			if (!lock.writeLock && lock.readers == 0) { lockMap.remove(path); }
+		}
+
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		int numThreads = (args.length > 0) ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+		int numPaths = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+		int opsPerThread = (args.length > 2) ? Integer.parseInt(args[2]) : 1_000_000;
+		int readPercent = (args.length > 3) ? Integer.parseInt(args[3]) : 80;
+
+		String[] paths = new String[numPaths];
+		for (int i=0; i<numPaths; i++) { paths[i] = "/dir"+(i % 10)+"/file"+i+".txt"; }
+
+		System.out.println("Thread: "+numThreads+"   path: "+numPaths+"   operazioni per thread: "+opsPerThread+
+				"   letture: "+readPercent+"%");
+
+		// un primo giro a vuoto per il warm-up della JIT
+		run(new SynchronizedLockManager(), paths, numThreads, opsPerThread / 10, readPercent);
+		run(adapt(new LockManager()), paths, numThreads, opsPerThread / 10, readPercent);
+
+		double oldOps = run(new SynchronizedLockManager(), paths, numThreads, opsPerThread, readPercent);
+		double newOps = run(adapt(new LockManager()), paths, numThreads, opsPerThread, readPercent);
+
+		System.out.printf("LockManager synchronized (originale): %,.0f op/s%n", oldOps);
+		System.out.printf("LockManager gerarchico (attuale):     %,.0f op/s%n", newOps);
+		System.out.printf("Speedup: %.2fx%n", newOps / oldOps);
+
+	}
+
+	/**
+	 * Adatta il LockManager attuale all'interfaccia usata dal benchmark.
+	 */
+	private static Locks adapt(LockManager lockManager) {
+
+		return new Locks() {
+			@Override public boolean writeLock(String path) { return lockManager.writeLock(path); }
+			@Override public boolean writeUnlock(String path) { return lockManager.writeUnlock(path); }
+			@Override public boolean addReader(String path) { return lockManager.addReader(path); }
+			@Override public boolean delReader(String path) { return lockManager.delReader(path); }
+		};
+
+	}
+
+	/**
+	 * Esegue il carico e ritorna le operazioni (coppie lock / unlock) al secondo.
+	 */
+	private static double run(Locks locks, String[] paths, int numThreads, int opsPerThread, int readPercent)
+			throws InterruptedException {
+
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(numThreads);
+
+		for (int t=0; t<numThreads; t++) {
+			Thread thread = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				try { start.await(); }
+				catch (InterruptedException e) { return; }
+				for (int i=0; i<opsPerThread; i++) {
+					String path = paths[random.nextInt(paths.length)];
+					if (random.nextInt(100) < readPercent) {
+						if (locks.addReader(path)) { locks.delReader(path); }
+					} else {
+						if (locks.writeLock(path)) { locks.writeUnlock(path); }
+					}
+				}
+				done.countDown();
+			});
+			thread.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		return (double) numThreads * opsPerThread / (elapsed / 1e9);
+
+	}
+
+}
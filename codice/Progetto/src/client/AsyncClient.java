@@ -0,0 +1,204 @@
+package client;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import common.DfsException;
+
+/**
+ * Interfaccia asincrona del client: ogni operazione ritorna subito un CompletableFuture e viene eseguita (con le
+ * chiamate sincrone di Client) da un pool di maxInFlight thread, così un solo thread chiamante può avere molte
+ * operazioni in corso e un caricamento di molti file non è limitato dalla latenza di ogni round trip.
+ *
+ * Le operazioni non concluse sono al massimo maxInFlight: quando il limite è raggiunto la chiamata attende che una
+ * termini (così chi invia molte operazioni non accumula una coda senza limite).
+ *
+ * Ordine: le operazioni su uno stesso path vengono eseguite nell' ordine in cui sono state chieste, quelle su path
+ * diversi possono sovrapporsi. Un' operazione attende anche quelle ancora in corso sulle directory che contengono i
+ * suoi path (ad esempio la scrittura di un file attende la creazione della sua directory) e, se è su una directory,
+ * quelle sui path che la directory contiene. L' errore di un' operazione non blocca le successive.
+ *
+ * Gli errori sono restituiti come DfsException nel completamento eccezionale del future.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class AsyncClient {
+
+	/**
+	 * Operazione sincrona del client eseguita da un thread del pool.
+	 */
+	private interface Operation<T> {
+		T run() throws DfsException;
+	}
+
+	private final Client client;
+	private final Semaphore inFlight;
+	private final ExecutorService executor;
+
+	// ultima operazione non conclusa per ogni path (protetta dal monitor di tails)
+	private final Map<String, CompletableFuture<?>> tails = new HashMap<String, CompletableFuture<?>>();
+
+	/**
+	 * @param client client su cui eseguire le operazioni
+	 * @param maxInFlight operazioni non concluse al massimo (e thread del pool)
+	 */
+	public AsyncClient(Client client, int maxInFlight) {
+
+		this.client = client;
+		this.inFlight = new Semaphore(maxInFlight);
+		this.executor = Executors.newFixedThreadPool(maxInFlight, r -> {
+			Thread t = new Thread(r, "async-client");
+			t.setDaemon(true);
+			return t;
+		});
+
+	}
+
+	public CompletableFuture<Void> createFileAsync(String path) {
+		return submit(new String[] { path }, () -> { client.createFile(path); return null; });
+	}
+
+	public CompletableFuture<Void> writeFileAsync(String path, byte[] content) {
+		return submit(new String[] { path }, () -> { client.writeFile(path, content); return null; });
+	}
+
+	public CompletableFuture<byte[]> readFileAsync(String path) {
+		return submit(new String[] { path }, () -> client.readFile(path));
+	}
+
+	public CompletableFuture<Void> removeAsync(String path) {
+		return submit(new String[] { path }, () -> { client.remove(path); return null; });
+	}
+
+	public CompletableFuture<Void> moveFileAsync(String sourcePath, String targetPath) {
+		return submit(new String[] { sourcePath, targetPath }, () -> { client.moveFile(sourcePath, targetPath); return null; });
+	}
+
+	public CompletableFuture<Void> renameFileAsync(String path, String newName) {
+
+		String pathWithNewName = Paths.get(path).resolveSibling(newName).toString();
+		return submit(new String[] { path, pathWithNewName }, () -> { client.renameFile(path, newName); return null; });
+
+	}
+
+	public CompletableFuture<Void> createDirectoryAsync(String path) {
+		return submit(new String[] { path }, () -> { client.createDirectory(path); return null; });
+	}
+
+	public CompletableFuture<String[]> listAsync(String path) {
+		return submit(new String[] { path }, () -> client.listFilesDirectory(path));
+	}
+
+	public CompletableFuture<Void> uploadFileAsync(String localPath, String path) {
+		return submit(new String[] { path }, () -> { client.uploadFile(localPath, path); return null; });
+	}
+
+	public CompletableFuture<Void> downloadFileAsync(String path, String localPath) {
+		return submit(new String[] { path }, () -> { client.downloadFile(path, localPath); return null; });
+	}
+
+	/**
+	 * Termina il pool: le operazioni già avviate o in coda nel pool vengono completate, quelle che attendono ancora 
+	 * un' operazione precedente falliscono.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Accodamento di un' operazione dopo quelle non concluse da cui dipende (vedi dependsOn).
+	 *
+	 * @param paths path toccati dall' operazione (come passati dall'utente)
+	 */
+	private <T> CompletableFuture<T> submit(String[] paths, Operation<T> operation) {
+
+		CompletableFuture<T> result = new CompletableFuture<T>();
+
+		String[] cleaned = new String[paths.length];
+		try {
+			for (int i=0; i<paths.length; i++) { cleaned[i] = client.getCleanedPath(paths[i]); }
+		}
+		catch (DfsException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+
+		try { inFlight.acquire(); }
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.completeExceptionally(new DfsException("Errore: operazione interrotta"));
+			return result;
+		}
+
+		CompletableFuture<?>[] previous;
+		synchronized (tails) {
+			List<CompletableFuture<?>> waitFor = new ArrayList<CompletableFuture<?>>();
+			for (Map.Entry<String, CompletableFuture<?>> tail: tails.entrySet()) {
+				for (String path: cleaned) {
+					if (dependsOn(path, tail.getKey())) {
+						waitFor.add(tail.getValue());
+						break;
+					}
+				}
+			}
+			previous = waitFor.toArray(new CompletableFuture<?>[0]);
+			for (String path: cleaned) { tails.put(path, result); }
+		}
+
+		// l'esito delle operazioni precedenti non conta, solo la loro conclusione
+		CompletableFuture.allOf(previous).whenComplete((ignored, previousError) -> {
+			try {
+				executor.execute(() -> {
+					T value = null;
+					Exception error = null;
+					try { value = operation.run(); }
+					catch (DfsException | RuntimeException e) { error = e; }
+					
+					// il posto viene liberato prima di completare il future, così anche un' operazione chiesta dalle 
+					// continuazioni del chiamante (eseguite da questo thread) lo trova libero
+					release(cleaned, result);
+					if (error == null) { result.complete(value); }
+					else { result.completeExceptionally(error); }
+				});
+			}
+			catch (RejectedExecutionException e) {
+				release(cleaned, result);
+				result.completeExceptionally(new DfsException("Errore: il client asincrono è stato chiuso"));
+			}
+		});
+
+		return result;
+
+	}
+
+	/**
+	 * Fine di un' operazione: non è più l'ultima sui suoi path e libera un posto tra quelle non concluse.
+	 */
+	private void release(String[] cleaned, CompletableFuture<?> result) {
+
+		synchronized (tails) {
+			for (String path: cleaned) { tails.remove(path, result); }
+		}
+		inFlight.release();
+
+	}
+
+	/**
+	 * @return true se un' operazione su path deve attendere quelle su other: stesso path, other è una directory che
+	 * 			contiene path oppure path è una directory che contiene other
+	 */
+	private static boolean dependsOn(String path, String other) {
+		return path.equals(other) || (other.endsWith("/") && path.startsWith(other))
+				|| (path.endsWith("/") && other.startsWith(path));
+	}
+
+}
@@ -0,0 +1,142 @@
+package client;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.BatchOp;
+import common.DfsException;
+
+/**
+ * Batch di operazioni di modifica (Client.batch): le operazioni vengono raccolte e con commit vengono presi i lock su
+ * tutti i path con una sola chiamata al ServerMaster, inviate insieme a un solo ServerReplica con una sola chiamata e
+ * propagate agli altri ServerReplica come un' unica operazione.
+ *
+ * Esempio:
+ * 		client.batch().mkdir("/dir").write("/dir/a.txt", a).write("/dir/b.txt", b).commit();
+ *
+ * Le operazioni vengono eseguite in ordine; quelle non valide (ad esempio un file senza estensione) o non riuscite
+ * non fermano le altre e il loro errore è nel risultato di commit, nella stessa posizione.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class Batch {
+
+	private final Client client;
+	private final List<BatchOp> ops = new ArrayList<BatchOp>();
+
+	Batch(Client client) {
+		this.client = client;
+	}
+
+	public Batch create(String path) {
+		ops.add(BatchOp.createFile(path));
+		return this;
+	}
+
+	public Batch write(String path, byte[] content) {
+		ops.add(BatchOp.writeFile(path, content));
+		return this;
+	}
+
+	public Batch remove(String path) {
+		ops.add(BatchOp.remove(path));
+		return this;
+	}
+
+	public Batch move(String sourcePath, String targetPath) {
+		ops.add(BatchOp.move(sourcePath, targetPath));
+		return this;
+	}
+
+	public Batch rename(String path, String newName) {
+		ops.add(BatchOp.rename(path, newName));
+		return this;
+	}
+
+	public Batch mkdir(String path) {
+		ops.add(BatchOp.createDirectory(path));
+		return this;
+	}
+
+	/**
+	 * Esecuzione del batch.
+	 *
+	 * @return per ogni operazione, nello stesso ordine in cui è stata aggiunta, null se è riuscita oppure l'errore
+	 *
+	 * @throws DfsException generata se non è possibile eseguire il batch (lock, connessione o propagazione)
+	 */
+	public DfsException[] commit() throws DfsException {
+
+		DfsException[] results = new DfsException[ops.size()];
+		List<BatchOp> valid = new ArrayList<BatchOp>();
+		List<Integer> positions = new ArrayList<Integer>();
+
+		for (int i=0; i<ops.size(); i++) {
+			try {
+				valid.add(clean(ops.get(i)));
+				positions.add(i);
+			}
+			catch (DfsException e) { results[i] = e; }
+		}
+		if (valid.isEmpty()) { return results; }
+
+		DfsException[] executed = client.executeBatch(valid);
+		for (int i=0; i<executed.length; i++) { results[positions.get(i)] = executed[i]; }
+		return results;
+
+	}
+
+	/**
+	 * Controlli delle singole operazioni del client (gli stessi di createFile, writeFile, ...) e path resi uniformi.
+	 */
+	private BatchOp clean(BatchOp op) throws DfsException {
+
+		String path = client.getCleanedPath(op.getPath());
+
+		switch (op.getType()) {
+			case CREATE_FILE:
+				if (!path.contains(".")) { throw new DfsException("Errore: nome del file non valido, deve contenere l'estensione"); }
+				return BatchOp.createFile(path);
+			case WRITE_FILE:
+				if (!path.contains(".")) { throw new DfsException("Errore: il nome del file deve contenere l'estensione"); }
+				return BatchOp.writeFile(path, op.getContent());
+			case REMOVE:
+				return BatchOp.remove(path);
+			case MOVE:
+				String targetPath = client.getCleanedPath(op.getOtherPath());
+				if (!path.contains(".")) { throw new DfsException("Errore: è possibile spostare solo file"); }
+				if (!targetPath.contains(".")) { throw new DfsException("Errore: il target path deve contenere l'estensione"); }
+				if (path.equals(targetPath)) { throw new DfsException("Errore: il source path è ugule a target path"); }
+				return BatchOp.move(path, targetPath);
+			case RENAME:
+				if (op.getOtherPath().contains("/")) { throw new DfsException("Errore: nuovo nome non valido, / è un carattere non ammesso"); }
+				if (!op.getOtherPath().contains(".")) { throw new DfsException("Errore: nuovo nome non valido, deve avere l'estensione"); }
+				return BatchOp.rename(path, op.getOtherPath());
+			case CREATE_DIRECTORY:
+				if (op.getPath().contains(".")) { throw new DfsException("Errore: nome della directory non valido, non può contenere il punto"); }
+				return BatchOp.createDirectory(path);
+			default:
+				throw new DfsException("Errore: operazione non valida");
+		}
+
+	}
+
+	/**
+	 * @return path toccati dall' operazione (già resa uniforme con clean), su cui serve il lock in scrittura
+	 */
+	static String[] pathsOf(BatchOp op) {
+
+		switch (op.getType()) {
+			case MOVE:
+				return new String[] { op.getPath(), op.getOtherPath() };
+			case RENAME:
+				return new String[] { op.getPath(), Paths.get(op.getPath()).resolveSibling(op.getOtherPath()).toString() };
+			default:
+				return new String[] { op.getPath() };
+		}
+
+	}
+
+}
@@ -1,11 +1,39 @@
 package client;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
 
+import common.BatchOp;
+import common.CacheStats;
 import common.Configs;
+import common.ConsistentHashRing;
+import common.DataTransfer;
+import common.DeltaSync;
 import common.DfsException;
+import common.FileDelta;
+import common.LockRequest;
+import common.TransferTicket;
+import common.VersionedContent;
 import server.master.ServerMasterInterface;
 import server.replica.ServerReplicaInterface;
 
@@ -20,6 +48,29 @@ import server.replica.ServerReplicaInterface;
  * Nella classe è tenuto il riferimento al ServerMaster e a tutti i possibili ServerReplica così non serve fare il lookup
  * ogni volta.
  * 
+ * Ogni client ha un identificativo univoco (clientId) a cui il ServerMaster associa i lock ottenuti. I lock hanno un 
+ * lease che viene rinnovato ad ogni chiamata al ServerMaster; mentre il client possiede almeno un lock, un thread in 
+ * background rinnova inoltre il lease periodicamente (così le operazioni lunghe non perdono il lock).
+ * 
+ * Se le operazioni inoltrate sono attive (Configs.FUSED_OPERATIONS), letture, listaggi e scritture piccole vengono 
+ * invece chieste direttamente al ServerMaster, che le esegue sul ServerReplica per conto del client: un solo round trip
+ * al posto di startOperation, operazione ed endOperation.
+ * 
+ * Con Configs.CLIENT_CACHE_MAX_BYTES > 0 il contenuto dei file letti e i listaggi restano in una cache locale 
+ * (ClientCache): una lettura ripetuta di un file non cambiato non fa nessuna chiamata remota. La cache è registrata sul
+ * ServerMaster, che la invalida quando un altro client prende il lock in scrittura su un path; il client va chiuso con 
+ * close per togliere la registrazione.
+ * 
+ * Le stesse operazioni sono disponibili in forma asincrona (async), con l'ordine mantenuto per path. Più modifiche 
+ * possono essere raccolte in un batch (batch), eseguito con una sola chiamata al ServerMaster e una al ServerReplica.
+ * 
+ * Con le letture con riserva attive (Configs.CLIENT_HEDGED_READS) readFile chiede il file anche a un secondo 
+ * ServerReplica se il primo è più lento del solito e ritenta sugli altri se non è raggiungibile, tenendo lo stesso lock
+ * (HedgedReader): un round trip in più rispetto alle operazioni inoltrate, ma latenza molto più bassa nei casi peggiori.
+ * 
+ * I file grandi possono essere letti a strisce da tutti i ServerReplica che ne hanno la stessa versione 
+ * (readFileStriped, downloadFileStriped con StripedReader), così la banda cresce con il numero di ServerReplica.
+ * 
  * @author gabrielesavoia
  *
  */
@@ -28,6 +79,22 @@ public class Client {
 	private ServerReplicaInterface[] replicas;
 	private ServerMasterInterface master;
 	
+	private final String clientId = UUID.randomUUID().toString();
+	private final AtomicInteger heldLocks = new AtomicInteger(0);
+	private final ScheduledExecutorService leaseRenewer;   // rinnovo del lease dei lock e della cache
+	
+	private boolean fusedOperations = Configs.FUSED_OPERATIONS;
+	private volatile ClientCache cache;   // null se la cache è disattivata
+	private AsyncClient async;
+	
+	private boolean hedgedReads = Configs.CLIENT_HEDGED_READS;
+	private final HedgedReader hedgedReader = new HedgedReader();
+	private ConsistentHashRing placement;   // ServerReplica che tengono ogni file (null se tutti)
+	private volatile boolean[] upReplicas;   // ServerReplica UP secondo il ServerMaster (null se non ancora chiesti)
+	private volatile long upReplicasNanos;
+	private StripedReader stripedReader;
+	private final ExecutorService quorumReader;   // letture in parallelo di readFileQuorum
+	
 	/**
 	 * Costruttore classe.
 	 * Faccio lookup del ServerMaster e poi anche di tutti i ServerReplica così non devo fare lookup ogni volta.
@@ -39,108 +106,865 @@ public class Client {
 	 */
 	public Client() throws DfsException{
 		
-		int numReplicas = 0;
+		int numReplicas = 0;
+		
+		try {
+			master = (ServerMasterInterface) Naming.lookup (Configs.URL+"ServerMaster");
+			numReplicas = master.getNumServerReplica();
+		} catch(Exception e) {
+			throw new DfsException("Errore: non è possibile fare il lookup (o ottenere il numero di ServerReplica) del ServerMaster", true);
+		}
+		
+		// lookup dei ServerReplica
+		int numFailed = 0;
+		try {
+			replicas = new ServerReplicaInterface[numReplicas];
+			for (int i=0; i<numReplicas; i++) {
+				replicas[i] = (ServerReplicaInterface) Naming.lookup (Configs.URL+"ReplicaServer"+i);
+			}
+		} catch(Exception e) { numFailed += 1; }
+		
+		if (numFailed == numReplicas) {
+			throw new DfsException("Errore: non è possibile fare il lookup di nessun ServerReplica", true);
+		}
+		
+		stripedReader = new StripedReader(numReplicas);
+		quorumReader = Executors.newFixedThreadPool(Math.max(1, numReplicas), r -> {
+			Thread t = new Thread(r, "quorum-read");
+			t.setDaemon(true);
+			return t;
+		});
+		
+		// stesso posizionamento dei ServerReplica: le letture di riserva e a strisce vanno solo a chi tiene il file
+		if (Configs.PLACEMENT_REPLICATION_FACTOR > 0 && !"chain".equals(Configs.REPLICATION_MODE)) {
+			placement = new ConsistentHashRing(numReplicas, Configs.PLACEMENT_VIRTUAL_NODES, Configs.PLACEMENT_REPLICATION_FACTOR);
+		}
+		
+		// rinnovo periodico del lease mentre il client possiede dei lock
+		leaseRenewer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "lease-renewer");
+			t.setDaemon(true);
+			return t;
+		});
+		long renewPeriod = Math.max(1, Configs.LOCK_LEASE_MILLIS / 3);
+		leaseRenewer.scheduleAtFixedRate(this::renewLeaseIfNeeded, renewPeriod, renewPeriod, TimeUnit.MILLISECONDS);
+		
+		// cache locale, registrata sul ServerMaster per le invalidazioni e rinnovata periodicamente
+		if (Configs.CLIENT_CACHE_MAX_BYTES > 0) {
+			ClientCache clientCache = new ClientCache(Configs.CLIENT_CACHE_MAX_BYTES, Configs.CLIENT_CACHE_LEASE_MILLIS);
+			try {
+				UnicastRemoteObject.exportObject(clientCache, 0);
+				long request = System.nanoTime();
+				master.registerCacheCallback(clientId, clientCache);
+				clientCache.leaseRenewed(request);
+				cache = clientCache;
+			}
+			catch (RemoteException e) { }   // il client funziona anche senza cache
+			
+			long cacheRenewPeriod = Math.max(1, Configs.CLIENT_CACHE_LEASE_MILLIS / 3);
+			leaseRenewer.scheduleAtFixedRate(this::renewCache, cacheRenewPeriod, cacheRenewPeriod, TimeUnit.MILLISECONDS);
+		}
+		
+	}
+	
+	/**
+	 * Rinnova la registrazione della cache sul ServerMaster. Se il ServerMaster non la riconosce più (ad esempio perchè
+	 * un' invalidazione non è arrivata) la cache viene svuotata e registrata di nuovo; se il ServerMaster non risponde la
+	 * cache smette di essere usata alla scadenza del lease.
+	 */
+	private void renewCache() {
+		
+		ClientCache clientCache = cache;
+		if (clientCache == null) { return; }
+		
+		try {
+			long request = System.nanoTime();
+			if (master.renewCacheCallback(clientId)) {
+				clientCache.leaseRenewed(request);
+				return;
+			}
+			clientCache.leaseLost();
+			request = System.nanoTime();
+			master.registerCacheCallback(clientId, clientCache);
+			clientCache.leaseRenewed(request);
+		}
+		catch (RemoteException e) { }   // riproverò al prossimo giro
+		
+	}
+	
+	/**
+	 * Chiusura del client: termina il client asincrono e il rinnovo dei lease e toglie la registrazione della cache dal 
+	 * ServerMaster (altrimenti resta esportata e il ServerMaster continua a inviarle le invalidazioni fino alla scadenza 
+	 * del lease).
+	 */
+	public void close() {
+		
+		synchronized (this) {
+			if (async != null) { async.shutdown(); }
+		}
+		leaseRenewer.shutdownNow();
+		quorumReader.shutdownNow();
+		
+		ClientCache clientCache = cache;
+		if (clientCache == null) { return; }
+		cache = null;
+		
+		try { master.unregisterCacheCallback(clientId); }
+		catch (RemoteException e) { }   // il ServerMaster la toglierà alla scadenza del lease
+		try { UnicastRemoteObject.unexportObject(clientCache, true); }
+		catch (NoSuchObjectException e) { }
+		
+	}
+	
+	/**
+	 * Interfaccia asincrona di questo client (creata alla prima chiamata), con al massimo 
+	 * Configs.CLIENT_ASYNC_MAX_IN_FLIGHT operazioni non concluse.
+	 * 
+	 * @return client asincrono che esegue le operazioni con questo client
+	 */
+	public synchronized AsyncClient async() {
+		
+		if (async == null) { async = new AsyncClient(this, Configs.CLIENT_ASYNC_MAX_IN_FLIGHT); }
+		return async;
+		
+	}
+	
+	/**
+	 * @return statistiche della cache del client (null se la cache è disattivata)
+	 */
+	public CacheStats getCacheStats() {
+		
+		ClientCache clientCache = cache;
+		return (clientCache == null) ? null : clientCache.getStats();
+		
+	}
+	
+	/**
+	 * @return elementi tolti dalla cache del client per invalidazione (0 se la cache è disattivata)
+	 */
+	public long getCacheInvalidations() {
+		
+		ClientCache clientCache = cache;
+		return (clientCache == null) ? 0 : clientCache.getInvalidations();
+		
+	}
+	
+	/**
+	 * Invalidazione nella cache locale dei path che questo client sta per scrivere. Va fatta dopo aver ottenuto il lock
+	 * in scrittura: una lettura dello stesso client iniziata prima (da un altro thread, dall' AsyncClient o il listaggio
+	 * della directory padre) potrebbe altrimenti rimettere in cache il contenuto precedente, e il ServerMaster non manda
+	 * il callback a chi scrive.
+	 */
+	private void invalidateCached(List<LockRequest> locks) {
+		
+		ClientCache clientCache = cache;
+		if (clientCache == null) { return; }
+		for (LockRequest lock: locks) {
+			if (lock.isWrite()) { clientCache.invalidateLocal(lock.getPath()); }
+		}
+		
+	}
+	
+	/**
+	 * Rinnova il lease dei lock sul ServerMaster, solo se il client ne possiede almeno uno.
+	 */
+	private void renewLeaseIfNeeded() {
+		
+		if (heldLocks.get() <= 0) { return; }
+		
+		try { master.renewLease(clientId); }
+		catch (RemoteException e) { }   // riproverò al prossimo giro, nel frattempo il lease potrebbe scadere
+		
+	}
+	
+	/**
+	 * Richiesta del lock al ServerMaster (con attesa in coda di al massimo Configs.LOCK_TIMEOUT_MILLIS).
+	 * 
+	 * @param lockType 'w' per operazione in scrittura, 'r' per operazione in lettura
+	 * @param path su cui fare l'operazione
+	 * @return id del ServerReplica da contattare
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza
+	 */
+	private int startOperation(char lockType, String path) throws RemoteException, DfsException {
+		
+		int idReplica = master.startOperation(clientId, lockType, path, Configs.LOCK_TIMEOUT_MILLIS);
+		heldLocks.incrementAndGet();
+		invalidateCached(Arrays.asList(new LockRequest(lockType, path)));
+		return idReplica;
+		
+	}
+	
+	/**
+	 * Rilascio del lock sul ServerMaster.
+	 * 
+	 * @param lockType 'w' per operazione in scrittura, 'r' per operazione in lettura
+	 * @param path su cui è stata fatta l'operazione
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza (o se il lease è scaduto)
+	 */
+	void endOperation(char lockType, String path) throws RemoteException, DfsException {
+		
+		heldLocks.decrementAndGet();
+		master.endOperation(clientId, lockType, path);
+		
+	}
+	
+	/**
+	 * Richiesta di più lock al ServerMaster con una sola chiamata: vengono presi tutti oppure nessuno.
+	 * 
+	 * @param locks lock da prendere
+	 * @return id del ServerReplica da contattare
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza
+	 */
+	private int startOperations(List<LockRequest> locks) throws RemoteException, DfsException {
+		
+		int idReplica = master.startOperations(clientId, locks, Configs.LOCK_TIMEOUT_MILLIS);
+		heldLocks.incrementAndGet();
+		invalidateCached(locks);
+		return idReplica;
+		
+	}
+	
+	/**
+	 * Rilascio dei lock presi con startOperations (con una sola chiamata).
+	 * 
+	 * @param locks lock da rilasciare (la stessa lista passata a startOperations)
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza (o se il lease è scaduto)
+	 */
+	private void endOperations(List<LockRequest> locks) throws RemoteException, DfsException {
+		
+		heldLocks.decrementAndGet();
+		master.endOperations(clientId, locks);
+		
+	}
+	
+	/**
+	 * Attiva o disattiva le operazioni inoltrate dal ServerMaster (un solo round trip per letture, listaggi e scritture
+	 * piccole).
+	 * 
+	 * @param fusedOperations true per attivarle
+	 */
+	public void setFusedOperations(boolean fusedOperations) {
+		this.fusedOperations = fusedOperations;
+	}
+	
+	/**
+	 * Attiva o disattiva le letture con richiesta di riserva e tentativi ripetuti (HedgedReader). Quando sono attive 
+	 * hanno la precedenza sulle letture inoltrate dal ServerMaster.
+	 * 
+	 * @param hedgedReads true per attivarle
+	 */
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+	
+	/**
+	 * Funzione che rende i path uniformi: 
+	 * 		- tutti i path iniziano con lo '/';
+	 * 		- tutte le directory terminano con '/'.
+	 * 
+	 * Nel caso un path contenga ../ allora non è accettato in quanto potrebbe essere pericoloso.
+	 * 
+	 * Riconosco un file da una directory dal path: se c'è il punto è un file (perchè ha l'estensione), altrimenti è
+	 * una directory.
+	 * 
+	 * @param path inserito dall'utente
+	 * @return path modificato e reso uniforme
+	 */
+	String getCleanedPath(String path) throws DfsException {
+		String res = new String(path);            // copia stringa
+		
+		if ( !res.startsWith("/") ) { res = "/"+res; }
+		
+		// non si accettano path con ../ al suo interno
+		for (int i=0;i<res.length()-1;i++) {
+			if ( (res.charAt(i) == '.') && (res.charAt(i+1) == '.') ) {
+				throw new DfsException("Errore: path non valido \'../\' non è accettato");
+			}
+		}
+		
+		// mi assicuro che le directory terminino con lo slash finale
+		if ( !(path.contains(".")) && !(path.endsWith("/")) ) {
+			res = res+"/";
+		}
+	
+		return res;
+	}
+	
+	/**
+	 * Creazione di un file. Il file deve contenere l'estensione.
+	 * 
+	 * Passaggi :
+	 * 		- contatta il ServerMaster che gestisce i lock e ritorna l'id del ServerReplica;
+	 * 		- contatta il ServerReplica con l'id specificato ed esegue l'operazione (creazione file). Questo si occuperà di 
+	 * 		  propagare la modifica a tutti gli altri ServerReplica;
+	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
+	 * 
+	 * Se si verifica un problema durante lo svolgimento dell' operazione, comunico al ServerMaster che l'operazione 
+	 * è terminata.
+	 * 
+	 * @param path del file da creare
+	 * 
+	 * @throws DfsException generata nel caso di problemi
+	 */
+	public void createFile(String path) throws DfsException {
+		
+		// i file devono avere '.estensione'
+		if (!path.contains(".")) { throw new DfsException("Errore: nome del file non valido, deve contenere l'estensione"); }
+		
+		path = getCleanedPath(path);
+		int idReplica = -1;
+		
+		// start operation
+		try { idReplica = startOperation('w', path); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		// creazione file
+		try { replicas[idReplica].createFile(path, true); }
+		catch (Exception e) {
+			
+			// end operation se ci sono stati problemi di creazione
+			try { endOperation('w', path); }
+			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			
+			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
+			// dicendo al client di riprovare
+			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
+			if(e instanceof DfsException) { throw new DfsException(e.getMessage(), ((DfsException)e).needExitProgram());}
+		}
+		
+		
+		// end operation se non ci sono stati problemi
+		try { endOperation('w', path); }
+		catch (RemoteException e) {
+			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
+		}
+		
+	}
+	
+	/**
+	 * Scrittura di un file (ne crea uno nuovo se non esiste). 
+	 * 
+	 * Passaggi :
+	 * 		- contatta il ServerMaster che gestisce i lock e ritorna l'id del ServerReplica;
+	 * 		- contatta il ServerReplica con l'id specificato ed esegue l'operazione (scrittura file). Questo si occuperà di 
+	 * 		  propagare la modifica a tutti gli altri ServerReplica;
+	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
+	 * 
+	 * Se si verifica un problema durante lo svolgimento dell' operazione, comunico al ServerMaster che l'operazione 
+	 * è terminata.
+	 * 
+	 * @param path del file da scrivere
+	 * @param content da scrivere
+	 * 
+	 * @throws DfsException generata nel caso di problemi
+	 */
+	public void writeFile(String path, byte[] content) throws DfsException {
+		
+		path = getCleanedPath(path);
+		
+		// i file devono avere '.estensione'
+		if (!path.contains(".")) { throw new DfsException("Errore: il nome del file deve contenere l'estensione");  }
+		
+		// scrittura piccola: lock, scrittura e unlock con una sola chiamata al ServerMaster
+		if (fusedOperations && content.length <= Configs.FUSED_MAX_WRITE_BYTES) {
+			invalidateCached(Arrays.asList(new LockRequest('w', path)));
+			try { master.writeFile(path, content, Configs.LOCK_TIMEOUT_MILLIS); }
+			catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			return;
+		}
+		
+		int idReplica = -1;
+		
+		// start operation
+		try { idReplica = startOperation('w', path); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		// scrittura file
+		try { replicas[idReplica].writeFile(path, content, true); }
+		catch (Exception e) {
+			
+			// end operation se ci sono stati problemi
+			try { endOperation('w', path); }
+			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			
+			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
+			// dicendo al client di riprovare
+			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica ,riprova"); }
+			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
+		}
+		
+		// end operation se non ci sono stati problemi
+		try { endOperation('w', path); }
+		catch (RemoteException e) {
+			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
+		}
+		
+	}
+	
+	/**
+	 * Scrittura di un file di cui il client ha già una copia (base, ad esempio letta in precedenza con readFile): al 
+	 * ServerReplica viene inviata solo la differenza tra base e content (DeltaSync), che il ServerReplica propaga poi 
+	 * così com'è agli altri.
+	 * 
+	 * Se nel frattempo il file sul ServerReplica è cambiato (base non è più il suo contenuto), viene inviato il 
+	 * contenuto completo, tenendo lo stesso lock.
+	 * 
+	 * @param path del file da scrivere
+	 * @param base copia del contenuto attuale del file posseduta dal client
+	 * @param content da scrivere
+	 * 
+	 * @throws DfsException generata nel caso di problemi
+	 */
+	public void writeFileDelta(String path, byte[] base, byte[] content) throws DfsException {
+		
+		path = getCleanedPath(path);
+		
+		// i file devono avere '.estensione'
+		if (!path.contains(".")) { throw new DfsException("Errore: il nome del file deve contenere l'estensione");  }
+		
+		FileDelta delta = DeltaSync.computeDelta(base, content, Configs.DELTA_BLOCK_SIZE);
+		
+		int idReplica = -1;
+		
+		// start operation
+		try { idReplica = startOperation('w', path); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		// scrittura della differenza (oppure del file completo se la copia del client non è aggiornata)
+		try { 
+			if ( !replicas[idReplica].writeFileDelta(path, delta, true) ) { replicas[idReplica].writeFile(path, content, true); }
+		}
+		catch (Exception e) {
+			
+			// end operation se ci sono stati problemi
+			try { endOperation('w', path); }
+			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			
+			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica ,riprova"); }
+			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
+		}
+		
+		// end operation se non ci sono stati problemi
+		try { endOperation('w', path); }
+		catch (RemoteException e) {
+			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
+		}
+		
+	}
+	
+	/**
+	 * Lettura di un file. 
+	 * 
+	 * Passaggi :
+	 * 		- contatta il ServerMaster che gestisce i lock e ritorna l'id del ServerReplica;
+	 * 		- contatta il ServerReplica con l'id specificato ed esegue l'operazione (lettura file);
+	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
+	 * 
+	 * Se il file è nella cache locale viene restituito senza chiamate remote, altrimenti il contenuto letto viene messo in
+	 * cache.
+	 * 
+	 * Se si verifica un problema durante lo svolgimento dell' operazione, comunico al ServerMaster che l'operazione 
+	 * è terminata.
+	 * 
+	 * @param path del file da leggere
+	 * 
+	 * @return array di byte che corrispondono al contenuto del file letto
+	 * 
+	 * @throws DfsException generata nel caso di problemi
+	 */
+	public byte[] readFile(String path) throws DfsException {
+		
+		path = getCleanedPath(path);
+		
+		if (!path.contains(".")) { throw new DfsException("Errore: specificare il nome di un file da leggere");  }
+		
+		ClientCache clientCache = cache;
+		if (clientCache == null) { return fetchFile(path); }
+		
+		byte[] cached = clientCache.getFile(path);
+		if (cached != null) { return cached; }
+		
+		long fill = clientCache.beginFill();
+		byte[] res = fetchFile(path);
+		clientCache.putFile(path, res, fill);
+		return res;
+		
+	}
+	
+	/**
+	 * Lettura di un file senza passare dalla cache locale (vedi readFile).
+	 */
+	private byte[] fetchFile(String path) throws DfsException {
+		
+		// lettura da più ServerReplica, tenendo la versione più recente
+		if (Configs.READ_QUORUM > 1) { return readFileQuorum(path, Configs.READ_QUORUM); }
+		
+		// lettura con richiesta di riserva e tentativi ripetuti
+		if (hedgedReads) { return readFileHedged(path); }
+		
+		// lock, lettura e unlock con una sola chiamata al ServerMaster
+		if (fusedOperations) {
+			try { return master.readFile(path, Configs.LOCK_TIMEOUT_MILLIS); }
+			catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		}
+		
+		byte[] res = null;
+		int idReplica = -1;
+		
+		// start operation
+		try { idReplica = startOperation('r', path); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		// lettura file
+		try { res = replicas[idReplica].readFile(path).getBytes(); }
+		catch (Exception e) {
+			
+			// end operation se ci sono stati problemi
+			try { endOperation('r', path); }
+			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			
+			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
+			// dicendo al client di riprovare
+			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
+			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
+		}
+		
+		// end operation se non ci sono stati problemi
+		try { endOperation('r', path); }
+		catch (RemoteException e) {
+			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
+		}
+		
+		return res;
+		
+	}
+	
+	/**
+	 * Lettura di un file con richiesta di riserva e tentativi ripetuti (HedgedReader).
+	 * 
+	 * Passaggi :
+	 * 		- contatta il ServerMaster che gestisce i lock e ritorna l'id del ServerReplica;
+	 * 		- chiede il file al ServerReplica indicato e, se è lento o non raggiungibile, agli altri che tengono il file;
+	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
+	 * 
+	 * Nella replicazione a catena si legge solo dalla coda (l'unica che ha tutte le scritture confermate), quindi non ci
+	 * sono richieste di riserva ma solo tentativi ripetuti sullo stesso ServerReplica.
+	 * 
+	 * @param path del file da leggere
+	 * 
+	 * @return array di byte che corrispondono al contenuto del file letto
+	 * 
+	 * @throws DfsException generata nel caso di problemi
+	 */
+	private byte[] readFileHedged(String path) throws DfsException {
+		
+		byte[] res = null;
+		int idReplica = -1;
+		
+		// start operation
+		try { idReplica = startOperation('r', path); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		// lettura file (il lock resta preso per tutti i tentativi)
+		int[] targets = readTargets(idReplica, path);
+		try { res = hedgedReader.read(path, replicas, idReplica, Arrays.copyOfRange(targets, 1, targets.length)); }
+		catch (DfsException e) {
+			
+			// end operation se ci sono stati problemi
+			try { endOperation('r', path); }
+			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			
+			throw e;
+		}
+		
+		// end operation se non ci sono stati problemi
+		try { endOperation('r', path); }
+		catch (RemoteException e) {
+			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
+		}
+		
+		return res;
+		
+	}
+	
+	/**
+	 * @return ServerReplica a cui chiedere la lettura di path: prima quello scelto dal ServerMaster, poi gli altri UP che 
+	 * 			tengono il file in ordine di id (solo il primo nella replicazione a catena)
+	 */
+	private int[] readTargets(int idReplica, String path) {
+		
+		if ("chain".equals(Configs.REPLICATION_MODE)) { return new int[] { idReplica }; }
+		
+		boolean[] up = upReplicas();
+		int[] targets = new int[replicas.length];
+		int numTargets = 0;
+		targets[numTargets++] = idReplica;
+		for (int k=1; k<replicas.length; k++) {
+			int id = (idReplica + k) % replicas.length;
+			if (replicas[id] == null || !up[id]) { continue; }
+			if (placement != null && !placement.isOwner(ConsistentHashRing.placementKey(path), id)) { continue; }
+			targets[numTargets++] = id;
+		}
+		return Arrays.copyOf(targets, numTargets);
+		
+	}
+	
+	/**
+	 * ServerReplica UP secondo il ServerMaster (raggiungibili e con il bootstrap terminato), chiesti di nuovo se sono 
+	 * più vecchi di un heartbeat.
+	 * 
+	 * @return up[id] true se il ServerReplica id è UP (tutti false se il ServerMaster non risponde)
+	 */
+	private boolean[] upReplicas() {
+		
+		boolean[] up = upReplicas;
+		long maxAge = TimeUnit.MILLISECONDS.toNanos(Configs.HEARTBEAT_INTERVAL_MILLIS);
+		if (up != null && System.nanoTime() - upReplicasNanos < maxAge) { return up; }
+		
+		up = new boolean[replicas.length];
+		try {
+			for (int id: master.getUpReplicas()) { up[id] = true; }
+		}
+		catch (RemoteException e) { return up; }   // senza riserve: si legge solo dal ServerReplica scelto
+		upReplicas = up;
+		upReplicasNanos = System.nanoTime();
+		return up;
+		
+	}
+	
+	/**
+	 * Lettura di un file da quorum ServerReplica, ritornando il contenuto con la versione più recente.
+	 * 
+	 * Con la replicazione a quorum (Configs.WRITE_QUORUM = W) una scrittura può non essere ancora arrivata su tutti i 
+	 * ServerReplica: leggendo da R ServerReplica con R + W > N almeno uno di essi ha l'ultima scrittura (N: ServerReplica
+	 * che tengono il file). Contano per R solo i ServerReplica UP che tengono il file: chi non lo tiene o non ha finito il
+	 * bootstrap risponderebbe con la versione 0. Le letture partono in parallelo e si ritorna alle prime R risposte.
+	 * 
+	 * Nella replicazione a catena basta la coda, che ha tutte le scritture confermate.
+	 * 
+	 * @param path del file da leggere
+	 * @param quorum numero di ServerReplica da cui leggere
+	 * 
+	 * @return array di byte che corrispondono al contenuto del file letto
+	 * 
+	 * @throws DfsException generata nel caso di problemi (anche se meno di quorum ServerReplica hanno risposto, oppure se
+	 * 			quorum non è valido o con W + R <= N)
+	 */
+	public byte[] readFileQuorum(String path, int quorum) throws DfsException {
+		
+		path = getCleanedPath(path);
+		
+		if (!path.contains(".")) { throw new DfsException("Errore: specificare il nome di un file da leggere");  }
+		
+		int owners = (Configs.PLACEMENT_REPLICATION_FACTOR > 0) 
+				? Math.min(Configs.PLACEMENT_REPLICATION_FACTOR, replicas.length) : replicas.length;
+		if (quorum < 1 || quorum > owners) { 
+			throw new DfsException("Errore: quorum di lettura non valido (deve essere tra 1 e "+owners+")"); 
+		}
+		if (Configs.WRITE_QUORUM > 0 && Configs.WRITE_QUORUM + quorum <= owners) {
+			throw new DfsException("Errore: con W + R <= N una lettura può non vedere l'ultima scrittura");
+		}
+		
+		int idReplica = -1;
+		
+		// start operation
+		try { idReplica = startOperation('r', path); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		boolean chain = "chain".equals(Configs.REPLICATION_MODE);
+		int required = chain ? 1 : quorum;
+		boolean[] up = upReplicas();
+		List<Integer> targets = new ArrayList<Integer>();
+		for (int id: readTargets(idReplica, path)) {
+			if (chain || up[id]) { targets.add(id); }
+		}
 		
-		try {
-			master = (ServerMasterInterface) Naming.lookup (Configs.URL+"ServerMaster");
-			numReplicas = master.getNumServerReplica();
-		} catch(Exception e) {
-			throw new DfsException("Errore: non è possibile fare il lookup (o ottenere il numero di ServerReplica) del ServerMaster", true);
+		// letture in parallelo: si ritorna alle prime required risposte (o al primo errore)
+		String readPath = path;
+		ExecutorCompletionService<VersionedContent> reads = new ExecutorCompletionService<VersionedContent>(quorumReader);
+		List<Future<VersionedContent>> pending = new ArrayList<Future<VersionedContent>>();
+		for (int id: targets) {
+			ServerReplicaInterface replica = replicas[id];
+			pending.add(reads.submit(() -> replica.readFileVersioned(readPath)));
 		}
 		
-		// lookup dei ServerReplica
-		int numFailed = 0;
+		VersionedContent latest = null;
+		int answers = 0;
+		DfsException error = null;
 		try {
-			replicas = new ServerReplicaInterface[numReplicas];
-			for (int i=0; i<numReplicas; i++) {
-				replicas[i] = (ServerReplicaInterface) Naming.lookup (Configs.URL+"ReplicaServer"+i);
+			for (int k=0; k<pending.size() && answers < required; k++) {
+				try {
+					VersionedContent res = reads.take().get();
+					answers++;
+					if (latest == null || res.getVersion() > latest.getVersion()) { latest = res; }
+				}
+				catch (ExecutionException e) {
+					if (e.getCause() instanceof DfsException) {
+						error = (DfsException) e.getCause();
+						break;
+					}
+					// ServerReplica non raggiungibile: si attendono gli altri
+				}
 			}
-		} catch(Exception e) { numFailed += 1; }
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			error = new DfsException("Errore: lettura interrotta");
+		}
+		finally {
+			for (Future<VersionedContent> read: pending) { read.cancel(true); }
+		}
 		
-		if (numFailed == numReplicas) {
-			throw new DfsException("Errore: non è possibile fare il lookup di nessun ServerReplica", true);
+		// end operation
+		try { endOperation('r', path); }
+		catch (RemoteException e) {
+			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
 		}
 		
+		if (error != null) { throw new DfsException(error.getMessage(), error.needExitProgram()); }
+		if (answers < required) { 
+			throw new DfsException("Errore: quorum di lettura non raggiunto ("+answers+" ServerReplica su "+required+"), riprova"); 
+		}
+		if (!latest.exists()) { throw new DfsException("Errore: il file non esiste"); }
+		
+		return latest.getContent();
+		
 	}
 	
 	/**
-	 * Funzione che rende i path uniformi: 
-	 * 		- tutti i path iniziano con lo '/';
-	 * 		- tutte le directory terminano con '/'.
+	 * Apertura di un file in lettura come stream: il contenuto viene letto a blocchi (Configs.CHUNK_SIZE), quindi il 
+	 * file può essere anche più grande della memoria disponibile.
 	 * 
-	 * Nel caso un path contenga ../ allora non è accettato in quanto potrebbe essere pericoloso.
+	 * Il lock in lettura viene preso subito e rilasciato alla chiusura dello stream, che deve quindi essere sempre 
+	 * chiuso (ad esempio con try-with-resources).
 	 * 
-	 * Riconosco un file da una directory dal path: se c'è il punto è un file (perchè ha l'estensione), altrimenti è
-	 * una directory.
+	 * @param path del file da leggere
 	 * 
-	 * @param path inserito dall'utente
-	 * @return path modificato e reso uniforme
+	 * @return stream da cui leggere il contenuto del file
+	 * 
+	 * @throws DfsException generata nel caso di problemi
 	 */
-	private String getCleanedPath(String path) throws DfsException {
-		String res = new String(path);            // copia stringa
+	public DfsInputStream openInputStream(String path) throws DfsException {
 		
-		if ( !res.startsWith("/") ) { res = "/"+res; }
+		path = getCleanedPath(path);
 		
-		// non si accettano path con ../ al suo interno
-		for (int i=0;i<res.length()-1;i++) {
-			if ( (res.charAt(i) == '.') && (res.charAt(i+1) == '.') ) {
-				throw new DfsException("Errore: path non valido \'../\' non è accettato");
-			}
-		}
+		if (!path.contains(".")) { throw new DfsException("Errore: specificare il nome di un file da leggere");  }
 		
-		// mi assicuro che le directory terminino con lo slash finale
-		if ( !(path.contains(".")) && !(path.endsWith("/")) ) {
-			res = res+"/";
+		int idReplica = -1;
+		
+		// start operation
+		try { idReplica = startOperation('r', path); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		// il file deve esistere: controllo subito così l'errore arriva all'apertura e non alla prima lettura
+		try { replicas[idReplica].getFileSize(path); }
+		catch (Exception e) {
+			
+			// end operation se ci sono stati problemi
+			try { endOperation('r', path); }
+			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			
+			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
+			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
 		}
-	
-		return res;
+		
+		return new DfsInputStream(this, replicas[idReplica], path);
+		
 	}
 	
 	/**
-	 * Creazione di un file. Il file deve contenere l'estensione.
+	 * Apertura di un file in scrittura come stream (il file viene creato se non esiste): il contenuto viene inviato a 
+	 * blocchi (Configs.CHUNK_SIZE) e sostituisce quello precedente solo alla chiusura dello stream.
 	 * 
-	 * Passaggi :
-	 * 		- contatta il ServerMaster che gestisce i lock e ritorna l'id del ServerReplica;
-	 * 		- contatta il ServerReplica con l'id specificato ed esegue l'operazione (creazione file). Questo si occuperà di 
-	 * 		  propagare la modifica a tutti gli altri ServerReplica;
-	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
+	 * Il lock in scrittura viene preso subito e rilasciato alla chiusura dello stream, che deve quindi essere sempre 
+	 * chiuso (ad esempio con try-with-resources).
 	 * 
-	 * Se si verifica un problema durante lo svolgimento dell' operazione, comunico al ServerMaster che l'operazione 
-	 * è terminata.
+	 * @param path del file da scrivere
 	 * 
-	 * @param path del file da creare
+	 * @return stream su cui scrivere il contenuto del file
 	 * 
 	 * @throws DfsException generata nel caso di problemi
 	 */
-	public void createFile(String path) throws DfsException {
+	public DfsOutputStream openOutputStream(String path) throws DfsException {
+		
+		path = getCleanedPath(path);
 		
 		// i file devono avere '.estensione'
-		if (!path.contains(".")) { throw new DfsException("Errore: nome del file non valido, deve contenere l'estensione"); }
+		if (!path.contains(".")) { throw new DfsException("Errore: il nome del file deve contenere l'estensione");  }
 		
-		path = getCleanedPath(path);
 		int idReplica = -1;
+		String sessionId = null;
 		
 		// start operation
-		try { idReplica = master.startOperation('w', path); }
+		try { idReplica = startOperation('w', path); }
 		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
-		// creazione file
-		try { replicas[idReplica].createFile(path, true); }
+		// apertura della sessione di scrittura
+		try { sessionId = replicas[idReplica].openWriteSession(path); }
 		catch (Exception e) {
 			
-			// end operation se ci sono stati problemi di creazione
-			try { master.endOperation('w', path); }
+			// end operation se ci sono stati problemi
+			try { endOperation('w', path); }
 			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 			
-			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
-			// dicendo al client di riprovare
 			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
-			if(e instanceof DfsException) { throw new DfsException(e.getMessage(), ((DfsException)e).needExitProgram());}
+			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
 		}
 		
+		return new DfsOutputStream(this, replicas[idReplica], path, sessionId);
+		
+	}
+	
+	/**
+	 * Download di un file del filesystem distribuito in un file locale (sovrascritto se esiste).
+	 * 
+	 * Il contenuto non passa da RMI: il ServerReplica restituisce solo un TransferTicket e i byte vengono trasferiti sul
+	 * suo canale dati direttamente nel file locale (adatto a file grandi).
+	 * 
+	 * @param path del file da scaricare
+	 * @param localPath file locale in cui scrivere il contenuto
+	 * 
+	 * @throws DfsException generata nel caso di problemi
+	 */
+	public void downloadFile(String path, String localPath) throws DfsException {
+		
+		path = getCleanedPath(path);
+		
+		if (!path.contains(".")) { throw new DfsException("Errore: specificare il nome di un file da leggere");  }
+		
+		int idReplica = -1;
+		
+		// start operation
+		try { idReplica = startOperation('r', path); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		// trasferimento sul canale dati
+		try (FileChannel target = FileChannel.open(Paths.get(localPath), StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			TransferTicket ticket = replicas[idReplica].openReadTransfer(path, 0, -1);
+			DataTransfer.download(ticket, target, 0);
+		}
+		catch (Exception e) {
+			
+			// end operation se ci sono stati problemi
+			try { endOperation('r', path); }
+			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			
+			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
+			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
+			if(e instanceof IOException) { throw new DfsException("Errore: trasferimento non riuscito ("+e.getMessage()+"), riprova"); }
+		}
 		
 		// end operation se non ci sono stati problemi
-		try { master.endOperation('w', path); }
+		try { endOperation('r', path); }
 		catch (RemoteException e) {
 			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
 		}
@@ -148,51 +972,93 @@ public class Client {
 	}
 	
 	/**
-	 * Scrittura di un file (ne crea uno nuovo se non esiste). 
+	 * Lettura di un file a strisce da più ServerReplica contemporaneamente (vedi StripedReader); i file più piccoli di 
+	 * Configs.CLIENT_STRIPE_MIN_FILE_BYTES vengono letti da un solo ServerReplica sul canale dati.
 	 * 
-	 * Passaggi :
-	 * 		- contatta il ServerMaster che gestisce i lock e ritorna l'id del ServerReplica;
-	 * 		- contatta il ServerReplica con l'id specificato ed esegue l'operazione (scrittura file). Questo si occuperà di 
-	 * 		  propagare la modifica a tutti gli altri ServerReplica;
-	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
+	 * @param path del file da leggere
 	 * 
-	 * Se si verifica un problema durante lo svolgimento dell' operazione, comunico al ServerMaster che l'operazione 
-	 * è terminata.
+	 * @return array di byte che corrispondono al contenuto del file letto
 	 * 
-	 * @param path del file da scrivere
-	 * @param content da scrivere
+	 * @throws DfsException generata nel caso di problemi (anche se il file è troppo grande per un array)
+	 */
+	public byte[] readFileStriped(String path) throws DfsException {
+		
+		path = getCleanedPath(path);
+		
+		if (!path.contains(".")) { throw new DfsException("Errore: specificare il nome di un file da leggere");  }
+		
+		byte[][] res = new byte[1][];
+		readStriped(path, size -> {
+			if (size > Integer.MAX_VALUE - 8) { return null; }
+			res[0] = new byte[(int) size];
+			return StripedReader.toArray(res[0]);
+		});
+		return res[0];
+		
+	}
+	
+	/**
+	 * Download di un file a strisce da più ServerReplica contemporaneamente in un file locale (sovrascritto se esiste):
+	 * come downloadFile, ma ogni striscia viene scritta nel file locale alla sua posizione (vedi StripedReader).
+	 * 
+	 * @param path del file da scaricare
+	 * @param localPath file locale in cui scrivere il contenuto
 	 * 
 	 * @throws DfsException generata nel caso di problemi
 	 */
-	public void writeFile(String path, byte[] content) throws DfsException {
+	public void downloadFileStriped(String path, String localPath) throws DfsException {
 		
 		path = getCleanedPath(path);
 		
-		// i file devono avere '.estensione'
-		if (!path.contains(".")) { throw new DfsException("Errore: il nome del file deve contenere l'estensione");  }
+		if (!path.contains(".")) { throw new DfsException("Errore: specificare il nome di un file da leggere");  }
+		
+		try (FileChannel target = FileChannel.open(Paths.get(localPath), StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			readStriped(path, size -> StripedReader.toFile(target));
+		}
+		catch (IOException e) {
+			throw new DfsException("Errore: impossibile scrivere il file locale ("+e.getMessage()+")");
+		}
+		
+	}
+	
+	/**
+	 * Lettura a strisce con il lock in lettura preso per tutto il trasferimento.
+	 * 
+	 * Passaggi :
+	 * 		- contatta il ServerMaster che gestisce i lock e ritorna l'id del ServerReplica;
+	 * 		- chiede la dimensione del file e sceglie i ServerReplica sorgente (stripeSources);
+	 * 		- legge le strisce nella destinazione data da sinkForSize (null se la dimensione non è accettabile);
+	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
+	 */
+	private void readStriped(String path, LongFunction<StripedReader.Sink> sinkForSize) throws DfsException {
 		
 		int idReplica = -1;
 		
 		// start operation
-		try { idReplica = master.startOperation('w', path); }
+		try { idReplica = startOperation('r', path); }
 		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
-		// scrittura file
-		try { replicas[idReplica].writeFile(path, content, true); }
+		// trasferimento a strisce sul canale dati
+		try {
+			long size = replicas[idReplica].getFileSize(path);
+			StripedReader.Sink sink = sinkForSize.apply(size);
+			if (sink == null) { throw new DfsException("Errore: file troppo grande da leggere in memoria, usare il download"); }
+			stripedReader.read(path, size, replicas, stripeSources(idReplica, path, size), sink);
+		}
 		catch (Exception e) {
 			
 			// end operation se ci sono stati problemi
-			try { master.endOperation('w', path); }
+			try { endOperation('r', path); }
 			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 			
-			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
-			// dicendo al client di riprovare
-			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica ,riprova"); }
+			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
 			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
+			throw new DfsException("Errore: lettura non riuscita ("+e.getMessage()+"), riprova");
 		}
 		
 		// end operation se non ci sono stati problemi
-		try { master.endOperation('w', path); }
+		try { endOperation('r', path); }
 		catch (RemoteException e) {
 			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
 		}
@@ -200,57 +1066,86 @@ public class Client {
 	}
 	
 	/**
-	 * Lettura di un file. 
-	 * 
-	 * Passaggi :
-	 * 		- contatta il ServerMaster che gestisce i lock e ritorna l'id del ServerReplica;
-	 * 		- contatta il ServerReplica con l'id specificato ed esegue l'operazione (lettura file);
-	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
-	 * 
-	 * Se si verifica un problema durante lo svolgimento dell' operazione, comunico al ServerMaster che l'operazione 
-	 * è terminata.
+	 * @return ServerReplica da cui leggere il file a strisce: quello scelto dal ServerMaster e, se il file è abbastanza 
+	 * 			grande, gli altri che tengono il file (vedi readTargets) con la sua stessa versione
+	 */
+	private int[] stripeSources(int idReplica, String path, long size) {
+		
+		if (size < Configs.CLIENT_STRIPE_MIN_FILE_BYTES) { return new int[] { idReplica }; }
+		
+		int[] targets = readTargets(idReplica, path);
+		int[] sources = new int[targets.length];
+		int numSources = 0;
+		sources[numSources++] = idReplica;
+		
+		long version;
+		try { version = replicas[idReplica].getVersion(path); }
+		catch (RemoteException e) { return sources; }
+		
+		for (int i=1; i<targets.length; i++) {
+			try {
+				if (replicas[targets[i]].getVersion(path) == version) { sources[numSources++] = targets[i]; }
+			}
+			catch (RemoteException e) { }   // ServerReplica non raggiungibile: non lo uso
+		}
+		return Arrays.copyOf(sources, numSources);
+		
+	}
+	
+	/**
+	 * Upload di un file locale nel filesystem distribuito (il file viene creato se non esiste, altrimenti sostituito).
 	 * 
-	 * @param path del file da leggere
+	 * Come per downloadFile il contenuto viaggia sul canale dati del ServerReplica; il file viene sostituito (e la 
+	 * modifica propagata) solo a trasferimento completato.
 	 * 
-	 * @return array di byte che corrispondono al contenuto del file letto
+	 * @param localPath file locale da caricare
+	 * @param path del file da scrivere
 	 * 
 	 * @throws DfsException generata nel caso di problemi
 	 */
-	public byte[] readFile(String path) throws DfsException {
+	public void uploadFile(String localPath, String path) throws DfsException {
 		
 		path = getCleanedPath(path);
 		
-		if (!path.contains(".")) { throw new DfsException("Errore: specificare il nome di un file da leggere");  }
+		// i file devono avere '.estensione'
+		if (!path.contains(".")) { throw new DfsException("Errore: il nome del file deve contenere l'estensione");  }
 		
-		byte[] res = null;
 		int idReplica = -1;
 		
 		// start operation
-		try { idReplica = master.startOperation('r', path); }
+		try { idReplica = startOperation('w', path); }
 		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
-		// lettura file
-		try { res = replicas[idReplica].readFile(path); }
+		// trasferimento sul canale dati e commit della sessione di scrittura
+		String sessionId = null;
+		try (FileChannel source = FileChannel.open(Paths.get(localPath), StandardOpenOption.READ)) {
+			sessionId = replicas[idReplica].openWriteSession(path);
+			TransferTicket ticket = replicas[idReplica].openWriteTransfer(sessionId, 0, source.size());
+			DataTransfer.upload(ticket, source, 0);
+			replicas[idReplica].commitWriteSession(sessionId, true);
+		}
 		catch (Exception e) {
 			
+			if (sessionId != null) {
+				try { replicas[idReplica].abortWriteSession(sessionId); }
+				catch (RemoteException exc) { }
+			}
+			
 			// end operation se ci sono stati problemi
-			try { master.endOperation('r', path); }
+			try { endOperation('w', path); }
 			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 			
-			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
-			// dicendo al client di riprovare
 			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
 			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
+			if(e instanceof IOException) { throw new DfsException("Errore: trasferimento non riuscito ("+e.getMessage()+"), riprova"); }
 		}
 		
 		// end operation se non ci sono stati problemi
-		try { master.endOperation('r', path); }
+		try { endOperation('w', path); }
 		catch (RemoteException e) {
 			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
 		}
 		
-		return res;
-		
 	}
 	
 	/**
@@ -275,7 +1170,7 @@ public class Client {
 		int idReplica = -1;
 		
 		// start operation
-		try { idReplica = master.startOperation('w', path); }
+		try { idReplica = startOperation('w', path); }
 		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
 		// rimozione file/directory
@@ -283,7 +1178,7 @@ public class Client {
 		catch (Exception e) {
 			
 			// end operation se ci sono stati problemi
-			try { master.endOperation('w', path); }
+			try { endOperation('w', path); }
 			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 			
 			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
@@ -293,7 +1188,7 @@ public class Client {
 		}
 		
 		// end operation se non ci sono stati problemi
-		try { master.endOperation('w', path); }
+		try { endOperation('w', path); }
 		catch (RemoteException e) {
 			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
 		}
@@ -329,11 +1224,9 @@ public class Client {
 		
 		int idReplica = -1;
 		
-		// start operation: sia per il source che per il target
-		try { 
-			idReplica = master.startOperation('w', sourcePath);
-			master.startOperation('w', targetPath);
-		}
+		// start operation: sia per il source che per il target, con una sola chiamata (tutto o niente)
+		List<LockRequest> locks = Arrays.asList(new LockRequest('w', sourcePath), new LockRequest('w', targetPath));
+		try { idReplica = startOperations(locks); }
 		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
 		// spostamento file
@@ -341,10 +1234,7 @@ public class Client {
 		catch (Exception e) {
 			
 			// end operation se ci sono stati problemi
-			try { 
-				master.endOperation('w', sourcePath); 
-				master.endOperation('w', targetPath); 
-			}
+			try { endOperations(locks); }
 			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 			
 			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
@@ -354,10 +1244,7 @@ public class Client {
 		}
 		
 		// end operation se non ci sono stati problemi
-		try { 
-			master.endOperation('w', sourcePath); 
-			master.endOperation('w', targetPath); 
-		}
+		try { endOperations(locks); }
 		catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
 	}
@@ -387,11 +1274,9 @@ public class Client {
 		String pathWithNewName = Paths.get(path).resolveSibling(newName).toString();
 		int idReplica = -1;
 		
-		// start operation: sia per il path che per il path con il nuovo nome
-		try { 
-			idReplica = master.startOperation('w', path);
-			master.startOperation('w', pathWithNewName);
-		}
+		// start operation: sia per il path che per il path con il nuovo nome, con una sola chiamata (tutto o niente)
+		List<LockRequest> locks = Arrays.asList(new LockRequest('w', path), new LockRequest('w', pathWithNewName));
+		try { idReplica = startOperations(locks); }
 		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
 		// rinomina file
@@ -399,10 +1284,7 @@ public class Client {
 		catch (Exception e) {
 			
 			// end operation se ci sono stati problemi
-			try { 
-				master.endOperation('w', path); 
-				master.endOperation('w', pathWithNewName); 
-			}
+			try { endOperations(locks); }
 			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 			
 			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
@@ -412,14 +1294,69 @@ public class Client {
 		}
 		
 		// end operation se non ci sono stati problemi
-		try { 
-			master.endOperation('w', path); 
-			master.endOperation('w', pathWithNewName); 
-		}
+		try { endOperations(locks); }
 		catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
 	}	
 	
+	/**
+	 * Nuovo batch di operazioni di modifica (vedi Batch).
+	 * 
+	 * @return batch vuoto, da eseguire con commit
+	 */
+	public Batch batch() {
+		return new Batch(this);
+	}
+	
+	/**
+	 * Esecuzione di un batch (chiamata da Batch.commit con operazioni già controllate).
+	 * 
+	 * Passaggi :
+	 * 		- contatta il ServerMaster per prendere il lock in scrittura su tutti i path del batch con una sola chiamata;
+	 * 		- invia tutte le operazioni al ServerReplica con una sola chiamata. Questo le esegue in ordine e le propaga 
+	 * 		  agli altri ServerReplica come un' unica operazione;
+	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
+	 * 
+	 * @param ops operazioni del batch
+	 * 
+	 * @return per ogni operazione null se è riuscita oppure l'errore
+	 * 
+	 * @throws DfsException generata nel caso di problemi
+	 */
+	DfsException[] executeBatch(List<BatchOp> ops) throws DfsException {
+		
+		LinkedHashSet<String> paths = new LinkedHashSet<String>();
+		for (BatchOp op: ops) { paths.addAll(Arrays.asList(Batch.pathsOf(op))); }
+		List<LockRequest> locks = new ArrayList<LockRequest>(paths.size());
+		for (String path: paths) { locks.add(new LockRequest('w', path)); }
+		
+		int idReplica = -1;
+		DfsException[] res = null;
+		
+		// start operation: lock su tutti i path con una sola chiamata (tutto o niente)
+		try { idReplica = startOperations(locks); }
+		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		// esecuzione del batch
+		try { res = replicas[idReplica].executeBatch(ops); }
+		catch (Exception e) {
+			
+			// end operation se ci sono stati problemi
+			try { endOperations(locks); }
+			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+			
+			if(e instanceof RemoteException) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
+			if(e instanceof DfsException) { throw new DfsException(e.getMessage(),((DfsException)e).needExitProgram());}
+		}
+		
+		// end operation se non ci sono stati problemi
+		try { endOperations(locks); }
+		catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		
+		return res;
+		
+	}
+	
 	/**
 	 * Creazione directory. 
 	 * 
@@ -444,7 +1381,7 @@ public class Client {
 		int idReplica = -1;
 		
 		// start operation
-		try { idReplica = master.startOperation('w', path); }
+		try { idReplica = startOperation('w', path); }
 		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
 		// creazione directory
@@ -452,7 +1389,7 @@ public class Client {
 		catch (Exception e) {
 			
 			// end operation se ci sono stati problemi
-			try { master.endOperation('w', path); }
+			try { endOperation('w', path); }
 			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 			
 			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
@@ -462,7 +1399,7 @@ public class Client {
 		}
 		
 		// end operation se non ci sono stati problemi
-		try { master.endOperation('w', path); }
+		try { endOperation('w', path); }
 		catch (RemoteException e) {
 			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
 		}
@@ -477,6 +1414,8 @@ public class Client {
 	 * 		- contatta il ServerReplica con l'id specificato ed esegue l'operazione (creazione directory);
 	 * 		- contatta il ServerMaster per dire che l'operazione è terminata;
 	 * 
+	 * Se il listaggio è nella cache locale viene restituito senza chiamate remote, altrimenti viene messo in cache.
+	 * 
 	 * Se si verifica un problema durante lo svolgimento dell' operazione, comunico al ServerMaster che l'operazione 
 	 * è terminata.
 	 * 
@@ -492,11 +1431,35 @@ public class Client {
 		
 		if (path.contains(".")) { throw new DfsException("Errore: il listaggio si può effettuare solo su una directory"); }
 		
+		ClientCache clientCache = cache;
+		if (clientCache == null) { return fetchListing(path); }
+		
+		String[] cached = clientCache.getListing(path);
+		if (cached != null) { return cached; }
+		
+		long fill = clientCache.beginFill();
+		String[] res = fetchListing(path);
+		clientCache.putListing(path, res, fill);
+		return res;
+		
+	}
+	
+	/**
+	 * Listaggio di una directory senza passare dalla cache locale (vedi listFilesDirectory).
+	 */
+	private String[] fetchListing(String path) throws DfsException {
+		
+		// lock, listaggio e unlock con una sola chiamata al ServerMaster
+		if (fusedOperations) {
+			try { return master.listFilesDirectory(path, Configs.LOCK_TIMEOUT_MILLIS); }
+			catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
+		}
+		
 		int idReplica = -1;
 		String[] res = null;
 		
 		// start operation
-		try { idReplica = master.startOperation('r', path); }
+		try { idReplica = startOperation('r', path); }
 		catch (RemoteException e) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 		
 		// lettura file
@@ -504,7 +1467,7 @@ public class Client {
 		catch (Exception e) {
 			
 			// end operation se ci sono stati problemi
-			try { master.endOperation('r', path); }
+			try { endOperation('r', path); }
 			catch (RemoteException exc) { throw new DfsException("Errore: problema connessione con ServerMaster ", true); }
 			
 			// può essere che il ServerReplica vada in down dopo che ho fatto il startOperation() e quindi lo gestisco 
@@ -514,7 +1477,7 @@ public class Client {
 		}
 		
 		// end operation se non ci sono stati problemi
-		try { master.endOperation('r', path); }
+		try { endOperation('r', path); }
 		catch (RemoteException e) {
 			throw new DfsException("Errore: problema di connessione con il ServerMaster ", true);
 		}
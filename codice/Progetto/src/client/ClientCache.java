@@ -0,0 +1,221 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import common.CacheCallback;
+import common.CacheStats;
+
+/**
+ * Cache del client per il contenuto dei file e il listaggio delle directory (chiave: path del file, oppure della
+ * directory che termina con '/').
+ *
+ * La memoria è limitata a maxBytes: quando si supera vengono tolti gli elementi usati meno di recente (LRU); un
+ * elemento più grande di un quarto della cache non viene tenuto.
+ *
+ * Consistenza: la cache è registrata sul ServerMaster come CacheCallback e viene invalidata quando qualcuno prende il
+ * lock in scrittura su un path; il client invalida invece da solo i path che scrive. La cache è usata solo finchè la
+ * registrazione è valida (leaseValid): se un rinnovo non riesce o il ServerMaster non la riconosce più, viene svuotata.
+ *
+ * I contenuti vengono copiati in ingresso e in uscita, così il chiamante può modificarli senza toccare la cache.
+ *
+ * Un contenuto letto mentre arriva un' invalidazione non viene messo in cache: beginFill restituisce il numero di
+ * invalidazioni viste fino a quel momento e put non ha effetto se nel frattempo ne è arrivata un' altra.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class ClientCache implements CacheCallback {
+
+	/**
+	 * Elemento in cache: contenuto di un file (byte[]) o listaggio di una directory (String[]).
+	 */
+	private static class Entry {
+
+		private final Object value;
+		private final long size;
+
+		public Entry(Object value, long size) {
+			this.value = value;
+			this.size = size;
+		}
+
+	}
+
+	private final long maxBytes;
+	private final long leaseNanos;
+
+	// protetti dal monitor dell'istanza
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long usedBytes = 0;
+	private long invalidationCount = 0;
+	private long leaseDeadline = System.nanoTime();   // scaduta finchè la registrazione non viene confermata
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param maxBytes memoria massima della cache
+	 * @param leaseMillis validità della cache dopo ogni rinnovo riuscito della registrazione
+	 */
+	public ClientCache(long maxBytes, long leaseMillis) {
+		this.maxBytes = maxBytes;
+		this.leaseNanos = leaseMillis * 1000000L;
+	}
+
+	/**
+	 * @return contenuto del file in cache, null se non c'è
+	 */
+	public byte[] getFile(String path) {
+		byte[] content = (byte[]) get(path);
+		return (content == null) ? null : content.clone();
+	}
+
+	/**
+	 * @return listaggio della directory in cache, null se non c'è
+	 */
+	public String[] getListing(String path) {
+		String[] listing = (String[]) get(path);
+		return (listing == null) ? null : listing.clone();
+	}
+
+	private synchronized Object get(String path) {
+
+		Entry entry = leaseValid() ? entries.get(path) : null;
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.value;
+
+	}
+
+	/**
+	 * Da chiamare prima di chiedere un contenuto da mettere in cache.
+	 *
+	 * @return numero di invalidazioni viste finora (da passare a put)
+	 */
+	public synchronized long beginFill() {
+		return invalidationCount;
+	}
+
+	/**
+	 * Inserimento del contenuto di un file.
+	 *
+	 * @param fill valore ritornato da beginFill prima della lettura
+	 */
+	public void putFile(String path, byte[] content, long fill) {
+		put(path, content.clone(), content.length, fill);
+	}
+
+	/**
+	 * Inserimento del listaggio di una directory.
+	 *
+	 * @param fill valore ritornato da beginFill prima del listaggio
+	 */
+	public void putListing(String path, String[] listing, long fill) {
+
+		long size = 0;
+		for (String name: listing) { size += 2 * name.length(); }
+		put(path, listing.clone(), size, fill);
+
+	}
+
+	private synchronized void put(String path, Object value, long size, long fill) {
+
+		if (fill != invalidationCount || !leaseValid() || size > maxBytes / 4) { return; }
+
+		Entry previous = entries.put(path, new Entry(value, size));
+		if (previous != null) { usedBytes -= previous.size; }
+		usedBytes += size;
+
+		Iterator<Entry> lru = entries.values().iterator();
+		while (usedBytes > maxBytes && lru.hasNext()) {
+			usedBytes -= lru.next().size;
+			lru.remove();
+			evictions++;
+		}
+
+	}
+
+	/**
+	 * Invalidazione dei path (chiamata dal ServerMaster o dal client stesso quando scrive): vengono tolti il path, tutto
+	 * quello che contiene se è una directory e il listaggio della directory che lo contiene.
+	 */
+	@Override
+	public synchronized void invalidate(String[] paths) throws RemoteException {
+
+		invalidationCount++;
+		for (String path: paths) {
+			String parent = path.substring(0, path.lastIndexOf('/', path.length() - 2) + 1);
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> entry = it.next();
+				if (entry.getKey().startsWith(path) || entry.getKey().equals(parent)) {
+					usedBytes -= entry.getValue().size;
+					it.remove();
+					invalidations++;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Invalidazione fatta dal client stesso.
+	 */
+	public void invalidateLocal(String... paths) {
+
+		try { invalidate(paths); }
+		catch (RemoteException e) { }   // chiamata locale
+
+	}
+
+	/**
+	 * Registrazione rinnovata sul ServerMaster: la cache resta valida per un altro lease.
+	 *
+	 * @param requestNanos System.nanoTime() prima della richiesta di rinnovo: il lease parte da lì e non dalla risposta,
+	 * 			così scade prima di quello registrato dal ServerMaster (che attende la scadenza se il client non risponde
+	 * 			a un' invalidazione)
+	 */
+	public synchronized void leaseRenewed(long requestNanos) {
+		leaseDeadline = requestNanos + leaseNanos;
+	}
+
+	/**
+	 * Registrazione non più valida (rinnovo non riuscito o non riconosciuto dal ServerMaster): la cache viene svuotata.
+	 */
+	public synchronized void leaseLost() {
+
+		invalidationCount++;
+		invalidations += entries.size();
+		entries.clear();
+		usedBytes = 0;
+		leaseDeadline = System.nanoTime();
+
+	}
+
+	private boolean leaseValid() {
+		return System.nanoTime() - leaseDeadline < 0;
+	}
+
+	/**
+	 * @return statistiche della cache
+	 */
+	public synchronized CacheStats getStats() {
+		return new CacheStats(hits, misses, evictions, 0, usedBytes, maxBytes);
+	}
+
+	/**
+	 * @return elementi tolti dalla cache per invalidazione
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+}
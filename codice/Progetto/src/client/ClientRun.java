@@ -46,6 +46,7 @@ public class ClientRun {
 						     "\n\t$rename [path] [newName] rinomina file localizzato in 'path';"+
 						     "\n\t$mkdir [path] : creazione directory localizzata in 'path';"+
 						     "\n\t$ls [path] : visualizzazione dei contenuti della directory localizzata in 'path';"+
+						     "\n\t$cache : statistiche della cache del client;"+
 						     "\n\t$help : visualizzazione di tutti i possibili comandi;"+
 						     "\n";
 		System.out.println("Di seguito la lista dei possibili comandi:\n"+commandHelp);
@@ -227,6 +228,15 @@ public class ClientRun {
 			
 					break;
 					
+				case "cache": 
+					
+					if (client.getCacheStats() == null) {
+						System.out.println("\n--> cache del client disattivata\n");
+					} else {
+						System.out.println("\n--> "+client.getCacheStats()+"   invalidazioni: "+client.getCacheInvalidations()+"\n");
+					}
+					break;
+					
 				case "help": 
 					
 					System.out.println(commandHelp);
@@ -238,6 +248,7 @@ public class ClientRun {
 		}
 		
 		scanner.close();
+		client.close();
 		System.out.println("Client terminato");
 		
 	}	
@@ -0,0 +1,103 @@
+package client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.rmi.RemoteException;
+
+import common.Configs;
+import common.DfsException;
+import server.replica.ServerReplicaInterface;
+
+/**
+ * Lettura a blocchi di un file del filesystem distribuito (vedi Client.openInputStream).
+ *
+ * Il file viene letto un blocco (Configs.CHUNK_SIZE) alla volta dal ServerReplica, quindi la memoria usata non dipende
+ * dalla dimensione del file. Il lock in lettura preso all'apertura viene tenuto (e il suo lease rinnovato dal client)
+ * fino a close().
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class DfsInputStream extends InputStream {
+
+	private final Client client;
+	private final ServerReplicaInterface replica;
+	private final String path;
+
+	private byte[] chunk = new byte[0];
+	private int chunkPosition = 0;
+	private long fileOffset = 0;
+	private boolean endOfFile = false;
+	private boolean closed = false;
+
+	DfsInputStream(Client client, ServerReplicaInterface replica, String path) {
+		this.client = client;
+		this.replica = replica;
+		this.path = path;
+	}
+
+	/**
+	 * Legge il blocco successivo se quello corrente è terminato.
+	 *
+	 * @return false se il file è finito
+	 */
+	private boolean fill() throws IOException {
+
+		if (closed) { throw new IOException("Errore: lo stream è chiuso"); }
+		if (chunkPosition < chunk.length) { return true; }
+		if (endOfFile) { return false; }
+
+		try { chunk = replica.readFile(path, fileOffset, Configs.CHUNK_SIZE).getBytes(); }
+		catch (RemoteException e) { throw new IOException("Errore: problema connessione con ServerReplica", e); }
+		catch (DfsException e) { throw new IOException(e.getMessage(), e); }
+
+		chunkPosition = 0;
+		fileOffset += chunk.length;
+		// un blocco più corto di quello richiesto è l'ultimo
+		if (chunk.length < Configs.CHUNK_SIZE) { endOfFile = true; }
+		return chunk.length > 0;
+
+	}
+
+	@Override
+	public int read() throws IOException {
+
+		if (!fill()) { return -1; }
+		return chunk[chunkPosition++] & 0xff;
+
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+
+		if (length == 0) { return 0; }
+		if (!fill()) { return -1; }
+
+		int count = Math.min(length, chunk.length - chunkPosition);
+		System.arraycopy(chunk, chunkPosition, buffer, offset, count);
+		chunkPosition += count;
+		return count;
+
+	}
+
+	@Override
+	public int available() {
+		return chunk.length - chunkPosition;
+	}
+
+	/**
+	 * Chiude lo stream e rilascia il lock in lettura.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) { return; }
+		closed = true;
+
+		try { client.endOperation('r', path); }
+		catch (RemoteException e) { throw new IOException("Errore: problema connessione con ServerMaster", e); }
+		catch (DfsException e) { throw new IOException(e.getMessage(), e); }
+
+	}
+
+}
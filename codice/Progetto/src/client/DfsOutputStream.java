@@ -0,0 +1,123 @@
+package client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+
+import common.Configs;
+import common.DfsException;
+import server.replica.ServerReplicaInterface;
+
+/**
+ * Scrittura a blocchi di un file del filesystem distribuito (vedi Client.openOutputStream).
+ *
+ * I byte scritti vengono accumulati in un buffer di Configs.CHUNK_SIZE e inviati al ServerReplica un blocco alla volta
+ * in una sessione di scrittura. Il file viene sostituito (e la modifica propagata agli altri ServerReplica) solo alla
+ * close(): se lo stream non viene chiuso correttamente il contenuto precedente resta invariato.
+ * Il lock in scrittura preso all'apertura viene tenuto fino a close().
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class DfsOutputStream extends OutputStream {
+
+	private final Client client;
+	private final ServerReplicaInterface replica;
+	private final String path;
+	private final String sessionId;
+
+	private final byte[] buffer = new byte[Configs.CHUNK_SIZE];
+	private int bufferPosition = 0;
+	private long fileOffset = 0;
+	private boolean closed = false;
+
+	DfsOutputStream(Client client, ServerReplicaInterface replica, String path, String sessionId) {
+		this.client = client;
+		this.replica = replica;
+		this.path = path;
+		this.sessionId = sessionId;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+
+		if (bufferPosition == buffer.length) { sendChunk(); }
+		buffer[bufferPosition++] = (byte) b;
+
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+
+		while (length > 0) {
+			if (bufferPosition == buffer.length) { sendChunk(); }
+			int count = Math.min(length, buffer.length - bufferPosition);
+			System.arraycopy(bytes, offset, buffer, bufferPosition, count);
+			bufferPosition += count;
+			offset += count;
+			length -= count;
+		}
+
+	}
+
+	/**
+	 * Invia il buffer come blocco della sessione di scrittura.
+	 */
+	private void sendChunk() throws IOException {
+
+		if (closed) { throw new IOException("Errore: lo stream è chiuso"); }
+		if (bufferPosition == 0) { return; }
+
+		byte[] chunk = (bufferPosition == buffer.length) ? buffer : Arrays.copyOf(buffer, bufferPosition);
+		try { replica.writeChunk(sessionId, fileOffset, chunk); }
+		catch (RemoteException e) { throw new IOException("Errore: problema connessione con ServerReplica", e); }
+		catch (DfsException e) { throw new IOException(e.getMessage(), e); }
+
+		fileOffset += bufferPosition;
+		bufferPosition = 0;
+
+	}
+
+	@Override
+	public void flush() throws IOException {
+		sendChunk();
+	}
+
+	/**
+	 * Invia l'ultimo blocco, conclude la sessione di scrittura (il file viene sostituito e la modifica propagata) e
+	 * rilascia il lock in scrittura. Se qualcosa va storto la sessione viene annullata.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (closed) { return; }
+
+		IOException failure = null;
+		try {
+			sendChunk();
+			replica.commitWriteSession(sessionId, true);
+		}
+		catch (IOException e) { failure = e; }
+		catch (DfsException e) { failure = new IOException(e.getMessage(), e); }
+
+		closed = true;
+
+		if (failure != null) {
+			try { replica.abortWriteSession(sessionId); }
+			catch (RemoteException e) { }
+		}
+
+		try { client.endOperation('w', path); }
+		catch (RemoteException e) { 
+			if (failure == null) { failure = new IOException("Errore: problema connessione con ServerMaster", e); } 
+		}
+		catch (DfsException e) { 
+			if (failure == null) { failure = new IOException(e.getMessage(), e); } 
+		}
+
+		if (failure != null) { throw failure; }
+
+	}
+
+}
@@ -0,0 +1,275 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import common.Configs;
+import common.DfsException;
+import server.replica.ServerReplicaInterface;
+
+/**
+ * Lettura di un file con richieste di riserva (hedging) e tentativi ripetuti, per ridurre la latenza nei casi peggiori
+ * (p99 e oltre) quando un ServerReplica è lento o cade durante la lettura.
+ *
+ * La lettura viene chiesta al primo ServerReplica (quello indicato dal ServerMaster); se non risponde entro il ritardo
+ * di hedging viene chiesta anche a un ServerReplica di riserva e si tiene la prima risposta. Il ritardo è il percentile
+ * Configs.CLIENT_HEDGE_PERCENTILE delle ultime letture (finchè non ce ne sono abbastanza si usa
+ * Configs.CLIENT_HEDGE_INITIAL_DELAY_MILLIS), così solo le letture più lente del solito generano una seconda richiesta.
+ *
+ * Un ServerReplica non raggiungibile viene sostituito dal successivo dopo un' attesa che raddoppia ad ogni errore
+ * (da Configs.CLIENT_READ_RETRY_BASE_MILLIS a Configs.CLIENT_READ_RETRY_MAX_MILLIS) con una parte casuale (jitter),
+ * così i client che perdono lo stesso ServerReplica non ritentano tutti nello stesso istante. Tutto avviene tenendo lo
+ * stesso lock in lettura sul ServerMaster: chi chiama non deve rifare startOperation.
+ *
+ * I ServerReplica di riserva sono scelti solo quando servono (prima richiesta di riserva o primo errore) tra i candidati
+ * indicati da chi chiama (ServerReplica UP che tengono il file): vengono tenuti solo quelli con la stessa versione del file
+ * del primo ServerReplica o, se questo non risponde in tempo, con la versione più recente tra i candidati. Così una
+ * lettura non finisce su un ServerReplica rimasto indietro.
+ *
+ * Un errore del primo ServerReplica (DfsException, ad esempio file non esistente) è la risposta e non viene ritentato;
+ * lo stesso errore da un ServerReplica di riserva (che potrebbe non avere ancora ricevuto il file) conta invece come
+ * un tentativo fallito.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class HedgedReader {
+
+	/**
+	 * Esito di una richiesta: contenuto oppure errore.
+	 */
+	private static class Outcome {
+
+		private final byte[] content;
+		private final Exception error;
+		private final boolean fromPrimary;
+
+		public Outcome(byte[] content, Exception error, boolean fromPrimary) {
+			this.content = content;
+			this.error = error;
+			this.fromPrimary = fromPrimary;
+		}
+
+	}
+
+	// richiesta di riserva non inviata perchè non c'è nessun ServerReplica di riserva
+	private static final Outcome NO_BACKUP = new Outcome(null, null, false);
+
+	private final ExecutorService requests = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "hedged-read");
+		t.setDaemon(true);
+		return t;
+	});
+	private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "hedged-read-retry");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// ultime durate delle letture in nanosecondi (buffer circolare, protetto dal monitor dell'istanza)
+	private final long[] samples = new long[Configs.CLIENT_HEDGE_WINDOW];
+	private int numSamples = 0;
+	private int nextSample = 0;
+	private long hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(Configs.CLIENT_HEDGE_INITIAL_DELAY_MILLIS);
+
+	/**
+	 * Lettura del file (il lock in lettura deve essere già preso).
+	 *
+	 * @param path del file da leggere
+	 * @param replicas riferimenti remoti ai ServerReplica
+	 * @param primary id del ServerReplica scelto dal ServerMaster
+	 * @param candidates id dei ServerReplica di riserva possibili, in ordine di preferenza (vuoto per ritentare sempre
+	 * 			primary)
+	 *
+	 * @return contenuto del file
+	 *
+	 * @throws DfsException Generata se il primo ServerReplica risponde con un errore oppure se nessuno risponde entro
+	 * 			Configs.CLIENT_READ_TIMEOUT_MILLIS o Configs.CLIENT_READ_ATTEMPTS tentativi
+	 */
+	public byte[] read(String path, ServerReplicaInterface[] replicas, int primary, int[] candidates) throws DfsException {
+
+		LinkedBlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<Outcome>();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Configs.CLIENT_READ_TIMEOUT_MILLIS);
+		long hedgeAt = System.nanoTime() + getHedgeDelayNanos();
+
+		int next = 0;
+		int running = 0;
+		int failures = 0;
+		boolean hedged = (candidates.length == 0);
+		CompletableFuture<int[]> backups = null;   // scelti alla prima richiesta che non va a primary
+
+		launch(path, replicas, primary, null, next++, false, outcomes);
+		running++;
+
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				if (now - deadline >= 0) { throw new DfsException("Errore: nessun ServerReplica ha risposto in tempo, riprova"); }
+
+				long wait = (hedged ? deadline : Math.min(hedgeAt, deadline)) - now;
+				Outcome outcome = outcomes.poll(wait, TimeUnit.NANOSECONDS);
+
+				if (outcome == null) {
+					// la prima richiesta è più lenta del solito: ne invio una di riserva al ServerReplica successivo
+					if (!hedged && System.nanoTime() - hedgeAt >= 0) {
+						hedged = true;
+						if (backups == null) { backups = selectBackups(path, replicas, primary, candidates); }
+						launch(path, replicas, primary, backups, next++, true, outcomes);
+						running++;
+					}
+					continue;
+				}
+				running--;
+
+				if (outcome.content != null) { return outcome.content; }
+				if (outcome.error instanceof DfsException && outcome.fromPrimary) { throw (DfsException) outcome.error; }
+
+				// ServerReplica non raggiungibile (o errore da un ServerReplica di riserva): ritento sul successivo dopo 
+				// l'attesa, a meno che non ci sia ancora una richiesta in corso che potrebbe rispondere
+				if (outcome != NO_BACKUP) { failures++; }
+				if (running > 0) { continue; }
+				if (failures >= Configs.CLIENT_READ_ATTEMPTS) {
+					throw new DfsException("Errore: problema connessione con ServerReplica, riprova");
+				}
+				if (backups == null) { backups = selectBackups(path, replicas, primary, candidates); }
+				CompletableFuture<int[]> retryBackups = backups;
+				int attempt = next++;
+				retries.schedule(() -> launch(path, replicas, primary, retryBackups, attempt, false, outcomes), 
+						backoffMillis(failures), TimeUnit.MILLISECONDS);
+				running++;
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DfsException("Errore: lettura interrotta");
+		}
+
+	}
+
+	/**
+	 * Invio di una richiesta di lettura (su un thread del pool): l'esito arriva in outcomes.
+	 *
+	 * @param attempt numero della richiesta: la prima va a primary, le successive a turno ai ServerReplica di riserva e
+	 * 			a primary
+	 * @param backups ServerReplica di riserva (null solo per la prima richiesta)
+	 * @param hedge true per una richiesta di riserva: senza ServerReplica di riserva non viene inviata (NO_BACKUP)
+	 */
+	private void launch(String path, ServerReplicaInterface[] replicas, int primary, CompletableFuture<int[]> backups, 
+			int attempt, boolean hedge, LinkedBlockingQueue<Outcome> outcomes) {
+
+		requests.execute(() -> {
+			int target = primary;
+			if (attempt > 0) {
+				int[] backupIds = backups.join();
+				if (hedge && backupIds.length == 0) {
+					outcomes.add(NO_BACKUP);
+					return;
+				}
+				int index = attempt % (backupIds.length + 1);
+				if (index > 0) { target = backupIds[index - 1]; }
+			}
+
+			long start = System.nanoTime();
+			ServerReplicaInterface replica = replicas[target];
+			try {
+				if (replica == null) { throw new RemoteException("Errore: ServerReplica non trovato"); }
+				byte[] content = replica.readFile(path).getBytes();
+				record(System.nanoTime() - start);
+				outcomes.add(new Outcome(content, null, target == primary));
+			}
+			catch (RemoteException | DfsException | RuntimeException e) {
+				outcomes.add(new Outcome(null, e, target == primary));
+			}
+		});
+
+	}
+
+	/**
+	 * Scelta dei ServerReplica di riserva (su un thread del pool): la versione del file viene chiesta in parallelo a
+	 * primary e ai candidati e vengono tenuti i candidati con la versione di primary, oppure con la più recente tra loro
+	 * se primary non ha risposto quando hanno risposto tutti i candidati. I candidati non raggiungibili sono scartati.
+	 *
+	 * @return future con gli id dei ServerReplica di riserva, nell'ordine dei candidati (mai completato con eccezione)
+	 */
+	private CompletableFuture<int[]> selectBackups(String path, ServerReplicaInterface[] replicas, int primary, int[] candidates) {
+
+		CompletableFuture<Long> primaryVersion = version(path, replicas[primary]);
+		List<CompletableFuture<Long>> versions = new ArrayList<CompletableFuture<Long>>(candidates.length);
+		for (int id: candidates) { versions.add(version(path, replicas[id])); }
+
+		return CompletableFuture.allOf(versions.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+			long reference = primaryVersion.getNow(-1L);
+			if (reference < 0) {
+				for (CompletableFuture<Long> version: versions) { reference = Math.max(reference, version.join()); }
+			}
+
+			int[] backups = new int[candidates.length];
+			int numBackups = 0;
+			for (int i=0; i<candidates.length; i++) {
+				if (reference >= 0 && versions.get(i).join() == reference) { backups[numBackups++] = candidates[i]; }
+			}
+			return Arrays.copyOf(backups, numBackups);
+		});
+
+	}
+
+	/**
+	 * @return future con la versione del file sul ServerReplica, -1 se non è raggiungibile
+	 */
+	private CompletableFuture<Long> version(String path, ServerReplicaInterface replica) {
+
+		return CompletableFuture.supplyAsync(() -> {
+			try { return (replica == null) ? -1L : replica.getVersion(path); }
+			catch (RemoteException | RuntimeException e) { return -1L; }
+		}, requests);
+
+	}
+
+	/**
+	 * @return attesa prima del tentativo successivo al failures-esimo errore: metà fissa e metà casuale
+	 */
+	private static long backoffMillis(int failures) {
+
+		long backoff = Math.min(Configs.CLIENT_READ_RETRY_MAX_MILLIS,
+				Configs.CLIENT_READ_RETRY_BASE_MILLIS << Math.min(failures - 1, 30));
+		return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+	}
+
+	/**
+	 * Aggiunta della durata di una lettura riuscita; il ritardo di hedging viene ricalcolato ogni
+	 * Configs.CLIENT_HEDGE_WINDOW / 16 letture.
+	 */
+	private synchronized void record(long nanos) {
+
+		samples[nextSample] = nanos;
+		nextSample = (nextSample + 1) % samples.length;
+		if (numSamples < samples.length) { numSamples++; }
+
+		if (numSamples >= Configs.CLIENT_HEDGE_MIN_SAMPLES && nextSample % Math.max(1, samples.length / 16) == 0) {
+			long[] sorted = Arrays.copyOf(samples, numSamples);
+			Arrays.sort(sorted);
+			int index = (int) Math.min(numSamples - 1, Math.ceil(Configs.CLIENT_HEDGE_PERCENTILE * numSamples) - 1);
+			hedgeDelayNanos = Math.max(sorted[Math.max(0, index)],
+					TimeUnit.MILLISECONDS.toNanos(Configs.CLIENT_HEDGE_MIN_DELAY_MILLIS));
+		}
+
+	}
+
+	/**
+	 * @return ritardo attuale prima della richiesta di riserva
+	 */
+	public synchronized long getHedgeDelayNanos() {
+		return hedgeDelayNanos;
+	}
+
+}
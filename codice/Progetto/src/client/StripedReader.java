@@ -0,0 +1,342 @@
+package client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import common.Configs;
+import common.DataTransfer;
+import common.DfsException;
+import common.TransferTicket;
+import server.replica.ServerReplicaInterface;
+
+/**
+ * Lettura di un file grande a strisce (range di byte) da più ServerReplica contemporaneamente, sul loro canale dati.
+ *
+ * Ogni ServerReplica sorgente ha un thread che prende la prossima striscia non ancora assegnata e la scrive nella
+ * destinazione (Sink) alla sua posizione, quindi la banda cresce con il numero di ServerReplica. La dimensione della
+ * striscia segue la velocità osservata di ogni ServerReplica (tra Configs.CLIENT_STRIPE_MIN_BYTES e
+ * Configs.CLIENT_STRIPE_MAX_BYTES, circa Configs.CLIENT_STRIPE_TARGET_MILLIS di trasferimento): quelli più veloci
+ * prendono strisce più grandi. La velocità è ricordata tra una lettura e l'altra.
+ *
+ * Quando non ci sono più strisce da assegnare, un thread libero prende la seconda metà della striscia in corso che
+ * finirebbe più tardi (work stealing): il proprietario si ferma dove inizia la parte presa. Se un ServerReplica non è
+ * raggiungibile, la parte non ancora ricevuta della sua striscia torna tra quelle da assegnare agli altri.
+ *
+ * Tutti i ServerReplica sorgente devono avere la stessa versione del file e il lock in lettura deve essere preso per
+ * tutta la lettura, così le strisce hanno lo stesso contenuto qualunque sia il ServerReplica che le invia.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class StripedReader {
+
+	/**
+	 * Destinazione della lettura: riceve dalla socket length byte da scrivere a partire da offset.
+	 */
+	interface Sink {
+		void receive(SocketChannel socket, long offset, long length) throws IOException;
+	}
+
+	/**
+	 * Destinazione in memoria.
+	 */
+	static Sink toArray(byte[] target) {
+
+		return (socket, offset, length) -> {
+			ByteBuffer buffer = ByteBuffer.wrap(target, (int) offset, (int) length);
+			while (buffer.hasRemaining()) {
+				if (socket.read(buffer) < 0) { throw new IOException("Errore: connessione chiusa prima della fine del trasferimento"); }
+			}
+		};
+
+	}
+
+	/**
+	 * Destinazione su file: i byte vengono copiati dalla socket al file senza passare dalla memoria della JVM (vedi
+	 * DataTransfer.receive). Dato che transferFrom non scrive oltre la fine del file, prima il file viene esteso fino alla
+	 * fine del blocco (le strisce arrivano in ordine qualsiasi).
+	 */
+	static Sink toFile(FileChannel target) {
+
+		return (socket, offset, length) -> {
+			if (target.size() < offset + length) { target.write(ByteBuffer.allocate(1), offset + length - 1); }
+			DataTransfer.receive(socket, target, offset, length);
+		};
+
+	}
+
+	/**
+	 * Striscia in corso: i byte da position a end devono ancora arrivare; end può essere abbassato da chi ne prende la
+	 * seconda metà, ma mai sotto reserved (byte già chiesti alla socket).
+	 */
+	private static class Stripe {
+
+		private final int replicaId;
+		private long position;
+		private long reserved;
+		private long end;
+
+		public Stripe(int replicaId, long start, long end) {
+			this.replicaId = replicaId;
+			this.position = start;
+			this.reserved = start;
+			this.end = end;
+		}
+
+	}
+
+	/**
+	 * Stato di una lettura, protetto dal suo monitor.
+	 */
+	private class Download {
+
+		private final long size;
+		private long nextOffset = 0;                                                  // inizio della parte mai assegnata
+		private final ArrayDeque<long[]> returned = new ArrayDeque<long[]>();         // range tornati da ServerReplica caduti
+		private final List<Stripe> active = new ArrayList<Stripe>();
+		private volatile DfsException error;
+
+		public Download(long size) {
+			this.size = size;
+		}
+
+		/**
+		 * @return prossima striscia per replicaId, null se non c'è più niente da fare (attende se ci sono solo strisce
+		 * 			in corso che non conviene dividere, perchè potrebbero tornare indietro)
+		 */
+		public synchronized Stripe next(int replicaId) throws InterruptedException {
+
+			while (true) {
+				if (error != null) { return null; }
+
+				long length = stripeBytes(replicaId);
+				Stripe stripe = null;
+				if (!returned.isEmpty()) {
+					long[] range = returned.poll();
+					if (range[1] - range[0] > length) { returned.addFirst(new long[] { range[0] + length, range[1] }); }
+					stripe = new Stripe(replicaId, range[0], Math.min(range[1], range[0] + length));
+				}
+				else if (nextOffset < size) {
+					stripe = new Stripe(replicaId, nextOffset, Math.min(size, nextOffset + length));
+					nextOffset = stripe.end;
+				}
+				else {
+					stripe = steal(replicaId);
+				}
+
+				if (stripe != null) {
+					active.add(stripe);
+					return stripe;
+				}
+				if (active.isEmpty()) { return null; }
+				wait();
+			}
+
+		}
+
+		/**
+		 * Divisione della striscia in corso che finirebbe più tardi (secondo la velocità del suo ServerReplica).
+		 */
+		private Stripe steal(int replicaId) {
+
+			Stripe victim = null;
+			double victimMillis = 0;
+			for (Stripe stripe: active) {
+				double millis = (stripe.end - stripe.reserved) / bytesPerMilli(stripe.replicaId);
+				if (stripe.end - stripe.reserved >= 2 * Configs.CLIENT_STRIPE_MIN_BYTES && millis > victimMillis) {
+					victim = stripe;
+					victimMillis = millis;
+				}
+			}
+			if (victim == null) { return null; }
+
+			long middle = victim.reserved + (victim.end - victim.reserved) / 2;
+			Stripe stolen = new Stripe(replicaId, middle, victim.end);
+			victim.end = middle;
+			return stolen;
+
+		}
+
+		/**
+		 * @return fine dei prossimi byte da chiedere alla socket per la striscia (al massimo Configs.CHUNK_SIZE), oppure
+		 * 			-1 se la striscia è terminata
+		 */
+		public synchronized long reserve(Stripe stripe, long position) {
+
+			stripe.position = position;
+			if (position >= stripe.end) { return -1; }
+			stripe.reserved = Math.min(stripe.end, position + Configs.CHUNK_SIZE);
+			return stripe.reserved;
+
+		}
+
+		/**
+		 * Fine di una striscia: se non è completa la parte mancante torna tra quelle da assegnare.
+		 */
+		public synchronized void finish(Stripe stripe) {
+
+			active.remove(stripe);
+			if (stripe.position < stripe.end) { returned.add(new long[] { stripe.position, stripe.end }); }
+			notifyAll();
+
+		}
+
+		public synchronized void fail(DfsException e) {
+
+			if (error == null) { error = e; }
+			notifyAll();
+
+		}
+
+		/**
+		 * @return true se tutti i byte sono arrivati
+		 */
+		public synchronized boolean complete() {
+			return error == null && nextOffset >= size && returned.isEmpty() && active.isEmpty();
+		}
+
+	}
+
+	private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "striped-read");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// velocità osservata di ogni ServerReplica in byte al millisecondo (0 = mai misurata), protetta dal monitor dell'istanza
+	private final double[] rates;
+
+	/**
+	 * @param numReplicas numero di ServerReplica del sistema
+	 */
+	public StripedReader(int numReplicas) {
+		this.rates = new double[numReplicas];
+	}
+
+	/**
+	 * Lettura di size byte di path dai ServerReplica sources nella destinazione (il lock in lettura deve essere già
+	 * preso).
+	 *
+	 * @param sources id dei ServerReplica da cui leggere, tutti con la stessa versione del file
+	 *
+	 * @throws DfsException Generata se un ServerReplica risponde con un errore oppure se nessuno riesce a inviare le
+	 * 			strisce che mancano
+	 */
+	public void read(String path, long size, ServerReplicaInterface[] replicas, int[] sources, Sink sink) throws DfsException {
+
+		Download download = new Download(size);
+		List<Future<?>> running = new ArrayList<Future<?>>(sources.length);
+		for (int id: sources) {
+			running.add(workers.submit(() -> transfer(download, path, id, replicas[id], sink)));
+		}
+
+		try {
+			for (Future<?> future: running) { future.get(); }
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			download.fail(new DfsException("Errore: lettura interrotta"));
+			throw download.error;
+		}
+		catch (ExecutionException e) {
+			throw new DfsException("Errore: lettura non riuscita ("+e.getCause()+"), riprova");
+		}
+
+		if (download.error != null) { throw download.error; }
+		if (!download.complete()) { throw new DfsException("Errore: problema connessione con ServerReplica, riprova"); }
+
+	}
+
+	/**
+	 * Ciclo del thread di un ServerReplica: trasferisce strisce finchè ce ne sono; si ferma al primo problema di
+	 * connessione (la striscia viene presa dagli altri).
+	 */
+	private void transfer(Download download, String path, int replicaId, ServerReplicaInterface replica, Sink sink) {
+
+		try {
+			Stripe stripe;
+			while ((stripe = download.next(replicaId)) != null) {
+				long start = System.nanoTime();
+				long first = stripe.position;
+				long position = first;
+
+				try {
+					TransferTicket ticket = replica.openReadTransfer(path, stripe.position, stripe.end - stripe.position);
+					try (SocketChannel socket = DataTransfer.connect(ticket)) {
+						long limit;
+						while ((limit = download.reserve(stripe, position)) >= 0) {
+							sink.receive(socket, position, limit - position);
+							position = limit;
+						}
+					}
+				}
+				catch (DfsException e) {
+					download.finish(stripe);
+					download.fail(e);
+					return;
+				}
+				catch (IOException e) {
+					// ServerReplica non raggiungibile (anche RemoteException): la parte mancante va agli altri
+					download.reserve(stripe, position);
+					download.finish(stripe);
+					return;
+				}
+
+				download.finish(stripe);
+				record(replicaId, position - first, System.nanoTime() - start);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	/**
+	 * Aggiornamento della velocità di un ServerReplica dopo una striscia (media mobile esponenziale); le strisce troppo
+	 * corte (ad esempio quelle interrotte da chi ne ha preso la seconda metà) non vengono considerate.
+	 */
+	private synchronized void record(int replicaId, long bytes, long nanos) {
+
+		if (bytes < Configs.CLIENT_STRIPE_MIN_BYTES / 4 || nanos <= 0) { return; }
+		double rate = bytes / (nanos / 1e6);
+		rates[replicaId] = (rates[replicaId] == 0) ? rate : 0.7 * rates[replicaId] + 0.3 * rate;
+
+	}
+
+	/**
+	 * @return velocità del ServerReplica in byte al millisecondo (quella del più lento se non è mai stata misurata)
+	 */
+	private synchronized double bytesPerMilli(int replicaId) {
+
+		if (rates[replicaId] > 0) { return rates[replicaId]; }
+		double slowest = Double.MAX_VALUE;
+		for (double rate: rates) {
+			if (rate > 0) { slowest = Math.min(slowest, rate); }
+		}
+		return (slowest == Double.MAX_VALUE) ? 1 : slowest;
+
+	}
+
+	/**
+	 * @return dimensione della prossima striscia per il ServerReplica: circa Configs.CLIENT_STRIPE_TARGET_MILLIS di
+	 * 			trasferimento alla sua velocità (la minima finchè non è stata misurata)
+	 */
+	private synchronized long stripeBytes(int replicaId) {
+
+		if (rates[replicaId] == 0) { return Configs.CLIENT_STRIPE_MIN_BYTES; }
+		long bytes = (long) (rates[replicaId] * Configs.CLIENT_STRIPE_TARGET_MILLIS);
+		return Math.max(Configs.CLIENT_STRIPE_MIN_BYTES, Math.min(Configs.CLIENT_STRIPE_MAX_BYTES, bytes));
+
+	}
+
+}
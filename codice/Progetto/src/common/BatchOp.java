@@ -0,0 +1,82 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Operazione di un batch (Client.batch): le operazioni vengono inviate insieme a un solo ServerReplica, che le esegue
+ * in ordine e le propaga agli altri come un' unica operazione.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class BatchOp implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		CREATE_FILE,
+		WRITE_FILE,
+		REMOVE,
+		MOVE,
+		RENAME,
+		CREATE_DIRECTORY
+	}
+
+	private final Type type;
+	private final String path;
+	private final String otherPath;   // path di destinazione (MOVE) o nuovo nome (RENAME)
+	private final byte[] content;
+
+	private BatchOp(Type type, String path, String otherPath, byte[] content) {
+		this.type = type;
+		this.path = path;
+		this.otherPath = otherPath;
+		this.content = content;
+	}
+
+	public static BatchOp createFile(String path) {
+		return new BatchOp(Type.CREATE_FILE, path, null, null);
+	}
+
+	public static BatchOp writeFile(String path, byte[] content) {
+		return new BatchOp(Type.WRITE_FILE, path, null, content);
+	}
+
+	public static BatchOp remove(String path) {
+		return new BatchOp(Type.REMOVE, path, null, null);
+	}
+
+	public static BatchOp move(String sourcePath, String targetPath) {
+		return new BatchOp(Type.MOVE, sourcePath, targetPath, null);
+	}
+
+	public static BatchOp rename(String path, String newName) {
+		return new BatchOp(Type.RENAME, path, newName, null);
+	}
+
+	public static BatchOp createDirectory(String path) {
+		return new BatchOp(Type.CREATE_DIRECTORY, path, null, null);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getOtherPath() {
+		return otherPath;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	@Override
+	public String toString() {
+		return type+" "+path+((otherPath != null) ? " -> "+otherPath : "");
+	}
+
+}
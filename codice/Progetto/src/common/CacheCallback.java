@@ -0,0 +1,21 @@
+package common;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Oggetto remoto esportato dal client e registrato sul ServerMaster: il ServerMaster lo chiama quando qualcuno prende il
+ * lock in scrittura su path che il client potrebbe avere in cache.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public interface CacheCallback extends Remote {
+
+	/**
+	 * Invalidazione dei path (e, per le directory, di tutto quello che contengono) e dei listaggi delle directory che li
+	 * contengono.
+	 */
+	void invalidate(String[] paths) throws RemoteException;
+
+}
@@ -0,0 +1,74 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Statistiche di una cache (contatori cumulativi dall'avvio e occupazione attuale).
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class CacheStats implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+	private final long rejections;
+	private final long usedBytes;
+	private final long maxBytes;
+
+	/**
+	 * @param hits richieste servite dalla cache
+	 * @param misses richieste non presenti in cache
+	 * @param evictions elementi tolti dalla cache per fare spazio
+	 * @param rejections elementi non ammessi in cache perchè meno richiesti di quelli che avrebbero sostituito
+	 * @param usedBytes byte occupati
+	 * @param maxBytes byte massimi
+	 */
+	public CacheStats(long hits, long misses, long evictions, long rejections, long usedBytes, long maxBytes) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.rejections = rejections;
+		this.usedBytes = usedBytes;
+		this.maxBytes = maxBytes;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	public long getRejections() {
+		return rejections;
+	}
+
+	public long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public double getHitRate() {
+		long requests = hits + misses;
+		return (requests == 0) ? 0 : (double) hits / requests;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hit: %d   miss: %d   hit rate: %.1f%%   eviction: %d   non ammessi: %d   occupazione: %d/%d byte",
+				hits, misses, 100 * getHitRate(), evictions, rejections, usedBytes, maxBytes);
+	}
+
+}
@@ -2,7 +2,80 @@ package common;
 
 public class Configs {
 	
+	public static String HOST = "localhost";                          // host del registry e dei data server
 	public static int REGISTRY_PORT = 1099;                           // porta di default
-	public static String URL = "rmi://localhost:"+REGISTRY_PORT+"/";
+	public static String URL = "rmi://"+HOST+":"+REGISTRY_PORT+"/";
+	
+	public static long LOCK_TIMEOUT_MILLIS = 10000;                   // attesa massima in coda per ottenere un lock
+	public static long LOCK_LEASE_MILLIS = 30000;                     // durata del lease dei lock se il client non li rinnova
+	
+	public static String REPLICA_SELECTION_POLICY = "p2c";            // scelta del ServerReplica: "random", "p2c" o "ewma"
+	public static double REPLICA_EWMA_ALPHA = 0.3;                    // peso dei nuovi campioni nella latenza media
+	
+	public static long HEARTBEAT_INTERVAL_MILLIS = 1000;              // intervallo tra due heartbeat verso ogni ServerReplica
+	public static int HEARTBEAT_WINDOW = 100;                         // intervalli considerati dal failure detector
+	public static double PHI_SUSPECT_THRESHOLD = 3;                   // oltre questo phi un ServerReplica è SUSPECT
+	public static double PHI_DOWN_THRESHOLD = 8;                      // oltre questo phi un ServerReplica è DOWN
+	
+	public static boolean FUSED_OPERATIONS = true;                    // letture, listaggi e scritture piccole inoltrate dal ServerMaster
+	public static int FUSED_MAX_WRITE_BYTES = 64 * 1024;              // dimensione massima di una scrittura inoltrata dal ServerMaster
+	
+	public static long CLIENT_CACHE_MAX_BYTES = 0;                    // memoria della cache di contenuti e listaggi del client (0 = disattivata)
+	public static long CLIENT_CACHE_LEASE_MILLIS = 3000;              // validità della cache del client senza rinnovo (rinnovata ogni terzo)
+	public static long CACHE_CALLBACK_TIMEOUT_MILLIS = 2000;          // attesa massima dell'invalidazione della cache di un client
+	public static int CACHE_CALLBACK_THREADS = 16;                    // invalidazioni inviate contemporaneamente dal ServerMaster
+	public static int CLIENT_ASYNC_MAX_IN_FLIGHT = 32;                // operazioni asincrone non concluse al massimo per client (AsyncClient)
+	
+	public static boolean CLIENT_HEDGED_READS = false;                // letture con richiesta di riserva e tentativi ripetuti (HedgedReader)
+	public static double CLIENT_HEDGE_PERCENTILE = 0.95;              // la richiesta di riserva parte oltre questo percentile delle letture
+	public static int CLIENT_HEDGE_WINDOW = 1024;                     // ultime letture considerate per il percentile
+	public static int CLIENT_HEDGE_MIN_SAMPLES = 32;                  // letture necessarie prima di usare il percentile
+	public static long CLIENT_HEDGE_INITIAL_DELAY_MILLIS = 50;        // ritardo della richiesta di riserva finchè non ci sono abbastanza letture
+	public static long CLIENT_HEDGE_MIN_DELAY_MILLIS = 2;             // ritardo minimo della richiesta di riserva
+	public static int CLIENT_READ_ATTEMPTS = 5;                       // tentativi di lettura al massimo con lo stesso lock
+	public static long CLIENT_READ_RETRY_BASE_MILLIS = 50;            // attesa iniziale prima di ritentare una lettura su un altro ServerReplica
+	public static long CLIENT_READ_RETRY_MAX_MILLIS = 2000;           // attesa massima tra due tentativi di lettura
+	public static long CLIENT_READ_TIMEOUT_MILLIS = 30000;            // durata massima di una lettura con tentativi ripetuti
+	
+	public static long CLIENT_STRIPE_MIN_FILE_BYTES = 16 * 1024 * 1024; // file più piccoli letti da un solo ServerReplica anche a strisce
+	public static long CLIENT_STRIPE_MIN_BYTES = 1024 * 1024;         // dimensione minima di una striscia (e della metà presa da un altro)
+	public static long CLIENT_STRIPE_MAX_BYTES = 64 * 1024 * 1024;    // dimensione massima di una striscia
+	public static long CLIENT_STRIPE_TARGET_MILLIS = 200;             // durata di trasferimento di una striscia alla velocità del ServerReplica
+	
+	public static int CHUNK_SIZE = 1024 * 1024;                       // dimensione dei blocchi nei trasferimenti a blocchi
+	
+	public static int DATA_PORT_BASE = 20000;                         // porta del data server del ServerReplica i: DATA_PORT_BASE + i
+	public static int DATA_SERVER_THREADS = 8;                        // trasferimenti contemporanei per ogni data server
+	
+	public static long PROPAGATION_TIMEOUT_MILLIS = 30000;            // attesa massima della risposta di un ServerReplica in propagazione
+	public static String REPLICATION_MODE = "star";                   // "star": chi esegue la modifica la invia a tutti, "chain": replicazione a catena
+	public static int PLACEMENT_REPLICATION_FACTOR = 0;               // ServerReplica che tengono ogni file (0 = tutti, altrimenti consistent hashing)
+	public static int PLACEMENT_VIRTUAL_NODES = 128;                  // posizioni di ogni ServerReplica sull'anello del consistent hashing
+	public static int WRITE_QUORUM = 0;                               // ServerReplica che devono applicare una modifica (0 = tutti i raggiungibili)
+	public static int READ_QUORUM = 1;                                // ServerReplica da cui leggere (con R + W > N le letture vedono l'ultima scrittura)
+	public static int REPLICATION_LOG_MAX = 100000;                   // operazioni al massimo nel log di replicazione non confermate da tutti
+	public static long REPLICATION_LOG_MAX_BYTES = 256L * 1024 * 1024; // byte al massimo (contenuto) nel log di replicazione non confermati da tutti
+	public static long REPLICATION_LOG_FULL_WAIT_MILLIS = 5000;       // attesa massima di chi scrive quando il log di replicazione è pieno per un ServerReplica raggiungibile
+	public static int REPLICATION_INLINE_MAX_BYTES = 256 * 1024;      // file più grandi messi nel log solo come path e versione (letti all'invio)
+	public static int REPLICATION_BATCH_MAX_OPS = 512;                // operazioni al massimo in un batch del log di replicazione
+	public static long REPLICATION_BATCH_MAX_BYTES = 4 * 1024 * 1024; // byte al massimo (contenuto) in un batch del log di replicazione
+	public static int REPLICATION_PIPELINE_DEPTH = 2;                 // batch in viaggio contemporaneamente verso ogni ServerReplica
+	public static long REPLICATION_RETRY_BASE_MILLIS = 100;           // attesa iniziale prima di ritentare l'invio a un ServerReplica
+	public static long REPLICATION_RETRY_MAX_MILLIS = 10000;          // attesa massima tra due tentativi
+	public static int MERKLE_DEPTH = 3;                               // livelli del Merkle tree dell'anti-entropy (16^depth foglie)
+	public static long ANTI_ENTROPY_INTERVAL_MILLIS = 10000;          // intervallo tra due confronti con gli altri ServerReplica
+	public static int DELTA_BLOCK_SIZE = 2048;                        // dimensione dei blocchi confrontati per le differenze tra file
+	public static int DELTA_MIN_FILE_BYTES = 64 * 1024;               // dimensione minima dei file per cui inviare solo la differenza
+	public static double DELTA_MAX_RATIO = 0.5;                       // la differenza viene inviata solo se è al massimo questa frazione del file
+	public static int BOOTSTRAP_PARALLELISM = 4;                      // trasferimenti contemporanei durante il bootstrap di un ServerReplica
+	public static long BOOTSTRAP_SMALL_FILE_BYTES = 1024 * 1024;      // i file fino a questa dimensione sono copiati raggruppati in archivi
+	public static long BOOTSTRAP_CHUNK_BYTES = 64 * 1024 * 1024;      // dimensione di un archivio / di un intervallo di un file grande
+	public static long BOOTSTRAP_CATCHUP_TIMEOUT_MILLIS = 60000;      // attesa massima del recupero del log dopo la copia dello snapshot
+	
+	public static long REPLICA_CACHE_MAX_BYTES = 64L * 1024 * 1024;  // memoria della cache dei blocchi di ogni ServerReplica (0 = disattivata)
+	public static int REPLICA_CACHE_BLOCK_SIZE = 64 * 1024;           // dimensione dei blocchi della cache
+	public static boolean REPLICA_CACHE_OFF_HEAP = false;             // blocchi della cache fuori dall'heap (direct buffer)
+	public static int REPLICA_MMAP_MAX_FILES = 32;                    // file grandi mappati in memoria da ogni ServerReplica (0 = disattivato)
+	public static long REPLICA_MMAP_MIN_FILE_BYTES = 4L * 1024 * 1024; // dimensione minima dei file letti tramite mappatura
 
 }
@@ -0,0 +1,129 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Posizionamento dei path sui ServerReplica con consistent hashing (Configs.PLACEMENT_REPLICATION_FACTOR > 0).
+ *
+ * Ogni ServerReplica occupa virtualNodes posizioni sull'anello (hash di "id#v"); i ServerReplica che tengono una
+ * chiave sono i primi replicationFactor distinti che si incontrano sull'anello a partire dall'hash della chiave.
+ * In questo modo ogni ServerReplica tiene circa R/N dei file e, cambiando il numero di ServerReplica, si sposta solo la
+ * parte di chiavi che finisce sulle posizioni dei ServerReplica aggiunti o tolti.
+ *
+ * La chiave di un path è la directory che lo contiene (placementKey): i file di una stessa directory stanno sugli
+ * stessi ServerReplica, così il listaggio di una directory può essere fatto da uno solo di essi. Le directory invece
+ * esistono su tutti i ServerReplica (sono poche e senza contenuto), quindi i controlli sulla directory padre restano
+ * locali.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class ConsistentHashRing {
+
+	private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+	private final int numReplicas;
+	private final int replicationFactor;
+
+	/**
+	 * @param numReplicas numero di ServerReplica (id da 0 a numReplicas - 1)
+	 * @param virtualNodes posizioni sull'anello per ogni ServerReplica
+	 * @param replicationFactor ServerReplica che tengono ogni chiave (al massimo numReplicas)
+	 */
+	public ConsistentHashRing(int numReplicas, int virtualNodes, int replicationFactor) {
+
+		this.numReplicas = numReplicas;
+		this.replicationFactor = Math.min(replicationFactor, numReplicas);
+		for (int id=0; id<numReplicas; id++) {
+			for (int v=0; v<virtualNodes; v++) { ring.put(hash(id+"#"+v), id); }
+		}
+
+	}
+
+	/**
+	 * Chiave di posizionamento di un path: la directory stessa per le directory (path che terminano con '/'), la
+	 * directory che lo contiene per i file. La chiave termina sempre con '/'.
+	 */
+	public static String placementKey(String path) {
+
+		if (path.endsWith("/")) { return path; }
+		return path.substring(0, path.lastIndexOf('/') + 1);
+
+	}
+
+	/**
+	 * @param key chiave di posizionamento (vedi placementKey)
+	 * @return id dei ServerReplica che tengono la chiave, nell'ordine dell'anello
+	 */
+	public int[] owners(String key) {
+
+		int[] owners = new int[replicationFactor];
+		int found = 0;
+		long h = hash(key);
+
+		// giro dell'anello a partire dall'hash della chiave (al massimo una volta)
+		for (int round=0; round<2 && found < replicationFactor; round++) {
+			Map<Long, Integer> positions = (round == 0) ? ring.tailMap(h, true) : ring.headMap(h, false);
+			for (int id: positions.values()) {
+				if (found == replicationFactor) { break; }
+				if (!contains(owners, found, id)) { owners[found++] = id; }
+			}
+		}
+		return owners;
+
+	}
+
+	/**
+	 * @return true se il ServerReplica id tiene la chiave
+	 */
+	public boolean isOwner(String key, int id) {
+
+		int[] owners = owners(key);
+		return contains(owners, owners.length, id);
+
+	}
+
+	/**
+	 * @return true se il ServerReplica id deve tenere il path: sempre per le directory, per i file solo se tiene la
+	 * 			directory che lo contiene
+	 */
+	public boolean stores(String path, boolean directory, int id) {
+		return directory || path.endsWith("/") || isOwner(placementKey(path), id);
+	}
+
+	public int getNumReplicas() {
+		return numReplicas;
+	}
+
+	public int getReplicationFactor() {
+		return replicationFactor;
+	}
+
+	private static boolean contains(int[] array, int length, int value) {
+
+		for (int i=0; i<length; i++) {
+			if (array[i] == value) { return true; }
+		}
+		return false;
+
+	}
+
+	private static long hash(String key) {
+
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest(key.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for (int i=0; i<8; i++) { h = (h << 8) | (digest[i] & 0xff); }
+			return h;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);   // MD5 è sempre presente nella JVM
+		}
+
+	}
+
+}
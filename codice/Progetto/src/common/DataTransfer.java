@@ -0,0 +1,114 @@
+package common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lato client del canale dati dei ServerReplica.
+ *
+ * Protocollo (una connessione per trasferimento):
+ * 		- il client invia il token del TransferTicket (36 caratteri ASCII);
+ * 		- lettura: il data server invia esattamente ticket.getLength() byte del file;
+ * 		- scrittura: il client invia esattamente ticket.getLength() byte e il data server risponde con un byte
+ * 		  (ACK_OK se il contenuto è stato scritto).
+ *
+ * I byte vengono copiati tra file e socket con FileChannel.transferTo / transferFrom, quindi (dove il sistema operativo
+ * lo permette) senza passare dalla memoria della JVM e senza serializzazione.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class DataTransfer {
+
+	public static final int TOKEN_LENGTH = 36;
+	public static final byte ACK_OK = 1;
+	public static final byte ACK_ERROR = 0;
+
+	private DataTransfer() { }
+
+	/**
+	 * Apre la connessione verso il data server e presenta il token. Usata direttamente solo per i trasferimenti a flusso
+	 * (ticket con lunghezza -1), per gli altri ci sono download e upload.
+	 *
+	 * @throws IOException Generata se non è possibile connettersi al data server
+	 */
+	public static SocketChannel connect(TransferTicket ticket) throws IOException {
+
+		SocketChannel socket = SocketChannel.open(new InetSocketAddress(Configs.HOST, ticket.getPort()));
+		try {
+			ByteBuffer token = ByteBuffer.wrap(ticket.getToken().getBytes(StandardCharsets.US_ASCII));
+			while (token.hasRemaining()) { socket.write(token); }
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+
+	}
+
+	/**
+	 * Scarica il contenuto indicato dal ticket e lo scrive in target a partire da targetOffset.
+	 *
+	 * @throws IOException Generata se la connessione si interrompe prima di aver ricevuto tutti i byte
+	 */
+	public static void download(TransferTicket ticket, FileChannel target, long targetOffset) throws IOException {
+
+		try (SocketChannel socket = connect(ticket)) {
+			receive(socket, target, targetOffset, ticket.getLength());
+		}
+
+	}
+
+	/**
+	 * Invia ticket.getLength() byte di source a partire da sourceOffset e attende la conferma del data server.
+	 *
+	 * @throws IOException Generata se la connessione si interrompe o se il data server non conferma la scrittura
+	 */
+	public static void upload(TransferTicket ticket, FileChannel source, long sourceOffset) throws IOException {
+
+		try (SocketChannel socket = connect(ticket)) {
+			send(source, sourceOffset, ticket.getLength(), socket);
+
+			ByteBuffer ack = ByteBuffer.allocate(1);
+			while (ack.hasRemaining()) {
+				if (socket.read(ack) < 0) { throw new IOException("Errore: il data server ha chiuso la connessione"); }
+			}
+			if (ack.get(0) != ACK_OK) { throw new IOException("Errore: il data server non ha scritto il contenuto"); }
+		}
+
+	}
+
+	/**
+	 * Copia length byte di source (da offset) sulla socket.
+	 */
+	public static void send(FileChannel source, long offset, long length, SocketChannel socket) throws IOException {
+
+		long end = offset + length;
+		while (offset < end) {
+			long sent = source.transferTo(offset, end - offset, socket);
+			if (sent <= 0) { throw new IOException("Errore: il file è più corto del previsto"); }
+			offset += sent;
+		}
+
+	}
+
+	/**
+	 * Copia length byte dalla socket in target (da offset).
+	 */
+	public static void receive(SocketChannel socket, FileChannel target, long offset, long length) throws IOException {
+
+		long end = offset + length;
+		while (offset < end) {
+			long received = target.transferFrom(socket, offset, end - offset);
+			if (received <= 0) { throw new IOException("Errore: connessione chiusa prima della fine del trasferimento"); }
+			offset += received;
+		}
+
+	}
+
+}
@@ -0,0 +1,180 @@
+package common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calcolo e applicazione delle differenze tra due versioni di un file con l'algoritmo di rsync.
+ *
+ * Il contenuto di partenza viene diviso in blocchi di blockSize byte; per ogni blocco si calcola un checksum debole
+ * (rolling, aggiornabile in O(1) spostando la finestra di un byte) e uno forte (MD5). Il nuovo contenuto viene 
+ * scorso un byte alla volta: dove il checksum debole della finestra corrisponde a quello di un blocco (e lo conferma
+ * il checksum forte) si emette la copia del blocco e si salta avanti di un blocco intero, altrimenti il byte viene 
+ * aggiunto ai byte nuovi.
+ *
+ * Per modifiche piccole di un file grande (righe aggiunte a un log, un valore cambiato in un file di configurazione) la
+ * differenza è quindi di pochi blocchi, indipendentemente da dove si trova la modifica.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class DeltaSync {
+
+	private DeltaSync() { }
+
+	/**
+	 * Calcolo della differenza tra base e target.
+	 *
+	 * @param base contenuto di partenza (quello che ha chi applicherà la differenza)
+	 * @param target nuovo contenuto
+	 * @param blockSize dimensione dei blocchi
+	 *
+	 * @return differenza da applicare a base per ottenere target
+	 */
+	public static FileDelta computeDelta(byte[] base, byte[] target, int blockSize) {
+
+		int numBlocks = base.length / blockSize;
+
+		// checksum dei blocchi completi del contenuto di partenza
+		Map<Integer, List<Integer>> blocksByWeak = new HashMap<Integer, List<Integer>>();
+		byte[][] strong = new byte[numBlocks][];
+		for (int i=0; i<numBlocks; i++) {
+			int weak = weakChecksum(base, i * blockSize, blockSize);
+			blocksByWeak.computeIfAbsent(weak, w -> new ArrayList<Integer>(1)).add(i);
+		}
+
+		List<Integer> blocks = new ArrayList<Integer>();
+		List<byte[]> literals = new ArrayList<byte[]>();
+		int literalStart = 0;
+		int pos = 0;
+
+		int a = 0;
+		int b = 0;
+		boolean newWindow = true;
+		while (numBlocks > 0 && pos + blockSize <= target.length) {
+
+			if (newWindow) {
+				a = 0;
+				b = 0;
+				for (int i=0; i<blockSize; i++) {
+					a += target[pos + i] & 0xff;
+					b += (blockSize - i) * (target[pos + i] & 0xff);
+				}
+				newWindow = false;
+			}
+
+			int match = -1;
+			List<Integer> candidates = blocksByWeak.get(((b & 0xffff) << 16) | (a & 0xffff));
+			if (candidates != null) {
+				byte[] windowDigest = md5(target, pos, blockSize);
+				for (int block: candidates) {
+					if (strong[block] == null) { strong[block] = md5(base, block * blockSize, blockSize); }
+					if (Arrays.equals(strong[block], windowDigest)) {
+						match = block;
+						break;
+					}
+				}
+			}
+
+			if (match >= 0) {
+				if (pos > literalStart) {
+					blocks.add(-1);
+					literals.add(Arrays.copyOfRange(target, literalStart, pos));
+				}
+				blocks.add(match);
+				literals.add(null);
+				pos += blockSize;
+				literalStart = pos;
+				newWindow = true;
+				continue;
+			}
+
+			if (pos + blockSize == target.length) { break; }
+
+			// sposto la finestra di un byte
+			int out = target[pos] & 0xff;
+			int in = target[pos + blockSize] & 0xff;
+			a += in - out;
+			b += a - blockSize * out;
+			pos++;
+
+		}
+
+		if (literalStart < target.length) {
+			blocks.add(-1);
+			literals.add(Arrays.copyOfRange(target, literalStart, target.length));
+		}
+
+		int[] blockArray = new int[blocks.size()];
+		for (int i=0; i<blockArray.length; i++) { blockArray[i] = blocks.get(i); }
+
+		return new FileDelta(md5(base, 0, base.length), blockSize, target.length, blockArray, 
+				literals.toArray(new byte[literals.size()][]));
+
+	}
+
+	/**
+	 * Applicazione di una differenza.
+	 *
+	 * @param base contenuto di partenza
+	 * @param delta differenza calcolata con computeDelta
+	 *
+	 * @return nuovo contenuto, null se base non è il contenuto da cui è stata calcolata la differenza
+	 */
+	public static byte[] apply(byte[] base, FileDelta delta) {
+
+		if ( !Arrays.equals(md5(base, 0, base.length), delta.getBaseDigest()) ) { return null; }
+
+		byte[] result = new byte[delta.getLength()];
+		int pos = 0;
+		int blockSize = delta.getBlockSize();
+		for (int i=0; i<delta.getBlocks().length; i++) {
+			int block = delta.getBlocks()[i];
+			if (block < 0) {
+				byte[] literal = delta.getLiterals()[i];
+				System.arraycopy(literal, 0, result, pos, literal.length);
+				pos += literal.length;
+			} else {
+				System.arraycopy(base, block * blockSize, result, pos, blockSize);
+				pos += blockSize;
+			}
+		}
+		return result;
+
+	}
+
+	/**
+	 * Checksum debole (lo stesso di rsync): a è la somma dei byte della finestra, b la somma pesata per la distanza dalla
+	 * fine della finestra, entrambe modulo 2^16.
+	 */
+	private static int weakChecksum(byte[] data, int offset, int length) {
+
+		int a = 0;
+		int b = 0;
+		for (int i=0; i<length; i++) {
+			a += data[offset + i] & 0xff;
+			b += (length - i) * (data[offset + i] & 0xff);
+		}
+		return ((b & 0xffff) << 16) | (a & 0xffff);
+
+	}
+
+	private static byte[] md5(byte[] data, int offset, int length) {
+
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			md.update(data, offset, length);
+			return md.digest();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);   // MD5 è sempre presente nella JVM
+		}
+
+	}
+
+}
@@ -0,0 +1,83 @@
+package common;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Contenuto (o parte del contenuto) di un file letto da un ServerReplica.
+ *
+ * Sul ServerReplica può essere una slice della mappatura del file (vedi MappingCache): in quel caso la serializzazione
+ * scrive i byte direttamente dalla mappatura a blocchi di TRANSFER_CHUNK byte, senza copiare il contenuto in un array
+ * grande quanto la lettura. Chi lo riceve ottiene invece un array, restituito da getBytes senza altre copie.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class FileContent implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int TRANSFER_CHUNK = 64 * 1024;
+
+	private transient ByteBuffer buffer;
+	private transient byte[] bytes;
+
+	public FileContent(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param buffer byte da posizione a limite (il buffer non viene modificato)
+	 */
+	public FileContent(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public int length() {
+		return (bytes != null) ? bytes.length : buffer.remaining();
+	}
+
+	/**
+	 * @return contenuto (copiato dal buffer solo se il FileContent non è stato serializzato, cioè in una chiamata locale)
+	 */
+	public byte[] getBytes() {
+
+		if (bytes != null) { return bytes; }
+		byte[] result = new byte[buffer.remaining()];
+		buffer.duplicate().get(result);
+		return result;
+
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+
+		out.defaultWriteObject();
+		if (bytes != null) {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			return;
+		}
+
+		ByteBuffer source = buffer.duplicate();
+		out.writeInt(source.remaining());
+		byte[] chunk = new byte[Math.min(TRANSFER_CHUNK, source.remaining())];
+		while (source.hasRemaining()) {
+			int n = Math.min(chunk.length, source.remaining());
+			source.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+		}
+
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+
+		in.defaultReadObject();
+		bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+
+	}
+
+}
@@ -0,0 +1,71 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Differenza tra due versioni di un file, calcolata con DeltaSync.
+ *
+ * Il nuovo contenuto è descritto da una sequenza di istruzioni, ognuna delle quali è:
+ * 		- la copia di un blocco (di blockSize byte) del contenuto di partenza: blocks[i] è l'indice del blocco;
+ * 		- dei byte nuovi: blocks[i] è -1 e literals[i] contiene i byte.
+ *
+ * baseDigest è il digest (MD5) del contenuto di partenza: la differenza può essere applicata solo a quel contenuto.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class FileDelta implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final byte[] baseDigest;
+	private final int blockSize;
+	private final int length;
+	private final int[] blocks;
+	private final byte[][] literals;
+
+	public FileDelta(byte[] baseDigest, int blockSize, int length, int[] blocks, byte[][] literals) {
+		this.baseDigest = baseDigest;
+		this.blockSize = blockSize;
+		this.length = length;
+		this.blocks = blocks;
+		this.literals = literals;
+	}
+
+	public byte[] getBaseDigest() {
+		return baseDigest;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return lunghezza del nuovo contenuto
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	public int[] getBlocks() {
+		return blocks;
+	}
+
+	public byte[][] getLiterals() {
+		return literals;
+	}
+
+	/**
+	 * @return byte indicativi da trasferire per la differenza (byte nuovi più le istruzioni)
+	 */
+	public long getSize() {
+
+		long size = baseDigest.length + 4L * blocks.length;
+		for (byte[] literal: literals) {
+			if (literal != null) { size += literal.length; }
+		}
+		return size;
+
+	}
+
+}
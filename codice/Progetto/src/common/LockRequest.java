@@ -0,0 +1,59 @@
+package common;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Richiesta di lock su un path, usata per chiedere più lock al ServerMaster con una sola chiamata
+ * (startOperations / endOperations).
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class LockRequest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final char lockType;
+	private final String path;
+
+	/**
+	 * @param lockType 'w' per operazione in scrittura, 'r' per operazione in lettura
+	 * @param path su cui fare l'operazione
+	 */
+	public LockRequest(char lockType, String path) {
+		this.lockType = lockType;
+		this.path = path;
+	}
+
+	public char getLockType() {
+		return lockType;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean isWrite() {
+		return lockType == 'w';
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) { return true; }
+		if ( !(other instanceof LockRequest) ) { return false; }
+		LockRequest request = (LockRequest) other;
+		return lockType == request.lockType && Objects.equals(path, request.path);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(lockType, path);
+	}
+
+	@Override
+	public String toString() {
+		return lockType+":"+path;
+	}
+
+}
@@ -0,0 +1,45 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Biglietto per un trasferimento sul canale dati di un ServerReplica (vedi DataTransfer).
+ *
+ * Viene restituito dalle chiamate RMI che preparano un trasferimento: il contenuto del file non passa da RMI ma viene
+ * letto / scritto direttamente sulla socket del data server, presentando il token.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class TransferTicket implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String token;
+	private final int port;
+	private final long length;
+
+	/**
+	 * @param token identificativo del trasferimento (valido una sola volta)
+	 * @param port porta del data server
+	 * @param length numero di byte da trasferire
+	 */
+	public TransferTicket(String token, int port, long length) {
+		this.token = token;
+		this.port = port;
+		this.length = length;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+}
@@ -0,0 +1,39 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Contenuto di un file letto da un ServerReplica insieme alla sua versione (vedi Client.readFileQuorum).
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class VersionedContent implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long version;
+	private final FileContent content;
+
+	/**
+	 * @param version versione del file sul ServerReplica (0 se il ServerReplica non ha mai visto il file)
+	 * @param content contenuto, null se il file non esiste sul ServerReplica
+	 */
+	public VersionedContent(long version, FileContent content) {
+		this.version = version;
+		this.content = content;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public byte[] getContent() {
+		return (content == null) ? null : content.getBytes();
+	}
+
+	public boolean exists() {
+		return content != null;
+	}
+
+}
@@ -0,0 +1,164 @@
+package server.master;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import common.CacheCallback;
+import common.LockRequest;
+
+/**
+ * Callback di invalidazione delle cache dei client.
+ *
+ * Ogni client con la cache attiva registra un CacheCallback. Quando un lock in scrittura viene preso (e prima che
+ * l'operazione venga eseguita sul ServerReplica), i path scritti vengono invalidati su tutti gli altri client
+ * registrati, in parallelo e attendendo al massimo timeoutMillis: dato che le letture di quei path restano bloccate
+ * dal lock fino alla fine della scrittura, nessun client può rimettere in cache il contenuto precedente.
+ *
+ * La registrazione ha un lease: il client la rinnova periodicamente e usa la cache solo finchè il rinnovo riesce, per
+ * leaseMillis a partire dalla richiesta di rinnovo. Un client che non rinnova entro leaseMillis viene tolto senza
+ * attenderlo. Un client che non risponde al callback viene tolto e la scrittura attende la scadenza del suo lease:
+ * dopo non può più usare la cache non invalidata (al rinnovo successivo scopre di non essere più registrato e la 
+ * svuota), quindi nessun client legge il contenuto precedente dopo la scrittura.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class CacheCallbacks {
+
+	/**
+	 * Callback di un client e ultimo rinnovo della registrazione.
+	 */
+	private static class Registration {
+
+		private final CacheCallback callback;
+		private volatile long lastRenewNanos = System.nanoTime();
+
+		public Registration(CacheCallback callback) {
+			this.callback = callback;
+		}
+
+	}
+
+	private final ConcurrentHashMap<String, Registration> clients = new ConcurrentHashMap<String, Registration>();
+	private final long timeoutMillis;
+	private final long leaseNanos;
+
+	private final ExecutorService notifier;
+
+	/**
+	 * @param timeoutMillis attesa massima della risposta di un client all'invalidazione
+	 * @param leaseMillis durata della registrazione se il client non la rinnova
+	 * @param threads invalidazioni inviate contemporaneamente
+	 */
+	public CacheCallbacks(long timeoutMillis, long leaseMillis, int threads) {
+		this.timeoutMillis = timeoutMillis;
+		this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+		this.notifier = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "cache-callback");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Registrazione (o sostituzione) del callback di un client.
+	 */
+	public void register(String clientId, CacheCallback callback) {
+		clients.put(clientId, new Registration(callback));
+	}
+
+	public void unregister(String clientId) {
+		clients.remove(clientId);
+	}
+
+	/**
+	 * Rinnovo della registrazione.
+	 *
+	 * @return false se il client non è (più) registrato: deve svuotare la cache e registrarsi di nuovo
+	 */
+	public boolean renew(String clientId) {
+
+		Registration registration = clients.get(clientId);
+		if (registration == null) { return false; }
+		registration.lastRenewNanos = System.nanoTime();
+		return true;
+
+	}
+
+	/**
+	 * Invalidazione dei path scritti dalle richieste su tutti i client registrati tranne writerId (che invalida la
+	 * propria cache da solo, dopo aver ottenuto il lock). Ritorna quando tutti hanno risposto; se qualcuno non risponde
+	 * entro il timeout, quando è scaduto anche il suo lease.
+	 *
+	 * @param writerId client che ha preso i lock (null se non è registrato, ad esempio per le operazioni inoltrate)
+	 * @param requests lock presi
+	 */
+	public void invalidate(String writerId, List<LockRequest> requests) {
+
+		if (clients.isEmpty()) { return; }
+
+		List<String> written = new ArrayList<String>(requests.size());
+		for (LockRequest request: requests) {
+			if (request.isWrite()) { written.add(request.getPath()); }
+		}
+		if (written.isEmpty()) { return; }
+		String[] paths = written.toArray(new String[0]);
+
+		long now = System.nanoTime();
+		List<String> notified = new ArrayList<String>();
+		List<Registration> registrations = new ArrayList<Registration>();
+		List<Future<?>> calls = new ArrayList<Future<?>>();
+		for (Map.Entry<String, Registration> client: clients.entrySet()) {
+			if (client.getKey().equals(writerId)) { continue; }
+
+			Registration registration = client.getValue();
+			if (now - registration.lastRenewNanos > leaseNanos) {
+				// client che non rinnova più (probabilmente terminato): non lo attendo
+				clients.remove(client.getKey(), registration);
+				continue;
+			}
+			notified.add(client.getKey());
+			registrations.add(registration);
+			calls.add(notifier.submit(() -> {
+				registration.callback.invalidate(paths);
+				return null;
+			}));
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		Long leaseEnd = null;
+		for (int i=0; i<calls.size(); i++) {
+			try { calls.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS); }
+			catch (ExecutionException | TimeoutException e) {
+				// client non raggiungibile: lo tolgo (non può più rinnovare) e attendo che il suo lease scada
+				calls.get(i).cancel(true);
+				clients.remove(notified.get(i), registrations.get(i));
+				long end = registrations.get(i).lastRenewNanos + leaseNanos;
+				if (leaseEnd == null || end - leaseEnd > 0) { leaseEnd = end; }
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		if (leaseEnd == null) { return; }
+		try {
+			long wait = leaseEnd - System.nanoTime();
+			if (wait > 0) { TimeUnit.NANOSECONDS.sleep(wait); }
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+}
@@ -0,0 +1,52 @@
+package server.master;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sceglie il ServerReplica con il costo stimato minore, dove il costo è la latenza media (EWMA) moltiplicata per il
+ * numero di operazioni in corso + 1.
+ *
+ * Un ServerReplica senza campioni di latenza (ad esempio appena aggiunto) usa la latenza media degli altri candidati: 
+ * viene provato appena gli altri sono più carichi, ma non riceve tutte le operazioni finchè non arriva il primo 
+ * campione. Se nessun candidato ha campioni il costo è solo il numero di operazioni in corso + 1. A parità di costo si
+ * sceglie a caso.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class EwmaSelectionPolicy implements ReplicaSelectionPolicy {
+
+	@Override
+	public int select(int[] candidates, int numCandidates, ReplicaStats[] stats) {
+
+		// parto da una posizione casuale così a parità di costo non vince sempre lo stesso
+		int offset = ThreadLocalRandom.current().nextInt(numCandidates);
+
+		// latenza dei candidati senza campioni: media di quelli che li hanno
+		double sum = 0;
+		int sampled = 0;
+		for (int i=0; i<numCandidates; i++) {
+			double latency = stats[candidates[i]].getEwmaLatencyMillis();
+			if (latency > 0) {
+				sum += latency;
+				sampled++;
+			}
+		}
+		double defaultLatency = (sampled == 0) ? 1 : sum / sampled;
+
+		int best = -1;
+		double bestCost = Double.MAX_VALUE;
+		for (int i=0; i<numCandidates; i++) {
+			int id = candidates[(offset + i) % numCandidates];
+			double latency = stats[id].getEwmaLatencyMillis();
+			double cost = ((latency > 0) ? latency : defaultLatency) * (stats[id].getOutstanding() + 1);
+			if (cost < bestCost) {
+				best = id;
+				bestCost = cost;
+			}
+		}
+		return best;
+
+	}
+
+}
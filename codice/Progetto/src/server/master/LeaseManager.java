@@ -0,0 +1,241 @@
+package server.master;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import common.LockRequest;
+
+/**
+ * Classe per la gestione dei lease sui lock.
+ *
+ * Ogni lock ottenuto tramite startOperation appartiene alla sessione del client che l'ha richiesto. La sessione ha
+ * una scadenza (lease) che viene rinnovata ad ogni chiamata del client verso il ServerMaster: se il client smette di
+ * chiamare (ad esempio perchè è andato in crash tra startOperation e endOperation), alla scadenza del lease tutti i
+ * suoi lock vengono rilasciati automaticamente.
+ *
+ * Le scadenze sono tenute in una coda ordinata per deadline (DelayQueue) con al massimo un elemento per sessione: il
+ * thread reaper si sveglia solo quando scade il primo elemento, senza mai scorrere tutta la tabella delle sessioni.
+ * Il rinnovo aggiorna solo la deadline della sessione (O(1)); quando l'elemento in coda scade il reaper controlla la
+ * deadline aggiornata e, se la sessione è stata rinnovata, la rimette in coda con la nuova scadenza.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class LeaseManager {
+
+	/**
+	 * Lock ottenuti con una singola startOperation / startOperations, insieme al ServerReplica a cui è stato indirizzato
+	 * il client e all'istante di inizio dell'operazione.
+	 */
+	static class Hold {
+
+		private final List<LockRequest> requests;
+		private final int replicaId;
+		private final long startNanos;
+
+		public Hold(List<LockRequest> requests, int replicaId, long startNanos) {
+			this.requests = requests;
+			this.replicaId = replicaId;
+			this.startNanos = startNanos;
+		}
+
+		public List<LockRequest> getRequests() {
+			return requests;
+		}
+
+		public int getReplicaId() {
+			return replicaId;
+		}
+
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+	}
+
+	/**
+	 * Sessione di un client: lock posseduti e scadenza del lease.
+	 *
+	 * La lista dei lock e i flag sono protetti dal monitor della sessione.
+	 */
+	private static class Session {
+
+		private final String clientId;
+		private volatile long deadline;
+		private final List<Hold> holds = new ArrayList<Hold>();
+		private boolean queued = false;
+		private boolean expired = false;
+
+		public Session(String clientId, long deadline) {
+			this.clientId = clientId;
+			this.deadline = deadline;
+		}
+
+	}
+
+	/**
+	 * Elemento della coda delle scadenze. La deadline è fissata al momento dell'inserimento (la coda è ordinata su
+	 * questo valore e non deve cambiare mentre l'elemento è in coda).
+	 */
+	private static class Expiry implements Delayed {
+
+		private final Session session;
+		private final long deadline;
+
+		public Expiry(Session session, long deadline) {
+			this.session = session;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(deadline, ((Expiry) other).deadline);
+		}
+
+	}
+
+	private final LockManager lockManager;
+	private final long leaseNanos;
+	private final Consumer<Hold> onExpired;
+
+	private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private final DelayQueue<Expiry> expiries = new DelayQueue<Expiry>();
+
+	/**
+	 * Costruttore: avvia il thread reaper (daemon) che rilascia i lock delle sessioni scadute.
+	 *
+	 * @param lockManager su cui rilasciare i lock scaduti
+	 * @param leaseMillis durata del lease
+	 * @param onExpired chiamata per ogni gruppo di lock rilasciato per scadenza del lease (dopo il rilascio)
+	 */
+	public LeaseManager(LockManager lockManager, long leaseMillis, Consumer<Hold> onExpired) {
+
+		this.lockManager = lockManager;
+		this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+		this.onExpired = onExpired;
+
+		Thread reaper = new Thread(this::reap, "lease-reaper");
+		reaper.setDaemon(true);
+		reaper.start();
+
+	}
+
+	/**
+	 * Rinnova il lease del client (se ha una sessione attiva).
+	 *
+	 * @param clientId identificativo del client
+	 */
+	public void renew(String clientId) {
+
+		Session session = sessions.get(clientId);
+		if (session != null) { session.deadline = System.nanoTime() + leaseNanos; }
+
+	}
+
+	/**
+	 * Registra i lock appena ottenuti (con una singola startOperation / startOperations) nella sessione del client e ne
+	 * rinnova il lease.
+	 *
+	 * @param clientId identificativo del client
+	 * @param hold lock ottenuti
+	 */
+	public void acquired(String clientId, Hold hold) {
+
+		while (true) {
+			Session session = sessions.computeIfAbsent(clientId, id -> new Session(id, System.nanoTime() + leaseNanos));
+			synchronized (session) {
+				// la sessione è scaduta proprio ora: ne serve una nuova
+				if (session.expired) {
+					sessions.remove(clientId, session);
+					continue;
+				}
+				session.holds.add(hold);
+				session.deadline = System.nanoTime() + leaseNanos;
+				if (!session.queued) {
+					session.queued = true;
+					expiries.add(new Expiry(session, session.deadline));
+				}
+				return;
+			}
+		}
+
+	}
+
+	/**
+	 * Toglie dei lock dalla sessione del client, prima di rilasciarli nel LockManager.
+	 *
+	 * @param clientId identificativo del client
+	 * @param requests lock da togliere (devono essere gli stessi registrati con acquired)
+	 *
+	 * @return i lock tolti dalla sessione, null se il client non li possedeva (ad esempio perchè il lease è scaduto e
+	 * 			i lock sono già stati rilasciati)
+	 */
+	public Hold released(String clientId, List<LockRequest> requests) {
+
+		Session session = sessions.get(clientId);
+		if (session == null) { return null; }
+
+		synchronized (session) {
+			if (session.expired) { return null; }
+			for (int i=0; i<session.holds.size(); i++) {
+				if (session.holds.get(i).requests.equals(requests)) {
+					session.deadline = System.nanoTime() + leaseNanos;
+					return session.holds.remove(i);
+				}
+			}
+		}
+		return null;
+
+	}
+
+	/**
+	 * Ciclo del thread reaper: attende la prima scadenza e, se la sessione non è stata rinnovata nel frattempo, la
+	 * chiude rilasciando tutti i suoi lock.
+	 */
+	private void reap() {
+
+		while (true) {
+
+			Expiry expiry;
+			try { expiry = expiries.take(); }
+			catch (InterruptedException e) { return; }
+
+			Session session = expiry.session;
+			List<Hold> toRelease;
+			synchronized (session) {
+				long deadline = session.deadline;
+				if (deadline - System.nanoTime() > 0) {
+					// rinnovata nel frattempo: la rimetto in coda con la nuova scadenza
+					expiries.add(new Expiry(session, deadline));
+					continue;
+				}
+				session.queued = false;
+				session.expired = true;
+				sessions.remove(session.clientId, session);
+				toRelease = new ArrayList<Hold>(session.holds);
+				session.holds.clear();
+			}
+
+			for (Hold hold: toRelease) {
+				lockManager.unlock(hold.requests);
+				onExpired.accept(hold);
+			}
+			if (!toRelease.isEmpty()) {
+				System.out.println("Lease scaduto per il client "+session.clientId+": rilasciati "+toRelease.size()+" lock");
+			}
+
+		}
+
+	}
+
+}
@@ -1,225 +1,962 @@
 package server.master;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import common.LockRequest;
 
 /**
  * Classe per la gestione dei lock e dei reader.
- * 
- * Si occupa di mantenere una hashmap in cui le chiavi sono i path su cui avvengono le operazioni e 
- * come valori ci sono istanze di CustomLock che tengono traccia dei write lock e dei reader in relazione ad 
- * un certo path.
- * 
+ *
+ * I lock sono organizzati in un trie che rispecchia la struttura dei path: ogni nodo corrisponde ad una directory o ad
+ * un file (es. "/a/b.txt" corrisponde ai nodi "/" -> "a" -> "b.txt") e i nodi vengono creati solo quando servono.
+ *
+ * Il locking è gerarchico (multi-granularity locking): per operare su un path si prende un lock "di intenzione" su
+ * ogni antenato e il lock vero e proprio sul nodo del path:
+ * 		- lettura ('r'): IS su ogni antenato, S sul path;
+ * 		- scrittura ('w'): IX su ogni antenato, X sul path.
+ * Un lock S o X su una directory protegge quindi tutto il sottoalbero (ad esempio remove("/a/") non può essere
+ * concorrente con createFile("/a/b.txt"), perchè il primo prende X su "a" e il secondo IX su "a"), mentre file diversi
+ * nella stessa directory si possono ancora modificare in parallelo (IX è compatibile con IX).
+ *
+ * Compatibilità tra i modi (+ compatibili, - in conflitto):
+ * 		     IS  IX  S   X
+ * 		IS   +   +   +   -
+ * 		IX   +   +   -   -
+ * 		S    +   -   +   -
+ * 		X    -   -   -   -
+ *
+ * I lock vengono presi sempre dall'alto verso il basso: in questo modo tutte le acquisizioni seguono lo stesso ordine
+ * e non ci possono essere deadlock tra richieste in coda.
+ * Anche più path possono essere bloccati insieme (lock(List)) in modo atomico (tutto o niente): i lock di tutti i path
+ * vengono uniti in un unico piano ordinato per path del nodo, che è un ordine globale compatibile con quello
+ * dall'alto verso il basso, quindi nemmeno due richieste multiple con path in ordine opposto si bloccano a vicenda.
+ *
+ * Non esiste un monitor globale: lo stato di ogni nodo (contatori dei modi + richieste in coda) è contenuto in una
+ * singola parola a 64 bit aggiornata tramite CAS, quindi operazioni su path diversi non si serializzano tra loro.
+ * Fa eccezione la radice, su cui ogni operazione prende un' intenzione: una sola parola aggiornata da tutti sarebbe di
+ * nuovo un punto di contesa globale, quindi IS e IX sulla radice sono contati in celle separate (RootNode), scelte in
+ * base al thread, e solo S e X (rari: operazioni su "/") usano la parola di stato.
+ *
+ * Le richieste su un solo path (il caso comune) vengono eseguite scorrendo il path direttamente, senza costruire il
+ * piano ordinato usato per più path.
+ *
+ * Quando un nodo non è più utilizzato (e il padre ha già molti figli, vedi deleteIfNotUsed) viene marcato come
+ * eliminato (sempre tramite CAS) e solo dopo viene tolto dal padre: un thread che trova un nodo eliminato rifà
+ * semplicemente il lookup. Un nodo in uso implica che anche tutti i suoi antenati sono in uso (hanno almeno un lock di
+ * intenzione), quindi un nodo non viene mai eliminato mentre un suo discendente è in uso.
+ *
+ * Oltre all'acquisizione immediata (che fallisce se il path è occupato) è possibile attendere il lock per un tempo
+ * massimo: in questo caso la richiesta viene messa in una coda FIFO relativa al nodo e viene servita quando il lock
+ * viene rilasciato. Finchè ci sono richieste in coda, nessuna nuova richiesta può scavalcarle: in questo modo un writer
+ * in attesa non può essere bloccato all'infinito da un flusso continuo di reader.
+ *
  * @author gabrielesavoia
  *
  */
 public class LockManager {
-	
+
+	/**
+	 * Esiti possibili di un tentativo di acquisizione su un nodo.
+	 */
+	private static final int ACQUIRED = 0;
+	private static final int BUSY = 1;
+	private static final int RETRY = 2;
+
+	private static final long COUNT_MASK = (1L << 15) - 1;
+	private static final long IS_MASK = COUNT_MASK;
+	private static final long IX_MASK = COUNT_MASK << 15;
+	private static final long S_MASK = COUNT_MASK << 30;
+	private static final long X_LOCK = 1L << 45;
+	private static final long WAITER = 1L << 46;
+	private static final long WAITERS_MASK = ((1L << 17) - 1) << 46;
+	private static final long DELETED = Long.MIN_VALUE;
+
+	private static final int IDLE_CHILDREN_MAX = 1024;   // figli oltre i quali un nodo inutilizzato viene eliminato
+
+	/**
+	 * Modi di lock su un nodo del trie.
+	 *
+	 * Per ogni modo sono definiti l'incremento da applicare allo stato del nodo, la maschera dei bit del proprio
+	 * contatore e la maschera dei modi in conflitto.
+	 */
+	private enum Mode {
+
+		IS(1L, IS_MASK, X_LOCK),
+		IX(1L << 15, IX_MASK, S_MASK | X_LOCK),
+		S(1L << 30, S_MASK, IX_MASK | X_LOCK),
+		X(X_LOCK, X_LOCK, IS_MASK | IX_MASK | S_MASK | X_LOCK);
+
+		private final long unit;
+		private final long mask;
+		private final long conflicts;
+
+		private Mode(long unit, long mask, long conflicts) {
+			this.unit = unit;
+			this.mask = mask;
+			this.conflicts = conflicts;
+		}
+
+		/**
+		 * @return true se il modo è compatibile con lo stato (senza considerare le richieste in coda)
+		 */
+		public boolean compatibleWith(long s) {
+			return (s & conflicts) == 0 && (s & mask) != mask;
+		}
+
+		/**
+		 * Modo più debole che copre sia questo modo sia other (usato quando più path dello stesso piano richiedono
+		 * lo stesso nodo). Non esistendo SIX, IX + S diventa X.
+		 */
+		public Mode join(Mode other) {
+			if (this == other) { return this; }
+			if (this == X || other == X) { return X; }
+			if (this == IS) { return other; }
+			if (other == IS) { return this; }
+			return X;
+		}
+
+	}
+
 	/**
-	 * Classe che tiene traccia dei write lock e dei reader in relazione al path specificato nella hashtable.
-	 * 
+	 * Nodo del trie: tiene traccia dei lock presi sul path corrispondente.
+	 *
+	 * Lo stato è codificato in un'unica parola:
+	 * 		- bit 0-14: numero di IS;
+	 * 		- bit 15-29: numero di IX;
+	 * 		- bit 30-44: numero di S (reader);
+	 * 		- bit 45: X (write lock);
+	 * 		- bit 46-62: numero di richieste in coda;
+	 * 		- DELETED (bit 63): il nodo è stato eliminato dal trie e non può più essere usato.
+	 *
+	 * La coda delle richieste in attesa è protetta dal monitor del singolo nodo ed è usata solo quando il lock non è
+	 * immediatamente disponibile.
+	 *
 	 * @author gabrielesavoia
 	 *
 	 */
-	private class CustomLock {
-		
-		private int readers;
-		private boolean writeLock;
-		
+	private static class Node {
+
+		private final String name;
+		private final Node parent;
+		private volatile ConcurrentHashMap<String, Node> children;   // creata al primo figlio
+
+		protected final AtomicLong state = new AtomicLong(0);
+		private ArrayDeque<Waiter> queue;   // creata alla prima richiesta in attesa
+
+		public Node(Node parent, String name) {
+			this.parent = parent;
+			this.name = name;
+		}
+
 		/**
-		 * Costruttore che mette a zero i reader e non mette alcun write lock.
+		 * @return figlio con il nome specificato, null se non esiste
 		 */
-		public CustomLock() {
-			this.readers = 0;
-			this.writeLock = false;
+		public Node getChild(String name) {
+			ConcurrentHashMap<String, Node> map = children;
+			return (map == null) ? null : map.get(name);
 		}
-		
+
+		/**
+		 * Ritorna il figlio con il nome specificato, creandolo se non esiste.
+		 */
+		public Node getOrCreateChild(String name) {
+
+			ConcurrentHashMap<String, Node> map = children;
+			if (map == null) {
+				synchronized (this) {
+					map = children;
+					if (map == null) { children = map = new ConcurrentHashMap<String, Node>(); }
+				}
+			}
+			Node child = map.get(name);
+			if (child == null) {
+				child = map.computeIfAbsent(name, n -> new Node(this, n));
+			}
+			return child;
+
+		}
+
+		public int childCount() {
+			ConcurrentHashMap<String, Node> map = children;
+			return (map == null) ? 0 : map.size();
+		}
+
+		public void removeChild(Node child) {
+			ConcurrentHashMap<String, Node> map = children;
+			if (map != null) { map.remove(child.name, child); }
+		}
+
+		/**
+		 * Prende il lock nel modo specificato se è compatibile e nessuno è in coda.
+		 *
+		 * @return ACQUIRED se il lock è stato preso, BUSY se non è compatibile (o qualcuno è in coda), RETRY se il nodo
+		 * 			è stato eliminato
+		 */
+		public int tryAcquire(Mode mode) {
+			while (true) {
+				long s = state.get();
+				if (s == DELETED) { return RETRY; }
+				if ((s & WAITERS_MASK) != 0 || !mode.compatibleWith(s)) { return BUSY; }
+				if (state.compareAndSet(s, s + mode.unit)) { return ACQUIRED; }
+			}
+		}
+
+		/**
+		 * Rilascia il lock nel modo specificato.
+		 *
+		 * @return true se è stato rilasciato, false se il lock non era preso in quel modo
+		 */
+		public boolean release(Mode mode) {
+			while (true) {
+				long s = state.get();
+				if (s == DELETED || (s & mode.mask) == 0) { return false; }
+				if (state.compareAndSet(s, s - mode.unit)) { return true; }
+			}
+		}
+
+		/**
+		 * @return true se il lock risulta preso nel modo specificato
+		 */
+		public boolean holds(Mode mode) {
+			long s = state.get();
+			return s != DELETED && (s & mode.mask) != 0;
+		}
+
 		/**
-		 * Controlla se qualcuno sta leggendo.
-		 * 
-		 * @return true se qualcuno sta leggendo, false altrimenti
+		 * Marca il nodo come eliminato solo se nessuno lo sta usando.
+		 *
+		 * @return true se il nodo è stato marcato come eliminato
 		 */
-		public boolean isSomeoneReading() {
-			return (readers > 0) ? true: false;
+		public boolean tryDelete() {
+			return state.compareAndSet(0, DELETED);
 		}
-		
+
 		/**
-		 * Aggiunge un reader.
+		 * Registra una richiesta in attesa. Deve essere chiamata con il monitor del nodo.
+		 *
+		 * @return false se il nodo è stato eliminato e bisogna rifare il lookup
 		 */
-		public void addReader() {
-			readers += 1;
+		private boolean registerWaiter() {
+			while (true) {
+				long s = state.get();
+				if (s == DELETED) { return false; }
+				if (state.compareAndSet(s, s + WAITER)) { return true; }
+			}
 		}
-		
+
 		/**
-		 * Elimina un reader.
+		 * Trasforma una richiesta in attesa in un lock preso nel modo specificato (se è compatibile).
 		 */
-		public void delReader() {
-			if (readers > 0) { readers -= 1; }
+		protected boolean grant(Mode mode) {
+			while (true) {
+				long s = state.get();
+				if (!mode.compatibleWith(s)) { return false; }
+				if (state.compareAndSet(s, s - WAITER + mode.unit)) { return true; }
+			}
 		}
-		
+
 		/**
-		 * Controlla se c'è un write lock.
-		 * 
-		 * @return true se c'è un write lock, false altrimenti
+		 * Serve le richieste in testa alla coda finchè sono compatibili con lo stato del nodo (ad esempio più reader
+		 * consecutivi vengono serviti insieme, un writer viene servito da solo).
 		 */
-		public boolean isWriteLocked() {
-			return writeLock;
+		public synchronized void dispatch() {
+			if (queue == null) { return; }
+			boolean granted = false;
+			while (!queue.isEmpty()) {
+				Waiter waiter = queue.peekFirst();
+				if (!grant(waiter.mode)) { break; }
+				queue.pollFirst();
+				waiter.granted = true;
+				granted = true;
+			}
+			if (granted) { notifyAll(); }
 		}
-		
+
 		/**
-		 * Settaggio del write lock.
-		 * 
-		 * @param writeLock true se si vuole settare il write lock, false se si vuole togliere il write lock
+		 * Attende in coda il lock fino alla deadline.
+		 *
+		 * @param mode modo del lock richiesto
+		 * @param deadline istante (System.nanoTime()) oltre il quale smettere di attendere
+		 *
+		 * @return ACQUIRED se il lock è stato ottenuto, BUSY se è scaduto il timeout, RETRY se il nodo è stato eliminato
 		 */
-		public void setWriteLock(boolean writeLock) {
-			this.writeLock = writeLock;
+		public synchronized int await(Mode mode, long deadline) {
+
+			if (!registerWaiter()) { return RETRY; }
+
+			Waiter waiter = new Waiter(mode);
+			if (queue == null) { queue = new ArrayDeque<Waiter>(); }
+			queue.addLast(waiter);
+			// il lock potrebbe essere stato rilasciato prima della registrazione
+			dispatch();
+
+			boolean interrupted = false;
+			while (!waiter.granted) {
+				long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+				if (remaining <= 0 || interrupted) { break; }
+				try { wait(remaining); }
+				catch (InterruptedException e) { interrupted = true; }
+			}
+			if (interrupted) { Thread.currentThread().interrupt(); }
+
+			if (waiter.granted) { return ACQUIRED; }
+
+			// timeout: tolgo la richiesta dalla coda, chi era dietro potrebbe ora essere servito
+			queue.remove(waiter);
+			state.addAndGet(-WAITER);
+			dispatch();
+			return BUSY;
+
+		}
+
+		public boolean hasWaiters() {
+			long s = state.get();
+			return s != DELETED && (s & WAITERS_MASK) != 0;
+		}
+
+		public long getState() {
+			return state.get();
 		}
-		
+
 	}
-	
-	public HashMap<String, CustomLock> lockMap;
-	
+
 	/**
-	 * Costruttore classe in cui creo una hashmap vuota.
+	 * Radice del trie.
+	 *
+	 * Ogni operazione prende IS o IX sulla radice: per non aggiornare tutti la stessa parola, IS e IX sono contati in
+	 * celle separate (ognuna nella propria cache line) scelte in base al thread, mentre la parola di stato contiene
+	 * solo S, X e le richieste in coda. Un' intenzione viene presa incrementando la propria cella e controllando dopo
+	 * la parola di stato; S e X vengono presi modificando la parola di stato e controllando dopo la somma delle celle.
+	 * Dato che entrambi scrivono prima di leggere, almeno uno dei due vede l'altro e rinuncia (annullando la propria
+	 * modifica), quindi un' intenzione e un lock in conflitto non vengono mai presi insieme.
+	 *
+	 * Acquisizione e rilascio possono avvenire su thread diversi (ad esempio chiamate RMI diverse), quindi una singola
+	 * cella può anche diventare negativa: conta solo la somma.
+	 *
+	 * @author gabrielesavoia
+	 *
 	 */
-	public LockManager() {
-		
-		lockMap = new HashMap<String, CustomLock>(); 
-		
-	}
-	
-	/**
-	 * Settaggio write lock in riferimento ad un certo path.
-	 * 
-	 * Se il path non esiste nella mappa, lo aggiungo.
-	 * 
-	 * @param path del file su cui fare write lock
-	 * 
-	 * @return true se è possibile settare il write lock, false se non è possibile (ad esempio se un altro thread aveva già
-	 * 			il write lock oppure se qualcuno era già in lettura)
-	 */
-	public synchronized boolean writeLock(String path) {
-		
-		CustomLock lock = lockMap.get(path);
-		
-		if (lock == null) {
-			lock = new CustomLock();
-			lockMap.put( path, lock );
-		}
-		
-		if ( (lock.isWriteLocked()) || (lock.isSomeoneReading()) ) { 
+	private static final class RootNode extends Node {
+
+		private static final int CELL_STRIDE = 16;   // 16 long = 128 byte: celle diverse in cache line diverse
+
+		private final AtomicLongArray intents;   // cella i: [i * CELL_STRIDE] = IS, [i * CELL_STRIDE + 1] = IX
+		private final int cellMask;
+
+		/**
+		 * @param cells numero di celle (potenza di 2)
+		 */
+		public RootNode(int cells) {
+			super(null, "");
+			intents = new AtomicLongArray(cells * CELL_STRIDE);
+			cellMask = cells - 1;
+		}
+
+		private static boolean isIntention(Mode mode) {
+			return mode == Mode.IS || mode == Mode.IX;
+		}
+
+		/**
+		 * @return posizione del contatore di mode nella cella del thread corrente
+		 */
+		private int slot(Mode mode) {
+			long id = Thread.currentThread().getId();
+			int cell = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & cellMask;
+			return cell * CELL_STRIDE + ((mode == Mode.IS) ? 0 : 1);
+		}
+
+		/**
+		 * @return true se qualcuno ha un' intenzione in conflitto con mode (S o X)
+		 */
+		private boolean intentsConflict(Mode mode) {
+			long is = 0;
+			long ix = 0;
+			for (int i=0; i<intents.length(); i+=CELL_STRIDE) {
+				is += intents.get(i);
+				ix += intents.get(i + 1);
+			}
+			return ix != 0 || (mode == Mode.X && is != 0);
+		}
+
+		@Override
+		public int tryAcquire(Mode mode) {
+
+			if (!isIntention(mode)) { return tryAcquireStrong(mode); }
+
+			long s = state.get();
+			if ((s & (WAITERS_MASK | mode.conflicts)) != 0) { return BUSY; }
+			int slot = slot(mode);
+			intents.getAndIncrement(slot);
+			s = state.get();
+			if ((s & (WAITERS_MASK | mode.conflicts)) != 0) {
+				intents.getAndDecrement(slot);
+				// un S o X in coda potrebbe aver visto questa intenzione
+				if (hasWaiters()) { dispatch(); }
+				return BUSY;
+			}
+			return ACQUIRED;
+
+		}
+
+		private int tryAcquireStrong(Mode mode) {
+
+			while (true) {
+				long s = state.get();
+				if ((s & WAITERS_MASK) != 0 || !mode.compatibleWith(s)) { return BUSY; }
+				if (state.compareAndSet(s, s + mode.unit)) { break; }
+			}
+			if (intentsConflict(mode)) {
+				state.addAndGet(-mode.unit);
+				if (hasWaiters()) { dispatch(); }
+				return BUSY;
+			}
+			return ACQUIRED;
+
+		}
+
+		@Override
+		public boolean release(Mode mode) {
+
+			if (!isIntention(mode)) { return super.release(mode); }
+			intents.getAndDecrement(slot(mode));
+			return true;
+
+		}
+
+		/**
+		 * Le intenzioni sulla radice non vengono controllate: sono implicate dai lock sui discendenti (che lo sono).
+		 */
+		@Override
+		public boolean holds(Mode mode) {
+			return isIntention(mode) || super.holds(mode);
+		}
+
+		@Override
+		protected boolean grant(Mode mode) {
+
+			if (isIntention(mode)) {
+				int slot = slot(mode);
+				intents.getAndIncrement(slot);
+				while (true) {
+					long s = state.get();
+					if ((s & mode.conflicts) != 0) {
+						intents.getAndDecrement(slot);
+						return false;
+					}
+					if (state.compareAndSet(s, s - WAITER)) { return true; }
+				}
+			}
+
+			while (true) {
+				long s = state.get();
+				if (!mode.compatibleWith(s)) { return false; }
+				if (state.compareAndSet(s, s - WAITER + mode.unit)) { break; }
+			}
+			if (intentsConflict(mode)) {
+				state.addAndGet(WAITER - mode.unit);
+				return false;
+			}
+			return true;
+
+		}
+
+		@Override
+		public boolean tryDelete() {
 			return false;
 		}
-		
-		lock.setWriteLock(true);
+
+	}
+
+	/**
+	 * Richiesta in attesa nella coda di un nodo. I campi sono protetti dal monitor del nodo.
+	 */
+	private static class Waiter {
+
+		private final Mode mode;
+		private boolean granted;
+
+		public Waiter(Mode mode) {
+			this.mode = mode;
+			this.granted = false;
+		}
+
+	}
+
+	/**
+	 * Lock da prendere per un'operazione, nell'ordine in cui vanno presi (un antenato viene sempre prima dei
+	 * discendenti).
+	 *
+	 * Per ogni passo sono indicati il nome del nodo, l'indice del passo che corrisponde al padre (-1 per la radice) e
+	 * il modo.
+	 */
+	private static class Plan {
+
+		private final String[] names;
+		private final int[] parents;
+		private final Mode[] modes;
+
+		public Plan(int size) {
+			names = new String[size];
+			parents = new int[size];
+			modes = new Mode[size];
+		}
+
+		public int size() {
+			return names.length;
+		}
+
+	}
+
+	private final RootNode root;
+
+	/**
+	 * Costruttore classe in cui creo il trie vuoto (solo la radice "/"), con una cella delle intenzioni sulla radice
+	 * ogni mezzo processore (al massimo 64).
+	 */
+	public LockManager() {
+
+		int cells = 1;
+		while (cells < Math.min(64, 2 * Runtime.getRuntime().availableProcessors())) { cells <<= 1; }
+		root = new RootNode(cells);
+
+	}
+
+	/**
+	 * Divide un path nei nomi che lo compongono (es. "/a/b.txt" -> ["a", "b.txt"], "/a/" -> ["a"], "/" -> []).
+	 */
+	private static String[] split(String path) {
+
+		String[] parts = path.split("/");
+		int count = 0;
+		for (String part: parts) {
+			if (!part.isEmpty()) { parts[count++] = part; }
+		}
+		return (count == parts.length) ? parts : Arrays.copyOf(parts, count);
+
+	}
+
+	/**
+	 * @return numero di nomi che compongono il path (es. "/a/b.txt" -> 2, "/" -> 0)
+	 */
+	private static int countNames(String path) {
+
+		int count = 0;
+		int start = 0;
+		while (true) {
+			int slash = path.indexOf('/', start);
+			int end = (slash < 0) ? path.length() : slash;
+			if (end > start) { count++; }
+			if (slash < 0) { return count; }
+			start = slash + 1;
+		}
+
+	}
+
+	/**
+	 * @return posizione del primo carattere del nome che inizia da from o dopo (saltando i '/')
+	 */
+	private static int nameStart(String path, int from) {
+
+		while (path.charAt(from) == '/') { from++; }
+		return from;
+
+	}
+
+	private static int nameEnd(String path, int start) {
+
+		int end = path.indexOf('/', start);
+		return (end < 0) ? path.length() : end;
+
+	}
+
+	/**
+	 * Calcola il piano unico per più path: per ogni nodo coinvolto si prende il modo più debole che copre tutte le
+	 * richieste, e i nodi sono ordinati per path (un antenato viene sempre prima dei discendenti).
+	 *
+	 * @param requests lock richiesti
+	 * @return piano dei lock da prendere
+	 */
+	private static Plan plan(List<LockRequest> requests) {
+
+		TreeMap<String, Mode> modes = new TreeMap<String, Mode>();
+		for (LockRequest request: requests) {
+			String[] names = split(request.getPath());
+			StringBuilder nodePath = new StringBuilder("/");
+			for (int i=0; i<=names.length; i++) {
+				if (i > 0) { nodePath.append(names[i-1]).append('/'); }
+				Mode mode;
+				if (i == names.length) { mode = request.isWrite() ? Mode.X : Mode.S; }
+				else { mode = request.isWrite() ? Mode.IX : Mode.IS; }
+				modes.merge(nodePath.toString(), mode, Mode::join);
+			}
+		}
+
+		Plan plan = new Plan(modes.size());
+		Map<String, Integer> indexes = new HashMap<String, Integer>();
+		int i = 0;
+		for (Map.Entry<String, Mode> entry: modes.entrySet()) {
+			String nodePath = entry.getKey();
+			if (nodePath.equals("/")) {
+				plan.names[i] = "";
+				plan.parents[i] = -1;
+			} else {
+				int slash = nodePath.lastIndexOf('/', nodePath.length() - 2);
+				plan.names[i] = nodePath.substring(slash + 1, nodePath.length() - 1);
+				plan.parents[i] = indexes.get(nodePath.substring(0, slash + 1));
+			}
+			plan.modes[i] = entry.getValue();
+			indexes.put(nodePath, i);
+			i++;
+		}
+
+		return plan;
+
+	}
+
+	/**
+	 * Prende il lock su un nodo, attendendo in coda fino alla deadline se wait è true.
+	 *
+	 * @param parent nodo padre, già acquisito (null per la radice)
+	 * @param name nome del nodo
+	 * @param mode modo del lock
+	 * @return nodo acquisito, null se il lock non è stato ottenuto
+	 */
+	private Node acquireNode(Node parent, String name, Mode mode, long deadline, boolean wait) {
+
+		while (true) {
+			Node node = (parent == null) ? root : parent.getOrCreateChild(name);
+			int res = node.tryAcquire(mode);
+			if (res == BUSY && wait) { res = node.await(mode, deadline); }
+			if (res == ACQUIRED) { return node; }
+			if (res == BUSY) {
+				deleteIfNotUsed(node);
+				return null;
+			}
+			// il nodo è stato eliminato nel frattempo: aiuto a toglierlo dal padre e riprovo
+			parent.removeChild(node);
+		}
+
+	}
+
+	/**
+	 * Rilascia il lock su un nodo e serve chi è in coda, oppure elimina il nodo se non è più usato.
+	 *
+	 * @return true se il lock era preso ed è stato rilasciato
+	 */
+	private boolean releaseNode(Node node, Mode mode) {
+
+		if (!node.release(mode)) { return false; }
+		if (node.hasWaiters()) { node.dispatch(); }
+		else { deleteIfNotUsed(node); }
 		return true;
-		
+
 	}
-	
+
 	/**
-	 * Tolgo il write lock in riferimento ad un certo path.
-	 * 
-	 * Una volta tolto il write lock, se non è utilizzata, viene tolta la riga del path dalla hashtable.
-	 * 
-	 * @param path del file di cui fare write unlock
-	 * 
-	 * @return true se è possibile togliere il write lock, false se non è possibile (ad esempio se nella hashmap non era
-	 * 			presente il path come chiave)
-	 */
-	public synchronized boolean writeUnlock(String path) {
-		
-		CustomLock lock = lockMap.get(path);
-		if (lock == null) {
-			return false;
+	 * Prende i lock per operare su un solo path: intenzione su tutti gli antenati (a partire dalla radice) e lock vero
+	 * sul path. Se uno non è ottenibile entro la deadline rilascia quelli già presi.
+	 *
+	 * @param path del file o directory
+	 * @param write true per scrittura, false per lettura
+	 * @param timeoutMillis tempo massimo di attesa complessivo (se &lt;= 0 non si attende in coda)
+	 * @return true se tutti i lock sono stati presi
+	 */
+	private boolean acquire(String path, boolean write, long timeoutMillis) {
+
+		long deadline = System.nanoTime() + Math.max(0, timeoutMillis) * 1_000_000L;
+		int depth = countNames(path);
+		Mode intention = write ? Mode.IX : Mode.IS;
+		Mode lock = write ? Mode.X : Mode.S;
+		Node[] nodes = new Node[depth + 1];
+
+		int start = 0;
+		for (int i=0; i<=depth; i++) {
+			String name = null;
+			if (i > 0) {
+				start = nameStart(path, start);
+				int end = nameEnd(path, start);
+				name = path.substring(start, end);
+				start = end;
+			}
+			nodes[i] = acquireNode((i == 0) ? null : nodes[i-1], name, (i == depth) ? lock : intention, deadline, 
+					timeoutMillis > 0);
+			if (nodes[i] == null) {
+				for (int j=i-1; j>=0; j--) { releaseNode(nodes[j], intention); }
+				return false;
+			}
 		}
-		
-		lock.setWriteLock(false);
-		deleteIfNotUsed(path, lock);
+
 		return true;
-		
+
 	}
-	
+
 	/**
-	 * Elimino dalla hashtable dei lock il path nel caso in cui nessuno lo stia usando (ovvero se non è write locked 
-	 * e se nessuno sta leggendo).
-	 * 
-	 * @param path del file da controllare
-	 * @param lock relativo al path
+	 * Rilascia i lock presi con acquire(path, write, ...), dal basso verso l'alto: i nodi vengono cercati nel trie (ci
+	 * sono sicuramente perchè sono in uso). Se anche solo un lock non risulta preso non rilascia nulla.
 	 */
-	private synchronized void deleteIfNotUsed(String path, CustomLock lock) {
-		
-		if ( !(lock.isWriteLocked()) && !(lock.isSomeoneReading()) ) { 
-			lockMap.remove(path);
+	private boolean release(String path, boolean write) {
+
+		int depth = countNames(path);
+		Mode intention = write ? Mode.IX : Mode.IS;
+		Mode lock = write ? Mode.X : Mode.S;
+		Node[] nodes = new Node[depth + 1];
+
+		nodes[0] = root;
+		int start = 0;
+		for (int i=1; i<=depth; i++) {
+			start = nameStart(path, start);
+			int end = nameEnd(path, start);
+			nodes[i] = nodes[i-1].getChild(path.substring(start, end));
+			start = end;
+			if (nodes[i] == null) { return false; }
+		}
+		for (int i=0; i<=depth; i++) {
+			if (!nodes[i].holds((i == depth) ? lock : intention)) { return false; }
+		}
+
+		boolean ok = true;
+		for (int i=depth; i>=0; i--) {
+			if (!releaseNode(nodes[i], (i == depth) ? lock : intention)) { ok = false; }
 		}
-		
+		return ok;
+
 	}
-	
+
 	/**
-	 * Aggiungo reader in riferimento ad un certo path.
+	 * Prende tutti i lock del piano, nell'ordine del piano. Se uno non è ottenibile entro la deadline rilascia quelli
+	 * già presi.
+	 *
+	 * Il padre di ogni nodo è già stato acquisito in un passo precedente, quindi è sicuramente presente nel trie.
+	 *
+	 * @param plan lock da prendere
+	 * @param timeoutMillis tempo massimo di attesa complessivo (se &lt;= 0 non si attende in coda)
+	 * @return true se tutti i lock sono stati presi
+	 */
+	private boolean acquire(Plan plan, long timeoutMillis) {
+
+		long deadline = System.nanoTime() + Math.max(0, timeoutMillis) * 1_000_000L;
+		Node[] nodes = new Node[plan.size()];
+
+		for (int i=0; i<plan.size(); i++) {
+			Node parent = (plan.parents[i] < 0) ? null : nodes[plan.parents[i]];
+			nodes[i] = acquireNode(parent, plan.names[i], plan.modes[i], deadline, timeoutMillis > 0);
+			if (nodes[i] == null) {
+				release(plan, nodes, i);
+				return false;
+			}
+		}
+
+		return true;
 
-	 * Se il path non esiste nella hashmap, lo aggiungo.
-	 * 
-	 * @param path del file a cui aggiungere il reader
-	 * 
-	 * @return true se è possibile aggiungere il reader, false se non è possibile (ad esempio se qualcuno ha messo ed è 
-	 * 			ancora attivo il write lock)
+	}
+
+	/**
+	 * Rilascia i primi count lock del piano in ordine inverso (dal basso verso l'alto).
+	 *
+	 * @param plan lock da rilasciare
+	 * @param nodes nodi corrispondenti ai passi del piano
+	 * @param count numero di passi da rilasciare
+	 * @return true se tutti i lock erano presi e sono stati rilasciati
 	 */
-	public synchronized boolean addReader(String path) {
-		
-		CustomLock lock = lockMap.get(path);
-		
-		if (lock == null) {
-			lock = new CustomLock();
-			lockMap.put( path, lock );
+	private boolean release(Plan plan, Node[] nodes, int count) {
+
+		boolean ok = true;
+		for (int i=count-1; i>=0; i--) {
+			if (!releaseNode(nodes[i], plan.modes[i])) { ok = false; }
 		}
-		
-		if (lock.isWriteLocked()) { 
-			return false;
+		return ok;
+
+	}
+
+	/**
+	 * Rilascia i lock di un piano già acquisito: i nodi vengono cercati nel trie (ci sono sicuramente perchè sono in
+	 * uso). Se anche solo un lock del piano non risulta preso non rilascia nulla.
+	 */
+	private boolean release(Plan plan) {
+
+		Node[] nodes = new Node[plan.size()];
+		for (int i=0; i<plan.size(); i++) {
+			nodes[i] = (plan.parents[i] < 0) ? root : nodes[plan.parents[i]].getChild(plan.names[i]);
+			if (nodes[i] == null || !nodes[i].holds(plan.modes[i])) { return false; }
 		}
-		
-		lock.addReader();
-		return true;
-		
+		return release(plan, nodes, plan.size());
+
 	}
-	
+
 	/**
-	 * Elimino reader in riferimento ad un certo path.
-	 * 
+	 * Elimino dal trie il nodo nel caso in cui nessuno lo stia usando (nessun lock e nessuno in coda) e il padre abbia
+	 * più di IDLE_CHILDREN_MAX figli: fino a quel limite i nodi inutilizzati restano nel trie, così i path usati spesso
+	 * non creano ed eliminano un nodo (e la sua voce nella mappa del padre) a ogni operazione.
+	 *
+	 * La rimozione avviene solo dopo aver marcato il nodo come eliminato, così un thread concorrente che ne possiede
+	 * ancora il riferimento non può più acquisirlo. La radice non viene mai eliminata.
+	 *
+	 * @param node da controllare
+	 */
+	private void deleteIfNotUsed(Node node) {
+
+		if (node.parent != null && node.parent.childCount() > IDLE_CHILDREN_MAX && node.tryDelete()) {
+			node.parent.removeChild(node);
+		}
+
+	}
+
+	/**
+	 * Settaggio write lock in riferimento ad un certo path (IX sugli antenati, X sul path).
+	 *
+	 * @param path del file (o directory) su cui fare write lock
+	 *
+	 * @return true se è possibile settare il write lock, false se non è possibile (ad esempio se un altro thread aveva già
+	 * 			il write lock, se qualcuno era già in lettura, se un antenato è bloccato oppure se qualcuno è in coda)
+	 */
+	public boolean writeLock(String path) {
+
+		return acquire(path, true, 0);
+
+	}
+
+	/**
+	 * Settaggio write lock in riferimento ad un certo path, attendendo al massimo timeoutMillis.
+	 *
+	 * Se il lock non è subito disponibile la richiesta viene accodata (FIFO) e servita quando il path viene rilasciato.
+	 *
+	 * @param path del file (o directory) su cui fare write lock
+	 * @param timeoutMillis tempo massimo di attesa (se &lt;= 0 equivale a writeLock(path))
+	 *
+	 * @return true se il write lock è stato settato, false se è scaduto il timeout
+	 */
+	public boolean writeLock(String path, long timeoutMillis) {
+
+		return acquire(path, true, timeoutMillis);
+
+	}
+
+	/**
+	 * Tolgo il write lock in riferimento ad un certo path (e le intenzioni sugli antenati).
+	 *
+	 * Una volta tolto il write lock, i nodi non più utilizzati vengono tolti dal trie.
+	 *
+	 * @param path del file di cui fare write unlock
+	 *
+	 * @return true se è possibile togliere il write lock, false se non è possibile (ad esempio se il path non era
+	 * 			write locked)
+	 */
+	public boolean writeUnlock(String path) {
+
+		return release(path, true);
+
+	}
+
+	/**
+	 * Aggiungo reader in riferimento ad un certo path (IS sugli antenati, S sul path).
+	 *
+	 * @param path del file (o directory) a cui aggiungere il reader
+	 *
+	 * @return true se è possibile aggiungere il reader, false se non è possibile (ad esempio se qualcuno ha messo ed è
+	 * 			ancora attivo il write lock sul path o su un antenato)
+	 */
+	public boolean addReader(String path) {
+
+		return acquire(path, false, 0);
+
+	}
+
+	/**
+	 * Aggiungo reader in riferimento ad un certo path, attendendo al massimo timeoutMillis.
+	 *
+	 * Se il lock non è subito disponibile (c'è un write lock oppure qualcuno è già in coda) la richiesta viene accodata
+	 * (FIFO) e servita quando il path viene rilasciato.
+	 *
+	 * @param path del file (o directory) a cui aggiungere il reader
+	 * @param timeoutMillis tempo massimo di attesa (se &lt;= 0 equivale a addReader(path))
+	 *
+	 * @return true se il reader è stato aggiunto, false se è scaduto il timeout
+	 */
+	public boolean addReader(String path, long timeoutMillis) {
+
+		return acquire(path, false, timeoutMillis);
+
+	}
+
+	/**
+	 * Elimino reader in riferimento ad un certo path (e le intenzioni sugli antenati).
+	 *
 	 * Read unlock di un file identificato dal proprio path.
-	 * 
-	 * Una volta tolto il reader, se non è utilizzata, viene tolta la riga del path dalla hashtable.
-	 * 
+	 *
+	 * Una volta tolto il reader, i nodi non più utilizzati vengono tolti dal trie.
+	 *
 	 * @param path del file di cui fare l'eliminazione del reader
-	 * 
-	 * @return true se è possibile togliere il reader, false se non è possibile (ad esempio se nella hashmap non era
-	 * 			presente il path come chiave)
-	 */
-	public synchronized boolean delReader(String path) {
-		
-		CustomLock lock = lockMap.get(path);
-		if (lock == null) {
-			return false;
-		}
-		
-		lock.delReader();
-		deleteIfNotUsed(path, lock);
-		return true;
-		
+	 *
+	 * @return true se è possibile togliere il reader, false se non è possibile (ad esempio se il path non aveva reader)
+	 */
+	public boolean delReader(String path) {
+
+		return release(path, false);
+
 	}
-	
+
 	/**
-	 * @return Hashmap in stringa.
+	 * Prende in modo atomico (tutto o niente) i lock di più path, attendendo al massimo timeoutMillis.
+	 *
+	 * Se anche un solo lock non è ottenibile entro il timeout, quelli già presi vengono rilasciati.
+	 *
+	 * @param requests lock richiesti ('w' o 'r' per ogni path)
+	 * @param timeoutMillis tempo massimo di attesa complessivo (se &lt;= 0 non si attende in coda)
+	 *
+	 * @return true se tutti i lock sono stati presi, false altrimenti
+	 */
+	public boolean lock(List<LockRequest> requests, long timeoutMillis) {
+
+		if (requests.size() == 1) { return acquire(requests.get(0).getPath(), requests.get(0).isWrite(), timeoutMillis); }
+		return acquire(plan(requests), timeoutMillis);
+
+	}
+
+	/**
+	 * Rilascia i lock presi con lock(requests). La lista deve contenere le stesse richieste usate per il lock.
+	 *
+	 * @param requests lock da rilasciare
+	 *
+	 * @return true se i lock sono stati rilasciati, false se non risultavano presi
+	 */
+	public boolean unlock(List<LockRequest> requests) {
+
+		if (requests.size() == 1) { return release(requests.get(0).getPath(), requests.get(0).isWrite()); }
+		return release(plan(requests));
+
+	}
+
+	/**
+	 * @return Trie dei lock in stringa.
 	 */
 	@Override
 	public String toString() {
-		
-		String res = "\n\tHASHMAP CONCURRENCY:\n";
-		
-		for (String path: lockMap.keySet()) {
-			res += "\n"+path+"\t\t writeLock: "+lockMap.get(path).writeLock+"   -   numReaders: "+lockMap.get(path).readers;
-		}
-		
-		return res;
-		
+
+		StringBuilder res = new StringBuilder("\n\tTRIE CONCURRENCY:\n");
+		append(res, root, "/");
+		return res.toString();
+
+	}
+
+	private static void append(StringBuilder res, Node node, String path) {
+
+		long s = node.getState();
+		if (s != DELETED && s != 0 && node.parent != null) {
+			res.append("\n"+path+"\t\t IS: "+(s & IS_MASK)+"  IX: "+((s & IX_MASK) >>> 15)+
+					"  S: "+((s & S_MASK) >>> 30)+"  X: "+((s & X_LOCK) != 0)+"   -   inCoda: "+((s & WAITERS_MASK) >>> 46));
+		}
+		ConcurrentHashMap<String, Node> children = node.children;
+		if (children == null) { return; }
+		for (Node child: children.values()) { append(res, child, path+child.name+"/"); }
+
 	}
 
 }
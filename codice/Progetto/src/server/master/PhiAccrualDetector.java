@@ -0,0 +1,88 @@
+package server.master;
+
+/**
+ * Failure detector phi accrual (Hayashibara et al.) per un singolo ServerReplica.
+ *
+ * Tiene una finestra degli intervalli tra heartbeat consecutivi andati a buon fine e, dato il tempo trascorso
+ * dall'ultimo heartbeat, calcola phi = -log10(probabilità che il prossimo heartbeat arrivi ancora più tardi),
+ * approssimando la distribuzione degli intervalli con una normale. phi = 1 significa circa 10% di probabilità di
+ * sbagliare a considerare il ServerReplica guasto, phi = 2 circa 1%, e così via.
+ *
+ * I metodi sono synchronized: vengono chiamati solo dai thread del ReplicaHealthChecker, una volta per intervallo.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class PhiAccrualDetector {
+
+	private final long[] intervals;
+	private final long minStdDevMillis;
+	private int count = 0;
+	private int next = 0;
+	private long sum = 0;
+	private long sumSquares = 0;
+	private long lastHeartbeatMillis;
+
+	/**
+	 * @param windowSize numero di intervalli considerati
+	 * @param expectedIntervalMillis intervallo atteso tra heartbeat (usato finchè non ci sono campioni)
+	 */
+	public PhiAccrualDetector(int windowSize, long expectedIntervalMillis) {
+
+		this.intervals = new long[windowSize];
+		this.minStdDevMillis = Math.max(1, expectedIntervalMillis / 4);
+		this.lastHeartbeatMillis = System.currentTimeMillis();
+
+		// due campioni iniziali attorno all'intervallo atteso, così phi è definito fin da subito
+		add(expectedIntervalMillis - expectedIntervalMillis / 4);
+		add(expectedIntervalMillis + expectedIntervalMillis / 4);
+
+	}
+
+	private void add(long interval) {
+
+		if (count == intervals.length) {
+			sum -= intervals[next];
+			sumSquares -= intervals[next] * intervals[next];
+		} else {
+			count++;
+		}
+		intervals[next] = interval;
+		sum += interval;
+		sumSquares += interval * interval;
+		next = (next + 1) % intervals.length;
+
+	}
+
+	/**
+	 * Registra l'arrivo di un heartbeat.
+	 *
+	 * @param nowMillis istante di arrivo
+	 */
+	public synchronized void heartbeat(long nowMillis) {
+
+		add(nowMillis - lastHeartbeatMillis);
+		lastHeartbeatMillis = nowMillis;
+
+	}
+
+	/**
+	 * @param nowMillis istante in cui valutare phi
+	 * @return livello di sospetto: più è alto, più è probabile che il ServerReplica sia guasto
+	 */
+	public synchronized double phi(long nowMillis) {
+
+		double mean = (double) sum / count;
+		double variance = (double) sumSquares / count - mean * mean;
+		double stdDev = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDevMillis);
+
+		double elapsed = nowMillis - lastHeartbeatMillis;
+		double y = (elapsed - mean) / stdDev;
+		// approssimazione logistica della CDF della normale
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean) { return -Math.log10(e / (1.0 + e)); }
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+
+	}
+
+}
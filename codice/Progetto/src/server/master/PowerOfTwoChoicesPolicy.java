@@ -0,0 +1,34 @@
+package server.master;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Power of two choices: sceglie a caso due ServerReplica distinti tra i candidati e prende quello con meno operazioni
+ * in corso.
+ *
+ * Rispetto alla scelta del minimo assoluto evita che tutti i client si riversino contemporaneamente sullo stesso
+ * ServerReplica (le statistiche sono sempre un po' in ritardo), ma allontana comunque il carico da un ServerReplica
+ * lento, che accumula operazioni in corso.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class PowerOfTwoChoicesPolicy implements ReplicaSelectionPolicy {
+
+	@Override
+	public int select(int[] candidates, int numCandidates, ReplicaStats[] stats) {
+
+		if (numCandidates == 1) { return candidates[0]; }
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(numCandidates);
+		int second = random.nextInt(numCandidates - 1);
+		if (second >= first) { second++; }
+
+		int a = candidates[first];
+		int b = candidates[second];
+		return (stats[b].getOutstanding() < stats[a].getOutstanding()) ? b : a;
+
+	}
+
+}
@@ -0,0 +1,20 @@
+package server.master;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sceglie un ServerReplica a caso tra i candidati, senza considerare il carico.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class RandomSelectionPolicy implements ReplicaSelectionPolicy {
+
+	@Override
+	public int select(int[] candidates, int numCandidates, ReplicaStats[] stats) {
+
+		return candidates[ThreadLocalRandom.current().nextInt(numCandidates)];
+
+	}
+
+}
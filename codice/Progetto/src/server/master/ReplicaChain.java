@@ -0,0 +1,159 @@
+package server.master;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import common.Configs;
+import server.replica.ServerReplicaInterface;
+
+/**
+ * Ordine della catena dei ServerReplica nella replicazione a catena (Configs.REPLICATION_MODE = "chain").
+ *
+ * La catena parte dall'ordine della lista dei ServerReplica (id crescente). Le scritture vengono indirizzate alla testa
+ * e le letture alla coda, che vede solo le scritture già applicate da tutta la catena.
+ *
+ * Riparazione della catena, in base allo stato del ReplicaHealthChecker:
+ * 		- un ServerReplica DOWN viene tolto (se era la testa o la coda, il successivo / precedente ne prende il posto);
+ * 		- un ServerReplica che torna UP (ad esempio dopo il bootstrap) viene aggiunto in coda, così riceve dalla vecchia
+ * 		  coda tutte le operazioni che questa ha ancora nel log. Finchè non le ha confermate è un membro che non serve
+ * 		  letture: la coda restituita da getTail resta quella vecchia. Ogni Configs.HEARTBEAT_INTERVAL_MILLIS viene
+ * 		  chiesta al predecessore la posizione del log (getChainPosition) e, quando il nuovo membro ha confermato tutto 
+ * 		  quello che il predecessore aveva nel log al momento del suo ingresso, diventa la coda;
+ * 		- SUSPECT non cambia la catena.
+ *
+ * Ogni configurazione ha un numero crescente (epoch) e viene inviata a tutti i ServerReplica con setChain da un thread
+ * separato, così il cambiamento di stato non attende le chiamate remote.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class ReplicaChain {
+
+	private final ServerReplicaInterface[] replicas;
+	private final List<Integer> chain = new ArrayList<Integer>();
+	private int serving = 0;   // i primi serving membri servono le letture, gli altri si stanno allineando
+	private long epoch = 0;
+
+	// allineamento del primo membro che non serve ancora: predecessore e posizione del suo log da raggiungere
+	private int catchUpFrom = -1;
+	private long catchUpSeq = -1;
+
+	private final ScheduledExecutorService publisher = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "replica-chain");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Costruttore: la catena contiene tutti i ServerReplica in ordine di id e viene inviata subito.
+	 *
+	 * @param replicas riferimenti remoti ai ServerReplica (lo stesso array aggiornato dal ReplicaHealthChecker)
+	 */
+	public ReplicaChain(ServerReplicaInterface[] replicas) {
+
+		this.replicas = replicas;
+		for (int i=0; i<replicas.length; i++) { chain.add(i); }
+		serving = chain.size();
+		publish();
+
+		publisher.scheduleWithFixedDelay(this::checkCatchUp, Configs.HEARTBEAT_INTERVAL_MILLIS, 
+				Configs.HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Aggiornamento della catena quando cambia lo stato di un ServerReplica (chiamato dal ReplicaHealthChecker).
+	 */
+	public synchronized void healthChanged(int id, ReplicaHealth health) {
+
+		int index = chain.indexOf(id);
+		if (health == ReplicaHealth.DOWN && index >= 0) {
+			chain.remove(index);
+			if (index < serving) { serving--; }
+		}
+		else if (health == ReplicaHealth.UP && index < 0) { chain.add(id); }
+		else { return; }
+		// nessun membro allineato (catena vuota o tutti gli altri DOWN): non c'è nessuno da cui allinearsi
+		if (serving == 0 && !chain.isEmpty()) { serving = 1; }
+
+		System.out.println("Catena dei ServerReplica: "+chain+((serving < chain.size()) ? " (in allineamento: "+
+				chain.subList(serving, chain.size())+")" : ""));
+		publish();
+
+	}
+
+	/**
+	 * Controllo dell'allineamento del primo membro che non serve ancora letture: diventa la coda quando ha confermato
+	 * tutte le operazioni che il predecessore aveva nel log quando lo ha ricevuto come successore (le successive 
+	 * vengono confermate alla testa solo dopo la sua conferma, quindi le letture da lui le vedono).
+	 */
+	private void checkCatchUp() {
+
+		int joiner;
+		int predecessor;
+		synchronized (this) {
+			if (serving >= chain.size()) { return; }
+			joiner = chain.get(serving);
+			predecessor = chain.get(serving - 1);
+			if (predecessor != catchUpFrom) {
+				// nuovo membro o predecessore cambiato: la posizione da raggiungere va letta di nuovo
+				catchUpFrom = predecessor;
+				catchUpSeq = -1;
+			}
+		}
+
+		long[] position;
+		try { position = replicas[predecessor].getChainPosition(joiner); }
+		catch (RemoteException e) { return; }   // il predecessore verrà tolto dal ReplicaHealthChecker
+		if (position[1] < 0) { return; }        // il predecessore non ha ancora ricevuto la nuova catena
+
+		synchronized (this) {
+			if (serving >= chain.size() || chain.get(serving) != joiner || catchUpFrom != predecessor) { return; }
+			if (catchUpSeq < 0) { catchUpSeq = position[0]; }
+			if (position[1] < catchUpSeq) { return; }
+
+			serving++;
+			catchUpFrom = -1;
+			System.out.println("ServerReplica "+joiner+" allineato: nuova coda della catena "+chain.subList(0, serving));
+		}
+
+	}
+
+	/**
+	 * @return id della testa della catena (a cui indirizzare le scritture), -1 se la catena è vuota
+	 */
+	public synchronized int getHead() {
+		return chain.isEmpty() ? -1 : chain.get(0);
+	}
+
+	/**
+	 * @return id della coda della catena tra i membri che servono letture (a cui indirizzare le letture), -1 se non ce 
+	 * 			ne sono
+	 */
+	public synchronized int getTail() {
+		return (serving == 0) ? -1 : chain.get(serving - 1);
+	}
+
+	/**
+	 * Invio della configurazione attuale a tutti i ServerReplica (va chiamato tenendo il monitor). Anche quelli fuori
+	 * dalla catena la ricevono, così sanno di non avere un successore.
+	 */
+	private void publish() {
+
+		long configEpoch = ++epoch;
+		int[] config = chain.stream().mapToInt(Integer::intValue).toArray();
+
+		publisher.execute(() -> {
+			for (int i=0; i<replicas.length; i++) {
+				try { replicas[i].setChain(configEpoch, config); }
+				catch (RemoteException e) { }   // non raggiungibile: riceverà la configurazione quando tornerà UP
+			}
+		});
+
+	}
+
+}
@@ -0,0 +1,17 @@
+package server.master;
+
+/**
+ * Stato di salute di un ServerReplica secondo il ServerMaster.
+ *
+ * 		- UP: risponde regolarmente agli heartbeat;
+ * 		- SUSPECT: gli heartbeat sono in ritardo rispetto al solito (viene usato solo se non ci sono ServerReplica UP);
+ * 		- DOWN: l'ultimo heartbeat è fallito oppure il ritardo è tale da considerarlo non raggiungibile.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public enum ReplicaHealth {
+	UP,
+	SUSPECT,
+	DOWN
+}
@@ -0,0 +1,194 @@
+package server.master;
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import common.Configs;
+import server.replica.ServerReplicaInterface;
+
+/**
+ * Controllo in background della raggiungibilità dei ServerReplica.
+ *
+ * Ogni Configs.HEARTBEAT_INTERVAL_MILLIS viene chiamato isAlive() su ogni ServerReplica (ognuno su un proprio thread,
+ * così un ServerReplica lento non ritarda gli altri) e lo stato risultante viene tenuto in cache: la scelta del
+ * ServerReplica in startOperation legge solo la cache, senza chiamate remote.
+ *
+ * 		- se isAlive() fallisce con RemoteException, il ServerReplica è subito DOWN; viene rifatto il lookup e, se il 
+ * 		  ServerReplica è stato riavviato, gli vengono passati i riferimenti agli altri (così avvia il bootstrap);
+ * 		- se isAlive() risponde true il ServerReplica torna UP, se risponde false (bootstrap non ancora terminato) è DOWN;
+ * 		- se gli heartbeat tardano (ad esempio il ServerReplica è bloccato e la chiamata non ritorna), un thread separato
+ * 		  calcola phi (PhiAccrualDetector) e lo marca SUSPECT o DOWN in base alle soglie configurate.
+ *
+ * Ogni cambiamento di stato viene notificato al listener (ad esempio ReplicaChain per riparare la catena).
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class ReplicaHealthChecker {
+
+	private final ServerReplicaInterface[] replicas;
+	private final PhiAccrualDetector[] detectors;
+	private final ReplicaHealth[] health;
+
+	private final double phiSuspect;
+	private final double phiDown;
+	private final BiConsumer<Integer, ReplicaHealth> listener;
+
+	private volatile int[] upIds;
+	private volatile int[] suspectIds;
+
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * Costruttore: tutti i ServerReplica partono UP (il ServerMaster li ha appena contattati).
+	 *
+	 * @param replicas riferimenti remoti ai ServerReplica
+	 * @param intervalMillis intervallo tra due heartbeat
+	 * @param windowSize numero di intervalli considerati dal failure detector
+	 * @param phiSuspect soglia di phi oltre la quale un ServerReplica è SUSPECT
+	 * @param phiDown soglia di phi oltre la quale un ServerReplica è DOWN
+	 * @param listener chiamato (tenendo il monitor del checker) ad ogni cambiamento di stato con id e nuovo stato
+	 */
+	public ReplicaHealthChecker(ServerReplicaInterface[] replicas, long intervalMillis, int windowSize, double phiSuspect, 
+			double phiDown, BiConsumer<Integer, ReplicaHealth> listener) {
+
+		this.replicas = replicas;
+		this.phiSuspect = phiSuspect;
+		this.phiDown = phiDown;
+		this.listener = listener;
+
+		detectors = new PhiAccrualDetector[replicas.length];
+		health = new ReplicaHealth[replicas.length];
+		for (int i=0; i<replicas.length; i++) {
+			detectors[i] = new PhiAccrualDetector(windowSize, intervalMillis);
+			health[i] = ReplicaHealth.UP;
+		}
+		refreshSnapshots();
+
+		scheduler = Executors.newScheduledThreadPool(replicas.length + 1, r -> {
+			Thread t = new Thread(r, "replica-health");
+			t.setDaemon(true);
+			return t;
+		});
+		for (int i=0; i<replicas.length; i++) {
+			final int id = i;
+			scheduler.scheduleWithFixedDelay(() -> heartbeat(id), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+		scheduler.scheduleWithFixedDelay(this::evaluate, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Heartbeat verso un ServerReplica.
+	 */
+	private void heartbeat(int id) {
+
+		boolean alive;
+		try { alive = replicas[id].isAlive(); }
+		catch (RemoteException e) { alive = reconnect(id); }
+
+		if (alive) {
+			detectors[id].heartbeat(System.currentTimeMillis());
+			setHealth(id, ReplicaHealth.UP);
+		} else {
+			setHealth(id, ReplicaHealth.DOWN);
+		}
+
+	}
+
+	/**
+	 * Nuovo lookup di un ServerReplica non raggiungibile: se nel registry c'è un riferimento diverso da quello attuale 
+	 * (ServerReplica riavviato) viene chiamato lookupOtherReplicas e il riferimento viene aggiornato. Se il riferimento 
+	 * è lo stesso (ServerReplica lento o rete instabile) non cambia niente, così un ServerReplica che alterna heartbeat
+	 * riusciti e falliti non rifà ad ogni periodo il lookup degli altri.
+	 *
+	 * @return risposta di isAlive() dal nuovo riferimento, false se il ServerReplica non è ancora raggiungibile
+	 */
+	private boolean reconnect(int id) {
+
+		try {
+			ServerReplicaInterface replica = (ServerReplicaInterface) Naming.lookup(Configs.URL+"ReplicaServer"+id);
+			if (!replica.equals(replicas[id])) {
+				replica.lookupOtherReplicas(replicas.length);
+				replicas[id] = replica;
+			}
+			return replica.isAlive();
+		}
+		catch (Exception e) { return false; }
+
+	}
+
+	/**
+	 * Valuta phi per i ServerReplica che non hanno ancora fallito un heartbeat.
+	 */
+	private void evaluate() {
+
+		long now = System.currentTimeMillis();
+		for (int id=0; id<replicas.length; id++) {
+			if (getHealth(id) == ReplicaHealth.DOWN) { continue; }
+			double phi = detectors[id].phi(now);
+			if (phi >= phiDown) { setHealth(id, ReplicaHealth.DOWN); }
+			else if (phi >= phiSuspect) { setHealth(id, ReplicaHealth.SUSPECT); }
+		}
+
+	}
+
+	private synchronized void setHealth(int id, ReplicaHealth newHealth) {
+
+		if (health[id] == newHealth) { return; }
+		System.out.println("ServerReplica "+id+": "+health[id]+" -> "+newHealth);
+		health[id] = newHealth;
+		refreshSnapshots();
+		listener.accept(id, newHealth);
+
+	}
+
+	/**
+	 * Ricalcola gli id UP e SUSPECT letti dalla scelta del ServerReplica (solo quando cambia uno stato).
+	 */
+	private synchronized void refreshSnapshots() {
+
+		int numUp = 0, numSuspect = 0;
+		for (ReplicaHealth h: health) {
+			if (h == ReplicaHealth.UP) { numUp++; }
+			else if (h == ReplicaHealth.SUSPECT) { numSuspect++; }
+		}
+		int[] up = new int[numUp];
+		int[] suspect = new int[numSuspect];
+		numUp = 0;
+		numSuspect = 0;
+		for (int id=0; id<health.length; id++) {
+			if (health[id] == ReplicaHealth.UP) { up[numUp++] = id; }
+			else if (health[id] == ReplicaHealth.SUSPECT) { suspect[numSuspect++] = id; }
+		}
+		upIds = up;
+		suspectIds = suspect;
+
+	}
+
+	/**
+	 * @return stato del ServerReplica in cache
+	 */
+	public synchronized ReplicaHealth getHealth(int id) {
+		return health[id];
+	}
+
+	/**
+	 * @return id dei ServerReplica UP (l'array non deve essere modificato)
+	 */
+	public int[] getUpIds() {
+		return upIds;
+	}
+
+	/**
+	 * @return id dei ServerReplica SUSPECT (l'array non deve essere modificato)
+	 */
+	public int[] getSuspectIds() {
+		return suspectIds;
+	}
+
+}
@@ -0,0 +1,43 @@
+package server.master;
+
+/**
+ * Politica di scelta del ServerReplica a cui indirizzare un client.
+ *
+ * Le politiche disponibili sono:
+ * 		- "random": ServerReplica scelto a caso;
+ * 		- "p2c": power of two choices, tra due ServerReplica scelti a caso prende quello con meno operazioni in corso;
+ * 		- "ewma": ServerReplica con la minore latenza media (EWMA) pesata per le operazioni in corso.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public interface ReplicaSelectionPolicy {
+
+	/**
+	 * Sceglie un ServerReplica tra i candidati.
+	 *
+	 * @param candidates id dei ServerReplica utilizzabili
+	 * @param numCandidates numero di elementi validi in candidates (almeno 1)
+	 * @param stats statistiche di tutti i ServerReplica, indicizzate per id
+	 *
+	 * @return id del ServerReplica scelto
+	 */
+	int select(int[] candidates, int numCandidates, ReplicaStats[] stats);
+
+	/**
+	 * Crea la politica a partire dal nome.
+	 *
+	 * @param name "random", "p2c" oppure "ewma"
+	 * @return politica corrispondente (p2c se il nome non è riconosciuto)
+	 */
+	static ReplicaSelectionPolicy fromName(String name) {
+
+		switch (name) {
+			case "random": return new RandomSelectionPolicy();
+			case "ewma": return new EwmaSelectionPolicy();
+			default: return new PowerOfTwoChoicesPolicy();
+		}
+
+	}
+
+}
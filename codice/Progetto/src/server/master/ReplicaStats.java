@@ -0,0 +1,82 @@
+package server.master;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistiche di carico di un ServerReplica, tenute dal ServerMaster.
+ *
+ * Il ServerMaster sa a quale ServerReplica ha indirizzato ogni operazione (startOperation) e quando il client la
+ * conclude (endOperation): da questo ricava il numero di operazioni in corso su ogni ServerReplica e una media mobile
+ * esponenziale (EWMA) della durata delle operazioni, usate dalle politiche di scelta del ServerReplica.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class ReplicaStats {
+
+	private final AtomicInteger outstanding = new AtomicInteger(0);
+	private final AtomicLong ewmaLatencyBits = new AtomicLong(Double.doubleToLongBits(0.0));
+	private final double alpha;
+
+	/**
+	 * @param alpha peso del nuovo campione nella media mobile (0 &lt; alpha &lt;= 1)
+	 */
+	public ReplicaStats(double alpha) {
+		this.alpha = alpha;
+	}
+
+	/**
+	 * Un'operazione è stata indirizzata al ServerReplica.
+	 */
+	public void started() {
+		outstanding.incrementAndGet();
+	}
+
+	/**
+	 * Un'operazione indirizzata al ServerReplica è terminata.
+	 *
+	 * @param latencyNanos durata dell'operazione (da startOperation a endOperation)
+	 */
+	public void completed(long latencyNanos) {
+
+		outstanding.decrementAndGet();
+
+		double sample = latencyNanos / 1e6;
+		while (true) {
+			long bits = ewmaLatencyBits.get();
+			double old = Double.longBitsToDouble(bits);
+			double updated = (old == 0.0) ? sample : old + alpha * (sample - old);
+			if (ewmaLatencyBits.compareAndSet(bits, Double.doubleToLongBits(updated))) { return; }
+		}
+
+	}
+
+	/**
+	 * Un'operazione indirizzata al ServerReplica non terminerà mai (ad esempio perchè il lease del client è scaduto):
+	 * non la considero più in corso ma non la uso come campione di latenza.
+	 */
+	public void abandoned() {
+		outstanding.decrementAndGet();
+	}
+
+	/**
+	 * @return numero di operazioni in corso sul ServerReplica
+	 */
+	public int getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * @return media mobile della durata delle operazioni in millisecondi (0 se non ci sono ancora campioni)
+	 */
+	public double getEwmaLatencyMillis() {
+		return Double.longBitsToDouble(ewmaLatencyBits.get());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("inCorso: %d   latenza EWMA: %.2f ms", getOutstanding(), getEwmaLatencyMillis());
+	}
+
+}
@@ -4,10 +4,14 @@ import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Arrays;
-import java.util.Random;
+import java.util.Collections;
+import java.util.List;
 
+import common.CacheCallback;
 import common.Configs;
+import common.ConsistentHashRing;
 import common.DfsException;
+import common.LockRequest;
 import server.replica.ServerReplicaInterface;
 
 /**
@@ -16,15 +20,28 @@ import server.replica.ServerReplicaInterface;
  * Si occupa di ricevere le richieste dei client, controllare quali ServerReplica sono disponibili così da sceglierne uno 
  * per poi comunicare il relativo ID al client come risposta in modo che il client possa comunicare direttamente con
  * lui.
- * Quale ServerReplica viene scelto? Per questo progetto, il ServerReplica è scelto random tra quelli disponibili / raggiungibili
- * ma in relatà possono esserci diversi criteri come ad esempio di sceglie la replica più 'vicino' in senso geografico al
- * client che effettua la richiesta.
+ * Quale ServerReplica viene scelto? Dipende dalla politica configurata (ReplicaSelectionPolicy): il ServerMaster tiene 
+ * traccia delle operazioni in corso su ogni ServerReplica e della loro durata (da startOperation a endOperation) e può 
+ * quindi preferire i ServerReplica meno carichi o più veloci.
  * 
  * Si occupa inoltre di gestire la concorrenza sulle risorse del filesystem tramite la classe LockManager.
  * Ogni volta che avviene lo start di un' operazione, viene settato il lock in scrittura (se l'operazione è di scrittura) 
  * oppure viene aggiunto un reader (nel caso in cui si acceda in lettura). 
  * In maniera equivalente viene tolto il lock in scrittura (o tolto un reader se accedo in lettura) nel momento in cui 
  * avviene l'end dell'operazione.
+ * I lock hanno un lease (gestito da LeaseManager) così che i lock di un client andato in crash vengano rilasciati.
+ * 
+ * Le operazioni brevi (lettura, scrittura di file piccoli e listaggio) possono anche essere richieste direttamente al 
+ * ServerMaster, che le inoltra al ServerReplica tenendo il lock per la sola durata dell' operazione: in questo caso il 
+ * client fa un solo round trip invece di tre.
+ * 
+ * Con la replicazione a catena (Configs.REPLICATION_MODE = "chain") il ServerReplica non è scelto dalla politica: le 
+ * operazioni di scrittura vanno alla testa della catena e quelle di sola lettura alla coda (ReplicaChain).
+ * Con il consistent hashing (Configs.PLACEMENT_REPLICATION_FACTOR > 0) la politica sceglie solo tra i ServerReplica che
+ * tengono i file dell' operazione.
+ * 
+ * I client con la cache attiva registrano un callback (CacheCallbacks): quando viene preso un lock in scrittura, prima 
+ * che l'operazione venga eseguita, i path vengono invalidati nella cache degli altri client.
  * 
  * @author gabrielesavoia
  *
@@ -34,10 +51,19 @@ public class ServerMaster extends UnicastRemoteObject implements ServerMasterInt
 	private static final long serialVersionUID = 1L;
 	
 	private LockManager lockManager;
+	private LeaseManager leaseManager;
 	
 	private int numReplicas;
 	private ServerReplicaInterface[] replicas;
 	
+	private ReplicaStats[] replicaStats;
+	private ReplicaSelectionPolicy selectionPolicy;
+	private ReplicaHealthChecker healthChecker;
+	private ReplicaChain replicaChain;
+	private ConsistentHashRing placement;
+	private final CacheCallbacks cacheCallbacks = new CacheCallbacks(Configs.CACHE_CALLBACK_TIMEOUT_MILLIS, 
+			Configs.CLIENT_CACHE_LEASE_MILLIS, Configs.CACHE_CALLBACK_THREADS);
+	
 	/**
 	 * Costruttore della classe.
 	 * 
@@ -53,9 +79,18 @@ public class ServerMaster extends UnicastRemoteObject implements ServerMasterInt
 	public ServerMaster(int numReplicas) throws RemoteException, DfsException {
 		super();
 		
-		lockManager = new LockManager();
 		this.numReplicas = numReplicas;
 		
+		replicaStats = new ReplicaStats[numReplicas];
+		for (int i=0; i<numReplicas; i++) {
+			replicaStats[i] = new ReplicaStats(Configs.REPLICA_EWMA_ALPHA);
+		}
+		selectionPolicy = ReplicaSelectionPolicy.fromName(Configs.REPLICA_SELECTION_POLICY);
+		
+		lockManager = new LockManager();
+		leaseManager = new LeaseManager(lockManager, Configs.LOCK_LEASE_MILLIS, 
+				hold -> replicaStats[hold.getReplicaId()].abandoned());
+		
 		// lookup dei ServerReplica e per ciscuno chiamo lookupOtherReplicas()
 		try {
 			replicas = new ServerReplicaInterface[this.numReplicas];
@@ -68,6 +103,18 @@ public class ServerMaster extends UnicastRemoteObject implements ServerMasterInt
 			throw new DfsException("Errore: non è possibile fare il lookup con almeno uno dei "+this.numReplicas+" ServerReplica", true);
 		}
 		
+		// replicazione a catena: ordine iniziale della catena inviato a tutti i ServerReplica
+		if ("chain".equals(Configs.REPLICATION_MODE)) { replicaChain = new ReplicaChain(replicas); }
+		else if (Configs.PLACEMENT_REPLICATION_FACTOR > 0) {
+			placement = new ConsistentHashRing(this.numReplicas, Configs.PLACEMENT_VIRTUAL_NODES, Configs.PLACEMENT_REPLICATION_FACTOR);
+		}
+		
+		// da qui in poi la raggiungibilità dei ServerReplica è controllata in background
+		healthChecker = new ReplicaHealthChecker(replicas, Configs.HEARTBEAT_INTERVAL_MILLIS, Configs.HEARTBEAT_WINDOW, 
+				Configs.PHI_SUSPECT_THRESHOLD, Configs.PHI_DOWN_THRESHOLD, (id, health) -> {
+					if (replicaChain != null) { replicaChain.healthChanged(id, health); }
+				});
+		
 	}
 	
 	/**
@@ -75,35 +122,188 @@ public class ServerMaster extends UnicastRemoteObject implements ServerMasterInt
 	 * E' necessario specificare se si tratta di un'operazione di scrittura ('w) o lettura ('r) e in relazione
 	 * a quale path.
 	 * 
-	 * Nel caso in cui vengano rilevati problemi di concorrenza, viene generata un'eccezione.
+	 * Se il path è occupato, la richiesta viene messa in coda (FIFO) e attende al massimo timeoutMillis di essere 
+	 * servita; viene risvegliata quando endOperation rilascia il path.
+	 * Nel caso in cui scada il timeout, viene generata un'eccezione.
+	 * 
+	 * Il lock ottenuto appartiene alla sessione del client (clientId) e ha un lease: se il client non fa più chiamate
+	 * al ServerMaster per un tempo superiore a Configs.LOCK_LEASE_MILLIS, il lock viene rilasciato automaticamente.
+	 * 
 	 * Ritorna l'ID del ServerReplica con cui il client dovrà comunicare per eseguire effettivamente l'operazione.
 	 * 
+	 * @param clientId identificativo univoco del client
 	 * @param lockType 'w' per operazione in scrittura, 'r' per operazione in lettura
 	 * @param path su cui fare l'operazione
+	 * @param timeoutMillis tempo massimo di attesa del lock (se <= 0 la richiesta fallisce subito se il path è occupato)
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza (o se scade il timeout)
+	 */
+	@Override
+	public int startOperation(String clientId, char lockType, String path, long timeoutMillis) throws RemoteException, DfsException {
+		
+		return startOperations(clientId, Collections.singletonList(new LockRequest(lockType, path)), timeoutMillis);
+		
+	}
+	
+	/**
+	 * Come startOperation ma per più path insieme, con una sola chiamata.
+	 * 
+	 * I lock vengono presi in ordine canonico (quello del LockManager) e in modo atomico: o vengono presi tutti oppure,
+	 * se anche uno solo non è ottenibile entro timeoutMillis, non ne resta preso nessuno.
+	 * In questo modo due client che operano sugli stessi path in ordine opposto (es. due move incrociati) non possono 
+	 * bloccarsi a vicenda.
+	 * 
+	 * I lock vanno rilasciati con endOperations passando la stessa lista.
+	 * 
+	 * @param clientId identificativo univoco del client
+	 * @param requests lock richiesti ('w' o 'r' per ogni path)
+	 * @param timeoutMillis tempo massimo di attesa dei lock (se <= 0 la richiesta fallisce subito se un path è occupato)
+	 * 
+	 * @return ID del ServerReplica con cui comunicare
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
-	 * @throws DfsException Generata per problemi di concorrenza
+	 * @throws DfsException Generata per problemi di concorrenza (o se scade il timeout)
 	 */
 	@Override
-	public int startOperation(char lockType, String path) throws RemoteException, DfsException {
-		
-		switch(lockType) {
-			case('w'):
-				// write lock
-				if (!lockManager.writeLock(path)) { 
-					throw new DfsException("Errore: qualcuno ha già il write lock (oppure c'è almeno 1 reader) e non è possibile modificare, riprova"); 
-				}
-				break;
-			case('r'):
-				// aggiungi reader
-				if (!lockManager.addReader(path)) { 
-					throw new DfsException("Errore: qualcuno ha già il write lock e non è possibile accedere, riprova"); 
-				}
-				break;
-			default: throw new DfsException("Errore: lockType non ammesso", true);
+	public int startOperations(String clientId, List<LockRequest> requests, long timeoutMillis) throws RemoteException, DfsException {
+		
+		leaseManager.renew(clientId);
+		
+		checkLockRequests(requests);
+		
+		lock(requests, timeoutMillis);
+		
+		// le letture dei path sono bloccate dal lock: da qui nessun client può rimettere in cache il contenuto attuale
+		cacheCallbacks.invalidate(clientId, requests);
+		
+		int idReplica;
+		try { idReplica = getServerReplicaId(requests); }
+		catch (DfsException e) {
+			// nessun ServerReplica disponibile: il client non farà l'operazione, quindi rilascio subito i lock
+			lockManager.unlock(requests);
+			throw e;
 		}
 		
-		return getServerReplicaId();
+		replicaStats[idReplica].started();
+		leaseManager.acquired(clientId, new LeaseManager.Hold(requests, idReplica, System.nanoTime()));
+		
+		return idReplica;
+		
+	}
+	
+	/**
+	 * Lettura di un file in un' unica chiamata: il ServerMaster prende il lock in lettura, inoltra la lettura al 
+	 * ServerReplica scelto e rilascia il lock prima di rispondere.
+	 * 
+	 * Rispetto a startOperation / readFile sul ServerReplica / endOperation il client fa un solo round trip (le altre 
+	 * chiamate avvengono tra ServerMaster e ServerReplica); conviene per file piccoli, dato che il contenuto passa anche 
+	 * dal ServerMaster.
+	 * 
+	 * @param path del file da leggere
+	 * @param timeoutMillis tempo massimo di attesa del lock
+	 * 
+	 * @return contenuto del file
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza (o se scade il timeout) o di lettura
+	 */
+	@Override
+	public byte[] readFile(String path, long timeoutMillis) throws RemoteException, DfsException {
+		
+		return forward(new LockRequest('r', path), timeoutMillis, replica -> replica.readFile(path).getBytes());
+		
+	}
+	
+	/**
+	 * Scrittura di un file in un' unica chiamata (vedi readFile): il ServerReplica scelto propaga la modifica agli altri
+	 * prima che il lock in scrittura venga rilasciato.
+	 * 
+	 * @param path del file da scrivere
+	 * @param content da scrivere
+	 * @param timeoutMillis tempo massimo di attesa del lock
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza (o se scade il timeout) o di scrittura
+	 */
+	@Override
+	public void writeFile(String path, byte[] content, long timeoutMillis) throws RemoteException, DfsException {
+		
+		forward(new LockRequest('w', path), timeoutMillis, replica -> {
+			replica.writeFile(path, content, true);
+			return null;
+		});
+		
+	}
+	
+	/**
+	 * Listaggio del contenuto di una directory in un' unica chiamata (vedi readFile).
+	 * 
+	 * @param path della directory da listare
+	 * @param timeoutMillis tempo massimo di attesa del lock
+	 * 
+	 * @return file / directory contenuti nella directory
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza (o se scade il timeout) o di listaggio
+	 */
+	@Override
+	public String[] listFilesDirectory(String path, long timeoutMillis) throws RemoteException, DfsException {
+		
+		return forward(new LockRequest('r', path), timeoutMillis, replica -> replica.listFilesDirectory(path));
+		
+	}
+	
+	/**
+	 * Operazione eseguita dal ServerMaster su un ServerReplica per conto del client.
+	 */
+	private interface ReplicaCall<T> {
+		T call(ServerReplicaInterface replica) throws RemoteException, DfsException;
+	}
+	
+	/**
+	 * Esegue un' operazione inoltrata: lock, scelta del ServerReplica, operazione e unlock (anche in caso di errore).
+	 * Il lock non passa dal LeaseManager perchè viene rilasciato prima di rispondere al client.
+	 * 
+	 * @throws DfsException Generata per problemi di concorrenza o se il ServerReplica non è raggiungibile
+	 */
+	private <T> T forward(LockRequest request, long timeoutMillis, ReplicaCall<T> operation) throws DfsException {
+		
+		List<LockRequest> requests = Collections.singletonList(request);
+		checkLockRequests(requests);
+		
+		lock(requests, timeoutMillis);
+		try {
+			cacheCallbacks.invalidate(null, requests);
+			int idReplica = getServerReplicaId(requests);
+			
+			replicaStats[idReplica].started();
+			long start = System.nanoTime();
+			try { return operation.call(replicas[idReplica]); }
+			catch (RemoteException e) {
+				throw new DfsException("Errore: problema connessione con ServerReplica, riprova");
+			}
+			finally { replicaStats[idReplica].completed(System.nanoTime() - start); }
+		}
+		finally {
+			lockManager.unlock(requests);
+		}
+		
+	}
+	
+	/**
+	 * Prende i lock richiesti (attendendo al massimo timeoutMillis).
+	 * 
+	 * @throws DfsException Generata se i lock non sono ottenibili entro il timeout
+	 */
+	private void lock(List<LockRequest> requests, long timeoutMillis) throws DfsException {
+		
+		if (!lockManager.lock(requests, timeoutMillis)) {
+			if (requests.size() == 1 && !requests.get(0).isWrite()) {
+				throw new DfsException("Errore: qualcuno ha già il write lock e non è possibile accedere, riprova");
+			}
+			throw new DfsException("Errore: qualcuno ha già il write lock (oppure c'è almeno 1 reader) e non è possibile modificare, riprova"); 
+		}
 		
 	}
 	
@@ -112,33 +312,129 @@ public class ServerMaster extends UnicastRemoteObject implements ServerMasterInt
 	 * 
 	 * Vengono tolti i lock in scrittura (oppure viene eliminato il reader per operazioni in lettura).
 	 * 
+	 * @param clientId identificativo univoco del client
 	 * @param lockType 'w' per operazione in scrittura, 'r' per operazione in lettura
 	 * @param path su cui è stata fatta l'operazione
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
-	 * @throws DfsException Generata per problemi di concorrenza
+	 * @throws DfsException Generata per problemi di concorrenza (o se il lease del lock è già scaduto)
+	 */
+	@Override
+	public void endOperation(String clientId, char lockType, String path) throws RemoteException, DfsException {
+		
+		endOperations(clientId, Collections.singletonList(new LockRequest(lockType, path)));
+		
+	}
+	
+	/**
+	 * Rilascio dei lock presi con startOperations (la lista deve essere la stessa).
+	 * 
+	 * @param clientId identificativo univoco del client
+	 * @param requests lock da rilasciare
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per problemi di concorrenza (o se il lease dei lock è già scaduto)
 	 */
 	@Override
-	public void endOperation(char lockType, String path) throws RemoteException, DfsException {
-		
-		switch(lockType) {
-			case('w'):
-				// write unlock
-				if (!lockManager.writeUnlock(path)) { 
-					throw new DfsException("Errore: non è possibile fare unlock", true); 
-				}
-				break;
-			case('r'):
-				// elimina reader
-				if (!lockManager.delReader(path)) { 
-					throw new DfsException("Errore: non è possibile togliere il reader", true);
-				}
-				break;
-			default: throw new DfsException("Errore: lockType non ammesso", true);
+	public void endOperations(String clientId, List<LockRequest> requests) throws RemoteException, DfsException {
+		
+		checkLockRequests(requests);
+		
+		// i lock potrebbero essere già stati rilasciati dal reaper perchè il lease è scaduto
+		LeaseManager.Hold hold = leaseManager.released(clientId, requests);
+		if (hold == null) {
+			throw new DfsException("Errore: il lock su "+requests+" non è più valido (lease scaduto), l'operazione potrebbe non essere stata isolata");
+		}
+		
+		// la endOperation è anche la notifica di completamento dell'operazione sul ServerReplica
+		replicaStats[hold.getReplicaId()].completed(System.nanoTime() - hold.getStartNanos());
+		
+		if (!lockManager.unlock(requests)) {
+			throw new DfsException("Errore: non è possibile fare unlock", true); 
 		}
 		
 	}
 	
+	/**
+	 * Controlla che le richieste di lock siano valide.
+	 * 
+	 * @throws DfsException Generata se la lista è vuota o se un lockType non è ammesso
+	 */
+	private void checkLockRequests(List<LockRequest> requests) throws DfsException {
+		
+		if (requests == null || requests.isEmpty()) { throw new DfsException("Errore: nessun lock richiesto", true); }
+		
+		for (LockRequest request: requests) {
+			if (request.getLockType() != 'w' && request.getLockType() != 'r') { 
+				throw new DfsException("Errore: lockType non ammesso", true); 
+			}
+			if (request.getPath() == null) { throw new DfsException("Errore: path non valido", true); }
+		}
+		
+	}
+	
+	/**
+	 * Rinnova il lease dei lock posseduti dal client.
+	 * 
+	 * Il rinnovo avviene già ad ogni startOperation / endOperation: questa funzione serve solo ai client che tengono un
+	 * lock per un tempo lungo (ad esempio durante il trasferimento di un file grande).
+	 * 
+	 * @param clientId identificativo univoco del client
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public void renewLease(String clientId) throws RemoteException {
+		
+		leaseManager.renew(clientId);
+		
+	}
+	
+	/**
+	 * Registrazione del callback con cui il ServerMaster invalida la cache del client (vedi CacheCallbacks).
+	 * 
+	 * @param clientId identificativo univoco del client
+	 * @param callback oggetto remoto esportato dal client
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public void registerCacheCallback(String clientId, CacheCallback callback) throws RemoteException {
+		
+		cacheCallbacks.register(clientId, callback);
+		
+	}
+	
+	/**
+	 * Rinnovo della registrazione del callback: il client usa la cache solo finchè il rinnovo riesce.
+	 * 
+	 * @param clientId identificativo univoco del client
+	 * @return false se il callback non è più registrato (ad esempio perchè un' invalidazione non è arrivata): il client 
+	 * 			deve svuotare la cache e registrarsi di nuovo
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public boolean renewCacheCallback(String clientId) throws RemoteException {
+		
+		return cacheCallbacks.renew(clientId);
+		
+	}
+	
+	/**
+	 * Rimozione del callback (il client termina o disattiva la cache).
+	 * 
+	 * @param clientId identificativo univoco del client
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public void unregisterCacheCallback(String clientId) throws RemoteException {
+		
+		cacheCallbacks.unregister(clientId);
+		
+	}
+	
 	/**
 	 * Funzione che ritorna il numero di ServerReplica.
 	 * 
@@ -153,43 +449,83 @@ public class ServerMaster extends UnicastRemoteObject implements ServerMasterInt
 		
 	}
 	
+	/**
+	 * ServerReplica UP secondo il ReplicaHealthChecker (raggiungibili e con il bootstrap terminato), usati dai client 
+	 * per scegliere a chi inviare le letture di riserva.
+	 * 
+	 * @return id dei ServerReplica UP
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public int[] getUpReplicas() throws RemoteException {
+		
+		return healthChecker.getUpIds();
+		
+	}
+	
 	/**
 	 * Ritorna l'id del ServerReplica che contatterà il client.
-	 * Quale ServerReplica è scelto? Viene scelto casualmente il primo ServerReplica raggiungibile.
+	 * Quale ServerReplica è scelto? Quello indicato dalla politica di scelta (Configs.REPLICA_SELECTION_POLICY) tra 
+	 * quelli raggiungibili: di default power of two choices sul numero di operazioni in corso, così un ServerReplica 
+	 * lento (che accumula operazioni non ancora concluse) riceve meno client.
+	 * 
+	 * La raggiungibilità è quella in cache nel ReplicaHealthChecker (nessuna chiamata remota): si sceglie tra i 
+	 * ServerReplica UP e, solo se non ce ne sono, tra quelli SUSPECT.
+	 * 
+	 * Nella replicazione a catena si usa invece la testa se l'operazione scrive almeno un path, la coda altrimenti.
+	 * Con il consistent hashing si sceglie tra i ServerReplica che tengono tutti i path dell' operazione o, se non ce ne
+	 * sono (spostamento tra directory con ServerReplica diversi), almeno il primo.
 	 * 
-	 * Al posto di sceglierlo a caso si potrebbero fare considerazioni del tipo "ritorno l'id del ServerReplica più vicino
-	 * al client" oppure "ritorno l'id del ServerReplica meno occupato".
+	 * @param requests lock dell'operazione
 	 * 
-	 * @throws DfsException Generata se non ci sono più ServerReplica disponibili
+	 * @throws DfsException Generata se non ci sono ServerReplica disponibili
 	 */
-	private int getServerReplicaId() throws DfsException {
+	private int getServerReplicaId(List<LockRequest> requests) throws DfsException {
 		
-		int id = new Random().nextInt(numReplicas);
-		int[] failedList = new int[numReplicas];
-		Arrays.fill(failedList, 0);
+		if (replicaChain != null) {
+			boolean write = false;
+			for (LockRequest request: requests) { write |= request.isWrite(); }
+			int id = write ? replicaChain.getHead() : replicaChain.getTail();
+			if (id < 0) { throw new DfsException("Errore: nessun ServerReplica è raggiungibile", true); }
+			return id;
+		}
 		
-		boolean foundServerReplicaAlive = false;
-		while(!foundServerReplicaAlive) {
-			
-			try { foundServerReplicaAlive = replicas[id].isAlive(); }
-			catch (RemoteException e){  // se il ServerReplica non è raggiungibile
-			
-				failedList[id] = 1;
-				
-				// se nessun ServerReplica è raggiungibile genero eccezione
-				int numFailed = 0;
-				for (int i=0; i<failedList.length; i++) { numFailed += failedList[i]; }
-				if (numFailed == numReplicas) {
-					throw new DfsException("Errore: nessun ServerReplica è raggiungibile", true);
-				}
-				
-				// trovo nuovo id random non ancora considerato
-				while(failedList[id]==1) { id = new Random().nextInt(numReplicas); }
+		int[] candidates = owning(healthChecker.getUpIds(), requests);
+		if (candidates.length == 0) { candidates = owning(healthChecker.getSuspectIds(), requests); }
+		
+		// se nessun ServerReplica è raggiungibile genero eccezione
+		if (candidates.length == 0) { throw new DfsException("Errore: nessun ServerReplica è raggiungibile", true); }
+		
+		return selectionPolicy.select(candidates, candidates.length, replicaStats);
+	}
+	
+	/**
+	 * @param ids ServerReplica candidati
+	 * @param requests lock dell'operazione
+	 * @return i candidati che tengono tutti i path delle richieste oppure, se non ce ne sono, il primo path (tutti i 
+	 * 			candidati con la replicazione completa)
+	 */
+	private int[] owning(int[] ids, List<LockRequest> requests) {
+		
+		if (placement == null || requests.isEmpty()) { return ids; }
+		
+		int[] all = new int[ids.length];
+		int[] first = new int[ids.length];
+		int numAll = 0, numFirst = 0;
+		String firstKey = ConsistentHashRing.placementKey(requests.get(0).getPath());
+		for (int id: ids) {
+			if (!placement.isOwner(firstKey, id)) { continue; }
+			first[numFirst++] = id;
 			
+			boolean ownsAll = true;
+			for (LockRequest request: requests) {
+				ownsAll &= placement.isOwner(ConsistentHashRing.placementKey(request.getPath()), id);
 			}
+			if (ownsAll) { all[numAll++] = id; }
 		}
+		return (numAll > 0) ? Arrays.copyOf(all, numAll) : Arrays.copyOf(first, numFirst);
 		
-		return id;
 	}
 
 }
@@ -2,14 +2,32 @@ package server.master;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
+import common.CacheCallback;
 import common.DfsException;
+import common.LockRequest;
 
 public interface ServerMasterInterface extends Remote{
 	
-	int startOperation(char lockType, String path) throws RemoteException, DfsException;
-	void endOperation(char lockType, String path) throws RemoteException, DfsException;
+	int startOperation(String clientId, char lockType, String path, long timeoutMillis) throws RemoteException, DfsException;
+	void endOperation(String clientId, char lockType, String path) throws RemoteException, DfsException;
+	
+	int startOperations(String clientId, List<LockRequest> requests, long timeoutMillis) throws RemoteException, DfsException;
+	void endOperations(String clientId, List<LockRequest> requests) throws RemoteException, DfsException;
+	
+	byte[] readFile(String path, long timeoutMillis) throws RemoteException, DfsException;
+	void writeFile(String path, byte[] content, long timeoutMillis) throws RemoteException, DfsException;
+	String[] listFilesDirectory(String path, long timeoutMillis) throws RemoteException, DfsException;
+	
+	void renewLease(String clientId) throws RemoteException;
+	
+	void registerCacheCallback(String clientId, CacheCallback callback) throws RemoteException;
+	boolean renewCacheCallback(String clientId) throws RemoteException;
+	void unregisterCacheCallback(String clientId) throws RemoteException;
 	
 	int getNumServerReplica() throws RemoteException;
+	
+	int[] getUpReplicas() throws RemoteException;
 
 }
@@ -0,0 +1,110 @@
+package server.replica;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import common.DfsException;
+
+/**
+ * Anti-entropy: confronto del MerkleTree locale con quello di un altro ServerReplica e recupero dei path per cui 
+ * l'altro ServerReplica ha una versione più recente (ad esempio modifiche perse mentre questo ServerReplica non era
+ * raggiungibile, oppure scartate perchè il log di replicazione era pieno).
+ *
+ * Si confrontano prima le radici (una sola chiamata se i due ServerReplica sono allineati), poi si scende un livello
+ * alla volta solo nei nodi diversi; per le foglie diverse si confrontano i singoli path. Le differenze per cui è più
+ * recente questo ServerReplica vengono recuperate dall'altro quando esegue a sua volta l'anti-entropy.
+ *
+ * Con il posizionamento a consistent hashing vengono recuperati solo i path che questo ServerReplica deve tenere 
+ * (wanted): i MerkleTree di due ServerReplica che tengono file diversi restano diversi, quindi il confronto scende 
+ * sempre fino alle foglie, ma senza trasferire contenuti.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class AntiEntropy {
+
+	/**
+	 * Recupero di un path dall'altro ServerReplica.
+	 */
+	interface Repairer {
+		void repair(ServerReplicaInterface peer, MerkleEntry remote) throws RemoteException, DfsException;
+	}
+
+	private final MerkleTree tree;
+	private final Repairer repairer;
+	private final Predicate<MerkleEntry> wanted;
+
+	/**
+	 * @param tree MerkleTree locale
+	 * @param repairer recupero dei path
+	 * @param wanted path che questo ServerReplica deve tenere
+	 */
+	public AntiEntropy(MerkleTree tree, Repairer repairer, Predicate<MerkleEntry> wanted) {
+		this.tree = tree;
+		this.repairer = repairer;
+		this.wanted = wanted;
+	}
+
+	/**
+	 * Confronto con un altro ServerReplica e recupero delle differenze.
+	 *
+	 * @param peer ServerReplica con cui confrontarsi
+	 * @return numero di path recuperati
+	 *
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	public int syncWith(ServerReplicaInterface peer) throws RemoteException {
+
+		int[] nodes = { 0 };
+		for (int level=0; ; level++) {
+
+			long[] remote = peer.getMerkleHashes(level, nodes);
+			long[] local = tree.getHashes(level, nodes);
+
+			List<Integer> differing = new ArrayList<Integer>();
+			for (int i=0; i<nodes.length; i++) {
+				if (remote[i] != local[i]) { differing.add(nodes[i]); }
+			}
+			if (differing.isEmpty()) { return 0; }
+
+			if (level == tree.getDepth()) {
+				nodes = toArray(differing);
+				break;
+			}
+
+			// figli dei nodi diversi
+			nodes = new int[differing.size() * MerkleTree.FANOUT];
+			for (int i=0; i<differing.size(); i++) {
+				for (int c=0; c<MerkleTree.FANOUT; c++) { nodes[i * MerkleTree.FANOUT + c] = differing.get(i) * MerkleTree.FANOUT + c; }
+			}
+
+		}
+
+		int repaired = 0;
+		for (MerkleEntry remote: peer.getMerkleEntries(nodes)) {
+			if (!wanted.test(remote)) { continue; }
+			MerkleEntry local = tree.get(remote.getPath());
+			if (local != null && local.getVersion() >= remote.getVersion()) { continue; }
+			try {
+				repairer.repair(peer, remote);
+				repaired++;
+			}
+			catch (DfsException e) {
+				System.out.println("Anti-entropy: recupero di "+remote+" non riuscito: "+e.getMessage());
+			}
+		}
+		return repaired;
+
+	}
+
+	private static int[] toArray(List<Integer> list) {
+
+		int[] array = new int[list.size()];
+		for (int i=0; i<array.length; i++) { array[i] = list.get(i); }
+		return array;
+
+	}
+
+}
@@ -0,0 +1,320 @@
+package server.replica;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import common.CacheStats;
+
+/**
+ * Cache in memoria del contenuto dei file di un ServerReplica, a blocchi di dimensione fissa.
+ *
+ * 		- la memoria occupata è limitata (maxBytes) e i blocchi possono essere tenuti fuori dall'heap (direct buffer);
+ * 		- eliminazione LRU con ammissione TinyLFU: quando la cache è piena, un nuovo blocco entra solo se è stato chiesto
+ * 		  più spesso di quello che dovrebbe eliminare (FrequencySketch), così una lettura sequenziale di un file grande
+ * 		  non svuota la cache dei file piccoli letti di continuo;
+ * 		- invalidate(path) elimina tutti i blocchi di un file: va chiamata dopo ogni modifica del file (anche se arriva
+ * 		  dalla propagazione di un altro ServerReplica).
+ *
+ * Per non serializzare tutte le letture su un solo monitor, i blocchi sono divisi in stripe in base all'hash della
+ * chiave (path e indice): ogni stripe ha la propria LRU, il proprio FrequencySketch, una parte della memoria e il
+ * proprio monitor, quindi letture di blocchi diversi procedono quasi sempre in parallelo. La divisione per blocco (e
+ * non per path) permette a un file di usare tutta la cache; invalidate passa quindi da tutte le stripe.
+ *
+ * Un blocco letto dal disco mentre il file viene modificato potrebbe essere vecchio: per questo ogni path ha un numero
+ * di generazione (in realtà condiviso da tutti i path della stessa stripe di generazioni) che invalidate incrementa, e
+ * un blocco viene inserito solo se la generazione non è cambiata da prima della lettura.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class BlockCache {
+
+	private static final int GENERATION_STRIPES = 1024;
+	private static final int MAX_STRIPES = 64;
+	private static final int MIN_STRIPE_BLOCKS = 16;
+
+	/**
+	 * Chiave di un blocco: path del file e indice del blocco.
+	 */
+	private static class BlockKey {
+
+		private final String path;
+		private final long index;
+
+		private BlockKey(String path, long index) {
+			this.path = path;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (this == other) { return true; }
+			if ( !(other instanceof BlockKey) ) { return false; }
+			BlockKey key = (BlockKey) other;
+			return index == key.index && path.equals(key.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, index);
+		}
+
+	}
+
+	/**
+	 * Stripe della cache: blocchi in ordine LRU, blocchi di ogni path e contatori, protetti dal monitor della stripe.
+	 */
+	private static class Stripe {
+
+		private final long maxBytes;
+		private final LinkedHashMap<BlockKey, ByteBuffer> blocks = new LinkedHashMap<BlockKey, ByteBuffer>(16, 0.75f, true);
+		private final HashMap<String, Set<Long>> blocksByPath = new HashMap<String, Set<Long>>();
+		private final FrequencySketch sketch;
+
+		private long usedBytes = 0;
+		private long hits = 0;
+		private long misses = 0;
+		private long evictions = 0;
+		private long rejections = 0;
+
+		private Stripe(long maxBytes, int capacity) {
+			this.maxBytes = maxBytes;
+			this.sketch = new FrequencySketch(capacity);
+		}
+
+	}
+
+	private final int blockSize;
+	private final long maxBytes;
+	private final boolean offHeap;
+
+	private final Stripe[] stripes;
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+	/**
+	 * @param blockSize dimensione dei blocchi in byte
+	 * @param maxBytes memoria massima occupata dai blocchi (0 per disattivare la cache)
+	 * @param offHeap true per tenere i blocchi in direct buffer, fuori dall'heap
+	 */
+	public BlockCache(int blockSize, long maxBytes, boolean offHeap) {
+
+		this.blockSize = blockSize;
+		this.maxBytes = maxBytes;
+		this.offHeap = offHeap;
+
+		// stripe in potenza di 2, ognuna con almeno MIN_STRIPE_BLOCKS blocchi
+		long capacity = maxBytes / blockSize;
+		int numStripes = Integer.highestOneBit((int) Math.max(1, Math.min(MAX_STRIPES, capacity / MIN_STRIPE_BLOCKS)));
+		stripes = new Stripe[numStripes];
+		for (int i=0; i<numStripes; i++) {
+			stripes[i] = new Stripe(maxBytes / numStripes, (int) Math.min(Integer.MAX_VALUE, capacity / numStripes));
+		}
+
+	}
+
+	private Stripe stripe(BlockKey key) {
+
+		int h = key.hashCode() * 0x9E3779B1;
+		return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+
+	}
+
+	private long generation(String path) {
+		return generations.get(path.hashCode() & (GENERATION_STRIPES - 1));
+	}
+
+	/**
+	 * Lettura di al massimo length byte del file a partire da offset: i blocchi presenti sono copiati dalla cache, gli
+	 * altri letti dal disco e inseriti in cache.
+	 *
+	 * @param file file su disco
+	 * @param path path del file nel filesystem distribuito (chiave della cache)
+	 * @param offset posizione del primo byte
+	 * @param length numero massimo di byte
+	 *
+	 * @return byte letti (meno di length se il file finisce prima)
+	 *
+	 * @throws IOException Generata se non è possibile leggere il file
+	 */
+	public byte[] read(Path file, String path, long offset, int length) throws IOException {
+
+		long startGeneration = generation(path);
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			int count = (int) Math.min(length, Math.max(0, size - offset));
+			byte[] result = new byte[count];
+
+			int copied = 0;
+			while (copied < count) {
+				long position = offset + copied;
+				long index = position / blockSize;
+				int inBlock = (int) (position - index * blockSize);
+
+				ByteBuffer block = get(path, index);
+				if (block == null) {
+					block = ByteBuffer.wrap(load(channel, index, size));
+					put(path, index, startGeneration, block);
+				}
+				// blocco più corto del previsto (file cambiato sul disco senza passare da questo ServerReplica)
+				if (block.remaining() <= inBlock) { throw new IOException("Errore: blocco non valido"); }
+
+				int n = Math.min(count - copied, block.remaining() - inBlock);
+				block.position(block.position() + inBlock);
+				block.get(result, copied, n);
+				copied += n;
+			}
+			return result;
+		}
+		finally {
+			channel.close();
+		}
+
+	}
+
+	private byte[] load(FileChannel channel, long index, long size) throws IOException {
+
+		long position = index * blockSize;
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(blockSize, size - position));
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) { break; }
+		}
+		if (buffer.hasRemaining()) { return Arrays.copyOf(buffer.array(), buffer.position()); }
+		return buffer.array();
+
+	}
+
+	/**
+	 * @return copia in sola lettura del blocco (con posizione e limite propri), null se il blocco non è in cache
+	 */
+	private ByteBuffer get(String path, long index) {
+
+		BlockKey key = new BlockKey(path, index);
+		Stripe stripe = stripe(key);
+		synchronized (stripe) {
+			stripe.sketch.increment(key.hashCode());
+
+			ByteBuffer block = stripe.blocks.get(key);
+			if (block == null) {
+				stripe.misses++;
+				return null;
+			}
+			stripe.hits++;
+			return block.duplicate();
+		}
+
+	}
+
+	/**
+	 * Inserisce un blocco letto dal disco, se nel frattempo il file non è stato invalidato e se la politica di
+	 * ammissione lo accetta.
+	 */
+	private void put(String path, long index, long startGeneration, ByteBuffer data) {
+
+		BlockKey key = new BlockKey(path, index);
+		Stripe stripe = stripe(key);
+		int size = data.remaining();
+		if (size > stripe.maxBytes) { return; }
+
+		synchronized (stripe) {
+			if (generation(path) != startGeneration || stripe.blocks.containsKey(key)) { return; }
+
+			// faccio spazio togliendo i blocchi usati meno di recente, ma solo se il nuovo blocco è più richiesto
+			int frequency = stripe.sketch.frequency(key.hashCode());
+			Iterator<Map.Entry<BlockKey, ByteBuffer>> eldest = stripe.blocks.entrySet().iterator();
+			while (stripe.usedBytes + size > stripe.maxBytes) {
+				Map.Entry<BlockKey, ByteBuffer> victim = eldest.next();
+				if (frequency <= stripe.sketch.frequency(victim.getKey().hashCode())) {
+					stripe.rejections++;
+					return;
+				}
+				eldest.remove();
+				forget(stripe, victim.getKey(), victim.getValue());
+				stripe.evictions++;
+			}
+
+			ByteBuffer stored;
+			if (offHeap) {
+				stored = ByteBuffer.allocateDirect(size);
+				stored.put(data.duplicate());
+				stored.flip();
+			} else {
+				stored = data.duplicate();
+			}
+			stripe.blocks.put(key, stored.asReadOnlyBuffer());
+			stripe.blocksByPath.computeIfAbsent(path, p -> new HashSet<Long>()).add(index);
+			stripe.usedBytes += size;
+		}
+
+	}
+
+	private static void forget(Stripe stripe, BlockKey key, ByteBuffer block) {
+
+		stripe.usedBytes -= block.capacity();
+		Set<Long> indexes = stripe.blocksByPath.get(key.path);
+		if (indexes != null) {
+			indexes.remove(key.index);
+			if (indexes.isEmpty()) { stripe.blocksByPath.remove(key.path); }
+		}
+
+	}
+
+	/**
+	 * Elimina tutti i blocchi del file. Da chiamare dopo ogni modifica del file.
+	 *
+	 * @param path path del file nel filesystem distribuito
+	 */
+	public void invalidate(String path) {
+
+		generations.incrementAndGet(path.hashCode() & (GENERATION_STRIPES - 1));
+
+		for (Stripe stripe: stripes) {
+			synchronized (stripe) {
+				Set<Long> indexes = stripe.blocksByPath.remove(path);
+				if (indexes == null) { continue; }
+				for (Long index: indexes) {
+					ByteBuffer block = stripe.blocks.remove(new BlockKey(path, index));
+					if (block != null) { stripe.usedBytes -= block.capacity(); }
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * @return statistiche della cache (somma delle stripe)
+	 */
+	public CacheStats getStats() {
+
+		long hits = 0;
+		long misses = 0;
+		long evictions = 0;
+		long rejections = 0;
+		long usedBytes = 0;
+		for (Stripe stripe: stripes) {
+			synchronized (stripe) {
+				hits += stripe.hits;
+				misses += stripe.misses;
+				evictions += stripe.evictions;
+				rejections += stripe.rejections;
+				usedBytes += stripe.usedBytes;
+			}
+		}
+		return new CacheStats(hits, misses, evictions, rejections, usedBytes, maxBytes);
+
+	}
+
+}
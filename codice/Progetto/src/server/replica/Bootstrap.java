@@ -0,0 +1,385 @@
+package server.replica;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.Configs;
+import common.DataTransfer;
+import common.DfsException;
+import common.TransferTicket;
+
+/**
+ * Bootstrap di un ServerReplica che entra (o rientra dopo un riavvio) nel sistema: invece di ripartire da una
+ * directory vuota, copia uno snapshot da un altro ServerReplica già pronto e recupera poi dal log di replicazione le
+ * operazioni eseguite nel frattempo.
+ *
+ * 		1. per ogni altro ServerReplica raggiungibile viene letta la posizione del suo log di replicazione;
+ * 		2. il manifest dello snapshot (path, versione, tipo e dimensione di tutto il replica point, più i path eliminati)
+ * 		   viene confrontato con il contenuto locale: si copiano solo i file mancanti, di dimensione diversa o con una
+ * 		   versione più recente, quindi un riavvio dopo poco tempo copia poco o niente;
+ * 		3. i file piccoli vengono raggruppati in archivi di Configs.BOOTSTRAP_CHUNK_BYTES, inviati sul canale dati come
+ * 		   un unico flusso (un file dopo l'altro), i file grandi vengono scaricati a intervalli della stessa dimensione;
+ * 		   archivi e intervalli sono trasferiti in parallelo (Configs.BOOTSTRAP_PARALLELISM), quindi il tempo dipende
+ * 		   solo da disco e rete e non dal numero di chiamate RMI;
+ * 		4. i path locali che non compaiono nello snapshot e che il log non ha mai modificato vengono eliminati;
+ * 		5. si attende che ogni ServerReplica abbia consegnato il proprio log almeno fino alla posizione letta al punto 1.
+ *
+ * Con il posizionamento a consistent hashing ogni ServerReplica tiene solo una parte dei file: il bootstrap viene
+ * eseguito da tutti i ServerReplica pronti, copiando da ognuno solo i file che questo ServerReplica deve tenere, ed
+ * elimina un path locale solo se il ServerReplica sorgente dovrebbe averlo.
+ *
+ * Lo snapshot non è istantaneo: le modifiche fatte durante la copia arrivano comunque con il log e vengono applicate
+ * solo se più recenti (versioni), quindi l'ordine tra copia e log non conta. Un file grande che cambia durante il
+ * download (versione diversa alla fine) viene scartato: il contenuto nuovo arriva con il log.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class Bootstrap {
+
+	/**
+	 * Operazioni sul ServerReplica che esegue il bootstrap.
+	 */
+	interface Target {
+
+		/** Manifest del contenuto locale */
+		List<SnapshotEntry> getManifest() throws IOException, DfsException;
+
+		long getVersion(String path);
+
+		Path createTempFile() throws IOException;
+
+		/** Installa il path se la versione locale non è più recente (content è null per directory ed eliminazioni) */
+		void install(String path, long version, MerkleEntry.Kind kind, Path content) throws IOException;
+
+		/** Elimina il path se il log non l'ha mai modificato (versione 0) */
+		void removeIfUntouched(String path) throws IOException;
+
+		/** true se il ServerReplica replicaId deve tenere il path (posizionamento) */
+		boolean stores(int replicaId, String path, MerkleEntry.Kind kind);
+
+	}
+
+	private static final long CATCH_UP_POLL_MILLIS = 100;
+	private static final int ARCHIVE_MAX_FILES = 10000;
+	private static final int ARCHIVE_BUFFER_SIZE = 64 * 1024;
+
+	private final int replicaId;
+	private final Target target;
+
+	private final AtomicLong copiedFiles = new AtomicLong();
+	private final AtomicLong copiedBytes = new AtomicLong();
+
+	public Bootstrap(int replicaId, Target target) {
+		this.replicaId = replicaId;
+		this.target = target;
+	}
+
+	/**
+	 * @param peers riferimenti agli altri ServerReplica
+	 * @return id del primo ServerReplica pronto (da cui copiare lo snapshot), -1 se nessuno è pronto
+	 */
+	public static int findSource(ServerReplicaInterface[] peers) {
+
+		for (int i=0; i<peers.length; i++) {
+			if (peers[i] == null) { continue; }
+			try {
+				if (peers[i].isAlive()) { return i; }
+			}
+			catch (RemoteException e) { }   // non raggiungibile: provo il successivo
+		}
+		return -1;
+
+	}
+
+	/**
+	 * @param peers riferimenti agli altri ServerReplica
+	 * @return id di tutti i ServerReplica pronti
+	 */
+	public static int[] findSources(ServerReplicaInterface[] peers) {
+
+		List<Integer> sources = new ArrayList<Integer>();
+		for (int i=0; i<peers.length; i++) {
+			if (peers[i] == null) { continue; }
+			try {
+				if (peers[i].isAlive()) { sources.add(i); }
+			}
+			catch (RemoteException e) { }   // non raggiungibile
+		}
+		return sources.stream().mapToInt(Integer::intValue).toArray();
+
+	}
+
+	/**
+	 * Esecuzione del bootstrap.
+	 *
+	 * @param peers riferimenti agli altri ServerReplica
+	 * @param sourceId ServerReplica da cui copiare lo snapshot
+	 *
+	 * @throws IOException Generata se la copia non è riuscita (il contenuto già copiato resta e non verrà ricopiato)
+	 * @throws DfsException Generata se il ServerReplica sorgente non riesce a preparare lo snapshot
+	 */
+	public void run(ServerReplicaInterface[] peers, int sourceId) throws IOException, DfsException {
+
+		long start = System.nanoTime();
+		ServerReplicaInterface source = peers[sourceId];
+
+		// 1. posizione dei log di replicazione (-1: ServerReplica non raggiungibile, non viene atteso)
+		long[] logPositions = new long[peers.length];
+		Arrays.fill(logPositions, -1);
+		for (int i=0; i<peers.length; i++) {
+			if (peers[i] == null) { continue; }
+			try { logPositions[i] = peers[i].getReplicationPosition(replicaId)[0]; }
+			catch (RemoteException e) { }
+		}
+
+		// 2. confronto del manifest con il contenuto locale
+		List<SnapshotEntry> manifest = source.getSnapshotManifest();
+		Map<String, SnapshotEntry> local = new HashMap<String, SnapshotEntry>();
+		for (SnapshotEntry entry: target.getManifest()) {
+			if (entry.getKind() != MerkleEntry.Kind.DELETED) { local.put(entry.getPath(), entry); }
+		}
+
+		Set<String> remotePaths = new HashSet<String>();
+		List<SnapshotEntry> toFetch = new ArrayList<SnapshotEntry>();
+		List<SnapshotEntry> deleted = new ArrayList<SnapshotEntry>();
+		for (SnapshotEntry entry: manifest) {
+			remotePaths.add(entry.getPath());
+			switch (entry.getKind()) {
+				case DIRECTORY:
+					// il manifest elenca ogni directory prima del suo contenuto
+					target.install(entry.getPath(), entry.getVersion(), MerkleEntry.Kind.DIRECTORY, null);
+					break;
+				case FILE:
+					if (target.stores(replicaId, entry.getPath(), entry.getKind()) && needsFetch(entry, local.get(entry.getPath()))) { 
+						toFetch.add(entry); 
+					}
+					break;
+				case DELETED:
+					if (target.stores(replicaId, entry.getPath(), entry.getKind())) { deleted.add(entry); }
+					break;
+			}
+		}
+
+		// 3. copia in parallelo di archivi di file piccoli e intervalli di file grandi
+		ExecutorService pool = Executors.newFixedThreadPool(Configs.BOOTSTRAP_PARALLELISM, r -> {
+			Thread t = new Thread(r, "bootstrap-transfer");
+			t.setDaemon(true);
+			return t;
+		});
+		List<Future<?>> transfers = new ArrayList<Future<?>>();
+		try {
+			List<String> archive = new ArrayList<String>();
+			long archiveBytes = 0;
+			for (SnapshotEntry entry: toFetch) {
+				if (entry.getSize() > Configs.BOOTSTRAP_SMALL_FILE_BYTES) {
+					submitLargeFile(pool, transfers, source, entry);
+					continue;
+				}
+				archive.add(entry.getPath());
+				archiveBytes += entry.getSize();
+				if (archiveBytes >= Configs.BOOTSTRAP_CHUNK_BYTES || archive.size() >= ARCHIVE_MAX_FILES) {
+					List<String> paths = archive;
+					transfers.add(pool.submit(() -> { copyArchive(source, paths); return null; }));
+					archive = new ArrayList<String>();
+					archiveBytes = 0;
+				}
+			}
+			if (!archive.isEmpty()) {
+				List<String> paths = archive;
+				transfers.add(pool.submit(() -> { copyArchive(source, paths); return null; }));
+			}
+
+			IOException failure = null;
+			for (Future<?> transfer: transfers) {
+				try { transfer.get(); }
+				catch (ExecutionException e) {
+					if (failure == null) { failure = new IOException("Errore: copia dello snapshot non riuscita: "+e.getCause(), e.getCause()); }
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Errore: bootstrap interrotto");
+				}
+			}
+			if (failure != null) { throw failure; }
+		}
+		finally {
+			pool.shutdownNow();
+		}
+
+		// 4. eliminazioni e path locali che non ci sono più (prima il contenuto, poi le directory)
+		for (SnapshotEntry entry: deleted) {
+			target.install(entry.getPath(), entry.getVersion(), MerkleEntry.Kind.DELETED, null);
+		}
+		List<String> extra = new ArrayList<String>();
+		for (SnapshotEntry entry: local.values()) {
+			if (!remotePaths.contains(entry.getPath()) && target.stores(sourceId, entry.getPath(), entry.getKind())) { 
+				extra.add(entry.getPath()); 
+			}
+		}
+		Collections.sort(extra, Collections.reverseOrder());
+		for (String path: extra) { target.removeIfUntouched(path); }
+
+		// 5. recupero dal log
+		catchUp(peers, logPositions);
+
+		System.out.println("Bootstrap dal ServerReplica "+sourceId+" completato: "+copiedFiles.get()+" file ("
+				+copiedBytes.get()+" byte) copiati in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)+" ms");
+
+	}
+
+	/**
+	 * Un file va copiato se la versione locale non è più recente e il contenuto può essere diverso: con la stessa
+	 * versione (anche 0, cioè mai modificato dopo l'avvio) e la stessa dimensione il file locale viene tenuto.
+	 */
+	private boolean needsFetch(SnapshotEntry remote, SnapshotEntry local) {
+
+		long localVersion = target.getVersion(remote.getPath());
+		if (localVersion > remote.getVersion()) { return false; }
+		return !(localVersion == remote.getVersion() && local != null && local.getKind() == MerkleEntry.Kind.FILE
+				&& local.getSize() == remote.getSize());
+
+	}
+
+	/**
+	 * Copia di un archivio di file piccoli: il ServerReplica sorgente invia, per ogni path, path, versione, lunghezza
+	 * (-1 se nel frattempo non è più un file) e contenuto, letti insieme tenendo il monitor del path; un path vuoto
+	 * chiude il flusso.
+	 */
+	private void copyArchive(ServerReplicaInterface source, List<String> paths) throws IOException, DfsException {
+
+		TransferTicket ticket = source.openSnapshotTransfer(paths);
+		byte[] buffer = new byte[ARCHIVE_BUFFER_SIZE];
+
+		try (SocketChannel socket = DataTransfer.connect(ticket);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(socket), ARCHIVE_BUFFER_SIZE))) {
+			while (true) {
+
+				String path = in.readUTF();
+				if (path.isEmpty()) { return; }
+				long version = in.readLong();
+				int length = in.readInt();
+				if (length < 0) { continue; }   // arriverà con il log
+
+				Path tmpFile = target.createTempFile();
+				try {
+					try (OutputStream out = Files.newOutputStream(tmpFile)) {
+						for (int remaining = length; remaining > 0; ) {
+							int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+							if (n < 0) { throw new IOException("Errore: il data server ha chiuso la connessione"); }
+							out.write(buffer, 0, n);
+							remaining -= n;
+						}
+					}
+					target.install(path, version, MerkleEntry.Kind.FILE, tmpFile);
+					copiedFiles.incrementAndGet();
+					copiedBytes.addAndGet(length);
+				}
+				finally {
+					Files.deleteIfExists(tmpFile);
+				}
+
+			}
+		}
+
+	}
+
+	/**
+	 * Copia di un file grande: ogni intervallo viene scaricato in parallelo nello stesso file temporaneo; l'ultimo
+	 * intervallo completato installa il file se nel ServerReplica sorgente ha ancora la versione del manifest.
+	 */
+	private void submitLargeFile(ExecutorService pool, List<Future<?>> transfers, ServerReplicaInterface source,
+			SnapshotEntry entry) throws IOException {
+
+		// il file temporaneo ha già la dimensione finale: ogni intervallo può essere scritto nella sua posizione
+		Path tmpFile = target.createTempFile();
+		try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(1), entry.getSize() - 1);
+		}
+		int numRanges = (int) ((entry.getSize() + Configs.BOOTSTRAP_CHUNK_BYTES - 1) / Configs.BOOTSTRAP_CHUNK_BYTES);
+		AtomicInteger remaining = new AtomicInteger(numRanges);
+
+		for (int r=0; r<numRanges; r++) {
+			long offset = r * Configs.BOOTSTRAP_CHUNK_BYTES;
+			long length = Math.min(Configs.BOOTSTRAP_CHUNK_BYTES, entry.getSize() - offset);
+			transfers.add(pool.submit(() -> {
+				try {
+					TransferTicket ticket = source.openReadTransfer(entry.getPath(), offset, length);
+					try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+						DataTransfer.download(ticket, channel, offset);
+					}
+					if (remaining.decrementAndGet() == 0) {
+						if (source.getVersion(entry.getPath()) == entry.getVersion()) {
+							target.install(entry.getPath(), entry.getVersion(), MerkleEntry.Kind.FILE, tmpFile);
+							copiedFiles.incrementAndGet();
+							copiedBytes.addAndGet(entry.getSize());
+						}
+						Files.deleteIfExists(tmpFile);
+					}
+				}
+				catch (IOException | DfsException | RuntimeException e) {
+					// un intervallo fallito rende inutile il file temporaneo
+					remaining.set(-1);
+					Files.deleteIfExists(tmpFile);
+					throw e;
+				}
+				return null;
+			}));
+		}
+
+	}
+
+	/**
+	 * Attesa che ogni ServerReplica raggiungibile all'inizio abbia consegnato il proprio log fino alla posizione letta
+	 * prima della copia (al massimo Configs.BOOTSTRAP_CATCHUP_TIMEOUT_MILLIS in tutto).
+	 */
+	private void catchUp(ServerReplicaInterface[] peers, long[] logPositions) throws IOException {
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Configs.BOOTSTRAP_CATCHUP_TIMEOUT_MILLIS);
+		for (int i=0; i<peers.length; i++) {
+			if (logPositions[i] < 0) { continue; }
+			while (true) {
+				long acked;
+				try { acked = peers[i].getReplicationPosition(replicaId)[1]; }
+				catch (RemoteException e) { break; }   // non più raggiungibile: le operazioni arriveranno quando torna
+				if (acked >= logPositions[i]) { break; }
+				if (System.nanoTime() - deadline > 0) {
+					System.out.println("Bootstrap: il ServerReplica "+i+" non ha ancora consegnato il log fino a "+logPositions[i]);
+					break;
+				}
+				try { Thread.sleep(CATCH_UP_POLL_MILLIS); }
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Errore: bootstrap interrotto");
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,163 @@
+package server.replica;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import common.Configs;
+
+/**
+ * Replicazione a catena (Configs.REPLICATION_MODE = "chain") di un ServerReplica.
+ *
+ * L'ordine della catena è deciso dal ServerMaster (ReplicaChain) e comunicato con setChain: le scritture entrano dalla
+ * testa e ogni ServerReplica, dopo averle applicate, le inoltra solo al proprio successore con un log di replicazione
+ * dedicato e un solo PeerReplicator. Ogni ServerReplica invia quindi il contenuto una volta sola, invece di N-1 volte
+ * come la testa nella replicazione a stella.
+ *
+ * Un batch ricevuto dal predecessore viene confermato solo dopo che il successore l'ha confermato a sua volta
+ * (awaitForwarded): la conferma parte dalla coda e risale la catena, quindi quando la testa la riceve la scrittura è
+ * su tutti i ServerReplica e le letture dalla coda la vedono.
+ *
+ * Riparazione: quando il successore cambia (ServerReplica caduto o aggiunto in coda) il PeerReplicator viene
+ * reindirizzato e invia di nuovo tutto quello che il log non ha ancora eliminato; gli elementi vengono eliminati solo
+ * quando il successore li conferma, quindi il nuovo successore riceve tutto quello che il vecchio potrebbe non aver
+ * inoltrato. La coda non ha successore e tiene nel log le ultime operazioni (fino a Configs.REPLICATION_LOG_MAX e
+ * Configs.REPLICATION_LOG_MAX_BYTES), che vengono inviate al ServerReplica che si aggiunge dopo di lei.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class ChainReplicator {
+
+	private final int replicaId;
+	private final ReplicationLog log = new ReplicationLog(Configs.REPLICATION_LOG_MAX, Configs.REPLICATION_LOG_MAX_BYTES,
+			Configs.REPLICATION_LOG_FULL_WAIT_MILLIS);
+	private final PeerReplicator replicator;
+
+	// protetti dal monitor dell'istanza
+	private long epoch = -1;
+	private int[] chain = null;
+	private int successor = -1;
+
+	/**
+	 * @param replicaId id di questo ServerReplica
+	 * @param stager preparazione delle operazioni PUT_FILE (come per la replicazione a stella)
+	 */
+	public ChainReplicator(int replicaId, PeerReplicator.Stager stager) {
+
+		this.replicaId = replicaId;
+		this.replicator = new PeerReplicator(-1, replicaId, null, log, stager, null);
+
+	}
+
+	/**
+	 * Nuova configurazione della catena (ignorata se non è più recente di quella attuale).
+	 *
+	 * @param epoch numero della configurazione (crescente)
+	 * @param chain id dei ServerReplica dalla testa alla coda
+	 * @param successorRef riferimento remoto al successore di questo ServerReplica nella nuova catena (null se non c'è)
+	 *
+	 * @return true se la configurazione è stata applicata
+	 */
+	public synchronized boolean setChain(long epoch, int[] chain, ServerReplicaInterface successorRef) {
+
+		if (epoch <= this.epoch) { return false; }
+		this.epoch = epoch;
+		this.chain = chain;
+
+		// un ServerReplica riavviato rientra in coda, quindi cambia sempre almeno un successore; se invece il riferimento
+		// è solo scaduto ci pensa il lookup del PeerReplicator
+		int newSuccessor = successorOf(chain, replicaId);
+		if (newSuccessor != successor) {
+			System.out.println("Catena "+Arrays.toString(chain)+": successore "+successor+" -> "+newSuccessor);
+			successor = newSuccessor;
+			replicator.retarget(newSuccessor, successorRef);
+		}
+		return true;
+
+	}
+
+	/**
+	 * @return id del successore di replicaId nella catena, -1 se è la coda o non ne fa parte
+	 */
+	public static int successorOf(int[] chain, int replicaId) {
+
+		for (int i=0; i<chain.length - 1; i++) {
+			if (chain[i] == replicaId) { return chain[i + 1]; }
+		}
+		return -1;
+
+	}
+
+	/**
+	 * @param peerId ServerReplica successore
+	 * @return numero di sequenza dell'ultima operazione aggiunta al log e dell'ultima confermata da peerId (-1 se peerId
+	 * 			non è il successore attuale)
+	 */
+	public synchronized long[] getPosition(int peerId) {
+
+		if (peerId != successor) { return new long[] { log.getLastSeq(), -1 }; }
+		return log.getPosition(peerId);
+
+	}
+
+	/**
+	 * @return true se la catena è già stata comunicata dal ServerMaster
+	 */
+	public synchronized boolean isConfigured() {
+		return chain != null;
+	}
+
+	/**
+	 * Aggiunge al log della catena un' operazione ricevuta dal predecessore (la conferma viene attesa per tutto il 
+	 * batch con awaitForwarded).
+	 */
+	public void append(ReplicationOp op) {
+		log.append(op);
+	}
+
+	/**
+	 * Aggiunge al log della catena un' operazione eseguita da questo ServerReplica (testa della catena).
+	 *
+	 * @return risultati dell'operazione: applied è completato quando la coda l'ha applicata (subito se questo
+	 * 			ServerReplica è la coda)
+	 */
+	public PeerReplicator.Task forward(ReplicationOp op) {
+
+		synchronized (log) {
+			return replicator.track(log.append(op));
+		}
+
+	}
+
+	/**
+	 * Attende che il successore abbia confermato tutte le operazioni inoltrate finora (usato prima di confermare un
+	 * batch al predecessore).
+	 *
+	 * @param timeoutMillis attesa massima
+	 *
+	 * @throws RemoteException Generata se il successore non conferma entro il timeout: il predecessore invierà di nuovo
+	 * 			il batch (le operazioni già applicate vengono saltate)
+	 */
+	public void awaitForwarded(long timeoutMillis) throws RemoteException {
+
+		PeerReplicator.Task task;
+		synchronized (log) {
+			task = replicator.track(log.getLastSeq());
+		}
+
+		try { task.getApplied().get(timeoutMillis, TimeUnit.MILLISECONDS); }
+		catch (ExecutionException e) { }   // l'errore del successore è già stato segnalato da PeerReplicator
+		catch (TimeoutException e) {
+			throw new RemoteException("Errore: il successore nella catena non ha confermato le operazioni");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Errore: attesa della catena interrotta");
+		}
+
+	}
+
+}
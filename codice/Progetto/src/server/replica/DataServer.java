@@ -0,0 +1,194 @@
+package server.replica;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import common.DataTransfer;
+import common.TransferTicket;
+
+/**
+ * Canale dati di un ServerReplica: server TCP (NIO, bloccante) usato per trasferire il contenuto dei file senza
+ * passare da RMI.
+ *
+ * Il trasferimento viene prima preparato con una chiamata RMI, che registra qui la richiesta e restituisce un
+ * TransferTicket; il client si connette poi al data server presentando il token (vedi DataTransfer per il protocollo).
+ * Le letture sono servite con FileChannel.transferTo, le scritture ricevute con FileChannel.transferFrom nel file
+ * temporaneo di una sessione di scrittura.
+ * I trasferimenti a flusso (registerStream, usati per gli snapshot del bootstrap) scrivono invece sul socket quello che
+ * produce il loro StreamWriter, senza una lunghezza nota in anticipo.
+ *
+ * I token sono validi una sola volta; quelli non usati entro il tempo indicato in expire() vengono eliminati.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class DataServer {
+
+	/**
+	 * Produttore del contenuto di un trasferimento a flusso.
+	 */
+	interface StreamWriter {
+		void writeTo(SocketChannel socket) throws IOException;
+	}
+
+	/**
+	 * Trasferimento registrato e non ancora eseguito.
+	 */
+	private static class Transfer {
+
+		private final Path file;              // lettura: file da inviare
+		private final WriteSession session;   // scrittura: sessione in cui scrivere
+		private final StreamWriter writer;    // flusso: produttore del contenuto
+		private final long offset;
+		private final long length;
+		private final long createdNanos = System.nanoTime();
+
+		private Transfer(Path file, WriteSession session, StreamWriter writer, long offset, long length) {
+			this.file = file;
+			this.session = session;
+			this.writer = writer;
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+	private final int port;
+	private final ServerSocketChannel serverSocket;
+	private final ExecutorService workers;
+	private final ConcurrentHashMap<String, Transfer> transfers = new ConcurrentHashMap<String, Transfer>();
+
+	/**
+	 * Apre la porta e avvia il thread che accetta le connessioni.
+	 *
+	 * @param port porta su cui ascoltare
+	 * @param numThreads numero massimo di trasferimenti contemporanei
+	 *
+	 * @throws IOException Generata se non è possibile aprire la porta
+	 */
+	public DataServer(int port, int numThreads) throws IOException {
+
+		this.port = port;
+		serverSocket = ServerSocketChannel.open();
+		serverSocket.bind(new InetSocketAddress(port));
+
+		workers = Executors.newFixedThreadPool(numThreads, r -> {
+			Thread t = new Thread(r, "data-server-"+port);
+			t.setDaemon(true);
+			return t;
+		});
+
+		Thread acceptor = new Thread(this::accept, "data-server-"+port+"-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+	}
+
+	/**
+	 * Registra la lettura di length byte di file a partire da offset.
+	 */
+	public TransferTicket registerRead(Path file, long offset, long length) {
+		return register(new Transfer(file, null, null, offset, length));
+	}
+
+	/**
+	 * Registra la scrittura di length byte nella sessione a partire da offset.
+	 */
+	public TransferTicket registerWrite(WriteSession session, long offset, long length) {
+		return register(new Transfer(null, session, null, offset, length));
+	}
+
+	/**
+	 * Registra un trasferimento a flusso: il contenuto è scritto da writer (la lunghezza del ticket è -1).
+	 */
+	public TransferTicket registerStream(StreamWriter writer) {
+		return register(new Transfer(null, null, writer, 0, -1));
+	}
+
+	private TransferTicket register(Transfer transfer) {
+
+		String token = UUID.randomUUID().toString();
+		transfers.put(token, transfer);
+		return new TransferTicket(token, port, transfer.length);
+
+	}
+
+	/**
+	 * Elimina i token registrati da più di maxAgeMillis e non ancora usati.
+	 */
+	public void expire(long maxAgeMillis) {
+
+		long limit = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+		transfers.values().removeIf(transfer -> transfer.createdNanos - limit < 0);
+
+	}
+
+	/**
+	 * Ciclo di accettazione: ogni connessione viene servita da un thread del pool.
+	 */
+	private void accept() {
+
+		while (true) {
+			try {
+				SocketChannel socket = serverSocket.accept();
+				workers.execute(() -> serve(socket));
+			}
+			catch (ClosedChannelException e) { return; }
+			catch (IOException e) { }   // connessione fallita durante l'accept: continuo con le altre
+		}
+
+	}
+
+	/**
+	 * Legge il token ed esegue il trasferimento corrispondente.
+	 */
+	private void serve(SocketChannel socket) {
+
+		try {
+
+			ByteBuffer tokenBuffer = ByteBuffer.allocate(DataTransfer.TOKEN_LENGTH);
+			while (tokenBuffer.hasRemaining()) {
+				if (socket.read(tokenBuffer) < 0) { return; }
+			}
+			Transfer transfer = transfers.remove(new String(tokenBuffer.array(), StandardCharsets.US_ASCII));
+			if (transfer == null) { return; }   // token non valido o scaduto: chiudo la connessione
+
+			if (transfer.writer != null) {
+				transfer.writer.writeTo(socket);
+			}
+			else if (transfer.session == null) {
+				try (FileChannel channel = FileChannel.open(transfer.file, StandardOpenOption.READ)) {
+					DataTransfer.send(channel, transfer.offset, transfer.length, socket);
+				}
+			}
+			else {
+				byte ack = DataTransfer.ACK_OK;
+				try { transfer.session.receive(socket, transfer.offset, transfer.length); }
+				catch (IOException e) { ack = DataTransfer.ACK_ERROR; }
+				ByteBuffer ackBuffer = ByteBuffer.wrap(new byte[] { ack });
+				while (ackBuffer.hasRemaining()) { socket.write(ackBuffer); }
+			}
+
+		}
+		catch (IOException e) { }   // il client vedrà la connessione chiusa prima della fine
+		finally {
+			try { socket.close(); }
+			catch (IOException e) { }
+		}
+
+	}
+
+}
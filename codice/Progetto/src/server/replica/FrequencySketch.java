@@ -0,0 +1,87 @@
+package server.replica;
+
+/**
+ * Stima approssimata della frequenza di accesso degli elementi (count-min sketch), usata dalla BlockCache per decidere
+ * se un nuovo blocco merita di prendere il posto di quello che verrebbe eliminato (politica di ammissione TinyLFU).
+ *
+ * I contatori sono saturati a 15 e, dopo un numero di incrementi pari a 10 volte la capacità della cache, vengono tutti
+ * dimezzati: così la stima segue i cambiamenti del carico invece di ricordare per sempre gli accessi passati.
+ *
+ * Non è thread safe: la BlockCache lo usa solo all'interno del monitor della stripe a cui appartiene.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+	private final int[][] counters;
+	private final int mask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param capacity numero (stimato) di elementi che la cache può contenere
+	 */
+	public FrequencySketch(int capacity) {
+
+		int width = Integer.highestOneBit(Math.max(capacity, 64) * 4 - 1) << 1;
+		counters = new int[DEPTH][width];
+		mask = width - 1;
+		sampleSize = 10 * Math.max(capacity, 64);
+
+	}
+
+	private int index(int hash, int row) {
+
+		int h = (hash ^ SEEDS[row]) * 0x9E3779B1;
+		return (h ^ (h >>> 16)) & mask;
+
+	}
+
+	/**
+	 * Registra un accesso all'elemento.
+	 */
+	public void increment(int hash) {
+
+		boolean added = false;
+		for (int row=0; row<DEPTH; row++) {
+			int i = index(hash, row);
+			if (counters[row][i] < MAX_COUNT) {
+				counters[row][i]++;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) { reset(); }
+
+	}
+
+	/**
+	 * @return frequenza stimata dell'elemento (per eccesso)
+	 */
+	public int frequency(int hash) {
+
+		int frequency = MAX_COUNT;
+		for (int row=0; row<DEPTH; row++) {
+			frequency = Math.min(frequency, counters[row][index(hash, row)]);
+		}
+		return frequency;
+
+	}
+
+	/**
+	 * Dimezza tutti i contatori.
+	 */
+	private void reset() {
+
+		for (int[] row: counters) {
+			for (int i=0; i<row.length; i++) { row[i] >>>= 1; }
+		}
+		additions /= 2;
+
+	}
+
+}
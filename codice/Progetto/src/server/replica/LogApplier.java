@@ -0,0 +1,118 @@
+package server.replica;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import common.DfsException;
+
+/**
+ * Applicazione dei batch del log di replicazione ricevuti dagli altri ServerReplica.
+ *
+ * Per ogni ServerReplica di origine viene tenuto il numero di sequenza dell'ultima operazione applicata: le operazioni
+ * di uno stesso ServerReplica vengono applicate una alla volta e nell'ordine del suo log, quelle già applicate (batch
+ * inviati di nuovo dopo un errore di connessione) vengono saltate.
+ *
+ * Il mittente può avere più batch in viaggio contemporaneamente: se un batch arriva prima di quello precedente, attende
+ * (al massimo timeoutMillis) che il precedente sia applicato. Se l'attesa scade il batch non viene applicato e la
+ * risposta lo dice al mittente, che lo invierà di nuovo.
+ *
+ * Ogni batch porta baseSeq, il numero di sequenza fino a cui il mittente sa che le operazioni sono state applicate
+ * (oppure eliminate dal suo log): così un log nuovo (ServerReplica di origine riavviato) o un ServerReplica appena
+ * avviato ripartono dal punto giusto senza attendere operazioni che non arriveranno più.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class LogApplier {
+
+	/**
+	 * Applicazione di una singola operazione.
+	 */
+	interface Applier {
+		void apply(ReplicationOp op) throws RemoteException, DfsException;
+	}
+
+	/**
+	 * Stato di un ServerReplica di origine (protetto dal proprio monitor).
+	 */
+	private static class Source {
+		private String logId;
+		private long appliedSeq;
+	}
+
+	private final Applier applier;
+	private final long timeoutNanos;
+	private final ConcurrentHashMap<Integer, Source> sources = new ConcurrentHashMap<Integer, Source>();
+
+	public LogApplier(Applier applier, long timeoutMillis) {
+		this.applier = applier;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Applica un batch del log di un altro ServerReplica.
+	 *
+	 * @param logId identificativo del log di origine
+	 * @param sourceId id del ServerReplica di origine
+	 * @param baseSeq numero di sequenza fino a cui il mittente sa che le operazioni sono già state applicate
+	 * @param entries elementi consecutivi del log
+	 *
+	 * @return ultimo numero di sequenza applicato ed errori delle operazioni non applicabili
+	 *
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	public ReplicationAck apply(String logId, int sourceId, long baseSeq, List<LogEntry> entries) throws RemoteException {
+
+		Source source = sources.computeIfAbsent(sourceId, id -> new Source());
+
+		synchronized (source) {
+
+			if (!logId.equals(source.logId)) {
+				source.logId = logId;
+				source.appliedSeq = baseSeq;
+			} else {
+				source.appliedSeq = Math.max(source.appliedSeq, baseSeq);
+			}
+
+			if (entries.isEmpty()) { return new ReplicationAck(source.appliedSeq); }
+
+			// attendo i batch precedenti ancora in viaggio
+			long firstSeq = entries.get(0).getSeq();
+			long deadline = System.nanoTime() + timeoutNanos;
+			while (firstSeq > source.appliedSeq + 1 && logId.equals(source.logId)) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) { break; }
+				try { TimeUnit.NANOSECONDS.timedWait(source, remaining); }
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (!logId.equals(source.logId)) { return new ReplicationAck(0); }
+
+			Map<Long, String> errors = new HashMap<Long, String>();
+			try {
+				for (LogEntry entry: entries) {
+					if (entry.getSeq() <= source.appliedSeq) { continue; }
+					if (entry.getSeq() != source.appliedSeq + 1) { break; }
+					try { 
+						if (entry.getOp() != null) { applier.apply(entry.getOp()); }
+					}
+					catch (DfsException e) { errors.put(entry.getSeq(), e.getMessage()); }
+					source.appliedSeq = entry.getSeq();
+				}
+			}
+			finally {
+				source.notifyAll();
+			}
+			return new ReplicationAck(source.appliedSeq, errors);
+
+		}
+
+	}
+
+}
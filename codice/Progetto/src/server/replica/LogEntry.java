@@ -0,0 +1,54 @@
+package server.replica;
+
+import java.io.Serializable;
+
+/**
+ * Elemento del log di replicazione di un ServerReplica: operazione e relativo numero di sequenza.
+ *
+ * Con il posizionamento a consistent hashing le operazioni sui file che il destinatario non tiene vengono inviate
+ * senza operazione (op null): il destinatario avanza solo il numero di sequenza.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class LogEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long seq;
+	private final ReplicationOp op;
+
+	public LogEntry(long seq, ReplicationOp op) {
+		this.seq = seq;
+		this.op = op;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public ReplicationOp getOp() {
+		return op;
+	}
+
+	/**
+	 * @return dimensione indicativa dell'elemento, usata per limitare i byte di un batch
+	 */
+	public long getSize() {
+		return sizeOf(op);
+	}
+
+	private static long sizeOf(ReplicationOp op) {
+
+		if (op == null) { return 0; }
+		if (op.getOps() != null) {
+			long size = 0;
+			for (ReplicationOp sub: op.getOps()) { size += sizeOf(sub); }
+			return size;
+		}
+		if (op.getDelta() != null) { return op.getDelta().getSize(); }
+		return (op.getContent() != null) ? op.getContent().length : 0;
+
+	}
+
+}
@@ -0,0 +1,171 @@
+package server.replica;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache dei file grandi mappati in memoria (MappedByteBuffer), usata dal ServerReplica per servire le letture senza
+ * allocare ogni volta un array grande quanto il file: una lettura a partire da un offset è una slice della mappatura,
+ * restituita in un FileContent che la serializza direttamente verso il client senza copiarla in un array.
+ *
+ * Sono mappati solo i file di almeno minFileBytes (quelli più piccoli passano dalla BlockCache) e al massimo di
+ * Integer.MAX_VALUE byte (limite di una singola mappatura); i file mappati sono al massimo maxFiles, eliminati in ordine
+ * LRU. Java non permette di rilasciare esplicitamente una mappatura: quella eliminata viene rilasciata dal GC quando
+ * nessuna lettura la usa più.
+ *
+ * Una mappatura è valida finchè dimensione e data di modifica del file non cambiano. Il ServerReplica inoltre:
+ * 		- sostituisce i file scritti per intero con uno spostamento atomico (scrittura su file temporaneo e rename), così
+ * 		  una mappatura ancora in uso punta sempre al file precedente, che non viene troncato;
+ * 		- chiama invalidate(path) dopo ogni modifica, così la lettura successiva mappa il nuovo contenuto.
+ * Una mappatura fatta mentre il file veniva modificato non viene tenuta: ogni invalidazione incrementa la generazione
+ * del gruppo di path (per hash) del file, quindi una modifica non impedisce di tenere le mappature degli altri file.
+ *
+ * Se il file viene sostituito tra la lettura degli attributi e la mappatura, la lettura viene ripetuta sul nuovo file;
+ * se cambia ancora, get ritorna null e il ServerReplica legge il file senza mappatura.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class MappingCache {
+
+	/**
+	 * File mappato, con dimensione e data di modifica al momento della mappatura.
+	 */
+	private static class Mapping {
+
+		private final MappedByteBuffer buffer;
+		private final long size;
+		private final FileTime lastModified;
+
+		private Mapping(MappedByteBuffer buffer, long size, FileTime lastModified) {
+			this.buffer = buffer;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+	}
+
+	/**
+	 * Il file letto non è più quello di cui sono stati letti gli attributi.
+	 */
+	private static class FileChangedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+	private static final int GENERATION_STRIPES = 64;
+
+	private final int maxFiles;
+	private final long minFileBytes;
+
+	// protetti dal monitor dell'istanza
+	private final LinkedHashMap<String, Mapping> mappings;
+	private final long[] generations = new long[GENERATION_STRIPES];
+
+	/**
+	 * @param maxFiles numero massimo di file mappati (0 per disattivare la cache)
+	 * @param minFileBytes dimensione minima dei file da mappare
+	 */
+	public MappingCache(int maxFiles, long minFileBytes) {
+
+		this.maxFiles = maxFiles;
+		this.minFileBytes = minFileBytes;
+		this.mappings = new LinkedHashMap<String, Mapping>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Mapping> eldest) {
+				return size() > maxFiles;
+			}
+		};
+
+	}
+
+	private static int stripe(String path) {
+		return (path.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+	}
+
+	/**
+	 * Mappatura del file, se il file è abbastanza grande da essere mappato.
+	 *
+	 * @param file file su disco
+	 * @param path path del file nel filesystem distribuito (chiave della cache)
+	 *
+	 * @return buffer in sola lettura con tutto il contenuto del file (posizione 0), null se il file non va mappato
+	 * 			(oppure se è cambiato due volte durante la mappatura)
+	 *
+	 * @throws IOException Generata se non è possibile leggere o mappare il file
+	 */
+	public ByteBuffer get(Path file, String path) throws IOException {
+
+		if (maxFiles <= 0) { return null; }
+
+		for (int attempt=0; ; attempt++) {
+			try { return map(file, path); }
+			catch (FileChangedException | NoSuchFileException e) {
+				// file sostituito durante la mappatura: riprovo una volta con il nuovo file
+				if (attempt > 0) {
+					if (e instanceof NoSuchFileException) { throw (NoSuchFileException) e; }
+					return null;
+				}
+			}
+		}
+
+	}
+
+	private ByteBuffer map(Path file, String path) throws IOException {
+
+		int stripe = stripe(path);
+		long startGeneration;
+		synchronized (this) { startGeneration = generations[stripe]; }
+
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		long size = attributes.size();
+		if (size < minFileBytes || size > Integer.MAX_VALUE) { return null; }
+
+		synchronized (this) {
+			Mapping mapping = mappings.get(path);
+			if (mapping != null && mapping.size == size && mapping.lastModified.equals(attributes.lastModifiedTime())) {
+				return mapping.buffer.asReadOnlyBuffer();
+			}
+		}
+
+		// mappatura fuori dal monitor: due letture contemporanee dello stesso file possono mapparlo entrambe.
+		// Gli attributi sono letti prima dell'apertura: se il file viene sostituito nel frattempo si mappa il contenuto 
+		// più recente con gli attributi precedenti (la lettura successiva lo mappa di nuovo), mai il contrario
+		Mapping mapping;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() != size) { throw new FileChangedException(); }
+			mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), size, attributes.lastModifiedTime());
+		}
+
+		synchronized (this) {
+			// se nel frattempo c'è stata una modifica, la mappatura potrebbe essere vecchia: la uso ma non la tengo
+			if (generations[stripe] == startGeneration) { mappings.put(path, mapping); }
+		}
+		return mapping.buffer.asReadOnlyBuffer();
+
+	}
+
+	/**
+	 * Elimina la mappatura del file. Da chiamare dopo ogni modifica del file.
+	 *
+	 * @param path path del file nel filesystem distribuito
+	 */
+	public synchronized void invalidate(String path) {
+		generations[stripe(path)]++;
+		mappings.remove(path);
+	}
+
+}
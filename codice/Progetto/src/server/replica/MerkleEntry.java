@@ -0,0 +1,48 @@
+package server.replica;
+
+import java.io.Serializable;
+
+/**
+ * Stato di un path in un MerkleTree: versione e tipo (file, directory oppure eliminato).
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class MerkleEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Kind {
+		FILE,
+		DIRECTORY,
+		DELETED
+	}
+
+	private final String path;
+	private final long version;
+	private final Kind kind;
+
+	public MerkleEntry(String path, long version, Kind kind) {
+		this.path = path;
+		this.version = version;
+		this.kind = kind;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	@Override
+	public String toString() {
+		return kind+" "+path+" v"+version;
+	}
+
+}
@@ -0,0 +1,142 @@
+package server.replica;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merkle tree sui path di un ServerReplica, usato dall'anti-entropy per trovare le differenze con un altro 
+ * ServerReplica scambiando pochi hash.
+ *
+ * I path sono distribuiti (in base all'hash del path) su FANOUT^depth foglie; ogni nodo ha FANOUT figli. L'hash di un
+ * nodo è lo XOR degli hash di tutti i path che stanno sotto di lui, dove l'hash di un path dipende da path, versione e 
+ * tipo (MerkleEntry): così ogni modifica aggiorna solo i depth + 1 nodi dalla foglia alla radice, senza ricalcolare 
+ * niente altro.
+ *
+ * Due ServerReplica con gli stessi path alle stesse versioni hanno la stessa radice; altrimenti basta scendere solo nei
+ * nodi diversi, un livello alla volta, fino alle foglie da confrontare path per path.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class MerkleTree {
+
+	public static final int FANOUT_BITS = 4;
+	public static final int FANOUT = 1 << FANOUT_BITS;
+
+	private final int depth;
+	private final long[][] levels;
+	private final Map<Integer, Map<String, MerkleEntry>> leaves = new HashMap<Integer, Map<String, MerkleEntry>>();
+
+	/**
+	 * @param depth livelli sotto la radice (FANOUT^depth foglie)
+	 */
+	public MerkleTree(int depth) {
+
+		this.depth = depth;
+		this.levels = new long[depth + 1][];
+		for (int level=0; level<=depth; level++) { levels[level] = new long[1 << (FANOUT_BITS * level)]; }
+
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Inserisce o aggiorna lo stato di un path.
+	 */
+	public synchronized void put(MerkleEntry entry) {
+
+		int leaf = leafOf(entry.getPath());
+		MerkleEntry old = leaves.computeIfAbsent(leaf, l -> new HashMap<String, MerkleEntry>()).put(entry.getPath(), entry);
+
+		long delta = hash(entry) ^ ((old != null) ? hash(old) : 0);
+		for (int level=depth; level>=0; level--) { levels[level][leaf >> (FANOUT_BITS * (depth - level))] ^= delta; }
+
+	}
+
+	/**
+	 * @return stato del path, null se non è nell'albero
+	 */
+	public synchronized MerkleEntry get(String path) {
+
+		Map<String, MerkleEntry> entries = leaves.get(leafOf(path));
+		return (entries == null) ? null : entries.get(path);
+
+	}
+
+	/**
+	 * @param level livello dei nodi (0 è la radice, depth le foglie)
+	 * @param nodes indici dei nodi nel livello
+	 * @return hash dei nodi
+	 */
+	public synchronized long[] getHashes(int level, int[] nodes) {
+
+		long[] hashes = new long[nodes.length];
+		for (int i=0; i<nodes.length; i++) { hashes[i] = levels[level][nodes[i]]; }
+		return hashes;
+
+	}
+
+	/**
+	 * @param leafNodes indici delle foglie
+	 * @return stato di tutti i path delle foglie
+	 */
+	public synchronized List<MerkleEntry> getEntries(int[] leafNodes) {
+
+		List<MerkleEntry> result = new ArrayList<MerkleEntry>();
+		for (int leaf: leafNodes) {
+			Map<String, MerkleEntry> entries = leaves.get(leaf);
+			if (entries != null) { result.addAll(entries.values()); }
+		}
+		return result;
+
+	}
+
+	/**
+	 * @return stato di tutti i path eliminati (usato per il manifest degli snapshot)
+	 */
+	public synchronized List<MerkleEntry> getDeleted() {
+
+		List<MerkleEntry> result = new ArrayList<MerkleEntry>();
+		for (Map<String, MerkleEntry> entries: leaves.values()) {
+			for (MerkleEntry entry: entries.values()) {
+				if (entry.getKind() == MerkleEntry.Kind.DELETED) { result.add(entry); }
+			}
+		}
+		return result;
+
+	}
+
+	private int leafOf(String path) {
+
+		int h = path.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h & (levels[depth].length - 1);
+
+	}
+
+	private static long hash(MerkleEntry entry) {
+
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			md.update((entry.getPath()+"\0"+entry.getVersion()+"\0"+entry.getKind()).getBytes(StandardCharsets.UTF_8));
+			byte[] digest = md.digest();
+			long h = 0;
+			for (int i=0; i<8; i++) { h = (h << 8) | (digest[i] & 0xff); }
+			return h;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);   // MD5 è sempre presente nella JVM
+		}
+
+	}
+
+}
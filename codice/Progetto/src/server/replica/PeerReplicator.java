@@ -0,0 +1,421 @@
+package server.replica;
+
+import java.rmi.Naming;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import common.Configs;
+import common.DfsException;
+
+/**
+ * Invio del log di replicazione a un altro ServerReplica (un PeerReplicator per ogni altro ServerReplica).
+ *
+ * Un thread dedicato legge il log a partire dall'ultima operazione inviata e la invia a batch (fino a 
+ * Configs.REPLICATION_BATCH_MAX_OPS operazioni o Configs.REPLICATION_BATCH_MAX_BYTES byte per chiamata): molte 
+ * operazioni piccole viaggiano così con una sola chiamata RMI. Fino a Configs.REPLICATION_PIPELINE_DEPTH batch possono 
+ * essere in viaggio contemporaneamente, senza attendere la risposta del precedente; il destinatario li applica 
+ * comunque nell'ordine del log (LogApplier) e risponde con il numero di sequenza dell'ultima operazione applicata.
+ *
+ * Se il ServerReplica non è raggiungibile (oppure non ha applicato tutto il batch) l'invio riparte dall'ultima 
+ * operazione confermata, con attesa crescente tra un tentativo e l'altro e rifacendo il lookup nel caso il 
+ * ServerReplica sia stato riavviato: così un ServerReplica tornato raggiungibile riceve tutte le modifiche che ha 
+ * perso, nello stesso ordine. Un ServerReplica non raggiungibile viene segnalato al log, che così non fa attendere chi
+ * scrive; se il log ha eliminato operazioni non ancora confermate, al ServerReplica viene chiesto (appena risponde) un
+ * anti-entropy con questo ServerReplica per recuperarle.
+ *
+ * Per ogni operazione di cui si vuole attendere la conferma (track) vengono restituiti due risultati (Task):
+ * 		- firstOutcome: true se l'operazione è stata applicata, false appena si sa che il ServerReplica non è
+ * 		  raggiungibile (l'operazione resta comunque nel log);
+ * 		- applied: completato quando l'operazione è stata applicata.
+ * Entrambi vengono completati con eccezione se il ServerReplica risponde con un errore per quella operazione: 
+ * significa che non è consistente e l'operazione non viene ritentata.
+ *
+ * Con il posizionamento a consistent hashing il filtro indica le operazioni che il ServerReplica deve applicare: le 
+ * altre gli vengono inviate senza contenuto (solo il numero di sequenza, vedi LogEntry).
+ *
+ * Nella replicazione a catena (ChainReplicator) il destinatario è il successore nella catena e può cambiare 
+ * (retarget): le operazioni ancora nel log vengono inviate di nuovo al nuovo successore. Senza successore (coda della 
+ * catena) il PeerReplicator è fermo e le operazioni restano nel log, così possono essere inviate a un ServerReplica 
+ * che si aggiunge in coda.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class PeerReplicator {
+
+	/**
+	 * Preparazione di un' operazione PUT_FILE prima dell'invio: il file viene trasferito sul canale dati in una 
+	 * sessione di scrittura del ServerReplica destinatario.
+	 */
+	interface Stager {
+		ReplicationOp stage(ServerReplicaInterface replica, ReplicationOp op) throws RemoteException, DfsException;
+	}
+
+	/**
+	 * Risultati di un' operazione del log.
+	 */
+	static class Task {
+
+		private final CompletableFuture<Boolean> firstOutcome = new CompletableFuture<Boolean>();
+		private final CompletableFuture<Void> applied = new CompletableFuture<Void>();
+
+		public CompletableFuture<Boolean> getFirstOutcome() {
+			return firstOutcome;
+		}
+
+		public CompletableFuture<Void> getApplied() {
+			return applied;
+		}
+
+		/**
+		 * @return risultati di un' operazione che non deve essere inviata a nessuno (già completati)
+		 */
+		static Task applied() {
+			Task task = new Task();
+			task.complete();
+			return task;
+		}
+
+		private void complete() {
+			firstOutcome.complete(true);
+			applied.complete(null);
+		}
+
+		private void fail(Exception e) {
+			firstOutcome.completeExceptionally(e);
+			applied.completeExceptionally(e);
+		}
+
+	}
+
+	private volatile int peerId;
+	private final int sourceId;
+	private final ReplicationLog log;
+	private final Stager stager;
+	private final Predicate<ReplicationOp> filter;
+	private final ConcurrentSkipListMap<Long, Task> pending = new ConcurrentSkipListMap<Long, Task>();
+	private final ExecutorService senders;
+
+	private volatile ServerReplicaInterface replica;
+	private volatile boolean reachable = true;
+
+	// protetti dal monitor dell'istanza
+	private long ackedSeq;
+	private int inFlight = 0;
+	private boolean rewind = false;
+	private boolean retargeted = false;
+	private boolean resync = false;
+	private int generation = 0;
+
+	/**
+	 * Avvia il thread (daemon) che invia il log.
+	 *
+	 * @param peerId id del ServerReplica destinatario
+	 * @param sourceId id di questo ServerReplica
+	 * @param replica riferimento remoto al ServerReplica destinatario
+	 * @param log log di replicazione da inviare
+	 * @param stager preparazione delle operazioni PUT_FILE
+	 * @param filter operazioni da inviare al ServerReplica (null per inviarle tutte)
+	 */
+	public PeerReplicator(int peerId, int sourceId, ServerReplicaInterface replica, ReplicationLog log, Stager stager,
+			Predicate<ReplicationOp> filter) {
+
+		this.peerId = peerId;
+		this.sourceId = sourceId;
+		this.replica = replica;
+		this.log = log;
+		this.stager = stager;
+		this.filter = filter;
+
+		if (peerId >= 0) { log.register(peerId); }
+		this.ackedSeq = log.getFirstSeq() - 1;
+
+		this.senders = Executors.newFixedThreadPool(Configs.REPLICATION_PIPELINE_DEPTH, r -> {
+			Thread t = new Thread(r, "replicator-"+peerId+"-sender");
+			t.setDaemon(true);
+			return t;
+		});
+
+		Thread worker = new Thread(this::run, "replicator-"+peerId);
+		worker.setDaemon(true);
+		worker.start();
+
+	}
+
+	/**
+	 * Aggiorna il riferimento remoto al ServerReplica (ad esempio dopo un nuovo lookupOtherReplicas).
+	 */
+	public void setReplica(ServerReplicaInterface replica) {
+		this.replica = replica;
+	}
+
+	/**
+	 * Cambia il ServerReplica destinatario (riparazione della catena): l'invio riparte dal primo elemento ancora nel 
+	 * log, senza attesa, e il nuovo destinatario salta le operazioni che ha già (versioni).
+	 *
+	 * @param peerId id del nuovo destinatario, negativo se non c'è più un destinatario (le operazioni in attesa sono 
+	 * 			considerate applicate)
+	 * @param replica riferimento remoto al nuovo destinatario
+	 */
+	public void retarget(int peerId, ServerReplicaInterface replica) {
+
+		synchronized (this) {
+			if (this.peerId >= 0) { log.unregister(this.peerId); }
+			if (peerId >= 0) { log.register(peerId); }
+			this.peerId = peerId;
+			this.replica = replica;
+			ackedSeq = log.getFirstSeq() - 1;
+			reachable = true;
+			retargeted = true;
+			resync = false;
+			generation++;
+			notifyAll();
+		}
+		if (peerId < 0) {
+			for (Task task: pending.values()) { task.complete(); }
+			pending.clear();
+		}
+		log.wakeUp();
+
+	}
+
+	/**
+	 * @return true se l'operazione deve essere applicata dal ServerReplica destinatario (vedi filter)
+	 */
+	public boolean accepts(ReplicationOp op) {
+		return filter == null || filter.test(op);
+	}
+
+	/**
+	 * Registra l'attesa della conferma di un' operazione appena aggiunta al log. Va chiamato tenendo il monitor del log
+	 * (insieme a append), così l'operazione non può essere inviata prima di essere registrata.
+	 * Se per seq c'è già un' attesa vengono restituiti gli stessi risultati.
+	 *
+	 * @param seq numero di sequenza dell'operazione
+	 * @return risultati dell'operazione
+	 */
+	public Task track(long seq) {
+
+		Task task = new Task();
+		synchronized (this) {
+			// senza destinatario, oppure già confermata (catena: attesa registrata dopo l'aggiunta al log); la 
+			// registrazione avviene con il monitor, così una conferma appena arrivata non può saltarla
+			if (peerId < 0 || seq <= ackedSeq) {
+				task.complete();
+				return task;
+			}
+			Task existing = pending.putIfAbsent(seq, task);
+			if (existing != null) { return existing; }
+		}
+		if (!reachable) { task.firstOutcome.complete(false); }
+		return task;
+
+	}
+
+	private void run() {
+
+		long nextSeq;
+		synchronized (this) { nextSeq = ackedSeq + 1; }
+		long droppedSeq = 0;
+		long backoff = Configs.REPLICATION_RETRY_BASE_MILLIS;
+
+		try {
+			while (true) {
+
+				// attendo un posto libero nella pipeline, oppure che tutti i batch in viaggio siano tornati per ripartire
+				// dall'ultima operazione confermata
+				boolean retry = false;
+				int sendGeneration;
+				ServerReplicaInterface target;
+				synchronized (this) {
+					while (peerId < 0 || inFlight >= Configs.REPLICATION_PIPELINE_DEPTH || (rewind && inFlight > 0)) { wait(); }
+					sendGeneration = generation;
+					target = replica;
+					if (retargeted) {
+						// nuovo destinatario: riparto subito dall'inizio del log
+						retargeted = false;
+						rewind = false;
+						nextSeq = ackedSeq + 1;
+						droppedSeq = 0;
+						backoff = Configs.REPLICATION_RETRY_BASE_MILLIS;
+					}
+					else if (rewind) {
+						rewind = false;
+						retry = true;
+						nextSeq = ackedSeq + 1;
+					}
+				}
+				if (retry) {
+					Thread.sleep(backoff);
+					backoff = Math.min(2 * backoff, Configs.REPLICATION_RETRY_MAX_MILLIS);
+					if (!reachable) { lookup(); }
+					continue;
+				}
+				if (reachable) { backoff = Configs.REPLICATION_RETRY_BASE_MILLIS; }
+
+				List<LogEntry> batch = log.read(nextSeq, Configs.REPLICATION_BATCH_MAX_OPS, Configs.REPLICATION_BATCH_MAX_BYTES);
+				if (batch.isEmpty()) {
+					log.await(nextSeq - 1, Configs.REPLICATION_RETRY_MAX_MILLIS);
+					continue;
+				}
+
+				// il ServerReplica è rimasto troppo indietro e il log ha eliminato delle operazioni
+				long firstSeq = batch.get(0).getSeq();
+				if (firstSeq > nextSeq) {
+					System.out.println("Errore: il log di replicazione ha eliminato "+(firstSeq - nextSeq)+" operazioni non "+
+							"confermate dal ServerReplica "+peerId+", verranno recuperate con l'anti-entropy");
+					droppedSeq = firstSeq - 1;
+					synchronized (this) { resync = true; }
+					for (Task task: pending.headMap(firstSeq).values()) {
+						task.firstOutcome.complete(false);
+						task.applied.completeExceptionally(new RemoteException("Errore: log di replicazione pieno"));
+					}
+					pending.headMap(firstSeq).clear();
+				}
+
+				// operazioni su file che il ServerReplica non tiene: invio solo il numero di sequenza
+				if (filter != null) {
+					for (int i=0; i<batch.size(); i++) {
+						LogEntry entry = batch.get(i);
+						if (!filter.test(entry.getOp())) { batch.set(i, new LogEntry(entry.getSeq(), null)); }
+					}
+				}
+
+				// preparazione delle operazioni PUT_FILE (trasferimento del file sul canale dati)
+				try {
+					for (int i=0; i<batch.size(); i++) {
+						LogEntry entry = batch.get(i);
+						if (entry.getOp() == null || entry.getOp().getType() != ReplicationOp.Type.PUT_FILE) { continue; }
+						try { batch.set(i, new LogEntry(entry.getSeq(), stager.stage(target, entry.getOp()))); }
+						catch (DfsException e) { failed(entry.getSeq(), e.getMessage()); }
+					}
+				}
+				catch (RemoteException e) {
+					unreachable(sendGeneration, false);
+					continue;
+				}
+
+				long baseSeq;
+				synchronized (this) {
+					baseSeq = Math.max(ackedSeq, droppedSeq);
+					inFlight++;
+				}
+				nextSeq = batch.get(batch.size() - 1).getSeq() + 1;
+				senders.execute(() -> send(sendGeneration, target, baseSeq, batch));
+
+			}
+		}
+		catch (InterruptedException e) { }
+
+	}
+
+	/**
+	 * Invio di un batch e gestione della risposta (eseguito da un thread della pipeline).
+	 */
+	private void send(int sendGeneration, ServerReplicaInterface target, long baseSeq, List<LogEntry> batch) {
+
+		ReplicationAck ack;
+		try { ack = target.applyLog(log.getLogId(), sourceId, baseSeq, batch); }
+		catch (RemoteException e) {
+			unreachable(sendGeneration, true);
+			return;
+		}
+		catch (RuntimeException e) {
+			unreachable(sendGeneration, true);
+			throw e;
+		}
+
+		// risposta del destinatario precedente a un retarget: non vale per quello nuovo
+		synchronized (this) {
+			if (sendGeneration != generation) {
+				inFlight--;
+				notifyAll();
+				return;
+			}
+		}
+
+		for (Map.Entry<Long, String> error: ack.getErrors().entrySet()) { failed(error.getKey(), error.getValue()); }
+
+		long acked;
+		int ackedPeer;
+		boolean requestResync;
+		synchronized (this) {
+			ackedSeq = Math.max(ackedSeq, ack.getHighWaterMark());
+			acked = ackedSeq;
+			ackedPeer = peerId;
+			inFlight--;
+			reachable = true;
+			requestResync = resync;
+			resync = false;
+			// una parte del batch non è stata applicata (arrivato prima del precedente, che non è mai arrivato)
+			if (ack.getHighWaterMark() < batch.get(batch.size() - 1).getSeq()) { rewind = true; }
+			notifyAll();
+		}
+
+		Map<Long, Task> confirmed = pending.headMap(acked, true);
+		for (Task task: confirmed.values()) { task.complete(); }
+		confirmed.clear();
+		if (ackedPeer >= 0) { log.ack(ackedPeer, acked); }
+
+		// operazioni eliminate dal log prima della conferma: il ServerReplica le recupera da questo
+		if (requestResync) {
+			try { target.requestAntiEntropy(sourceId); }
+			catch (RemoteException e) {
+				synchronized (this) { if (sendGeneration == generation) { resync = true; } }
+			}
+		}
+
+	}
+
+	/**
+	 * Il ServerReplica non è raggiungibile: le operazioni in attesa non aspettano il loro turno per saperlo.
+	 *
+	 * @param sendGeneration destinatario a cui si riferisce l'errore (vedi retarget)
+	 * @param sent true se l'errore riguarda un batch in viaggio
+	 */
+	private void unreachable(int sendGeneration, boolean sent) {
+
+		synchronized (this) {
+			if (sent) { inFlight--; }
+			if (sendGeneration != generation) {
+				notifyAll();
+				return;
+			}
+			reachable = false;
+			rewind = true;
+			if (peerId >= 0) { log.setUnreachable(peerId); }
+			notifyAll();
+		}
+		for (Task task: pending.values()) { task.firstOutcome.complete(false); }
+		log.wakeUp();
+
+	}
+
+	/**
+	 * Il ServerReplica ha risposto con un errore per un' operazione: non verrà ritentata.
+	 */
+	private void failed(long seq, String message) {
+
+		System.out.println("Errore: il ServerReplica "+peerId+" non ha applicato l'operazione "+seq+": "+message);
+		Task task = pending.remove(seq);
+		if (task != null) { task.fail(new DfsException(message)); }
+
+	}
+
+	/**
+	 * Nuovo lookup del ServerReplica (se è stato riavviato il vecchio riferimento remoto non è più valido).
+	 */
+	private void lookup() {
+
+		try { replica = (ServerReplicaInterface) Naming.lookup(Configs.URL+"ReplicaServer"+peerId); }
+		catch (Exception e) { }   // riproverò al prossimo tentativo
+
+	}
+
+}
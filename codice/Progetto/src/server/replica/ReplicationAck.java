@@ -0,0 +1,44 @@
+package server.replica;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Risposta all'invio di un batch del log di replicazione (applyLog).
+ *
+ * highWaterMark è il numero di sequenza dell'ultima operazione applicata (in ordine) dal ServerReplica destinatario:
+ * tutte quelle precedenti sono state applicate oppure, se presenti in errors, hanno generato un errore e non verranno
+ * ritentate.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class ReplicationAck implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long highWaterMark;
+	private final Map<Long, String> errors;
+
+	public ReplicationAck(long highWaterMark, Map<Long, String> errors) {
+		this.highWaterMark = highWaterMark;
+		this.errors = errors;
+	}
+
+	public ReplicationAck(long highWaterMark) {
+		this(highWaterMark, new HashMap<Long, String>());
+	}
+
+	public long getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * @return messaggio di errore per ogni numero di sequenza non applicato
+	 */
+	public Map<Long, String> getErrors() {
+		return errors;
+	}
+
+}
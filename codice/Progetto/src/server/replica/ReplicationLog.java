@@ -0,0 +1,239 @@
+package server.replica;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log di replicazione di un ServerReplica.
+ *
+ * Ogni operazione da propagare viene aggiunta al log con un numero di sequenza crescente; ogni PeerReplicator legge
+ * il log a partire dall'ultima operazione confermata dal proprio ServerReplica e la invia a batch. Gli elementi
+ * confermati da tutti gli altri ServerReplica vengono eliminati.
+ *
+ * Il log ha un identificativo generato all'avvio (logId): i numeri di sequenza ripartono da 1 ad ogni riavvio, quindi
+ * chi riceve le operazioni riconosce così un log nuovo.
+ *
+ * Se un ServerReplica resta indietro di più di maxEntries operazioni, o se il contenuto delle operazioni non confermate
+ * supera maxBytes, append attende che si liberi spazio (backpressure su chi scrive) finchè quel ServerReplica è 
+ * raggiungibile, al massimo per maxWaitMillis. Le operazioni più vecchie vengono eliminate solo se nessun ServerReplica
+ * raggiungibile le attende più (gli altri sono segnalati con setUnreachable) oppure allo scadere dell'attesa: le 
+ * eliminazioni vengono contate (getDropped) e il PeerReplicator chiede al ServerReplica rimasto indietro di recuperare
+ * le differenze con l'anti-entropy. Per non tenere in memoria i file grandi, il ServerReplica li mette nel log come 
+ * PUT_FILE (solo path e versione): il contenuto viene letto dal disco al momento dell'invio.
+ *
+ * Tutti i metodi sono synchronized sull'istanza: tenendo il monitor si può aggiungere un' operazione e registrare chi
+ * ne attende la conferma prima che un PeerReplicator possa leggerla (append rilascia il monitor solo durante l'attesa
+ * di spazio, prima di aggiungere l'operazione).
+ *
+ * @author gabrielesavoia
+ *
+ */
+class ReplicationLog {
+
+	private final String logId = UUID.randomUUID().toString();
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long maxWaitNanos;
+
+	private final TreeMap<Long, LogEntry> entries = new TreeMap<Long, LogEntry>();
+	private final Map<Integer, Long> acked = new HashMap<Integer, Long>();
+	private final Set<Integer> unreachable = new HashSet<Integer>();
+	private long lastSeq = 0;
+	private long bytes = 0;
+	private long dropped = 0;
+
+	/**
+	 * @param maxEntries numero massimo di operazioni non ancora confermate da tutti
+	 * @param maxBytes byte massimi del contenuto delle operazioni non ancora confermate da tutti
+	 * @param maxWaitMillis attesa massima di append quando il log è pieno per un ServerReplica raggiungibile
+	 */
+	public ReplicationLog(int maxEntries, long maxBytes, long maxWaitMillis) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+	}
+
+	public String getLogId() {
+		return logId;
+	}
+
+	/**
+	 * Registra un ServerReplica destinatario: finchè non conferma, gli elementi non vengono eliminati (compresi quelli 
+	 * già presenti, che gli verranno inviati).
+	 */
+	public synchronized void register(int peerId) {
+		acked.putIfAbsent(peerId, getFirstSeq() - 1);
+		unreachable.remove(peerId);
+	}
+
+	/**
+	 * Il ServerReplica non è più un destinatario (catena riparata): i suoi elementi non confermati non vengono più 
+	 * tenuti per lui.
+	 */
+	public synchronized void unregister(int peerId) {
+		acked.remove(peerId);
+		unreachable.remove(peerId);
+		notifyAll();
+	}
+
+	/**
+	 * Il ServerReplica non è raggiungibile: append non attende che confermi (torna raggiungibile alla prima conferma).
+	 */
+	public synchronized void setUnreachable(int peerId) {
+		if (acked.containsKey(peerId) && unreachable.add(peerId)) { notifyAll(); }
+	}
+
+	/**
+	 * Aggiunge un' operazione al log. Se il log è pieno attende che i ServerReplica raggiungibili confermino le 
+	 * operazioni più vecchie (al massimo maxWaitMillis), poi le elimina.
+	 *
+	 * @return numero di sequenza assegnato
+	 */
+	public synchronized long append(ReplicationOp op) {
+
+		LogEntry entry = new LogEntry(0, op);
+		long size = entry.getSize();
+
+		// l'operazione aggiunta resta comunque nel log, anche se da sola supera maxBytes
+		long deadline = System.nanoTime() + maxWaitNanos;
+		boolean interrupted = false;
+		while (!entries.isEmpty() && (entries.size() >= maxEntries || bytes + size > maxBytes)) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining > 0 && !interrupted && awaitedByReachablePeer(entries.firstKey())) {
+				try { TimeUnit.NANOSECONDS.timedWait(this, remaining); }
+				catch (InterruptedException e) { interrupted = true; }
+				continue;
+			}
+			bytes -= entries.pollFirstEntry().getValue().getSize();
+			dropped++;
+		}
+		if (interrupted) { Thread.currentThread().interrupt(); }
+
+		long seq = ++lastSeq;
+		entries.put(seq, new LogEntry(seq, op));
+		bytes += size;
+
+		notifyAll();
+		return seq;
+
+	}
+
+	/**
+	 * @return true se un ServerReplica raggiungibile non ha ancora confermato l'elemento seq
+	 */
+	private boolean awaitedByReachablePeer(long seq) {
+
+		for (Map.Entry<Integer, Long> peer: acked.entrySet()) {
+			if (peer.getValue() < seq && !unreachable.contains(peer.getKey())) { return true; }
+		}
+		return false;
+
+	}
+
+	/**
+	 * @return numero di sequenza del primo elemento ancora nel log (lastSeq + 1 se il log è vuoto)
+	 */
+	public synchronized long getFirstSeq() {
+		return entries.isEmpty() ? lastSeq + 1 : entries.firstKey();
+	}
+
+	/**
+	 * @return numero di sequenza dell'ultimo elemento aggiunto (0 se il log è sempre stato vuoto)
+	 */
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * @param peerId ServerReplica destinatario
+	 * @return numero di sequenza dell'ultimo elemento aggiunto e dell'ultimo confermato da peerId (0 se non è registrato)
+	 */
+	public synchronized long[] getPosition(int peerId) {
+		return new long[] { lastSeq, acked.getOrDefault(peerId, 0L) };
+	}
+
+	/**
+	 * Lettura di un batch di elementi consecutivi.
+	 *
+	 * @param fromSeq primo numero di sequenza da leggere (se è già stato eliminato si parte dal primo presente)
+	 * @param maxOps numero massimo di elementi
+	 * @param maxBytes byte massimi del contenuto delle operazioni (almeno un elemento viene sempre restituito)
+	 *
+	 * @return elementi letti, lista vuota se non ce ne sono
+	 */
+	public synchronized List<LogEntry> read(long fromSeq, int maxOps, long maxBytes) {
+
+		List<LogEntry> batch = new ArrayList<LogEntry>();
+		long bytes = 0;
+		for (LogEntry entry: entries.tailMap(fromSeq, true).values()) {
+			if (!batch.isEmpty() && (batch.size() >= maxOps || bytes + entry.getSize() > maxBytes)) { break; }
+			batch.add(entry);
+			bytes += entry.getSize();
+		}
+		return batch;
+
+	}
+
+	/**
+	 * Attende che venga aggiunto un elemento successivo a seq (o che sia chiamato wakeUp).
+	 */
+	public synchronized void await(long seq, long timeoutMillis) throws InterruptedException {
+		if (lastSeq <= seq) { wait(timeoutMillis); }
+	}
+
+	/**
+	 * Sveglia i PeerReplicator in attesa in await.
+	 */
+	public synchronized void wakeUp() {
+		notifyAll();
+	}
+
+	/**
+	 * Conferma da parte di un ServerReplica: elimina gli elementi confermati da tutti.
+	 *
+	 * @param peerId ServerReplica che ha confermato
+	 * @param seq ultimo numero di sequenza confermato
+	 */
+	public synchronized void ack(int peerId, long seq) {
+
+		if (!acked.containsKey(peerId)) { return; }
+		acked.merge(peerId, seq, Math::max);
+		unreachable.remove(peerId);
+		long min = Long.MAX_VALUE;
+		for (long peerSeq: acked.values()) { min = Math.min(min, peerSeq); }
+		Map<Long, LogEntry> confirmed = entries.headMap(min, true);
+		for (LogEntry entry: confirmed.values()) { bytes -= entry.getSize(); }
+		confirmed.clear();
+		notifyAll();   // append in attesa di spazio
+
+	}
+
+	/**
+	 * @return numero di elementi nel log
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return byte del contenuto delle operazioni nel log
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return operazioni eliminate dal log prima di essere confermate da tutti (dall'avvio)
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+}
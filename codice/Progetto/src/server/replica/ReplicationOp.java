@@ -0,0 +1,162 @@
+package server.replica;
+
+import java.io.Serializable;
+import java.util.List;
+
+import common.FileDelta;
+
+/**
+ * Operazione di modifica inviata da un ServerReplica (quello che l'ha eseguita per un client) agli altri ServerReplica.
+ *
+ * Ogni operazione porta la versione assegnata dal ServerReplica di origine al path modificato: chi la riceve la applica
+ * solo se è più recente della versione che ha già per quel path, quindi un' operazione rinviata più volte (ad esempio
+ * dopo un errore di connessione) o arrivata dopo una più recente non ha effetto.
+ *
+ * Le operazioni di un batch (ServerReplica.executeBatch) sono inviate come un' unica operazione BATCH che le contiene, 
+ * ognuna con la propria versione.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class ReplicationOp implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public enum Type {
+		CREATE_FILE,
+		WRITE_FILE,
+		WRITE_AT,
+		WRITE_DELTA,         // differenza rispetto al contenuto precedente del file (origin: ServerReplica di origine)
+		REMOVE,
+		MOVE,
+		RENAME,
+		CREATE_DIRECTORY,
+		PUT_FILE,            // file scritto con una sessione: il contenuto viene inviato sul canale dati (sessionId)
+		BATCH                // operazioni di un batch, applicate in ordine (ops)
+	}
+
+	private final Type type;
+	private final String path;
+	private final String otherPath;
+	private final byte[] content;
+	private final long offset;
+	private final long version;
+	private final String sessionId;
+	private final FileDelta delta;
+	private final int origin;
+	private final List<ReplicationOp> ops;
+
+	private ReplicationOp(Type type, String path, String otherPath, byte[] content, long offset, long version, String sessionId,
+			FileDelta delta, int origin) {
+		this(type, path, otherPath, content, offset, version, sessionId, delta, origin, null);
+	}
+
+	private ReplicationOp(Type type, String path, String otherPath, byte[] content, long offset, long version, String sessionId,
+			FileDelta delta, int origin, List<ReplicationOp> ops) {
+		this.type = type;
+		this.path = path;
+		this.otherPath = otherPath;
+		this.content = content;
+		this.offset = offset;
+		this.version = version;
+		this.sessionId = sessionId;
+		this.delta = delta;
+		this.origin = origin;
+		this.ops = ops;
+	}
+
+	public static ReplicationOp createFile(String path, long version) {
+		return new ReplicationOp(Type.CREATE_FILE, path, null, null, 0, version, null, null, -1);
+	}
+
+	public static ReplicationOp writeFile(String path, byte[] content, long version) {
+		return new ReplicationOp(Type.WRITE_FILE, path, null, content, 0, version, null, null, -1);
+	}
+
+	public static ReplicationOp writeAt(String path, long offset, byte[] content, long version) {
+		return new ReplicationOp(Type.WRITE_AT, path, null, content, offset, version, null, null, -1);
+	}
+
+	public static ReplicationOp writeDelta(String path, FileDelta delta, int origin, long version) {
+		return new ReplicationOp(Type.WRITE_DELTA, path, null, null, 0, version, null, delta, origin);
+	}
+
+	public static ReplicationOp remove(String path, long version) {
+		return new ReplicationOp(Type.REMOVE, path, null, null, 0, version, null, null, -1);
+	}
+
+	public static ReplicationOp move(String sourcePath, String targetPath, long version) {
+		return new ReplicationOp(Type.MOVE, sourcePath, targetPath, null, 0, version, null, null, -1);
+	}
+
+	public static ReplicationOp rename(String path, String newName, long version) {
+		return new ReplicationOp(Type.RENAME, path, newName, null, 0, version, null, null, -1);
+	}
+
+	public static ReplicationOp createDirectory(String path, long version) {
+		return new ReplicationOp(Type.CREATE_DIRECTORY, path, null, null, 0, version, null, null, -1);
+	}
+
+	public static ReplicationOp putFile(String path, long version) {
+		return new ReplicationOp(Type.PUT_FILE, path, null, null, 0, version, null, null, -1);
+	}
+
+	public static ReplicationOp batch(List<ReplicationOp> ops) {
+		return new ReplicationOp(Type.BATCH, null, null, null, 0, 0, null, null, -1, ops);
+	}
+
+	/**
+	 * @return la stessa operazione PUT_FILE con la sessione di scrittura (sul ServerReplica destinatario) che contiene
+	 * 			il file
+	 */
+	public ReplicationOp withSessionId(String sessionId) {
+		return new ReplicationOp(type, path, otherPath, content, offset, version, sessionId, delta, origin);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public String getOtherPath() {
+		return otherPath;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public FileDelta getDelta() {
+		return delta;
+	}
+
+	public int getOrigin() {
+		return origin;
+	}
+
+	public List<ReplicationOp> getOps() {
+		return ops;
+	}
+
+	@Override
+	public String toString() {
+		if (type == Type.BATCH) { return type+" "+ops; }
+		return type+" "+path+((otherPath != null) ? " -> "+otherPath : "")+" v"+version;
+	}
+
+}
@@ -1,23 +1,54 @@
 package server.replica;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import common.BatchOp;
+import common.CacheStats;
 import common.Configs;
+import common.ConsistentHashRing;
+import common.DataTransfer;
+import common.DeltaSync;
 import common.DfsException;
+import common.FileContent;
+import common.FileDelta;
+import common.TransferTicket;
+import common.VersionedContent;
 
 /**
  * Classe per la gestione di un ServerReplica.
@@ -31,6 +62,38 @@ import common.DfsException;
  * Nel momento in cui il client vuole effettuare modifiche nel filesystem, sarà necessario propagare le modifiche
  * su tutti i ServerReplica.
  * 
+ * Oltre alle operazioni sull'intero file, sono disponibili letture e scritture a partire da un offset e le sessioni di 
+ * scrittura a blocchi (openWriteSession, writeChunk, commitWriteSession): in questo modo file anche molto grandi 
+ * possono essere trasferiti con un buffer limitato per ogni richiesta (Configs.CHUNK_SIZE).
+ * 
+ * Per i file grandi il contenuto può anche non passare da RMI: openReadTransfer / openWriteTransfer restituiscono solo
+ * un TransferTicket e i byte viaggiano sul canale dati del ServerReplica (DataServer, porta Configs.DATA_PORT_BASE + id).
+ * Anche la propagazione delle sessioni di scrittura usa il canale dati.
+ * 
+ * Le letture via RMI passano da una cache a blocchi (BlockCache) oppure, per i file grandi, da una mappatura in 
+ * memoria del file (MappingCache); ogni operazione che modifica un file, sia richiesta da un client sia propagata da un
+ * altro ServerReplica, invalida entrambe le cache per quel file.
+ * 
+ * Ogni modifica riceve una versione per i path che tocca (VersionTable) e viene aggiunta come ReplicationOp al log 
+ * di replicazione (ReplicationLog) con un numero di sequenza; per ogni altro ServerReplica un PeerReplicator invia il log
+ * a batch e lo ritenta finchè non viene applicato, in ordine (LogApplier). Chi riceve 
+ * l'operazione la applica solo se è più recente della versione che ha per quei path, quindi i rinvii non hanno effetto.
+ * Le riscritture di file grandi vengono propagate come differenza rispetto al contenuto precedente (WRITE_DELTA, 
+ * calcolata con DeltaSync) quando è abbastanza piccola; chi la riceve e non ha lo stesso contenuto di partenza chiede il
+ * file completo al ServerReplica di origine.
+ * Con Configs.WRITE_QUORUM > 0 il client attende solo W ServerReplica e le letture possono essere fatte da R 
+ * ServerReplica tenendo la versione più recente (readFileVersioned).
+ * Con Configs.REPLICATION_MODE = "chain" le modifiche non vengono inviate a tutti ma seguono la catena decisa dal 
+ * ServerMaster (ChainReplicator): ogni ServerReplica le applica e le inoltra al successivo, la coda conferma.
+ * Con Configs.PLACEMENT_REPLICATION_FACTOR = R > 0 (solo nella replicazione a stella) ogni file è tenuto solo dagli R
+ * ServerReplica scelti dal consistent hashing sulla sua directory (ConsistentHashRing), le directory da tutti: le 
+ * operazioni sui file vengono inviate solo a chi tiene il file e lo spostamento tra directory con ServerReplica diversi
+ * diventa un' eliminazione e una scrittura.
+ * 
+ * All'avvio il replica point non viene svuotato: il ServerReplica copia da un altro ServerReplica già pronto solo 
+ * quello che gli manca o che è cambiato (Bootstrap, con lo snapshot inviato a flusso sul canale dati) e recupera dal 
+ * log le modifiche fatte nel frattempo; fino ad allora isAlive ritorna false e il ServerMaster non gli indirizza client.
+ * 
  * @author gabrielesavoia
  *
  */
@@ -39,10 +102,32 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 	private static final long serialVersionUID = 1L;
 	
 	private String replicaPoint;
+	private Path tmpDirectory;
 	private String replicaId;
 	
+	private final ConcurrentHashMap<String, WriteSession> writeSessions = new ConcurrentHashMap<String, WriteSession>();
+	private DataServer dataServer;
+	private final BlockCache cache = new BlockCache(Configs.REPLICA_CACHE_BLOCK_SIZE, Configs.REPLICA_CACHE_MAX_BYTES, 
+			Configs.REPLICA_CACHE_OFF_HEAP);
+	private final MappingCache mappingCache = new MappingCache(Configs.REPLICA_MMAP_MAX_FILES, Configs.REPLICA_MMAP_MIN_FILE_BYTES);
+	
+	private final MerkleTree merkleTree = new MerkleTree(Configs.MERKLE_DEPTH);
+	private final VersionTable versions = new VersionTable(this::versionChanged);
+	private final AntiEntropy antiEntropy = new AntiEntropy(merkleTree, this::repair, this::wanted);
+	private final ReplicationLog replicationLog = new ReplicationLog(Configs.REPLICATION_LOG_MAX, Configs.REPLICATION_LOG_MAX_BYTES,
+			Configs.REPLICATION_LOG_FULL_WAIT_MILLIS);
+	private final LogApplier logApplier = new LogApplier(this::applyFromLog, Configs.PROPAGATION_TIMEOUT_MILLIS);
+	private final boolean chainReplication = "chain".equals(Configs.REPLICATION_MODE);
+	private ChainReplicator chainReplicator;
+	private volatile ConsistentHashRing placement;   // null con la replicazione completa
+	private final ThreadLocal<List<ReplicationOp>> batchOps = new ThreadLocal<List<ReplicationOp>>();   // batch in esecuzione
+	
 	private int numReplicas = -1;
 	private ServerReplicaInterface[] replicas;
+	private PeerReplicator[] replicators;
+	private ScheduledExecutorService antiEntropyExecutor;
+	private boolean bootstrapStarted = false;
+	private volatile boolean ready = false;
 
 	/**
 	 * Costruttore.
@@ -63,6 +148,22 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 		
 		this.replicaId = replicaId;
 		
+		if (chainReplication) { chainReplicator = new ChainReplicator(Integer.parseInt(replicaId), this::stage); }
+		
+		try { dataServer = new DataServer(Configs.DATA_PORT_BASE + Integer.parseInt(replicaId), Configs.DATA_SERVER_THREADS); }
+		catch (IOException e) {
+			throw new DfsException("Errore: non è possibile avviare il data server sulla porta "+(Configs.DATA_PORT_BASE + Integer.parseInt(replicaId)));
+		}
+		
+		// le sessioni di scrittura (e i token del canale dati) abbandonate (ad esempio client andato in crash) vengono eliminate dopo un lease
+		ScheduledExecutorService sessionReaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "write-session-reaper");
+			t.setDaemon(true);
+			return t;
+		});
+		sessionReaper.scheduleWithFixedDelay(this::abortIdleWriteSessions, Configs.LOCK_LEASE_MILLIS, 
+				Configs.LOCK_LEASE_MILLIS, TimeUnit.MILLISECONDS);
+		
 	}
 	
 	/**
@@ -86,7 +187,8 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 	}
 	
 	/**
-	 * Creo la directory di replica vuota (se esisteva già elimino tutti i suoi contenuti).
+	 * Creo la directory di replica se non esiste. Se esiste il contenuto viene tenuto: al primo lookupOtherReplicas 
+	 * il bootstrap copia dagli altri ServerReplica solo quello che manca o è cambiato.
 	 * 
 	 * Setto la directory come replicaPoint ed elimino lo slash finale se presente.
 	 * 
@@ -97,11 +199,7 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 		
 		if (replicaPoint == null) { return false; }
 		
-		// se esiste elimino directory e il suo contenuto
-		try { deleteDirectoryAndContent(Paths.get(replicaPoint)); }
-		catch(Exception e) { return false; }
-		
-		// creo directory vuota (creo anche le directory padri se non esistono)
+		// creo la directory (e le directory padri) se non esiste
 		try { Files.createDirectories(Paths.get(replicaPoint)); }
 		catch(Exception e) { return false; }
 		
@@ -109,6 +207,14 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 		if ( replicaPoint.endsWith("/") ) { this.replicaPoint = replicaPoint.substring(0, replicaPoint.length() - 1); }
 		else { this.replicaPoint = replicaPoint; }
 		
+		// directory dei file temporanei (fuori dal replica point così non compare nei listaggi)
+		tmpDirectory = Paths.get(this.replicaPoint+".tmp");
+		try { 
+			deleteDirectoryAndContent(tmpDirectory);
+			Files.createDirectories(tmpDirectory);
+		}
+		catch(Exception e) { return false; }
+		
 		return true;
 	}
 
@@ -124,17 +230,23 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 	@Override
 	public void createFile(String path, boolean needPropagate) throws RemoteException, DfsException{
 		
-		try{
-			Files.createFile(Paths.get(replicaPoint+path));
-		}catch(FileAlreadyExistsException e) {
-			throw new DfsException("Errore: il file esiste già");
-		}catch(IOException e) {
-			throw new DfsException("Errore: problema di I/O");
-		}catch(SecurityException e) {
-			throw new DfsException("Errore: violazione sicurezza");
+		long version;
+		synchronized (versions.lockFor(path)) {
+			try{
+				Files.createFile(Paths.get(replicaPoint+path));
+				syncDirectoryOf(path);
+			}catch(FileAlreadyExistsException e) {
+				throw new DfsException("Errore: il file esiste già");
+			}catch(IOException e) {
+				throw new DfsException("Errore: problema di I/O");
+			}catch(SecurityException e) {
+				throw new DfsException("Errore: violazione sicurezza");
+			}
+			
+			version = versions.next(path);
 		}
 		
-		if (needPropagate) { propagate("createFile", path, null, null); }
+		if (needPropagate) { replicate(ReplicationOp.createFile(path, version)); }
 		
 	}
 
@@ -152,15 +264,164 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 	@Override
 	public void writeFile(String path, byte[] content, boolean needPropagate) throws RemoteException, DfsException{
 		
+		long version;
+		byte[] previous = null;
+		synchronized (versions.lockFor(path)) {
+			if (needPropagate) { previous = readDeltaBase(path, content.length); }
+			writeContent(path, content);
+			version = versions.next(path);
+		}
+		
+		if (needPropagate) { 
+			// se il file c'era già e la differenza è piccola, agli altri ServerReplica invio solo quella
+			if (previous != null) {
+				FileDelta delta = DeltaSync.computeDelta(previous, content, Configs.DELTA_BLOCK_SIZE);
+				if (delta.getSize() < Configs.DELTA_MAX_RATIO * content.length) {
+					replicate(ReplicationOp.writeDelta(path, delta, Integer.parseInt(replicaId), version));
+					return;
+				}
+			}
+			replicate(writeOp(path, content, version)); 
+		}
+		
+	}
+	
+	/**
+	 * Con il quorum in scrittura (Configs.WRITE_QUORUM > 0) una modifica conta per W solo se è stata applicata in modo
+	 * durevole: prima di confermarla il contenuto dei file e le directory modificate vengono forzati su disco, 
+	 * altrimenti la conferma garantirebbe solo che la modifica è nella page cache.
+	 */
+	private boolean syncWrites() {
+		return Configs.WRITE_QUORUM > 0;
+	}
+	
+	/**
+	 * Forza su disco il contenuto del file (solo con il quorum in scrittura).
+	 */
+	private void sync(FileChannel channel) throws IOException {
+		if (syncWrites()) { channel.force(true); }
+	}
+	
+	/**
+	 * Forza su disco la directory che contiene il path (solo con il quorum in scrittura), così la creazione, 
+	 * l'eliminazione o lo spostamento atomico di un file sopravvivono a un crash.
+	 */
+	private void syncDirectoryOf(String path) {
+		
+		if (!syncWrites()) { return; }
+		Path directory = Paths.get(replicaPoint+path).getParent();
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) { channel.force(true); }
+		catch (IOException e) { }   // alcuni sistemi (es. Windows) non permettono di aprire una directory
+		
+	}
+	
+	/**
+	 * Operazione da propagare per la scrittura dell'intero contenuto di un file: i file più grandi di 
+	 * Configs.REPLICATION_INLINE_MAX_BYTES vengono messi nel log come PUT_FILE (solo path e versione, il contenuto viene
+	 * letto dal disco al momento dell'invio), così il log non tiene il contenuto in memoria finchè tutti i ServerReplica
+	 * non lo confermano. Dentro un batch il contenuto resta nell'operazione, perchè i PUT_FILE vengono preparati per 
+	 * l'invio solo fuori dai batch.
+	 */
+	private ReplicationOp writeOp(String path, byte[] content, long version) {
+		
+		if (content.length <= Configs.REPLICATION_INLINE_MAX_BYTES || batchOps.get() != null) {
+			return ReplicationOp.writeFile(path, content, version);
+		}
+		return ReplicationOp.putFile(path, version);
+		
+	}
+	
+	/**
+	 * Scrittura di un file come differenza rispetto al suo contenuto attuale (calcolata con DeltaSync): utile quando il 
+	 * client ha già una copia del file e ne modifica solo una piccola parte.
+	 * 
+	 * @param path Percorso del file da scrivere
+	 * @param delta differenza rispetto al contenuto attuale del file
+	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
+	 * @return false se il contenuto attuale del file non è quello da cui è stata calcolata la differenza (il file non 
+	 * 			viene modificato: serve il contenuto completo)
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
+	 */
+	@Override
+	public boolean writeFileDelta(String path, FileDelta delta, boolean needPropagate) throws RemoteException, DfsException {
+		
+		long version;
+		synchronized (versions.lockFor(path)) {
+			if ( !Files.isRegularFile(Paths.get(replicaPoint+path)) ) { return false; }
+			
+			byte[] content;
+			try { content = DeltaSync.apply(read(path, 0, Integer.MAX_VALUE).getBytes(), delta); }
+			catch(NoSuchFileException e) { return false; }
+			catch(IOException e) { throw new DfsException("Errore: problema di I/O"); }
+			catch(SecurityException e) { throw new DfsException("Errore: violazione sicurezza"); }
+			if (content == null) { return false; }
+			
+			writeContent(path, content);
+			version = versions.next(path);
+		}
+		
+		if (needPropagate) { replicate(ReplicationOp.writeDelta(path, delta, Integer.parseInt(replicaId), version)); }
+		return true;
+		
+	}
+	
+	/**
+	 * Scrittura dell'intero contenuto di un file, da chiamare tenendo il monitor del path (versions.lockFor).
+	 * 
+	 * Scrivo su un file temporaneo che poi sostituisce quello vecchio: chi lo sta leggendo (anche tramite mappatura) 
+	 * continua a vedere il contenuto precedente completo. Con il quorum in scrittura il file temporaneo e la directory
+	 * vengono forzati su disco (vedi sync).
+	 */
+	private void writeContent(String path, byte[] content) throws DfsException {
+		
+		Path target = Paths.get(replicaPoint+path);
+		if ( Files.isDirectory(target) ) { throw new DfsException("Errore: il path è una directory"); }
+		
 		try{
-			Files.write(Paths.get(replicaPoint+path), content, StandardOpenOption.CREATE);
+			Path tmpFile = tmpDirectory.resolve(UUID.randomUUID().toString());
+			try {
+				try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+					ByteBuffer buffer = ByteBuffer.wrap(content);
+					while (buffer.hasRemaining()) { channel.write(buffer); }
+					sync(channel);
+				}
+				Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				syncDirectoryOf(path);
+			}
+			finally {
+				Files.deleteIfExists(tmpFile);
+			}
 		}catch(IOException e) {
 			throw new DfsException("Errore: problema di I/O");
 		}catch(SecurityException e) {
 			throw new DfsException("Errore: violazione sicurezza");
 		}
+		finally {
+			invalidate(path);
+		}
 		
-		if (needPropagate) { propagate("writeFile", path, null, content); }
+	}
+	
+	/**
+	 * Contenuto attuale del file, da cui calcolare la differenza con il nuovo contenuto: solo se entrambi sono 
+	 * abbastanza grandi (Configs.DELTA_MIN_FILE_BYTES) perchè convenga.
+	 * 
+	 * @return contenuto attuale, null se non conviene inviare la differenza
+	 */
+	private byte[] readDeltaBase(String path, int newLength) {
+		
+		if (newLength < Configs.DELTA_MIN_FILE_BYTES) { return null; }
+		
+		try {
+			Path file = Paths.get(replicaPoint+path);
+			if ( !Files.isRegularFile(file) || Files.size(file) < Configs.DELTA_MIN_FILE_BYTES ) { return null; }
+			return read(path, 0, Integer.MAX_VALUE).getBytes();
+		}
+		catch(IOException | SecurityException e) {
+			return null;
+		}
 		
 	}
 	
@@ -168,16 +429,18 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 	 * Lettura file (non deve essere troppo grande se no non sta in memoria).
 	 * 
 	 * @param path Percorso del file dal leggere
-	 * @return array di byte
+	 * @return contenuto del file
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
 	 * @throws DfsException Generata per qualsiasi altro problema
 	 */
 	@Override
-	public byte[] readFile(String path) throws RemoteException, DfsException {
+	public FileContent readFile(String path) throws RemoteException, DfsException {
 		
 		try {
-			return Files.readAllBytes(Paths.get(replicaPoint+path));
+			return read(path, 0, Integer.MAX_VALUE);
+		}catch(NoSuchFileException e) {
+			throw new DfsException("Errore: il file non esiste");
 		}catch(IOException e) {
 			throw new DfsException("Errore: problema di I/O");
 		}catch(SecurityException e) {
@@ -187,276 +450,1609 @@ public class ServerReplica extends UnicastRemoteObject implements ServerReplicaI
 	}
 
 	/**
-	 * Rimuove un file oppure una directory specificata da 'path'.
-	 * Nel caso in cui una directory ha elementi al suo interno allora non è eliminabile.
+	 * Lettura di un file insieme alla sua versione, usata dai client che leggono da più ServerReplica e tengono il 
+	 * contenuto più recente (Client.readFileQuorum).
 	 * 
-	 * @param path Percorso del file (o directory) da eliminare
-	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
+	 * @param path Percorso del file dal leggere
+	 * @return versione e contenuto (contenuto null se il file non esiste su questo ServerReplica)
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
 	 * @throws DfsException Generata per qualsiasi altro problema
 	 */
 	@Override
-	public void remove(String path, boolean needPropagate) throws RemoteException, DfsException{
+	public VersionedContent readFileVersioned(String path) throws RemoteException, DfsException {
 		
-		try{
-			Files.delete(Paths.get(replicaPoint+path));
-		}catch(SecurityException e) {
-			throw new DfsException("Errore: violazione sicurezza");
-		}catch(NoSuchFileException e) {
-			throw new DfsException("Errore: il file non esiste");
-		}catch(DirectoryNotEmptyException e) {
-			throw new DfsException("Errore: la directory non è vuota");
-		}catch (IOException e) {
-			throw new DfsException("Errore: problema di I/O");
+		synchronized (versions.lockFor(path)) {
+			if ( !Files.isRegularFile(Paths.get(replicaPoint+path)) ) { return new VersionedContent(versions.get(path), null); }
+			return new VersionedContent(versions.get(path), readFile(path));
 		}
 		
-		if (needPropagate) { propagate("remove", path, null, null); }
-	
 	}
-
+	
 	/**
-	 * Muovo il file (e non directory) dal 'sourcePath' al 'targetPath'.
-	 * Se il 'targetPath' esiste già, allora non è possibile effettuare lo spostamento.
+	 * Lettura di una parte di un file: al massimo length byte a partire da offset.
 	 * 
-	 * @param sourcePath Percorso del file da muovere (es. /folder/file.txt )
-	 * @param targetPath Percorso in cui voglio muovere il file (es. /otherFolder/file.txt)
-	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
+	 * @param path Percorso del file dal leggere
+	 * @param offset posizione del primo byte da leggere
+	 * @param length numero massimo di byte da leggere
+	 * @return byte letti (più corti di length se il file finisce prima, vuoti se offset è oltre la fine)
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
 	 * @throws DfsException Generata per qualsiasi altro problema
 	 */
 	@Override
-	public void moveFile(String sourcePath, String targetPath, boolean needPropagate) throws RemoteException, DfsException{
-		
-		// posso spostare solo file non directory
-		if ( Files.isDirectory(Paths.get(replicaPoint+targetPath)) ) {
-			throw new DfsException("Errore: non è possibile spostare directory");
-		}
+	public FileContent readFile(String path, long offset, int length) throws RemoteException, DfsException {
 		
-		if ( Files.exists(Paths.get(replicaPoint+targetPath)) ) {
-			throw new DfsException("Errore: nella nuova posizione esiste un file con lo stesso nome");
-		}
+		if (offset < 0 || length < 0) { throw new DfsException("Errore: offset o lunghezza non validi"); }
 		
 		try {
-			Files.move( Paths.get(replicaPoint+sourcePath), 
-					Paths.get(replicaPoint+targetPath), 
-					StandardCopyOption.ATOMIC_MOVE);
+			return read(path, offset, length);
+		}catch(NoSuchFileException e) {
+			throw new DfsException("Errore: il file non esiste");
+		}catch(IOException e) {
+			throw new DfsException("Errore: problema di I/O");
 		}catch(SecurityException e) {
 			throw new DfsException("Errore: violazione sicurezza");
-		}catch (IOException e) {
-			throw new DfsException("Errore: problema di I/O");
 		}
 		
-		if (needPropagate) { propagate("moveFile", sourcePath, targetPath, null); }
 	}
-
+	
 	/**
-	 * Rinomina di un file.
+	 * Scrittura di un array di byte su un file a partire da offset (il resto del file non viene modificato).
+	 * Creo il file nel caso questo non esista.
 	 * 
-	 * @param path Percorso del file da rinominare
-	 * @param newName Nuovo nome
+	 * @param path Percorso del file da scrivere
+	 * @param offset posizione in cui scrivere il primo byte
+	 * @param content array di byte da scrivere
 	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
 	 * @throws DfsException Generata per qualsiasi altro problema
 	 */
 	@Override
-	public void renameFile(String path, String newName, boolean needPropagate) throws RemoteException, DfsException {
+	public void writeFile(String path, long offset, byte[] content, boolean needPropagate) throws RemoteException, DfsException {
 		
-		// posso spostare solo file non directory
-		if ( Files.isDirectory(Paths.get(replicaPoint+path)) ) {
-			throw new DfsException("Errore: non è possibile rinominare directory");
+		long version;
+		synchronized (versions.lockFor(path)) {
+			if (offset < 0) { throw new DfsException("Errore: offset non valido"); }
+			
+			try (FileChannel channel = FileChannel.open(Paths.get(replicaPoint+path), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(content);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, offset + buffer.position());
+				}
+				sync(channel);
+			}catch(IOException e) {
+				throw new DfsException("Errore: problema di I/O");
+			}catch(SecurityException e) {
+				throw new DfsException("Errore: violazione sicurezza");
+			}
+			finally {
+				invalidate(path);
+			}
+			
+			version = versions.next(path);
 		}
 		
-		Path source = Paths.get(this.replicaPoint+path);
-		Path target = source.resolveSibling(newName);
-		
-		if ( Files.exists(target) ) { 
-			throw new DfsException("Errore: un file esiste già con questo nome");
-		}
+		if (needPropagate) { replicate(ReplicationOp.writeAt(path, offset, content, version)); }
 		
-		// i file devono avere '.estensione'
-		if (!target.toString().contains(".")) { 
-			throw new DfsException("Errore: nuovo nome del file non valido, deve contenere l'estensione"); 
-		}
+	}
+	
+	/**
+	 * Dimensione di un file.
+	 * 
+	 * @param path Percorso del file
+	 * @return dimensione in byte
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
+	 */
+	@Override
+	public long getFileSize(String path) throws RemoteException, DfsException {
 		
 		try {
-			Files.move(source, source.resolveSibling(newName), StandardCopyOption.ATOMIC_MOVE);
+			return Files.size(Paths.get(replicaPoint+path));
+		}catch(NoSuchFileException e) {
+			throw new DfsException("Errore: il file non esiste");
+		}catch(IOException e) {
+			throw new DfsException("Errore: problema di I/O");
 		}catch(SecurityException e) {
 			throw new DfsException("Errore: violazione sicurezza");
-		}catch (IOException e) {
-			throw new DfsException("Errore: problema di I/O");
 		}
 		
-		if (needPropagate) { propagate("renameFile", path, newName, null); }
-		
 	}
-
+	
 	/**
-	 * Creazione di una directory.
+	 * Apertura di una sessione di scrittura a blocchi: il contenuto viene inviato con writeChunk e sostituisce quello 
+	 * del file (creandolo se non esiste) solo con commitWriteSession.
 	 * 
-	 * @param path Posizione della directory da creare
-	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
+	 * Le sessioni non usate per più di Configs.LOCK_LEASE_MILLIS vengono annullate.
+	 * 
+	 * @param path Percorso del file da scrivere
+	 * @return identificativo della sessione
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
 	 * @throws DfsException Generata per qualsiasi altro problema
 	 */
 	@Override
-	public void createDirectory(String path, boolean needPropagate) throws RemoteException, DfsException  {
+	public String openWriteSession(String path) throws RemoteException, DfsException {
 		
+		if ( Files.isDirectory(Paths.get(replicaPoint+path)) ) { throw new DfsException("Errore: il path è una directory"); }
+		
+		String sessionId = UUID.randomUUID().toString();
 		try {
-			Files.createDirectory(Paths.get(replicaPoint+path)); // createDirectories: crea quelle che non esistono
+			writeSessions.put(sessionId, new WriteSession(path, tmpDirectory.resolve(sessionId)));
+		}catch(IOException e) {
+			throw new DfsException("Errore: problema di I/O");
 		}catch(SecurityException e) {
 			throw new DfsException("Errore: violazione sicurezza");
-		}catch (FileAlreadyExistsException e) {
-			throw new DfsException("Errore: la directory esiste già");
-		}catch (IOException e) {
-			throw new DfsException("Errore: problema di I/O");
 		}
-		
-		if (needPropagate) { propagate("createDirectory", path, null, null); }
+		return sessionId;
 		
 	}
-
+	
 	/**
-	 * Ritorno i file (e directory) contenuti nella directory specificata.
+	 * Scrittura di un blocco in una sessione di scrittura.
 	 * 
-	 * @param path Posizione della directory di cui listare i file (e directory)
+	 * @param sessionId identificativo della sessione
+	 * @param offset posizione del blocco nel file
+	 * @param chunk contenuto del blocco
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
-	 * @throws DfsException Generata per qualsiasi altro problema
+	 * @throws DfsException Generata se la sessione non esiste (o è scaduta) e per qualsiasi altro problema
 	 */
 	@Override
-	public String[] listFilesDirectory(String directoryPath) throws RemoteException, DfsException {
+	public void writeChunk(String sessionId, long offset, byte[] chunk) throws RemoteException, DfsException {
 		
-		if ( !Files.exists(Paths.get(this.replicaPoint+directoryPath)) ) { 
-			throw new DfsException("Errore: la directory non esiste");
-		}
-		if ( !Files.isDirectory(Paths.get(this.replicaPoint+directoryPath)) ) { 
-			throw new DfsException("Errore: non è una directory"); 
-		}
+		if (offset < 0) { throw new DfsException("Errore: offset non valido"); }
 		
+		WriteSession session = getWriteSession(sessionId);
 		try {
-			return Files.list(Paths.get(this.replicaPoint+directoryPath))
-					.map(Path::getFileName)
-					.map(Path::toString)
-					.toArray(String[]::new);
-		}catch(SecurityException e) {
-			throw new DfsException("Errore: violazione sicurezza");
-		}catch (IOException e) {
+			session.write(offset, chunk);
+		}catch(IOException e) {
 			throw new DfsException("Errore: problema di I/O");
 		}
+		
 	}
 	
 	/**
-	 * Funzione che esegue il lookup di tutte le altre repliche e salva il relativo oggetto remoto in una lista che sarà 
-	 * poi usata durante la propagazione (così nella propagazione non devo rifare il lookup).
-	 * 
-	 * Questa funzione è chiamata nel costruttore del ServerMaster per ogni ServerReplica. In questo modo quando il 
-	 * ServerMaster parte sarà responsabile del configurare tutti i ServerReplica.
+	 * Conclusione di una sessione di scrittura: il file temporaneo sostituisce in modo atomico il file di destinazione.
 	 * 
-	 * Perchè non chiamarla nel costruttore del ServerReplica? perchè non è detto che tutte le altre repliche siano attive
+	 * La propagazione agli altri ServerReplica avviene sul canale dati, leggendo il file appena scritto.
 	 * 
-	 * @param numReplicas Numero di ServerReplica nel sistema
+	 * @param sessionId identificativo della sessione
+	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
 	 * 
 	 * @throws RemoteException Generata se ci sono problemi di connessione
-	 * @throws DfsException Generata per qualsiasi altro problema
+	 * @throws DfsException Generata se la sessione non esiste (o è scaduta) e per qualsiasi altro problema
 	 */
 	@Override
-	public void lookupOtherReplicas(int numReplicas) throws RemoteException, DfsException{
+	public void commitWriteSession(String sessionId, boolean needPropagate) throws RemoteException, DfsException {
 		
-		this.numReplicas = numReplicas;
-
-		replicas = new ServerReplicaInterface[this.numReplicas];
+		WriteSession session = getWriteSession(sessionId);
+		writeSessions.remove(sessionId);
 		
-		for (int i=0; i<this.numReplicas; i++) {
-			
-			if (i == Integer.parseInt(replicaId) ) { continue; }
-			
+		String path = session.getPath();
+		long version;
+		synchronized (versions.lockFor(path)) {
 			try {
-				replicas[i] = (ServerReplicaInterface) Naming.lookup (Configs.URL+"ReplicaServer"+i);
+				if (syncWrites()) { session.force(); }
+				session.close();
+				Files.move(session.getTmpFile(), Paths.get(replicaPoint+path), 
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				syncDirectoryOf(path);
+			}catch(SecurityException e) {
+				session.discard();
+				throw new DfsException("Errore: violazione sicurezza");
+			}catch(IOException e) {
+				session.discard();
+				throw new DfsException("Errore: problema di I/O");
 			}
-			catch(Exception e) {
-				throw new DfsException("Errore: connessione rifiutata durante la ricerca del ServerReplica "+i, true);
+			finally {
+				invalidate(path);
 			}
 			
+			version = versions.next(path);
 		}
 		
-		System.out.println("Lookups delle altre repliche avvenuti con successo");
+		if (needPropagate) { replicate(ReplicationOp.putFile(path, version)); }
 		
 	}
 	
 	/**
-	 * Propagazione dell'operazione a tutti gli altri ServerReplica.
+	 * Annullamento di una sessione di scrittura (il file di destinazione non viene modificato).
 	 * 
-	 * Nel caso in cui un ServerReplica non sia raggiungibile (RemoteException: è andato in down) allora continuo la 
-	 * propagazione senza dare errori.
+	 * @param sessionId identificativo della sessione
 	 * 
-	 * Se invece è generata un'eccezione diversa da RemoteException allora non continuo la progpagazione perchè
-	 * significa che qualche replica non è consistente (es. mancano o ci sono file / directory diverse tra i ServerReplica).
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public void abortWriteSession(String sessionId) throws RemoteException {
+		
+		WriteSession session = writeSessions.remove(sessionId);
+		if (session != null) { session.discard(); }
+		
+	}
+	
+	private WriteSession getWriteSession(String sessionId) throws DfsException {
+		
+		WriteSession session = writeSessions.get(sessionId);
+		if (session == null) { throw new DfsException("Errore: la sessione di scrittura non esiste o è scaduta"); }
+		return session;
+		
+	}
+	
+	/**
+	 * Preparazione di una lettura sul canale dati: al massimo length byte a partire da offset.
 	 * 
-	 * @param opType tipo di operazione da propagare
-	 * @param path su cui fare l'operazione
-	 * @param otherPath alcune operazioni hanno bisogno di questo parametro aggiuntivo, per le altre lo definisco null
-	 * @param content parametro che contiene il content del file per l'operazione di scrittura, è null per tutte le altre operazioni
+	 * @param path Percorso del file dal leggere
+	 * @param offset posizione del primo byte da leggere
+	 * @param length numero massimo di byte da leggere (se negativo fino alla fine del file)
+	 * @return ticket da presentare al data server (con il numero di byte che verranno inviati)
 	 * 
-	 * @throws DfsException Generata per qualsiasi problema di propagazione
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
 	 */
-	private void propagate(String opType, String path, String otherPath, byte[] content) throws DfsException{
+	@Override
+	public TransferTicket openReadTransfer(String path, long offset, long length) throws RemoteException, DfsException {
 		
-		if (replicas == null) { throw new DfsException("Errore: propagazione non avvenuta perchè questa replica non è connessa con le altre"); }
+		if (offset < 0) { throw new DfsException("Errore: offset non valido"); }
 		
-		if (numReplicas <= 0) { throw new DfsException("Errore: propagazione non avvenuta perchè il numero di ServerReplica del sistema risulta 0", true); }
+		long available = Math.max(0, getFileSize(path) - offset);
+		if (length < 0 || length > available) { length = available; }
+		return dataServer.registerRead(Paths.get(replicaPoint+path), offset, length);
 		
-		for (int i=0; i<numReplicas; i++) {
-			
-			if (i == Integer.parseInt(replicaId) ) { continue; }
-			
-			try {
-				
-				switch(opType) {
-					case "createFile": 
-						replicas[i].createFile(path, false);
-						break;
-					case "writeFile":
-						replicas[i].writeFile(path, content, false);
-						break;
-					case "remove":
-						replicas[i].remove(path, false);
-						break;
-					case "moveFile":
-						replicas[i].moveFile(path, otherPath, false);
-						break;
-					case "renameFile":
-						replicas[i].renameFile(path, otherPath, false);
-						break;
-					case "createDirectory":
-						replicas[i].createDirectory(path, false);
-						break;
-					default:
-						throw new DfsException("Errore: propagazione non avvenuta perchè l'operazione non è valida", true);
-				}
-				
-			}
-			catch(Exception e) {
-				// se RemoteException --> continuo il ciclo di propagazione
-				// altrimenti --> genero eccezione perchè le repliche non sono consistenti
-				if( !(e instanceof RemoteException) ) { 
-					throw new DfsException("Errore: ServerReplica "+i+" è raggiungibile ma non è consistente", true);
-				}
-			}
-		}
 	}
 	
 	/**
-	 * Funzione che ritorna true se il ServerReplica è raggiungibile.
+	 * Preparazione di una scrittura sul canale dati, all'interno di una sessione di scrittura (vedi openWriteSession):
+	 * i byte ricevuti vengono scritti a partire da offset e, come per writeChunk, diventano visibili solo con 
+	 * commitWriteSession.
 	 * 
-	 * @return true se il ServerReplica è raggiungibile
-	 * @throws RemoteException se non è raggiungibile
+	 * @param sessionId identificativo della sessione
+	 * @param offset posizione del primo byte nel file
+	 * @param length numero di byte che verranno inviati
+	 * @return ticket da presentare al data server
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata se la sessione non esiste (o è scaduta) e per qualsiasi altro problema
 	 */
 	@Override
-	public boolean isAlive()throws RemoteException {
-		return true;
+	public TransferTicket openWriteTransfer(String sessionId, long offset, long length) throws RemoteException, DfsException {
+		
+		if (offset < 0 || length < 0) { throw new DfsException("Errore: offset o lunghezza non validi"); }
+		
+		return dataServer.registerWrite(getWriteSession(sessionId), offset, length);
+		
+	}
+	
+	/**
+	 * Annulla le sessioni di scrittura non usate da più di Configs.LOCK_LEASE_MILLIS.
+	 */
+	private void abortIdleWriteSessions() {
+		
+		dataServer.expire(Configs.LOCK_LEASE_MILLIS);
+		
+		long limit = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(Configs.LOCK_LEASE_MILLIS);
+		writeSessions.forEach((sessionId, session) -> {
+			if (session.getLastAccessNanos() - limit < 0 && writeSessions.remove(sessionId, session)) { 
+				session.discard(); 
+			}
+		});
+		
+	}
+	
+	private static void abortQuietly(ServerReplicaInterface replica, String sessionId) {
+		try { replica.abortWriteSession(sessionId); }
+		catch (RemoteException e) { }
+	}
+	
+	/**
+	 * Rimuove un file oppure una directory specificata da 'path'.
+	 * Nel caso in cui una directory ha elementi al suo interno allora non è eliminabile.
+	 * 
+	 * @param path Percorso del file (o directory) da eliminare
+	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
+	 */
+	@Override
+	public void remove(String path, boolean needPropagate) throws RemoteException, DfsException{
+		
+		long version;
+		synchronized (versions.lockFor(path)) {
+			try{
+				Files.delete(Paths.get(replicaPoint+path));
+				syncDirectoryOf(path);
+			}catch(SecurityException e) {
+				throw new DfsException("Errore: violazione sicurezza");
+			}catch(NoSuchFileException e) {
+				throw new DfsException("Errore: il file non esiste");
+			}catch(DirectoryNotEmptyException e) {
+				throw new DfsException("Errore: la directory non è vuota");
+			}catch (IOException e) {
+				throw new DfsException("Errore: problema di I/O");
+			}
+			finally {
+				invalidate(path);
+			}
+			
+			version = versions.next(path);
+		}
+		
+		if (needPropagate) { replicate(ReplicationOp.remove(path, version)); }
+	
+	}
+
+	/**
+	 * Muovo il file (e non directory) dal 'sourcePath' al 'targetPath'.
+	 * Se il 'targetPath' esiste già, allora non è possibile effettuare lo spostamento.
+	 * 
+	 * @param sourcePath Percorso del file da muovere (es. /folder/file.txt )
+	 * @param targetPath Percorso in cui voglio muovere il file (es. /otherFolder/file.txt)
+	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
+	 */
+	@Override
+	public void moveFile(String sourcePath, String targetPath, boolean needPropagate) throws RemoteException, DfsException{
+		
+		ConsistentHashRing ring = placement;
+		if (needPropagate && ring != null && !sameOwners(ring, sourcePath, targetPath)) {
+			moveAcrossOwners(ring, sourcePath, targetPath);
+			return;
+		}
+		
+		long version;
+		Object[] locks = versions.locksFor(sourcePath, targetPath);
+		synchronized (locks[0]) {
+			synchronized (locks[1]) {
+				// posso spostare solo file non directory
+				if ( Files.isDirectory(Paths.get(replicaPoint+targetPath)) ) {
+					throw new DfsException("Errore: non è possibile spostare directory");
+				}
+				
+				if ( Files.exists(Paths.get(replicaPoint+targetPath)) ) {
+					throw new DfsException("Errore: nella nuova posizione esiste un file con lo stesso nome");
+				}
+				
+				try {
+					Files.move( Paths.get(replicaPoint+sourcePath), 
+							Paths.get(replicaPoint+targetPath), 
+							StandardCopyOption.ATOMIC_MOVE);
+					syncDirectoryOf(sourcePath);
+					syncDirectoryOf(targetPath);
+				}catch(SecurityException e) {
+					throw new DfsException("Errore: violazione sicurezza");
+				}catch (IOException e) {
+					throw new DfsException("Errore: problema di I/O");
+				}
+				finally {
+					invalidate(sourcePath);
+					invalidate(targetPath);
+				}
+				
+				version = versions.next(sourcePath, targetPath);
+			}
+		}
+		
+		if (needPropagate) { replicate(ReplicationOp.move(sourcePath, targetPath, version)); }
+	}
+
+	/**
+	 * @return true se le directory dei due path sono tenute dagli stessi ServerReplica
+	 */
+	private static boolean sameOwners(ConsistentHashRing ring, String path, String otherPath) {
+		
+		int[] owners = ring.owners(ConsistentHashRing.placementKey(path));
+		int[] otherOwners = ring.owners(ConsistentHashRing.placementKey(otherPath));
+		Arrays.sort(owners);
+		Arrays.sort(otherOwners);
+		return Arrays.equals(owners, otherOwners);
+		
+	}
+	
+	/**
+	 * Spostamento di un file tra due directory tenute da ServerReplica diversi (consistent hashing): i ServerReplica che
+	 * tengono solo la directory di partenza non possono eseguire MOVE, quindi l'operazione viene propagata come 
+	 * eliminazione del file di partenza e scrittura del contenuto nella nuova posizione, con la stessa versione.
+	 * 
+	 * Se questo ServerReplica tiene anche la nuova directory il file viene spostato e i file grandi vengono propagati come
+	 * PUT_FILE (letti dalla nuova posizione al momento dell'invio). Altrimenti il file viene spostato nella directory 
+	 * temporanea e il contenuto viene sempre propagato nell'operazione: qui non resta un file da cui preparare un 
+	 * PUT_FILE al momento dell'invio. Il contenuto viene letto solo dopo aver rilasciato i lock.
+	 * 
+	 * @throws DfsException Generata per qualsiasi problema
+	 */
+	private void moveAcrossOwners(ConsistentHashRing ring, String sourcePath, String targetPath) throws DfsException {
+		
+		long version;
+		long size;
+		Path moved = null;
+		Path source = Paths.get(replicaPoint+sourcePath);
+		Path target = Paths.get(replicaPoint+targetPath);
+		boolean storesTarget = ring.stores(targetPath, false, Integer.parseInt(replicaId));
+		Object[] locks = versions.locksFor(sourcePath, targetPath);
+		synchronized (locks[0]) {
+			synchronized (locks[1]) {
+				if ( Files.isDirectory(target) ) {
+					throw new DfsException("Errore: non è possibile spostare directory");
+				}
+				
+				if ( Files.exists(target) ) {
+					throw new DfsException("Errore: nella nuova posizione esiste un file con lo stesso nome");
+				}
+				
+				try {
+					size = Files.size(source);
+					if (storesTarget) {
+						Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+						syncDirectoryOf(targetPath);
+					} else {
+						moved = tmpDirectory.resolve(UUID.randomUUID().toString());
+						Files.move(source, moved, StandardCopyOption.ATOMIC_MOVE);
+					}
+					syncDirectoryOf(sourcePath);
+				}catch (NoSuchFileException e) {
+					throw new DfsException("Errore: il file non esiste");
+				}catch(SecurityException e) {
+					throw new DfsException("Errore: violazione sicurezza");
+				}catch (IOException e) {
+					throw new DfsException("Errore: problema di I/O");
+				}
+				finally {
+					invalidate(sourcePath);
+					invalidate(targetPath);
+				}
+				
+				version = versions.next(sourcePath, targetPath);
+			}
+		}
+		
+		ReplicationOp write;
+		try {
+			if (storesTarget && batchOps.get() == null && size > Configs.REPLICATION_INLINE_MAX_BYTES) {
+				write = ReplicationOp.putFile(targetPath, version);
+			} else {
+				write = ReplicationOp.writeFile(targetPath, readAll(storesTarget ? target : moved), version);
+			}
+		}
+		catch (IOException e) { throw new DfsException("Errore: problema di I/O"); }
+		finally {
+			if (moved != null) {
+				try { Files.deleteIfExists(moved); }
+				catch (IOException e) { }
+			}
+		}
+		
+		replicate(ReplicationOp.remove(sourcePath, version));
+		replicate(write);
+		
+	}
+	
+	/**
+	 * Lettura di un file con un canale, a blocchi direttamente nell'array del risultato.
+	 */
+	private static byte[] readAll(Path file) throws IOException {
+		
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) { throw new IOException("file troppo grande"); }
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) { }
+			return buffer.array();
+		}
+		
+	}
+
+	/**
+	 * Rinomina di un file.
+	 * 
+	 * @param path Percorso del file da rinominare
+	 * @param newName Nuovo nome
+	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
+	 */
+	@Override
+	public void renameFile(String path, String newName, boolean needPropagate) throws RemoteException, DfsException {
+		
+		String newPath = Paths.get(path).resolveSibling(newName).toString();
+		long version;
+		Object[] locks = versions.locksFor(path, newPath);
+		synchronized (locks[0]) {
+			synchronized (locks[1]) {
+				// posso spostare solo file non directory
+				if ( Files.isDirectory(Paths.get(replicaPoint+path)) ) {
+					throw new DfsException("Errore: non è possibile rinominare directory");
+				}
+				
+				Path source = Paths.get(this.replicaPoint+path);
+				Path target = source.resolveSibling(newName);
+				
+				if ( Files.exists(target) ) { 
+					throw new DfsException("Errore: un file esiste già con questo nome");
+				}
+				
+				// i file devono avere '.estensione'
+				if (!target.toString().contains(".")) { 
+					throw new DfsException("Errore: nuovo nome del file non valido, deve contenere l'estensione"); 
+				}
+				
+				try {
+					Files.move(source, source.resolveSibling(newName), StandardCopyOption.ATOMIC_MOVE);
+					syncDirectoryOf(path);
+				}catch(SecurityException e) {
+					throw new DfsException("Errore: violazione sicurezza");
+				}catch (IOException e) {
+					throw new DfsException("Errore: problema di I/O");
+				}
+				finally {
+					invalidate(path);
+					invalidate(newPath);
+				}
+				
+				version = versions.next(path, newPath);
+			}
+		}
+		
+		if (needPropagate) { replicate(ReplicationOp.rename(path, newName, version)); }
+		
+	}
+
+	/**
+	 * Creazione di una directory.
+	 * 
+	 * @param path Posizione della directory da creare
+	 * @param needPropagate true se è necessario propagare l'operazione tra i ServerReplica, false altrimenti
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
+	 */
+	@Override
+	public void createDirectory(String path, boolean needPropagate) throws RemoteException, DfsException  {
+		
+		long version;
+		synchronized (versions.lockFor(path)) {
+			try {
+				Files.createDirectory(Paths.get(replicaPoint+path)); // createDirectories: crea quelle che non esistono
+				syncDirectoryOf(path);
+			}catch(SecurityException e) {
+				throw new DfsException("Errore: violazione sicurezza");
+			}catch (FileAlreadyExistsException e) {
+				throw new DfsException("Errore: la directory esiste già");
+			}catch (IOException e) {
+				throw new DfsException("Errore: problema di I/O");
+			}
+			
+			version = versions.next(path);
+		}
+		
+		if (needPropagate) { replicate(ReplicationOp.createDirectory(path, version)); }
+		
+	}
+	
+	/**
+	 * Esecuzione di un batch di operazioni chieste da un client con una sola chiamata (i lock su tutti i path sono già
+	 * stati presi con una sola startOperations).
+	 * 
+	 * Le operazioni vengono eseguite in ordine come se fossero chieste una alla volta; un' operazione non riuscita non 
+	 * ferma le successive. Le modifiche di tutto il batch vengono poi propagate agli altri ServerReplica come un' unica 
+	 * operazione (BATCH), con un solo elemento del log e una sola attesa.
+	 * 
+	 * @param ops operazioni da eseguire
+	 * 
+	 * @return per ogni operazione, nello stesso ordine, null se è riuscita oppure l'errore
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata se la propagazione non riesce
+	 */
+	@Override
+	public DfsException[] executeBatch(List<BatchOp> ops) throws RemoteException, DfsException {
+		
+		DfsException[] results = new DfsException[ops.size()];
+		List<ReplicationOp> collected = new ArrayList<ReplicationOp>();
+		
+		// le operazioni eseguite con needPropagate = true vengono raccolte da replicate invece di essere inviate
+		batchOps.set(collected);
+		try {
+			for (int i=0; i<ops.size(); i++) {
+				try { executeBatchOp(ops.get(i)); }
+				catch (DfsException e) { results[i] = e; }
+			}
+		}
+		finally {
+			batchOps.remove();
+		}
+		
+		if (collected.size() == 1) { replicate(collected.get(0)); }
+		else if (collected.size() > 1) { replicate(ReplicationOp.batch(collected)); }
+		
+		return results;
+		
+	}
+	
+	private void executeBatchOp(BatchOp op) throws RemoteException, DfsException {
+		
+		switch (op.getType()) {
+			case CREATE_FILE:
+				createFile(op.getPath(), true);
+				break;
+			case WRITE_FILE:
+				writeFile(op.getPath(), op.getContent(), true);
+				break;
+			case REMOVE:
+				remove(op.getPath(), true);
+				break;
+			case MOVE:
+				moveFile(op.getPath(), op.getOtherPath(), true);
+				break;
+			case RENAME:
+				renameFile(op.getPath(), op.getOtherPath(), true);
+				break;
+			case CREATE_DIRECTORY:
+				createDirectory(op.getPath(), true);
+				break;
+			default:
+				throw new DfsException("Errore: operazione non valida");
+		}
+		
+	}
+
+	/**
+	 * Ritorno i file (e directory) contenuti nella directory specificata.
+	 * 
+	 * @param path Posizione della directory di cui listare i file (e directory)
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
+	 */
+	@Override
+	public String[] listFilesDirectory(String directoryPath) throws RemoteException, DfsException {
+		
+		if ( !Files.exists(Paths.get(this.replicaPoint+directoryPath)) ) { 
+			throw new DfsException("Errore: la directory non esiste");
+		}
+		if ( !Files.isDirectory(Paths.get(this.replicaPoint+directoryPath)) ) { 
+			throw new DfsException("Errore: non è una directory"); 
+		}
+		
+		try {
+			return Files.list(Paths.get(this.replicaPoint+directoryPath))
+					.map(Path::getFileName)
+					.map(Path::toString)
+					.toArray(String[]::new);
+		}catch(SecurityException e) {
+			throw new DfsException("Errore: violazione sicurezza");
+		}catch (IOException e) {
+			throw new DfsException("Errore: problema di I/O");
+		}
+	}
+	
+	/**
+	 * Funzione che esegue il lookup di tutte le altre repliche e salva il relativo oggetto remoto in una lista che sarà 
+	 * poi usata durante la propagazione (così nella propagazione non devo rifare il lookup).
+	 * 
+	 * Questa funzione è chiamata nel costruttore del ServerMaster per ogni ServerReplica. In questo modo quando il 
+	 * ServerMaster parte sarà responsabile del configurare tutti i ServerReplica.
+	 * 
+	 * Perchè non chiamarla nel costruttore del ServerReplica? perchè non è detto che tutte le altre repliche siano attive
+	 * 
+	 * @param numReplicas Numero di ServerReplica nel sistema
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata per qualsiasi altro problema
+	 */
+	@Override
+	public void lookupOtherReplicas(int numReplicas) throws RemoteException, DfsException{
+		
+		this.numReplicas = numReplicas;
+		
+		if (Configs.PLACEMENT_REPLICATION_FACTOR > 0 && !chainReplication && placement == null) {
+			placement = new ConsistentHashRing(numReplicas, Configs.PLACEMENT_VIRTUAL_NODES, Configs.PLACEMENT_REPLICATION_FACTOR);
+		}
+
+		replicas = new ServerReplicaInterface[this.numReplicas];
+		
+		for (int i=0; i<this.numReplicas; i++) {
+			
+			if (i == Integer.parseInt(replicaId) ) { continue; }
+			
+			try {
+				replicas[i] = (ServerReplicaInterface) Naming.lookup (Configs.URL+"ReplicaServer"+i);
+			}
+			catch(Exception e) {
+				throw new DfsException("Errore: connessione rifiutata durante la ricerca del ServerReplica "+i, true);
+			}
+			
+		}
+		
+		// code di replicazione verso gli altri ServerReplica (create solo la prima volta, poi aggiorno i riferimenti); 
+		// nella replicazione a catena si invia solo al successore (ChainReplicator)
+		if (!chainReplication && (replicators == null || replicators.length != this.numReplicas)) {
+			PeerReplicator[] newReplicators = new PeerReplicator[this.numReplicas];
+			for (int i=0; i<this.numReplicas; i++) {
+				if (i == Integer.parseInt(replicaId) ) { continue; }
+				int peerId = i;
+				newReplicators[i] = new PeerReplicator(i, Integer.parseInt(replicaId), replicas[i], replicationLog, this::stage, 
+						(placement == null) ? null : op -> stores(peerId, op));
+			}
+			replicators = newReplicators;
+		} else if (replicators != null) {
+			for (int i=0; i<this.numReplicas; i++) {
+				if (replicators[i] != null) { replicators[i].setReplica(replicas[i]); }
+			}
+		}
+		
+		// anti-entropy periodico con gli altri ServerReplica (avviato solo la prima volta)
+		if (antiEntropyExecutor == null) {
+			antiEntropyExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "anti-entropy");
+				t.setDaemon(true);
+				return t;
+			});
+			antiEntropyExecutor.scheduleWithFixedDelay(this::runAntiEntropy, Configs.ANTI_ENTROPY_INTERVAL_MILLIS, 
+					Configs.ANTI_ENTROPY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		
+		System.out.println("Lookups delle altre repliche avvenuti con successo");
+		
+		if (!bootstrapStarted) {
+			bootstrapStarted = true;
+			startBootstrap();
+		}
+		
+	}
+	
+	/**
+	 * Avvio del bootstrap (solo al primo lookupOtherReplicas).
+	 * 
+	 * Se nessun altro ServerReplica è pronto (avvio di tutto il sistema) il contenuto locale è già quello del filesystem
+	 * distribuito e il ServerReplica è subito pronto; altrimenti copia lo snapshot da uno di quelli pronti (da tutti con
+	 * il consistent hashing) su un thread separato, ritentando finchè non riesce, e diventa pronto solo alla fine.
+	 */
+	private void startBootstrap() {
+		
+		int[] sources = bootstrapSources();
+		if (sources.length == 0) {
+			ready = true;
+			return;
+		}
+		
+		Bootstrap bootstrap = new Bootstrap(Integer.parseInt(replicaId), new Bootstrap.Target() {
+			
+			@Override
+			public List<SnapshotEntry> getManifest() throws IOException, DfsException {
+				return getSnapshotManifest();
+			}
+			
+			@Override
+			public long getVersion(String path) {
+				return versions.get(path);
+			}
+			
+			@Override
+			public Path createTempFile() {
+				return tmpDirectory.resolve(UUID.randomUUID().toString());
+			}
+			
+			@Override
+			public void install(String path, long version, MerkleEntry.Kind kind, Path content) throws IOException {
+				installEntry(path, version, kind, content);
+			}
+			
+			@Override
+			public void removeIfUntouched(String path) throws IOException {
+				removeUnversioned(path);
+			}
+			
+			@Override
+			public boolean stores(int id, String path, MerkleEntry.Kind kind) {
+				ConsistentHashRing ring = placement;
+				return ring == null || ring.stores(path, kind == MerkleEntry.Kind.DIRECTORY, id);
+			}
+			
+		});
+		
+		Thread thread = new Thread(() -> {
+			int[] current = sources;
+			while (true) {
+				int source = -1;
+				try {
+					for (int id: current) {
+						source = id;
+						bootstrap.run(replicas, id);
+					}
+					break;
+				}
+				catch (IOException | DfsException e) {
+					System.out.println("Bootstrap dal ServerReplica "+source+" non riuscito ("+e.getMessage()+"): riprovo");
+				}
+				try { Thread.sleep(Configs.REPLICATION_RETRY_MAX_MILLIS); }
+				catch (InterruptedException e) { return; }
+				
+				current = bootstrapSources();
+				if (current.length == 0) {
+					System.out.println("Bootstrap: nessun altro ServerReplica è pronto, uso il contenuto locale");
+					break;
+				}
+			}
+			ready = true;
+		}, "bootstrap");
+		thread.setDaemon(true);
+		thread.start();
+		
+	}
+	
+	/**
+	 * @return ServerReplica da cui copiare lo snapshot: il primo pronto oppure, con il consistent hashing, tutti quelli
+	 * 			pronti (ognuno tiene solo una parte dei file)
+	 */
+	private int[] bootstrapSources() {
+		
+		if (placement != null) { return Bootstrap.findSources(replicas); }
+		int source = Bootstrap.findSource(replicas);
+		return (source < 0) ? new int[0] : new int[] { source };
+		
+	}
+	
+	/**
+	 * @return true se il ServerReplica id deve ricevere l'operazione: sempre con la replicazione completa, altrimenti 
+	 * 			le directory sempre e i file solo se id li tiene
+	 */
+	private boolean stores(int id, ReplicationOp op) {
+		
+		ConsistentHashRing ring = placement;
+		if (ring == null) { return true; }
+		if (op.getType() == ReplicationOp.Type.BATCH) {
+			for (ReplicationOp sub: op.getOps()) {
+				if (stores(id, sub)) { return true; }
+			}
+			return false;
+		}
+		return ring.stores(op.getPath(), op.getType() == ReplicationOp.Type.CREATE_DIRECTORY, id);
+		
+	}
+	
+	/**
+	 * @return true se questo ServerReplica deve tenere il path (usato dall'anti-entropy)
+	 */
+	private boolean wanted(MerkleEntry entry) {
+		
+		ConsistentHashRing ring = placement;
+		return ring == null || ring.stores(entry.getPath(), entry.getKind() == MerkleEntry.Kind.DIRECTORY, 
+				Integer.parseInt(replicaId));
+		
+	}
+	
+	/**
+	 * Propagazione dell'operazione a tutti gli altri ServerReplica.
+	 * 
+	 * L'operazione viene aggiunta al log di replicazione (ReplicationLog), che ogni PeerReplicator invia in ordine e a 
+	 * batch al proprio ServerReplica, ritentando finchè non la applica. Quando ritornare dipende da Configs.WRITE_QUORUM:
+	 * 		- 0 (default): quando tutti i ServerReplica raggiungibili hanno applicato l'operazione. Quelli non raggiungibili
+	 * 		  (o che non rispondono entro Configs.PROPAGATION_TIMEOUT_MILLIS) non vengono attesi, ma riceveranno 
+	 * 		  l'operazione quando torneranno raggiungibili;
+	 * 		- W > 0: quando W ServerReplica in tutto (questo compreso) hanno applicato l'operazione su disco (vedi 
+	 * 		  syncWrites), gli altri la ricevono in modo asincrono. Se entro Configs.PROPAGATION_TIMEOUT_MILLIS non si 
+	 * 		  arriva a W viene generato un errore (l'operazione resta comunque applicata qui e in coda per gli altri).
+	 * Con il consistent hashing vengono attesi solo i ServerReplica che tengono il path (W al massimo R).
+	 * 
+	 * Se un ServerReplica risponde con un errore viene generata un'eccezione perchè significa che qualche replica non è 
+	 * consistente (es. mancano o ci sono file / directory diverse tra i ServerReplica).
+	 * 
+	 * @param op operazione da propagare
+	 * 
+	 * @throws DfsException Generata per qualsiasi problema di propagazione
+	 */
+	private void replicate(ReplicationOp op) throws DfsException{
+		
+		// operazione di un batch: viene propagata con le altre alla fine di executeBatch
+		List<ReplicationOp> batch = batchOps.get();
+		if (batch != null) {
+			batch.add(op);
+			return;
+		}
+		
+		if (chainReplication) {
+			replicateChain(op);
+			return;
+		}
+		
+		if (replicators == null) { throw new DfsException("Errore: propagazione non avvenuta perchè questa replica non è connessa con le altre"); }
+		
+		if (numReplicas <= 0) { throw new DfsException("Errore: propagazione non avvenuta perchè il numero di ServerReplica del sistema risulta 0", true); }
+		
+		// registro le attese prima che i PeerReplicator possano leggere l'operazione dal log
+		List<PeerReplicator.Task> tasks = new ArrayList<PeerReplicator.Task>(numReplicas);
+		synchronized (replicationLog) {
+			long seq = replicationLog.append(op);
+			for (PeerReplicator replicator: replicators) {
+				if (replicator != null && replicator.accepts(op)) { tasks.add(replicator.track(seq)); }
+			}
+		}
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Configs.PROPAGATION_TIMEOUT_MILLIS);
+		int quorum = Math.min(Configs.WRITE_QUORUM, tasks.size() + 1);
+		
+		if (quorum <= 0) {
+			// attendo tutti i ServerReplica raggiungibili
+			for (PeerReplicator.Task task: tasks) {
+				try { task.getFirstOutcome().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS); }
+				catch (TimeoutException | ExecutionException e) { }   // gli errori sono controllati sotto
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DfsException("Errore: propagazione interrotta");
+				}
+			}
+		} else {
+			// attendo che l'operazione sia applicata da quorum - 1 altri ServerReplica
+			CompletableFuture<Void> reached = new CompletableFuture<Void>();
+			AtomicInteger acks = new AtomicInteger(1);
+			if (quorum == 1) { reached.complete(null); }
+			for (PeerReplicator.Task task: tasks) {
+				task.getApplied().thenRun(() -> {
+					if (acks.incrementAndGet() == quorum) { reached.complete(null); }
+				});
+			}
+			try { reached.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS); }
+			catch (TimeoutException | ExecutionException e) {
+				checkConsistency(tasks);
+				throw new DfsException("Errore: l'operazione è stata applicata solo da "+acks.get()+" ServerReplica su "+quorum+
+						" richiesti, riprova");
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DfsException("Errore: propagazione interrotta");
+			}
+		}
+		
+		checkConsistency(tasks);
+	}
+	
+	/**
+	 * Propagazione nella replicazione a catena: l'operazione viene inoltrata al successore e si attende la conferma 
+	 * della coda (che risale la catena), al massimo Configs.PROPAGATION_TIMEOUT_MILLIS. Se un ServerReplica della catena
+	 * cade nel frattempo, il ServerMaster ripara la catena e l'operazione viene inviata di nuovo al nuovo successore.
+	 * 
+	 * @param op operazione da propagare
+	 * 
+	 * @throws DfsException Generata se la coda non conferma entro il timeout o se un ServerReplica risponde con un errore
+	 */
+	private void replicateChain(ReplicationOp op) throws DfsException {
+		
+		if (!chainReplicator.isConfigured()) { 
+			throw new DfsException("Errore: propagazione non avvenuta perchè la catena dei ServerReplica non è ancora configurata"); 
+		}
+		
+		PeerReplicator.Task task = chainReplicator.forward(op);
+		try { task.getApplied().get(Configs.PROPAGATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS); }
+		catch (ExecutionException e) {
+			throw new DfsException("Errore: un ServerReplica della catena è raggiungibile ma non è consistente", true);
+		}
+		catch (TimeoutException e) {
+			throw new DfsException("Errore: l'operazione non è ancora stata confermata dalla coda della catena, riprova");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DfsException("Errore: propagazione interrotta");
+		}
+		
+	}
+	
+	/**
+	 * @throws DfsException Generata se almeno un ServerReplica ha risposto con un errore
+	 */
+	private void checkConsistency(List<PeerReplicator.Task> tasks) throws DfsException {
+		
+		for (PeerReplicator.Task task: tasks) {
+			if (task.getFirstOutcome().isCompletedExceptionally()) {
+				throw new DfsException("Errore: un ServerReplica è raggiungibile ma non è consistente", true);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Preparazione di un' operazione PUT_FILE prima dell'invio a un altro ServerReplica (usato dai PeerReplicator): il 
+	 * file viene inviato sul canale dati in una sessione di scrittura del destinatario.
+	 * 
+	 * Se nel frattempo il file è stato eliminato qui, l'operazione è superata da una successiva e viene inviata senza
+	 * sessione (il destinatario la salta).
+	 * Un errore sul canale dati è un problema di connessione e viene quindi segnalato come RemoteException.
+	 * 
+	 * @return l'operazione con la sessione di scrittura del destinatario
+	 */
+	private ReplicationOp stage(ServerReplicaInterface replica, ReplicationOp op) throws RemoteException, DfsException {
+		
+		if (replica == null) { throw new RemoteException("Errore: ServerReplica non trovato"); }
+		
+		FileChannel channel;
+		try { channel = FileChannel.open(Paths.get(replicaPoint+op.getPath()), StandardOpenOption.READ); }
+		catch (IOException e) { return op; }
+		
+		String sessionId = null;
+		try {
+			sessionId = replica.openWriteSession(op.getPath());
+			DataTransfer.upload(replica.openWriteTransfer(sessionId, 0, channel.size()), channel, 0);
+			return op.withSessionId(sessionId);
+		}
+		catch (RemoteException | DfsException e) {
+			if (sessionId != null) { abortQuietly(replica, sessionId); }
+			throw e;
+		}
+		catch (IOException e) {
+			if (sessionId != null) { abortQuietly(replica, sessionId); }
+			throw new RemoteException("Errore: trasferimento sul canale dati non riuscito", e);
+		}
+		finally {
+			try { channel.close(); }
+			catch (IOException e) { }
+		}
+		
+	}
+	
+	/**
+	 * Applicazione di un batch del log di replicazione di un altro ServerReplica: le operazioni vengono applicate 
+	 * nell'ordine del log (LogApplier).
+	 * 
+	 * @param logId identificativo del log di origine
+	 * @param sourceId id del ServerReplica di origine
+	 * @param baseSeq numero di sequenza fino a cui il mittente sa che le operazioni sono già state applicate
+	 * @param entries elementi consecutivi del log
+	 * 
+	 * @return ultimo numero di sequenza applicato ed errori delle operazioni non applicabili
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public ReplicationAck applyLog(String logId, int sourceId, long baseSeq, List<LogEntry> entries) throws RemoteException {
+		
+		ReplicationAck ack = logApplier.apply(logId, sourceId, baseSeq, entries);
+		
+		// catena: confermo al predecessore solo quando anche il successore ha confermato
+		if (chainReplication) { chainReplicator.awaitForwarded(Configs.PROPAGATION_TIMEOUT_MILLIS); }
+		return ack;
+		
+	}
+	
+	/**
+	 * Applicazione di un' operazione del log di un altro ServerReplica; nella replicazione a catena l'operazione viene 
+	 * poi inoltrata al successore (anche se qui era già applicata: il successore potrebbe non averla).
+	 */
+	private void applyFromLog(ReplicationOp op) throws RemoteException, DfsException {
+		
+		try { applyReplicated(op); }
+		finally {
+			if (chainReplication) { chainReplicator.append(op); }
+		}
+		
+	}
+	
+	/**
+	 * Nuova configurazione della catena (replicazione a catena), inviata dal ServerMaster a ogni cambiamento.
+	 * 
+	 * @param epoch numero della configurazione (le configurazioni più vecchie arrivate in ritardo vengono ignorate)
+	 * @param chain id dei ServerReplica dalla testa alla coda
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public void setChain(long epoch, int[] chain) throws RemoteException {
+		
+		if (!chainReplication) { return; }
+		
+		// nuovo lookup del successore: potrebbe essere un ServerReplica appena riavviato
+		int successor = ChainReplicator.successorOf(chain, Integer.parseInt(replicaId));
+		ServerReplicaInterface successorRef = null;
+		if (successor >= 0) {
+			try { successorRef = (ServerReplicaInterface) Naming.lookup(Configs.URL+"ReplicaServer"+successor); }
+			catch (Exception e) { successorRef = (replicas != null) ? replicas[successor] : null; }
+		}
+		chainReplicator.setChain(epoch, chain, successorRef);
+		
+	}
+	
+	/**
+	 * Applicazione di un' operazione propagata da un altro ServerReplica.
+	 * 
+	 * L'operazione viene applicata solo se è più recente della versione attuale dei path che modifica, altrimenti è già
+	 * stata applicata (ad esempio è stata rinviata dopo un errore di connessione) oppure è superata da una successiva.
+	 * 
+	 * @param op operazione da applicare
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata se l'operazione non è applicabile (le repliche non sono consistenti)
+	 */
+	private void applyReplicated(ReplicationOp op) throws RemoteException, DfsException {
+		
+		// batch: le operazioni vengono applicate in ordine, saltando quelle sui file che questo ServerReplica non tiene
+		if (op.getType() == ReplicationOp.Type.BATCH) {
+			for (ReplicationOp sub: op.getOps()) {
+				if (stores(Integer.parseInt(replicaId), sub)) { applyReplicated(sub); }
+			}
+			return;
+		}
+		
+		String path = op.getPath();
+		
+		// PUT_FILE senza sessione: il file è stato eliminato sul ServerReplica di origine prima dell'invio
+		if (op.getType() == ReplicationOp.Type.PUT_FILE && op.getSessionId() == null) { return; }
+		
+		switch (op.getType()) {
+			case MOVE:
+			case RENAME:
+				String otherPath = (op.getType() == ReplicationOp.Type.MOVE) ? op.getOtherPath() 
+						: Paths.get(path).resolveSibling(op.getOtherPath()).toString();
+				Object[] locks = versions.locksFor(path, otherPath);
+				synchronized (locks[0]) {
+					synchronized (locks[1]) {
+						if (op.getVersion() <= Math.max(versions.get(path), versions.get(otherPath))) { return; }
+						if (op.getType() == ReplicationOp.Type.MOVE) { moveFile(path, otherPath, false); }
+						else { renameFile(path, op.getOtherPath(), false); }
+						versions.set(path, op.getVersion());
+						versions.set(otherPath, op.getVersion());
+					}
+				}
+				return;
+			case WRITE_DELTA:
+				synchronized (versions.lockFor(path)) {
+					if (op.getVersion() <= versions.get(path)) { return; }
+					if (writeFileDelta(path, op.getDelta(), false)) {
+						versions.set(path, op.getVersion());
+						return;
+					}
+				}
+				
+				// il contenuto di partenza non corrisponde: chiedo il file completo al ServerReplica di origine (senza 
+				// tenere il monitor del path, l'origine potrebbe chiedere lo stesso a questo ServerReplica)
+				VersionedContent full;
+				try {
+					ServerReplicaInterface origin = (ServerReplicaInterface) Naming.lookup(Configs.URL+"ReplicaServer"+op.getOrigin());
+					full = origin.readFileVersioned(path);
+				}
+				catch(RemoteException e) { throw e; }
+				catch(Exception e) { throw new RemoteException("Errore: ServerReplica "+op.getOrigin()+" non trovato", e); }
+				
+				synchronized (versions.lockFor(path)) {
+					// file eliminato sul ServerReplica di origine: arriverà anche l'eliminazione
+					if (op.getVersion() <= versions.get(path) || !full.exists()) { return; }
+					writeFile(path, full.getContent(), false);
+					versions.set(path, op.getVersion());
+				}
+				return;
+			default:
+				break;
+		}
+		
+		synchronized (versions.lockFor(path)) {
+			
+			if (op.getVersion() <= versions.get(path)) { 
+				if (op.getType() == ReplicationOp.Type.PUT_FILE) { abortWriteSession(op.getSessionId()); }
+				return; 
+			}
+			
+			// le operazioni di ServerReplica diversi possono arrivare in un ordine diverso da quello delle versioni: se il 
+			// path è già nello stato che l'operazione produrrebbe, aggiorno solo la versione (così un' operazione più 
+			// vecchia arrivata dopo non ha effetto)
+			Path file = Paths.get(replicaPoint+path);
+			
+			// dopo un periodo in cui questo ServerReplica non era raggiungibile (o durante il bootstrap) l'operazione può 
+			// arrivare prima della creazione della directory che la contiene, fatta tramite un altro ServerReplica
+			if (op.getType() != ReplicationOp.Type.REMOVE) {
+				try { Files.createDirectories(file.getParent()); }
+				catch (IOException e) { throw new DfsException("Errore: problema di I/O"); }
+			}
+			
+			switch (op.getType()) {
+				case CREATE_FILE:
+					if ( !Files.isRegularFile(file) ) { createFile(path, false); }
+					break;
+				case WRITE_FILE:
+					writeFile(path, op.getContent(), false);
+					break;
+				case WRITE_AT:
+					writeFile(path, op.getOffset(), op.getContent(), false);
+					break;
+				case REMOVE:
+					if ( Files.exists(file) ) { remove(path, false); }
+					break;
+				case CREATE_DIRECTORY:
+					if ( !Files.isDirectory(file) ) { createDirectory(path, false); }
+					break;
+				case PUT_FILE:
+					commitWriteSession(op.getSessionId(), false);
+					break;
+				default:
+					throw new DfsException("Errore: propagazione non avvenuta perchè l'operazione non è valida", true);
+			}
+			versions.set(path, op.getVersion());
+		}
+		
+	}
+	
+	/**
+	 * Aggiornamento del MerkleTree quando cambia la versione di un path (chiamato dalla VersionTable tenendo il 
+	 * monitor del path, quindi a operazione già eseguita sul filesystem).
+	 */
+	private void versionChanged(String path, long version) {
+		
+		Path file = Paths.get(replicaPoint+path);
+		MerkleEntry.Kind kind = Files.isDirectory(file) ? MerkleEntry.Kind.DIRECTORY 
+				: Files.exists(file) ? MerkleEntry.Kind.FILE : MerkleEntry.Kind.DELETED;
+		merkleTree.put(new MerkleEntry(path, version, kind));
+		
+	}
+	
+	/**
+	 * Hash dei nodi del MerkleTree (usato dall'anti-entropy degli altri ServerReplica).
+	 * 
+	 * @param level livello dei nodi (0 è la radice)
+	 * @param nodes indici dei nodi nel livello
+	 * @return hash dei nodi
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public long[] getMerkleHashes(int level, int[] nodes) throws RemoteException {
+		return merkleTree.getHashes(level, nodes);
+	}
+	
+	/**
+	 * Stato dei path di alcune foglie del MerkleTree (usato dall'anti-entropy degli altri ServerReplica).
+	 * 
+	 * @param leaves indici delle foglie
+	 * @return path, versione e tipo di tutti i path delle foglie
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public List<MerkleEntry> getMerkleEntries(int[] leaves) throws RemoteException {
+		return merkleTree.getEntries(leaves);
+	}
+	
+	/**
+	 * Richiesta di un anti-entropy immediato da parte di un altro ServerReplica, che ha eliminato dal proprio log di 
+	 * replicazione operazioni non ancora confermate da questo (vedi ReplicationLog). Viene eseguito dal thread 
+	 * dell'anti-entropy periodico, senza attenderlo.
+	 * 
+	 * @param replicaId ServerReplica da cui recuperare le differenze
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public void requestAntiEntropy(int replicaId) throws RemoteException {
+		
+		ScheduledExecutorService executor = antiEntropyExecutor;
+		ServerReplicaInterface[] peers = replicas;
+		if (executor == null || peers == null || replicaId < 0 || replicaId >= peers.length) { return; }   // partirà con lookupOtherReplicas
+		executor.execute(() -> syncWith(peers, replicaId));
+		
+	}
+	
+	/**
+	 * Un giro di anti-entropy con tutti gli altri ServerReplica raggiungibili.
+	 */
+	private void runAntiEntropy() {
+		
+		ServerReplicaInterface[] peers = replicas;
+		for (int i=0; i<peers.length; i++) { syncWith(peers, i); }
+		
+	}
+	
+	/**
+	 * Anti-entropy con un altro ServerReplica (se non è raggiungibile riproverà il giro successivo).
+	 */
+	private void syncWith(ServerReplicaInterface[] peers, int i) {
+		
+		if (peers[i] == null) { return; }
+		try {
+			int repaired = antiEntropy.syncWith(peers[i]);
+			if (repaired > 0) { System.out.println("Anti-entropy: recuperati "+repaired+" path dal ServerReplica "+i); }
+		}
+		catch (RemoteException e) {
+			// ServerReplica non raggiungibile (o riavviato: rifaccio il lookup), riproverò al prossimo giro
+			try { peers[i] = (ServerReplicaInterface) Naming.lookup(Configs.URL+"ReplicaServer"+i); }
+			catch (Exception lookupError) { }
+		}
+		catch (RuntimeException e) {
+			System.out.println("Anti-entropy con il ServerReplica "+i+" non riuscito: "+e);
+		}
+		
+	}
+	
+	/**
+	 * Recupero di un path da un altro ServerReplica che ne ha una versione più recente (anti-entropy).
+	 * 
+	 * Il contenuto dei file viene scaricato sul canale dati in un file temporaneo; poi, tenendo il monitor del path e 
+	 * solo se nel frattempo non è arrivata una versione ancora più recente, il path viene portato allo stato dell'altro
+	 * ServerReplica con la sua versione. Il recupero non viene propagato: ogni ServerReplica recupera da sè.
+	 */
+	private void repair(ServerReplicaInterface peer, MerkleEntry remote) throws RemoteException, DfsException {
+		
+		String path = remote.getPath();
+		Path tmpFile = null;
+		
+		try {
+			if (remote.getKind() == MerkleEntry.Kind.FILE) {
+				TransferTicket ticket = peer.openReadTransfer(path, 0, -1);
+				tmpFile = tmpDirectory.resolve(UUID.randomUUID().toString());
+				FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				try { DataTransfer.download(ticket, channel, 0); }
+				finally { channel.close(); }
+			}
+			
+			installEntry(path, remote.getVersion(), remote.getKind(), tmpFile);
+		}
+		catch (RemoteException e) {
+			throw e;
+		}
+		catch (IOException e) {
+			throw new DfsException("Errore: problema di I/O durante il recupero di "+path);
+		}
+		catch (SecurityException e) {
+			throw new DfsException("Errore: violazione sicurezza");
+		}
+		finally {
+			if (tmpFile != null) {
+				try { Files.deleteIfExists(tmpFile); }
+				catch (IOException e) { }
+			}
+		}
+		
+	}
+	
+	/**
+	 * Porta un path allo stato di un altro ServerReplica (anti-entropy e bootstrap), tenendo il monitor del path e solo 
+	 * se la versione locale non è più recente.
+	 * 
+	 * @param path path da aggiornare
+	 * @param version versione dell'altro ServerReplica (0 se non è mai stato modificato dal suo avvio: la versione 
+	 * 			locale non cambia)
+	 * @param kind tipo del path nell'altro ServerReplica
+	 * @param content file temporaneo con il contenuto (solo per i file, viene spostato)
+	 * 
+	 * @throws IOException Generata se ci sono problemi di I/O
+	 */
+	private void installEntry(String path, long version, MerkleEntry.Kind kind, Path content) throws IOException {
+		
+		Path target = Paths.get(replicaPoint+path);
+		synchronized (versions.lockFor(path)) {
+			if (versions.get(path) > version) { return; }
+			try {
+				switch (kind) {
+					case FILE:
+						Files.createDirectories(target.getParent());
+						Files.move(content, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+						break;
+					case DIRECTORY:
+						Files.createDirectories(target);
+						break;
+					case DELETED:
+						// una directory non vuota resta finchè non vengono recuperati anche i suoi contenuti
+						try { Files.deleteIfExists(target); }
+						catch (DirectoryNotEmptyException e) { }
+						break;
+				}
+			}
+			finally {
+				invalidate(path);
+			}
+			if (version > 0) { versions.set(path, version); }
+		}
+		
+	}
+	
+	/**
+	 * Eliminazione di un path locale che non c'è più negli altri ServerReplica (bootstrap), solo se non è mai stato 
+	 * modificato dal log di replicazione dopo l'avvio.
+	 */
+	private void removeUnversioned(String path) throws IOException {
+		
+		synchronized (versions.lockFor(path)) {
+			if (versions.get(path) != 0) { return; }
+			try { Files.deleteIfExists(Paths.get(replicaPoint+path)); }
+			catch (DirectoryNotEmptyException e) { }
+			finally { invalidate(path); }
+		}
+		
+	}
+	
+	/**
+	 * Manifest dello snapshot del replica point (usato dal bootstrap degli altri ServerReplica): tutti i file e le 
+	 * directory, ogni directory prima del suo contenuto, con versione e dimensione, più i path eliminati presenti nel 
+	 * MerkleTree. Il replica point non viene bloccato: le modifiche fatte durante la visita arrivano con il log.
+	 * 
+	 * @return elementi dello snapshot
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 * @throws DfsException Generata se non è possibile leggere il replica point
+	 */
+	@Override
+	public List<SnapshotEntry> getSnapshotManifest() throws RemoteException, DfsException {
+		
+		Path root = Paths.get(replicaPoint);
+		List<SnapshotEntry> manifest = new ArrayList<SnapshotEntry>();
+		
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					if (!dir.equals(root)) { manifest.add(snapshotEntry(root, dir, MerkleEntry.Kind.DIRECTORY, 0)); }
+					return FileVisitResult.CONTINUE;
+				}
+				
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (attrs.isRegularFile()) { manifest.add(snapshotEntry(root, file, MerkleEntry.Kind.FILE, attrs.size())); }
+					return FileVisitResult.CONTINUE;
+				}
+				
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;   // eliminato durante la visita
+				}
+				
+			});
+		}
+		catch (IOException e) {
+			throw new DfsException("Errore: problema di I/O durante la lettura del replica point");
+		}
+		
+		for (MerkleEntry deleted: merkleTree.getDeleted()) {
+			manifest.add(new SnapshotEntry(deleted.getPath(), deleted.getVersion(), MerkleEntry.Kind.DELETED, 0));
+		}
+		return manifest;
+		
+	}
+	
+	private SnapshotEntry snapshotEntry(Path root, Path file, MerkleEntry.Kind kind, long size) {
+		
+		String path = "/"+root.relativize(file).toString().replace(File.separatorChar, '/');
+		return new SnapshotEntry(path, versions.get(path), kind, size);
+		
+	}
+	
+	/**
+	 * Preparazione dell'invio a flusso sul canale dati di un archivio di file piccoli (bootstrap di un altro 
+	 * ServerReplica). Per ogni path vengono scritti path, versione, lunghezza e contenuto, letti tenendo il monitor
+	 * del path (lunghezza -1 se non è più un file); il flusso termina con un path vuoto.
+	 * 
+	 * @param paths path dei file da inviare
+	 * @return ticket da presentare al data server
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public TransferTicket openSnapshotTransfer(List<String> paths) throws RemoteException {
+		return dataServer.registerStream(socket -> writeSnapshot(paths, socket));
+	}
+	
+	private void writeSnapshot(List<String> paths, SocketChannel socket) throws IOException {
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(socket), 64 * 1024));
+		for (String path: paths) {
+			
+			long version;
+			byte[] content = null;
+			synchronized (versions.lockFor(path)) {
+				version = versions.get(path);
+				Path file = Paths.get(replicaPoint+path);
+				try { 
+					if (Files.isRegularFile(file) && Files.size(file) <= Configs.BOOTSTRAP_SMALL_FILE_BYTES) { content = Files.readAllBytes(file); } 
+				}
+				catch (NoSuchFileException e) { }
+			}
+			
+			out.writeUTF(path);
+			out.writeLong(version);
+			if (content == null) { out.writeInt(-1); }
+			else {
+				out.writeInt(content.length);
+				out.write(content);
+			}
+			
+		}
+		out.writeUTF("");
+		out.flush();
+		
+	}
+	
+	/**
+	 * @param path path del file o directory
+	 * @return versione del path (0 se non è mai stato modificato dall'avvio)
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public long getVersion(String path) throws RemoteException {
+		return versions.get(path);
+	}
+	
+	/**
+	 * Posizione del log di replicazione rispetto a un altro ServerReplica (usata dal suo bootstrap per attendere il 
+	 * recupero delle operazioni fatte durante la copia dello snapshot).
+	 * 
+	 * @param replicaId ServerReplica destinatario
+	 * @return numero di sequenza dell'ultima operazione aggiunta al log e dell'ultima confermata da replicaId
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public long[] getReplicationPosition(int replicaId) throws RemoteException {
+		return replicationLog.getPosition(replicaId);
+	}
+	
+	/**
+	 * Posizione del log della catena rispetto al successore (usata dal ServerMaster per sapere quando un ServerReplica 
+	 * aggiunto in coda ha ricevuto tutto quello che aveva la vecchia coda).
+	 * 
+	 * @param replicaId ServerReplica successore
+	 * @return numero di sequenza dell'ultima operazione aggiunta al log della catena e dell'ultima confermata da 
+	 * 			replicaId (-1 se replicaId non è il successore di questo ServerReplica)
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public long[] getChainPosition(int replicaId) throws RemoteException {
+		
+		if (!chainReplication) { return new long[] { 0, -1 }; }
+		return chainReplicator.getPosition(replicaId);
+		
+	}
+	
+	/**
+	 * Lettura di al massimo length byte a partire da offset: dalla mappatura del file se il file è grande (una slice
+	 * della mappatura, senza copie), altrimenti dalla cache dei blocchi.
+	 */
+	private FileContent read(String path, long offset, int length) throws IOException {
+		
+		Path file = Paths.get(replicaPoint+path);
+		
+		ByteBuffer mapping = mappingCache.get(file, path);
+		if (mapping == null) { return new FileContent(cache.read(file, path, offset, length)); }
+		
+		int start = (int) Math.min(offset, mapping.limit());
+		mapping.position(start);
+		mapping.limit(start + Math.min(length, mapping.limit() - start));
+		return new FileContent(mapping.slice());
+		
+	}
+	
+	/**
+	 * Invalida le cache di lettura per il file. Da chiamare dopo ogni modifica.
+	 */
+	private void invalidate(String path) {
+		
+		cache.invalidate(path);
+		mappingCache.invalidate(path);
+		
+	}
+	
+	/**
+	 * Statistiche della cache dei blocchi (hit, miss, eviction, occupazione).
+	 * 
+	 * @return statistiche della cache
+	 * 
+	 * @throws RemoteException Generata se ci sono problemi di connessione
+	 */
+	@Override
+	public CacheStats getCacheStats() throws RemoteException {
+		return cache.getStats();
+	}
+	
+	/**
+	 * Funzione che ritorna true se il ServerReplica è raggiungibile e ha terminato il bootstrap.
+	 * 
+	 * @return true se il ServerReplica è raggiungibile e pronto, false se sta ancora copiando lo snapshot
+	 * @throws RemoteException se non è raggiungibile
+	 */
+	@Override
+	public boolean isAlive()throws RemoteException {
+		return ready;
 	}
 }
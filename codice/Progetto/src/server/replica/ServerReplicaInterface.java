@@ -1,8 +1,15 @@
 package server.replica;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
+import common.BatchOp;
+import common.CacheStats;
 import common.DfsException;
+import common.FileContent;
+import common.FileDelta;
+import common.TransferTicket;
+import common.VersionedContent;
 
 /**
  * @author gabrielesavoia
@@ -17,7 +24,27 @@ public interface ServerReplicaInterface extends Remote {
 	
 	void writeFile(String path, byte[] content, boolean needPropagate) throws RemoteException, DfsException;
 
-	byte[] readFile(String path) throws RemoteException, DfsException;
+	boolean writeFileDelta(String path, FileDelta delta, boolean needPropagate) throws RemoteException, DfsException;
+	
+	FileContent readFile(String path) throws RemoteException, DfsException;
+	
+	FileContent readFile(String path, long offset, int length) throws RemoteException, DfsException;
+	
+	void writeFile(String path, long offset, byte[] content, boolean needPropagate) throws RemoteException, DfsException;
+	
+	long getFileSize(String path) throws RemoteException, DfsException;
+	
+	String openWriteSession(String path) throws RemoteException, DfsException;
+	
+	void writeChunk(String sessionId, long offset, byte[] chunk) throws RemoteException, DfsException;
+	
+	void commitWriteSession(String sessionId, boolean needPropagate) throws RemoteException, DfsException;
+	
+	void abortWriteSession(String sessionId) throws RemoteException;
+	
+	TransferTicket openReadTransfer(String path, long offset, long length) throws RemoteException, DfsException;
+	
+	TransferTicket openWriteTransfer(String sessionId, long offset, long length) throws RemoteException, DfsException;
 	
 	void remove(String path, boolean needPropagate) throws RemoteException, DfsException;
 
@@ -27,8 +54,34 @@ public interface ServerReplicaInterface extends Remote {
 	
 	void createDirectory(String path, boolean needPropagate) throws RemoteException, DfsException;
 	
+	DfsException[] executeBatch(List<BatchOp> ops) throws RemoteException, DfsException;
+	
 	String[] listFilesDirectory(String directoryPath) throws RemoteException, DfsException;
 	
+	CacheStats getCacheStats() throws RemoteException;
+	
+	VersionedContent readFileVersioned(String path) throws RemoteException, DfsException;
+	
+	ReplicationAck applyLog(String logId, int sourceId, long baseSeq, List<LogEntry> entries) throws RemoteException;
+	
+	long[] getMerkleHashes(int level, int[] nodes) throws RemoteException;
+	
+	void requestAntiEntropy(int replicaId) throws RemoteException;
+	
+	List<MerkleEntry> getMerkleEntries(int[] leaves) throws RemoteException;
+	
+	List<SnapshotEntry> getSnapshotManifest() throws RemoteException, DfsException;
+	
+	TransferTicket openSnapshotTransfer(List<String> paths) throws RemoteException;
+	
+	long getVersion(String path) throws RemoteException;
+	
+	long[] getReplicationPosition(int replicaId) throws RemoteException;
+	
+	long[] getChainPosition(int replicaId) throws RemoteException;
+	
+	void setChain(long epoch, int[] chain) throws RemoteException;
+	
 	void lookupOtherReplicas(int numReplicas) throws RemoteException, DfsException;
 	
 	boolean isAlive() throws RemoteException;
@@ -0,0 +1,50 @@
+package server.replica;
+
+import java.io.Serializable;
+
+/**
+ * Elemento del manifest di uno snapshot (vedi Bootstrap): path, versione, tipo e dimensione (solo per i file).
+ *
+ * I path delle directory sono senza slash finale, come nella VersionTable.
+ *
+ * @author gabrielesavoia
+ *
+ */
+public class SnapshotEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String path;
+	private final long version;
+	private final MerkleEntry.Kind kind;
+	private final long size;
+
+	public SnapshotEntry(String path, long version, MerkleEntry.Kind kind, long size) {
+		this.path = path;
+		this.version = version;
+		this.kind = kind;
+		this.size = size;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public MerkleEntry.Kind getKind() {
+		return kind;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return kind+" "+path+" v"+version+" ("+size+" byte)";
+	}
+
+}
@@ -0,0 +1,87 @@
+package server.replica;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Versione di ogni path di un ServerReplica.
+ *
+ * La versione viene assegnata dal ServerReplica che esegue la modifica per il client (next) e copiata dagli altri
+ * quando applicano l'operazione propagata (set). È il massimo tra la versione precedente + 1 e l'ora attuale in
+ * millisecondi, così anche un ServerReplica che non ha ancora ricevuto le ultime modifiche di un path assegna di norma
+ * una versione più recente di quelle già assegnate dagli altri.
+ * Le versioni dei path eliminati restano in tabella, così un' operazione vecchia arrivata in ritardo non li ricrea.
+ *
+ * Le operazioni su uno stesso path (modifica del file e aggiornamento della versione) vanno eseguite tenendo il monitor
+ * restituito da lockFor(path); i path sono distribuiti su un numero fisso di monitor.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class VersionTable {
+
+	private static final int STRIPES = 256;
+
+	private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<String, Long>();
+	private final Object[] locks = new Object[STRIPES];
+	private final BiConsumer<String, Long> listener;
+
+	/**
+	 * @param listener chiamato ad ogni cambio di versione di un path (tenendo il monitor del path)
+	 */
+	public VersionTable(BiConsumer<String, Long> listener) {
+		this.listener = listener;
+		for (int i=0; i<STRIPES; i++) { locks[i] = new Object(); }
+	}
+
+	public Object lockFor(String path) {
+		return locks[path.hashCode() & (STRIPES - 1)];
+	}
+
+	/**
+	 * @return monitor dei due path in ordine di acquisizione (lo stesso monitor due volte se condiviso)
+	 */
+	public Object[] locksFor(String path, String otherPath) {
+
+		int a = path.hashCode() & (STRIPES - 1);
+		int b = otherPath.hashCode() & (STRIPES - 1);
+		return new Object[] { locks[Math.min(a, b)], locks[Math.max(a, b)] };
+
+	}
+
+	/**
+	 * @return versione del path, 0 se il path non è mai stato modificato
+	 */
+	public long get(String path) {
+
+		Long version = versions.get(path);
+		return (version == null) ? 0 : version;
+
+	}
+
+	/**
+	 * Assegna una nuova versione ai path (la stessa a tutti).
+	 *
+	 * @return versione assegnata
+	 */
+	public long next(String... paths) {
+
+		long version = System.currentTimeMillis();
+		for (String path: paths) { version = Math.max(version, get(path) + 1); }
+		for (String path: paths) {
+			versions.put(path, version);
+			listener.accept(path, version);
+		}
+		return version;
+
+	}
+
+	/**
+	 * Imposta la versione del path (quella dell'operazione propagata appena applicata).
+	 */
+	public void set(String path, long version) {
+		versions.put(path, version);
+		listener.accept(path, version);
+	}
+
+}
@@ -0,0 +1,105 @@
+package server.replica;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import common.DataTransfer;
+
+/**
+ * Sessione di scrittura a blocchi di un file (vedi ServerReplica.openWriteSession).
+ *
+ * I blocchi vengono scritti in un file temporaneo, fuori dal replica point; solo al commit il file temporaneo prende il
+ * posto del file di destinazione con uno spostamento atomico, così chi legge vede o la versione precedente o quella
+ * completa.
+ *
+ * @author gabrielesavoia
+ *
+ */
+class WriteSession {
+
+	private final String path;
+	private final Path tmpFile;
+	private final FileChannel channel;
+	private volatile long lastAccessNanos;
+
+	/**
+	 * Crea il file temporaneo vuoto.
+	 *
+	 * @param path del file di destinazione (relativo al replica point)
+	 * @param tmpFile file temporaneo
+	 *
+	 * @throws IOException Generata se non è possibile creare il file temporaneo
+	 */
+	public WriteSession(String path, Path tmpFile) throws IOException {
+		this.path = path;
+		this.tmpFile = tmpFile;
+		this.channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		this.lastAccessNanos = System.nanoTime();
+	}
+
+	/**
+	 * Scrive un blocco a partire da offset.
+	 */
+	public void write(long offset, byte[] chunk) throws IOException {
+
+		lastAccessNanos = System.nanoTime();
+		ByteBuffer buffer = ByteBuffer.wrap(chunk);
+		while (buffer.hasRemaining()) {
+			offset += channel.write(buffer, offset);
+		}
+
+	}
+
+	/**
+	 * Scrive length byte ricevuti dal canale dati a partire da offset.
+	 */
+	public void receive(SocketChannel socket, long offset, long length) throws IOException {
+
+		lastAccessNanos = System.nanoTime();
+		DataTransfer.receive(socket, channel, offset, length);
+		lastAccessNanos = System.nanoTime();
+
+	}
+
+	/**
+	 * Forza su disco il contenuto del file temporaneo.
+	 */
+	public void force() throws IOException {
+		channel.force(true);
+	}
+
+	/**
+	 * Chiude il file temporaneo (da chiamare prima di spostarlo o eliminarlo).
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Chiude ed elimina il file temporaneo.
+	 */
+	public void discard() {
+		try { channel.close(); }
+		catch (IOException e) { }
+		try { Files.deleteIfExists(tmpFile); }
+		catch (IOException e) { }
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public Path getTmpFile() {
+		return tmpFile;
+	}
+
+	public long getLastAccessNanos() {
+		return lastAccessNanos;
+	}
+
+}